@@ -0,0 +1,279 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package progstm32;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import flash.stm32.core.FileType;
+
+/* Steps given in a batch file with -b. They are run in the given order over one
+ * bootloader session, so several images can be erased, written and verified in
+ * one pass; handshake is done again only after steps which reset stm32. One step
+ * per line, words separated by white space, anything after # is a comment.
+ * Addresses are hexadecimal as with -s, relative file names are relative to
+ * directory of batch file.
+ *
+ *   erase m                          mass erase
+ *   erase start total                erase pages
+ *   erase f file {ih|bn} [address]   erase pages file will be written to
+ *   write file {ih|bn} [address]     write file (address needed for bn)
+ *   verify file {ih|bn} [address]    read back and compare with file
+ *   read address length {file|stdout}
+ *   pid | blid | blver
+ *   runprotect | wunprotect | rprotect | wprotect start total
+ *   reset
+ *   go address                       must be the last step
+ */
+final class BatchScript {
+
+    static final int ERASE_MASS = 1;
+    static final int ERASE_PAGES = 2;
+    static final int ERASE_FW = 3;
+    static final int WRITE = 4;
+    static final int VERIFY = 5;
+    static final int READ = 6;
+    static final int GET_PID = 7;
+    static final int GET_BLID = 8;
+    static final int GET_BLVER = 9;
+    static final int READ_UNPROTECT = 10;
+    static final int WRITE_UNPROTECT = 11;
+    static final int READ_PROTECT = 12;
+    static final int WRITE_PROTECT = 13;
+    static final int SOFT_RESET = 14;
+    static final int GO = 15;
+
+    static final class Step {
+        final int line;
+        final String text;
+        int kind;
+        File file;
+        int fileType = -1;
+        /* address for write, verify, read and go; -1 if not given */
+        int address = -1;
+        /* start page and number of pages, or length for read */
+        int start;
+        int total;
+        boolean stdout;
+
+        Step(int line, String text) {
+            this.line = line;
+            this.text = text;
+        }
+
+        /*
+         * Protection commands make stm32 reload option bytes and reset, so after
+         * them and after soft reset bootloader has to be initialized again before
+         * next step. Other steps run in the same session.
+         */
+        boolean resetsDevice() {
+            return (kind >= READ_UNPROTECT) && (kind <= SOFT_RESET);
+        }
+    }
+
+    private final List<Step> steps;
+
+    private BatchScript(List<Step> steps) {
+        this.steps = steps;
+    }
+
+    List<Step> getSteps() {
+        return steps;
+    }
+
+    /*
+     * Reads and checks whole batch file before anything is sent to stm32, so a
+     * mistake in a later line does not leave board half programmed. Throws
+     * IllegalArgumentException giving line number and text of invalid step.
+     */
+    static BatchScript load(File file) throws IOException {
+
+        int x;
+        int num = 0;
+        String line;
+        String[] words;
+        Step step;
+        ArrayList<Step> steps = new ArrayList<Step>();
+        File dir = file.getAbsoluteFile().getParentFile();
+
+        try (BufferedReader r = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            while ((line = r.readLine()) != null) {
+                num++;
+                x = line.indexOf('#');
+                if (x >= 0) {
+                    line = line.substring(0, x);
+                }
+                line = line.trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                if ((steps.isEmpty() == false) && (steps.get(steps.size() - 1).kind == GO)) {
+                    throw new IllegalArgumentException(num + ": " + line);
+                }
+                step = new Step(num, line);
+                words = line.split("\\s+");
+                try {
+                    if (parseStep(step, words, dir) == false) {
+                        throw new IllegalArgumentException(num + ": " + line);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(num + ": " + line);
+                }
+                steps.add(step);
+            }
+        }
+
+        return new BatchScript(Collections.unmodifiableList(steps));
+    }
+
+    private static boolean parseStep(Step step, String[] words, File dir) {
+
+        int n = words.length;
+
+        switch (words[0]) {
+
+        case "erase":
+            if ((n == 2) && (words[1].equals("m") == true)) {
+                step.kind = ERASE_MASS;
+                return true;
+            }
+            if ((n >= 2) && (words[1].equals("f") == true)) {
+                step.kind = ERASE_FW;
+                return parseFile(step, words, 2, dir);
+            }
+            if (n == 3) {
+                step.kind = ERASE_PAGES;
+                step.start = Integer.parseInt(words[1]);
+                step.total = Integer.parseInt(words[2]);
+                return true;
+            }
+            return false;
+
+        case "write":
+            step.kind = WRITE;
+            return parseFile(step, words, 1, dir);
+
+        case "verify":
+            step.kind = VERIFY;
+            return parseFile(step, words, 1, dir);
+
+        case "read":
+            if (n != 4) {
+                return false;
+            }
+            step.kind = READ;
+            step.address = Integer.parseInt(words[1], 16);
+            step.total = Integer.parseInt(words[2]);
+            if (words[3].equals("stdout") == true) {
+                step.stdout = true;
+            } else {
+                step.file = resolve(dir, words[3]);
+            }
+            return true;
+
+        case "wprotect":
+            if (n != 3) {
+                return false;
+            }
+            step.kind = WRITE_PROTECT;
+            step.start = Integer.parseInt(words[1]);
+            step.total = Integer.parseInt(words[2]);
+            return true;
+
+        case "go":
+            if (n != 2) {
+                return false;
+            }
+            step.kind = GO;
+            step.address = Integer.parseInt(words[1], 16);
+            return true;
+
+        case "pid":
+            step.kind = GET_PID;
+            break;
+        case "blid":
+            step.kind = GET_BLID;
+            break;
+        case "blver":
+            step.kind = GET_BLVER;
+            break;
+        case "runprotect":
+            step.kind = READ_UNPROTECT;
+            break;
+        case "wunprotect":
+            step.kind = WRITE_UNPROTECT;
+            break;
+        case "rprotect":
+            step.kind = READ_PROTECT;
+            break;
+        case "reset":
+            step.kind = SOFT_RESET;
+            break;
+
+        default:
+            return false;
+        }
+
+        /* steps without arguments */
+        return n == 1;
+    }
+
+    /*
+     * Parses "file {ih|bn} [address]" starting at given word.
+     */
+    private static boolean parseFile(Step step, String[] words, int first, File dir) {
+
+        int n = words.length - first;
+
+        if ((n < 2) || (n > 3)) {
+            return false;
+        }
+        step.file = resolve(dir, words[first]);
+        if (words[first + 1].equals("ih") == true) {
+            step.fileType = FileType.HEX;
+        } else if (words[first + 1].equals("bn") == true) {
+            step.fileType = FileType.BIN;
+        } else {
+            return false;
+        }
+        if (n == 3) {
+            step.address = Integer.parseInt(words[first + 2], 16);
+        } else if (step.fileType == FileType.BIN) {
+            return false;
+        }
+
+        return true;
+    }
+
+    private static File resolve(File dir, String name) {
+        File f = new File(name);
+        if ((dir == null) || (f.isAbsolute() == true)) {
+            return f;
+        }
+        return new File(dir, name);
+    }
+}
@@ -20,28 +20,37 @@
 
 package progstm32;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.ResourceBundle;
 
 import flash.stm32.core.BLCMDS;
+import flash.stm32.core.CancelToken;
+import flash.stm32.core.CommandMetrics;
 import flash.stm32.core.Device;
 import flash.stm32.core.FileType;
+import flash.stm32.core.FirmwareBlockReader;
 import flash.stm32.core.FlashUtils;
-import flash.stm32.core.HexFirmware;
-import flash.stm32.core.ICmdProgressListener;
+import flash.stm32.core.ICmdDetailedProgressListener;
 import flash.stm32.core.REGTYPE;
+import flash.stm32.core.SegmentedFirmware;
+import flash.stm32.core.WriteJournal;
+import flash.stm32.uart.GangProgrammer;
+import flash.stm32.uart.IBootloaderEntry;
+import flash.stm32.uart.RetryPolicy;
 import flash.stm32.uart.UARTDeviceManager;
 import flash.stm32.uart.UARTDeviceManager.IFace;
 import flash.stm32.uart.UARTInterface;
+import flash.stm32.uart.transport.TcpTransport;
 
 import com.serialpundit.core.util.SerialComUtil;
-import com.serialpundit.serial.SerialComManager.BAUDRATE;
 import com.serialpundit.serial.SerialComManager.DATABITS;
 import com.serialpundit.serial.SerialComManager.FLOWCONTROL;
 import com.serialpundit.serial.SerialComManager.PARITY;
@@ -49,7 +58,7 @@ import com.serialpundit.serial.SerialComManager.STOPBITS;
 
 /* If the application is executing in command line mode, it extracts arguments
  * and execute the user given command. */
-public final class CmdLineHandler implements ICmdProgressListener {
+public final class CmdLineHandler implements ICmdDetailedProgressListener, IBootloaderEntry {
 
     /* Enter/Exit bootloader mode */
     final int ACT_BL_ENTRY = 0x01;
@@ -88,6 +97,8 @@ public final class CmdLineHandler implements ICmdProgressListener {
     private boolean opened = false;
     private int allowedCmds = 0;
     private ResourceBundle rb;
+    private final CancelToken cancelToken = new CancelToken();
+    private CommandMetrics cmdMetrics;
 
     /* 1 for DTR, 2 for RTS */
     private int firstSignalToSet = -1;
@@ -104,6 +115,28 @@ public final class CmdLineHandler implements ICmdProgressListener {
     private int holdTime = 5;
     private int action = 0;
 
+    /* Set when running inside daemon; ports are kept open and paths are relative to client */
+    private final PortCache portCache;
+    private final File workDir;
+
+    /* Where every message for user goes, client connection when running inside daemon */
+    private final PrintStream out;
+
+    public CmdLineHandler() {
+        this(null, null, System.out);
+    }
+
+    /*
+     * Used by daemon. Ports are taken from given cache and left open after
+     * command, relative file names are resolved against working directory of
+     * client and messages are printed to given stream.
+     */
+    CmdLineHandler(PortCache portCache, File workDir, PrintStream out) {
+        this.portCache = portCache;
+        this.workDir = workDir;
+        this.out = out;
+    }
+
     public void process(String[] args) {
 
         int numArgs = args.length;
@@ -111,33 +144,43 @@ public final class CmdLineHandler implements ICmdProgressListener {
         int startPageNum = 0;
         int totalPageNum = 0;
         int baudrate = 0;
-        BAUDRATE brate = null;
+        boolean autoBaudrate = false;
         int fileType = -1;
         int startAddress = -1;
         int length = -1;
         String device = null;
         boolean verifyWrite = false;
+        boolean crcVerify = false;
+        boolean pipelinedWrite = false;
+        int verifyWindow = 0;
+        int retries = 0;
+        int retryBaudrate = 0;
+        RetryPolicy retryPolicy = null;
+        boolean flashLoader = false;
+        int loaderBaudrate = 0;
+        boolean deltaWrite = false;
+        int deltaPageSize = 0;
+        boolean eraseForFw = false;
+        File journalFile = null;
+        WriteJournal journal = null;
+        SegmentedFirmware segFw = null;
         File fwFile = null;
         boolean stdout = false;
         Locale curlocale = Locale.ENGLISH;
         String bundle = null;
 
         int x = 0;
-        int offset = 0;
-        int numBytesToRead = 0;
-        int numBytesActuallyRead = 0;
-        int totalBytesReadTillNow = 0;
-        BufferedInputStream inStream = null;
-        byte[] wrtBuf = null;
         int numBytesRead = 0;
         byte[] readBuf = null;
-        int lengthOfFileContents = 0;
         String readFile = null;
+        List<SegmentedFirmware.Segment> mismatched = null;
+        File batchFile = null;
+        BatchScript script = null;
 
         if (numArgs == 0) {
-            System.out.println(
-                    "Usage: progstm32 -d port [-{r|w} filename] [-{bn|ih}] [-e {m | start total}] [-s address] [-l length] [-kopjnivhR] [-br baudrate] [-g address] [-{er|ex} -{dtr|rts} {0|1} {0|1} -{dtr|rts} {0|1} {0|1}] [-L {en|fr|ko|it|de|zh|ja}]");
-            System.out.println("Try 'progstm32 --help' for more information.");
+            out.println(
+                    "Usage: progstm32 -d port [-{r|w} filename] [-{bn|ih}] [-e {m | f | start total}] [-s address] [-l length] [-kopjnivhR] [-v [crc]] [-pw] [-vw [blocks]] [-fl [baudrate]] [-dw [pagesize]] [-wj journal] [-rt [n [baudrate]]] [-cm] [-b batchfile] [-br baudrate|auto] [-g address] [-{er|ex} -{dtr|rts} {0|1} {0|1} -{dtr|rts} {0|1} {0|1}] [-L {en|fr|ko|it|de|zh|ja}]");
+            out.println("Try 'progstm32 --help' for more information.");
             return;
         }
 
@@ -149,23 +192,91 @@ public final class CmdLineHandler implements ICmdProgressListener {
                 action |= ACT_WRITE;
                 i++;
                 try {
-                    fwFile = new File(args[i]);
+                    fwFile = resolveFile(args[i]);
                     if (fwFile.exists() == false) {
-                        System.out.println("Firmware file doesn't exist");
+                        out.println("Firmware file doesn't exist");
                         return;
                     }
                     if (fwFile.isFile() == false) {
-                        System.out.println("Invalid firmware file");
+                        out.println("Invalid firmware file");
                         return;
                     }
                 } catch (Exception e) {
-                    System.out.println("Invalid start address, " + e.getMessage());
+                    out.println("Invalid start address, " + e.getMessage());
                     return;
                 }
                 break;
 
             case "-v":
                 verifyWrite = true;
+                if (((i + 1) < numArgs) && args[i + 1].equals("crc")) {
+                    i++;
+                    crcVerify = true;
+                }
+                break;
+
+            case "-pw":
+                pipelinedWrite = true;
+                break;
+
+            case "-cm":
+                cmdMetrics = new CommandMetrics();
+                break;
+
+            case "-b":
+                i++;
+                if (i >= numArgs) {
+                    out.println("Batch file must be given with -b");
+                    return;
+                }
+                batchFile = resolveFile(args[i]);
+                break;
+
+            case "-vw":
+                verifyWindow = 16;
+                if (((i + 1) < numArgs) && args[i + 1].matches("[0-9]+")) {
+                    i++;
+                    verifyWindow = Integer.parseInt(args[i]);
+                }
+                break;
+
+            case "-dw":
+                deltaWrite = true;
+                if (((i + 1) < numArgs) && args[i + 1].matches("[0-9]+")) {
+                    i++;
+                    deltaPageSize = Integer.parseInt(args[i]);
+                }
+                break;
+
+            case "-rt":
+                retries = 3;
+                if (((i + 1) < numArgs) && args[i + 1].matches("[0-9]+")) {
+                    i++;
+                    retries = Integer.parseInt(args[i]);
+                    if (((i + 1) < numArgs) && args[i + 1].matches("[0-9]+")) {
+                        i++;
+                        retryBaudrate = Integer.parseInt(args[i]);
+                    }
+                }
+                /* baudrate is lowered after 2 attempts in a row fail with line errors */
+                retryPolicy = new RetryPolicy(retries, 10, retryBaudrate, (retryBaudrate > 0) ? 2 : 0);
+                break;
+
+            case "-wj":
+                i++;
+                if (i >= numArgs) {
+                    out.println("Journal file must be given with -wj");
+                    return;
+                }
+                journalFile = resolveFile(args[i]);
+                break;
+
+            case "-fl":
+                flashLoader = true;
+                if (((i + 1) < numArgs) && args[i + 1].matches("[0-9]+")) {
+                    i++;
+                    loaderBaudrate = Integer.parseInt(args[i]);
+                }
                 break;
 
             case "-ih":
@@ -181,7 +292,7 @@ public final class CmdLineHandler implements ICmdProgressListener {
                 try {
                     startAddress = Integer.parseInt(args[i], 16);
                 } catch (Exception e) {
-                    System.out.println("Invalid start address, " + e.getMessage());
+                    out.println("Invalid start address, " + e.getMessage());
                     return;
                 }
                 break;
@@ -191,7 +302,7 @@ public final class CmdLineHandler implements ICmdProgressListener {
                 try {
                     length = Integer.parseInt(args[i]);
                 } catch (Exception e) {
-                    System.out.println("Invalid length " + e.getMessage());
+                    out.println("Invalid length " + e.getMessage());
                     return;
                 }
                 break;
@@ -200,6 +311,9 @@ public final class CmdLineHandler implements ICmdProgressListener {
                 i++;
                 if (args[i].equals("m")) {
                     action |= ACT_MASS_ERASE;
+                } else if (args[i].equals("f")) {
+                    action |= ACT_ERASE;
+                    eraseForFw = true;
                 } else {
                     action |= ACT_ERASE;
                     try {
@@ -207,7 +321,7 @@ public final class CmdLineHandler implements ICmdProgressListener {
                         i++;
                         totalPageNum = Integer.parseInt(args[i]);
                     } catch (Exception e) {
-                        System.out.println("Invalid erase option: " + e.getMessage());
+                        out.println("Invalid erase option: " + e.getMessage());
                         return;
                     }
                 }
@@ -219,16 +333,20 @@ public final class CmdLineHandler implements ICmdProgressListener {
                 if (args[i].equals("stdout")) {
                     stdout = true;
                 } else {
-                    readFile = args[i];
+                    readFile = resolveFile(args[i]).getPath();
                 }
                 break;
 
             case "-br":
                 i++;
+                if (args[i].equals("auto")) {
+                    autoBaudrate = true;
+                    break;
+                }
                 try {
                     baudrate = Integer.parseInt(args[i]);
                 } catch (Exception e) {
-                    System.out.println("Invalid baudrate: " + e.getMessage());
+                    out.println("Invalid baudrate: " + e.getMessage());
                     return;
                 }
                 break;
@@ -244,7 +362,7 @@ public final class CmdLineHandler implements ICmdProgressListener {
                 try {
                     startAddress = Integer.parseInt(args[i], 16);
                 } catch (Exception e) {
-                    System.out.println("Invalid go address, " + e.getMessage());
+                    out.println("Invalid go address, " + e.getMessage());
                     return;
                 }
                 break;
@@ -265,7 +383,7 @@ public final class CmdLineHandler implements ICmdProgressListener {
                     i++;
                     totalPageNum = Integer.parseInt(args[i]);
                 } catch (Exception e) {
-                    System.out.println("Invalid write protect option, " + e.getMessage());
+                    out.println("Invalid write protect option, " + e.getMessage());
                     return;
                 }
                 break;
@@ -303,7 +421,7 @@ public final class CmdLineHandler implements ICmdProgressListener {
                 try {
                     holdTime = Integer.parseInt(args[i]);
                 } catch (Exception e) {
-                    System.out.println("Invalid hold time, " + e.getMessage());
+                    out.println("Invalid hold time, " + e.getMessage());
                     return;
                 }
                 break;
@@ -351,7 +469,7 @@ public final class CmdLineHandler implements ICmdProgressListener {
                 return;
 
             default:
-                System.out.println("Invalid option: " + args[i]);
+                out.println("Invalid option: " + args[i]);
                 return;
             }
         }
@@ -378,7 +496,58 @@ public final class CmdLineHandler implements ICmdProgressListener {
 
         /* Check mandatory options has been supplied by user */
         if ((device == null) || (device.length() == 0)) {
-            System.out.println(rb.getString("com.p.nt.gvn"));
+            out.println(rb.getString("com.p.nt.gvn"));
+            return;
+        }
+
+        /*
+         * Batch file gives all operations itself, only port, baudrate, write and
+         * bootloader entry/exit options may come with it. Whole file is checked
+         * before port is opened.
+         */
+        if (batchFile != null) {
+            if (((action & ~(ACT_BL_ENTRY | ACT_BL_EXIT)) != 0) || (device.indexOf(',') >= 0)) {
+                out.println(rb.getString("bat.mix"));
+                return;
+            }
+            if ((deltaWrite == true) || (journalFile != null) || (verifyWrite == true)) {
+                out.println(rb.getString("bat.nsup"));
+                return;
+            }
+            try {
+                script = BatchScript.load(batchFile);
+            } catch (IOException e) {
+                out.println(rb.getString("bat.rd.fl") + " " + batchFile + " : " + e.getMessage());
+                return;
+            } catch (IllegalArgumentException e) {
+                out.println(rb.getString("bat.inval") + " " + e.getMessage());
+                return;
+            }
+        }
+
+        /* Several ports separated by comma, program all of them concurrently */
+        if (device.indexOf(',') >= 0) {
+            if (((action & ACT_WRITE) != ACT_WRITE)
+                    || (((action & ACT_ERASE) == ACT_ERASE) && (eraseForFw == false))) {
+                out.println(rb.getString("gang.nd.w"));
+                return;
+            }
+            if ((deltaWrite == true) || (journalFile != null) || (crcVerify == true) || (autoBaudrate == true)) {
+                out.println(rb.getString("gang.nsup"));
+                return;
+            }
+            if (eraseForFw == true) {
+                x = GangProgrammer.ERASE_FIRMWARE;
+            } else if ((action & ACT_MASS_ERASE) == ACT_MASS_ERASE) {
+                x = GangProgrammer.ERASE_MASS;
+            } else {
+                x = GangProgrammer.ERASE_NONE;
+            }
+            if (baudrate == 0) {
+                baudrate = 115200;
+            }
+            gangProgram(device.split(","), fileType, fwFile, startAddress, curlocale, baudrate, x, verifyWrite,
+                    pipelinedWrite, verifyWindow, flashLoader, loaderBaudrate, retryPolicy);
             return;
         }
 
@@ -388,84 +557,86 @@ public final class CmdLineHandler implements ICmdProgressListener {
          * the primary command.
          */
         try {
-            devMgr = new UARTDeviceManager(curlocale);
-            uci = (UARTInterface) devMgr.getCommunicationIface(IFace.UART, "progstm32jqix7");
+            if (portCache != null) {
+                uci = portCache.getInterface(device, curlocale);
+            } else {
+                devMgr = new UARTDeviceManager(curlocale);
+                uci = (UARTInterface) devMgr.getCommunicationIface(IFace.UART, "progstm32jqix7");
+            }
+            uci.setWritePipelining(pipelinedWrite);
+            uci.setWriteVerify(verifyWindow);
+            uci.setFlashLoader(flashLoader, loaderBaudrate);
+            uci.setRetryPolicy(retryPolicy);
+            uci.setCommandMetrics(cmdMetrics);
         } catch (Exception e) {
-            System.out.println(rb.getString("cant.devmgr") + ": " + e.getMessage());
+            out.println(rb.getString("cant.devmgr") + ": " + e.getMessage());
             return;
         }
 
         /* If user has given baudrate use it, if not than use default 115200 */
-        brate = translateBaudrate(baudrate);
+        if ((baudrate == 0) || (autoBaudrate == true)) {
+            baudrate = 115200;
+        }
         try {
-            uci.open(device, brate, DATABITS.DB_8, STOPBITS.SB_1, PARITY.P_EVEN, FLOWCONTROL.NONE);
+            if (portCache != null) {
+                portCache.open(device, baudrate);
+            } else {
+                openPort(uci, device, baudrate);
+            }
             opened = true;
         } catch (Exception e) {
-            System.out.println(rb.getString("cant.open") + " " + device + " : " + e.getMessage());
+            out.println(rb.getString("cant.open") + " " + device + " : " + e.getMessage());
             return;
         }
 
         /* Make stm32 enter bootloader mode by applying sequence as specified by user */
         if ((action & ACT_BL_ENTRY) == ACT_BL_ENTRY) {
-            System.out.println(rb.getString("bootm.enter"));
+            out.println(rb.getString("bootm.enter"));
             try {
-                if (firstSignalToSet == 1) {
-                    uci.setDTR(entryDTRstate1);
-                    uci.setRTS(entryRTSstate1);
-                } else {
-                    uci.setRTS(entryRTSstate1);
-                    uci.setDTR(entryDTRstate1);
-                }
-                try {
-                    time = System.currentTimeMillis() + holdTime;
-                    Thread.sleep(holdTime);
-                } catch (InterruptedException e) {
-                    long y = time - System.currentTimeMillis();
-                    System.out.println(rb.getString("wokeup") + " " + y + " " + rb.getString("m.early.en"));
-                }
-                if (firstSignalToSet == 1) {
-                    if (entryDTRstate2 != entryDTRstate1) {
-                        uci.setDTR(entryDTRstate2);
-                    }
-                    if (entryRTSstate2 != entryRTSstate1) {
-                        uci.setRTS(entryRTSstate2);
-                    }
-                } else {
-                    if (entryRTSstate2 != entryRTSstate1) {
-                        uci.setRTS(entryRTSstate2);
-                    }
-                    if (entryDTRstate2 != entryDTRstate1) {
-                        uci.setDTR(entryDTRstate2);
-                    }
-                }
-                System.out.println(rb.getString("seq.done"));
+                enterBootloaderMode(uci);
+                out.println(rb.getString("seq.done"));
             } catch (Exception e) {
-                System.out.println(rb.getString("cant.exe.b.seq") + e.getMessage());
+                out.println(rb.getString("cant.exe.b.seq") + e.getMessage());
                 cleanUpAndExitNow();
                 return;
             }
         }
 
+        /*
+         * With -br auto, try fastest baudrate first and step down. Entry sequence is
+         * applied again before every retry as bootloader locks on to the baudrate of
+         * first init sequence it receives.
+         */
         try {
-            dev = uci.initAndIdentifyDevice();
+            if (autoBaudrate == true) {
+                dev = uci.initAndIdentifyDevice(negotiationBaudrates(),
+                        ((action & ACT_BL_ENTRY) == ACT_BL_ENTRY) ? this : null);
+                out.println(rb.getString("using.baud") + " " + uci.getBaudrate());
+            } else {
+                dev = uci.initAndIdentifyDevice();
+            }
         } catch (Exception e) {
-            System.out.println(rb.getString("cant.init.dev") + e.getMessage());
+            out.println(rb.getString("cant.init.dev") + e.getMessage());
             cleanUpAndExitNow();
             return;
         }
+        dev.setCancelToken(cancelToken);
+        if (portCache == null) {
+            stopOnInterrupt();
+        }
 
         /* Disable read protection */
         if ((action & ACT_READ_UNPROTECT) == ACT_READ_UNPROTECT) {
             try {
                 dev.readoutUnprotectMemoryRegion();
-                System.out.println(rb.getString("disabled.rp"));
+                out.println(rb.getString("disabled.rp"));
                 if ((action > ACT_READ_UNPROTECT) && (reinit() == -1)) {
-                    System.out.println(rb.getString("cant.reinit"));
+                    out.println(rb.getString("cant.reinit"));
                     cleanUpAndExitNow();
                     return;
                 }
             } catch (Exception e) {
-                System.out.println(rb.getString("cant.dis.rp") + e.getMessage());
+                out.println(rb.getString("cant.dis.rp") + e.getMessage());
             }
             if (action <= ACT_READ_UNPROTECT) {
                 cleanUpAndExitNow();
@@ -477,7 +648,13 @@ public final class CmdLineHandler implements ICmdProgressListener {
         try {
             allowedCmds = dev.getAllowedCommands();
         } catch (Exception e) {
-            System.out.println(rb.getString("cant.sprt.cmd") + e.getMessage());
+            out.println(rb.getString("cant.sprt.cmd") + e.getMessage());
+            cleanUpAndExitNow();
+            return;
+        }
+
+        if (script != null) {
+            runBatch(script, curlocale);
             cleanUpAndExitNow();
             return;
         }
@@ -487,17 +664,17 @@ public final class CmdLineHandler implements ICmdProgressListener {
             if ((allowedCmds & BLCMDS.WRITE_UNPROTECT) == BLCMDS.WRITE_UNPROTECT) {
                 try {
                     dev.writeUnprotectMemoryRegion();
-                    System.out.println(rb.getString("disbled.wp"));
+                    out.println(rb.getString("disbled.wp"));
                     if ((action > ACT_WRITE_UNPROTECT) && (reinit() == -1)) {
-                        System.out.println(rb.getString("cant.reinit"));
+                        out.println(rb.getString("cant.reinit"));
                         executeExitSequenceIfGiven();
                         return;
                     }
                 } catch (Exception e) {
-                    System.out.println(rb.getString("cant.dis.wp") + e.getMessage());
+                    out.println(rb.getString("cant.dis.wp") + e.getMessage());
                 }
             } else {
-                System.out.println(rb.getString("bl.dnt.sprt.dwp"));
+                out.println(rb.getString("bl.dnt.sprt.dwp"));
             }
             if (action <= ACT_WRITE_UNPROTECT) {
                 cleanUpAndExitNow();
@@ -509,14 +686,14 @@ public final class CmdLineHandler implements ICmdProgressListener {
         if ((action & ACT_GET_PID) == ACT_GET_PID) {
             if ((allowedCmds & BLCMDS.GET_ID) == BLCMDS.GET_ID) {
                 try {
-                    System.out.println(rb.getString("pid") + " " + dev.getChipID());
+                    out.println(rb.getString("pid") + " " + dev.getChipID());
                 } catch (Exception e) {
-                    System.out.println(rb.getString("cant.gpid") + e.getMessage());
+                    out.println(rb.getString("cant.gpid") + e.getMessage());
                     cleanUpAndExitNow();
                     return;
                 }
             } else {
-                System.out.println(rb.getString("bl.dsnt.sprt.rpid"));
+                out.println(rb.getString("bl.dsnt.sprt.rpid"));
             }
             if (action <= ACT_GET_PID) {
                 cleanUpAndExitNow();
@@ -527,9 +704,9 @@ public final class CmdLineHandler implements ICmdProgressListener {
         /* Get bootloader id of the stm32 device */
         if ((action & ACT_GET_BLID) == ACT_GET_BLID) {
             try {
-                System.out.println(rb.getString("blid") + " " + dev.getBootloaderID());
+                out.println(rb.getString("blid") + " " + dev.getBootloaderID());
             } catch (Exception e) {
-                System.out.println(rb.getString("cant.blid") + e.getMessage());
+                out.println(rb.getString("cant.blid") + e.getMessage());
             }
             if (action <= ACT_GET_BLID) {
                 cleanUpAndExitNow();
@@ -540,9 +717,9 @@ public final class CmdLineHandler implements ICmdProgressListener {
         /* Get bootloader protocol version of the stm32 device */
         if ((action & ACT_GET_BLVER) == ACT_GET_BLVER) {
             try {
-                System.out.println(rb.getString("bl.ver") + " " + dev.getBootloaderProtocolVersion());
+                out.println(rb.getString("bl.ver") + " " + dev.getBootloaderProtocolVersion());
             } catch (Exception e) {
-                System.out.println(rb.getString("cant.g.blver") + " " + e.getMessage());
+                out.println(rb.getString("cant.g.blver") + " " + e.getMessage());
             }
             if (action <= ACT_GET_BLVER) {
                 cleanUpAndExitNow();
@@ -552,18 +729,18 @@ public final class CmdLineHandler implements ICmdProgressListener {
 
         /* Do mass erase */
         if ((action & ACT_MASS_ERASE) == ACT_MASS_ERASE) {
-            System.out.println(rb.getString("doing.merase"));
+            out.println(rb.getString("doing.merase"));
             try {
                 if ((allowedCmds & BLCMDS.ERASE) == BLCMDS.ERASE) {
                     dev.eraseMemoryRegion(REGTYPE.MAIN, -1, -1);
                 } else if ((allowedCmds & BLCMDS.EXTENDED_ERASE) == BLCMDS.EXTENDED_ERASE) {
                     dev.extendedEraseMemoryRegion(REGTYPE.MAIN, -1, -1);
                 } else {
-                    System.out.println(rb.getString("bl.dnt.sprt.mers"));
+                    out.println(rb.getString("bl.dnt.sprt.mers"));
                 }
-                System.out.println(rb.getString("m.ers.done"));
+                out.println(rb.getString("m.ers.done"));
             } catch (Exception e) {
-                System.out.println(rb.getString("cant.merase") + e.getMessage());
+                out.println(rb.getString("cant.merase") + e.getMessage());
             }
             if (action <= ACT_MASS_ERASE) {
                 cleanUpAndExitNow();
@@ -573,18 +750,28 @@ public final class CmdLineHandler implements ICmdProgressListener {
 
         /* Do page by page erase */
         if ((action & ACT_ERASE) == ACT_ERASE) {
-            System.out.println(rb.getString("do.pg.ers") + startPageNum + " - " + totalPageNum);
             try {
-                if ((allowedCmds & BLCMDS.ERASE) == BLCMDS.ERASE) {
+                if (eraseForFw == true) {
+                    /* erase only pages firmware given with -w will be written to */
+                    if (fwFile == null) {
+                        throw new IllegalArgumentException(rb.getString("no.fw.ers"));
+                    }
+                    segFw = this.loadSegmentedFirmware(fileType, fwFile, startAddress, curlocale);
+                    out.println(rb.getString("do.fw.ers"));
+                    x = dev.eraseMemoryForFirmware(segFw, this);
+                    out.println("\n" + rb.getString("pgs.ersd") + " " + x);
+                } else if ((allowedCmds & BLCMDS.ERASE) == BLCMDS.ERASE) {
+                    out.println(rb.getString("do.pg.ers") + startPageNum + " - " + totalPageNum);
                     dev.eraseMemoryRegion(REGTYPE.MAIN, startPageNum, totalPageNum);
                 } else if ((allowedCmds & BLCMDS.EXTENDED_ERASE) == BLCMDS.EXTENDED_ERASE) {
+                    out.println(rb.getString("do.pg.ers") + startPageNum + " - " + totalPageNum);
                     dev.extendedEraseMemoryRegion(REGTYPE.MAIN, startPageNum, totalPageNum);
                 } else {
-                    System.out.println(rb.getString("bl.dnt.sprt.ers"));
+                    out.println(rb.getString("bl.dnt.sprt.ers"));
                 }
-                System.out.println(rb.getString("ers.done"));
+                out.println(rb.getString("ers.done"));
             } catch (Exception e) {
-                System.out.println(rb.getString("cant.ers") + e.getMessage());
+                out.println(rb.getString("cant.ers") + e.getMessage());
             }
             if (action <= ACT_ERASE) {
                 cleanUpAndExitNow();
@@ -596,88 +783,77 @@ public final class CmdLineHandler implements ICmdProgressListener {
         if ((action & ACT_WRITE) == ACT_WRITE) {
             try {
                 if ((fileType != -1) && (fileType != FileType.HEX) && (fileType != FileType.BIN)) {
-                    System.out.println(rb.getString("inval.ftp.cantw"));
+                    out.println(rb.getString("inval.ftp.cantw"));
                     x = 0;
                 } else {
-                    System.out.println(rb.getString("writng"));
-                    dev.writeMemory(fileType, fwFile, startAddress, this);
-                    System.out.println("\n" + rb.getString("wdn"));
+                    out.println(rb.getString("writng"));
+                    if (deltaWrite == true) {
+                        /* only pages which differ from firmware are erased and written */
+                        if (segFw == null) {
+                            segFw = this.loadSegmentedFirmware(fileType, fwFile, startAddress, curlocale);
+                        }
+                        if (deltaPageSize > 0) {
+                            x = dev.writeMemoryDelta(segFw, 0x08000000, deltaPageSize, this);
+                        } else {
+                            x = dev.writeMemoryDelta(segFw, this);
+                        }
+                        out.println("\n" + rb.getString("pgs.chgd") + " " + x);
+                    } else if (journalFile != null) {
+                        /* continue interrupted write of same firmware if journal says so */
+                        if (segFw == null) {
+                            segFw = this.loadSegmentedFirmware(fileType, fwFile, startAddress, curlocale);
+                        }
+                        journal = new WriteJournal(journalFile);
+                        if (journal.canResume(segFw) == true) {
+                            x = dev.resumeWrite(segFw, journal, this);
+                            out.println(rb.getString("wrt.resumed") + " 0x" + Integer.toHexString(x));
+                        } else {
+                            dev.writeMemory(segFw, journal, this);
+                        }
+                    } else {
+                        dev.writeMemory(fileType, fwFile, startAddress, this);
+                    }
+                    out.println("\n" + rb.getString("wdn"));
+                    this.reportLoaderRefusal();
                     x = 1;
                 }
             } catch (Exception e) {
-                System.out.println("\n" + rb.getString("cant.wrt") + e.getMessage());
+                out.println("\n" + rb.getString("cant.wrt") + e.getMessage());
             }
 
-            /* Verify data written if requested by user */
-            if ((verifyWrite == true) && (x == 1)) {
-                System.out.println(rb.getString("vrfy.d.wrt"));
+            /*
+             * Verify data written if requested by user. Firmware file is parsed block by
+             * block and every block is compared with what is read back from the same
+             * address, so memory used does not depend upon firmware size.
+             */
+            if ((verifyWrite == true) && (x == 1) && (crcVerify == true)) {
+                out.println(rb.getString("vrfy.d.crc"));
                 try {
-                    lengthOfFileContents = (int) fwFile.length();
-                    wrtBuf = new byte[lengthOfFileContents];
-                    inStream = new BufferedInputStream(new FileInputStream(fwFile));
-                    numBytesToRead = lengthOfFileContents;
-                    for (x = 0; x < lengthOfFileContents; x = totalBytesReadTillNow) {
-                        numBytesActuallyRead = inStream.read(wrtBuf, offset, numBytesToRead);
-                        totalBytesReadTillNow = totalBytesReadTillNow + numBytesActuallyRead;
-                        offset = totalBytesReadTillNow;
-                        numBytesToRead = lengthOfFileContents - totalBytesReadTillNow;
-                    }
-                    inStream.close();
-                    x = 1;
-                } catch (Exception e) {
-                    System.out.println(rb.getString("cant.fw.host") + e.getMessage());
-                    try {
-                        inStream.close();
-                    } catch (Exception e1) {
-                    }
-                    x = 0;
-                }
-
-                if (x == 1) {
-                    /* Convert from Hex format to bin format if needed */
-                    try {
-                        if (fileType == FileType.HEX) {
-                            FlashUtils fu = new FlashUtils();
-                            HexFirmware hf = fu.hexToBinFwFormat(wrtBuf);
-                            wrtBuf = hf.fwInBinFormat;
-                        }
-                        x = 1;
-                    } catch (Exception e) {
-                        System.out.println(rb.getString("cant.hx.bn") + e.getMessage());
-                        x = 0;
+                    if (segFw == null) {
+                        segFw = this.loadSegmentedFirmware(fileType, fwFile, startAddress, curlocale);
                     }
-                }
-
-                if (x == 1) {
-                    /* Read data written to flash */
-                    try {
-                        readBuf = new byte[lengthOfFileContents];
-                        numBytesRead = dev.readMemory(readBuf, startAddress, lengthOfFileContents, null);
-                        System.out.println(rb.getString("rd.frm.flsh") + numBytesRead);
-                        x = 1;
-                    } catch (Exception e) {
-                        System.out.println(rb.getString("cant.rd.flsh") + e.getMessage());
-                        x = 0;
-                    }
-                }
-
-                if (x == 1) {
-                    /* Data byte written must be equal to the data byte read */
-                    lengthOfFileContents = wrtBuf.length;
-                    for (x = 0; x < lengthOfFileContents; x++) {
-                        if (wrtBuf[x] != readBuf[x]) {
-                            System.out.println(rb.getString("mismch") + " " + x + " " + rb.getString("expc") + " " + wrtBuf[x]
-                                    + " " + rb.getString("fnd") + " " + readBuf[x]);
-                            break;
-                        }
-                    }
-                    if (x >= lengthOfFileContents) {
-                        System.out.println(rb.getString("vrfy.dn"));
+                    mismatched = dev.verifyMemoryCRC(segFw);
+                    if (mismatched == null) {
+                        /* stub not supported, read back and compare below */
+                        out.println(rb.getString("crc.nsprt"));
                     } else {
-                        System.out.println(rb.getString("vrfy.fl"));
+                        for (SegmentedFirmware.Segment seg : mismatched) {
+                            out.println(rb.getString("crc.mismch") + " 0x" + Integer.toHexString(seg.address)
+                                    + " - 0x" + Integer.toHexString(seg.address + seg.data.length - 1));
+                        }
+                        out.println(rb.getString(mismatched.isEmpty() ? "vrfy.dn" : "vrfy.fl"));
+                        verifyWrite = false;
                     }
+                } catch (Exception e) {
+                    out.println(rb.getString("cant.vrfy.crc") + e.getMessage());
+                    out.println(rb.getString("vrfy.fl"));
+                    verifyWrite = false;
                 }
             }
+            if ((verifyWrite == true) && (x == 1)) {
+                out.println(rb.getString("vrfy.d.wrt"));
+                verifyByReadBack(fileType, fwFile, startAddress, curlocale);
+            }
             if (action <= ACT_WRITE) {
                 cleanUpAndExitNow();
                 return;
@@ -686,23 +862,23 @@ public final class CmdLineHandler implements ICmdProgressListener {
 
         /* Read from stm32 memory */
         if ((action & ACT_READ) == ACT_READ) {
-            System.out.println(rb.getString("rdng"));
+            out.println(rb.getString("rdng"));
             if ((allowedCmds & BLCMDS.READ_MEMORY) == BLCMDS.READ_MEMORY) {
                 try {
                     if (stdout == true) {
                         readBuf = new byte[length];
                         numBytesRead = dev.readMemory(readBuf, startAddress, length, this);
                         String str = SerialComUtil.byteArrayToHexString(readBuf, " ");
-                        System.out.println("\n" + str);
+                        out.println("\n" + str);
                     } else {
                         dev.readMemory(readFile, startAddress, length, this);
                     }
-                    System.out.println("\n" + rb.getString("rd.dn"));
+                    out.println("\n" + rb.getString("rd.dn"));
                 } catch (Exception e) {
-                    System.out.println("\n" + rb.getString("cant.rd.flsh") + " " + e.getMessage());
+                    out.println("\n" + rb.getString("cant.rd.flsh") + " " + e.getMessage());
                 }
             } else {
-                System.out.println(rb.getString("bl.dnt.sprt.rdm"));
+                out.println(rb.getString("bl.dnt.sprt.rdm"));
             }
             if (action <= ACT_READ) {
                 cleanUpAndExitNow();
@@ -712,22 +888,22 @@ public final class CmdLineHandler implements ICmdProgressListener {
 
         /* Enable write protection */
         if ((action & ACT_WRITE_PROTECT) == ACT_WRITE_PROTECT) {
-            System.out.println(rb.getString("en.wrtp"));
+            out.println(rb.getString("en.wrtp"));
             if ((allowedCmds & BLCMDS.WRITE_PROTECT) == BLCMDS.WRITE_PROTECT) {
                 try {
                     dev.writeProtectMemoryRegion(startPageNum, totalPageNum);
-                    System.out.println(rb.getString("end.wrtp"));
+                    out.println(rb.getString("end.wrtp"));
                     if ((action > ACT_WRITE_PROTECT) && (reinit() == -1)) {
-                        System.out.println(rb.getString("cant.reinit"));
+                        out.println(rb.getString("cant.reinit"));
                         cleanUpAndExitNow();
                         return;
                     }
                 } catch (Exception e) {
-                    System.out.println(rb.getString("cant.en.wrpt") + " " + e.getMessage());
+                    out.println(rb.getString("cant.en.wrpt") + " " + e.getMessage());
                     closeDevice();
                 }
             } else {
-                System.out.println(rb.getString("bl.dnt.sprt.enwp"));
+                out.println(rb.getString("bl.dnt.sprt.enwp"));
             }
             if (action <= ACT_WRITE_PROTECT) {
                 cleanUpAndExitNow();
@@ -737,22 +913,22 @@ public final class CmdLineHandler implements ICmdProgressListener {
 
         /* Enable read protection */
         if ((action & ACT_READ_PROTECT) == ACT_READ_PROTECT) {
-            System.out.println(rb.getString("en.rdp"));
+            out.println(rb.getString("en.rdp"));
             if ((allowedCmds & BLCMDS.READOUT_PROTECT) == BLCMDS.READOUT_PROTECT) {
                 try {
                     dev.readoutprotectMemoryRegion();
-                    System.out.println(rb.getString("end.rdp"));
+                    out.println(rb.getString("end.rdp"));
                     if ((action > ACT_READ_PROTECT) && (reinit() == -1)) {
-                        System.out.println(rb.getString("cant.reinit"));
+                        out.println(rb.getString("cant.reinit"));
                         cleanUpAndExitNow();
                         return;
                     }
                 } catch (Exception e) {
-                    System.out.println(rb.getString("cant.en.rdp") + e.getMessage());
+                    out.println(rb.getString("cant.en.rdp") + e.getMessage());
                     closeDevice();
                 }
             } else {
-                System.out.println(rb.getString("bl.dnt.sprt.erp"));
+                out.println(rb.getString("bl.dnt.sprt.erp"));
             }
             if (action <= ACT_READ_PROTECT) {
                 cleanUpAndExitNow();
@@ -762,28 +938,28 @@ public final class CmdLineHandler implements ICmdProgressListener {
 
         /* Do soft system reset */
         if ((action & ACT_SOFT_RESET) == ACT_SOFT_RESET) {
-            System.out.println(rb.getString("sft.rstng"));
+            out.println(rb.getString("sft.rstng"));
             try {
                 dev.triggerSystemReset();
-                System.out.println(rb.getString("sft.dn"));
+                out.println(rb.getString("sft.dn"));
             } catch (Exception e) {
-                System.out.println(rb.getString("cant.sf.rst") + e.getMessage());
+                out.println(rb.getString("cant.sf.rst") + e.getMessage());
                 closeDevice();
             }
         }
 
         /* Make program counter jump to the user given address */
         if ((action & ACT_GO) == ACT_GO) {
-            System.out.println(rb.getString("bgn.exe.adr") + Integer.toHexString(startAddress));
+            out.println(rb.getString("bgn.exe.adr") + Integer.toHexString(startAddress));
             if ((allowedCmds & BLCMDS.GO) == BLCMDS.GO) {
                 try {
                     dev.goJump(startAddress);
-                    System.out.println(rb.getString("bgnd.exe.adr") + Integer.toHexString(startAddress));
+                    out.println(rb.getString("bgnd.exe.adr") + Integer.toHexString(startAddress));
                 } catch (Exception e) {
-                    System.out.println(rb.getString("cant.jmp") + e.getMessage());
+                    out.println(rb.getString("cant.jmp") + e.getMessage());
                 }
             } else {
-                System.out.println(rb.getString("bl.dnt.sprt.go"));
+                out.println(rb.getString("bl.dnt.sprt.go"));
             }
             if (action <= ACT_GO) {
                 cleanUpAndExitNow();
@@ -801,12 +977,24 @@ public final class CmdLineHandler implements ICmdProgressListener {
 
         /* Processing completed, let's go back home */
         closeDevice();
+        printCommandMetrics();
+    }
+
+    /*
+     * Prints counts and ACK latencies of every bootloader command used, if asked
+     * by user with -cm.
+     */
+    private void printCommandMetrics() {
+        if (cmdMetrics != null) {
+            out.println(rb.getString("cmd.mtrcs"));
+            out.print(cmdMetrics.toString());
+        }
     }
 
     private void executeExitSequenceIfGiven() {
 
         if ((action & ACT_BL_EXIT) == ACT_BL_EXIT) {
-            System.out.println("exe.bm.ex");
+            out.println("exe.bm.ex");
             try {
                 if (firstSignalToSet == 1) {
                     if (entryDTRstate2 != exitDTRstate1) {
@@ -828,7 +1016,7 @@ public final class CmdLineHandler implements ICmdProgressListener {
                     Thread.sleep(holdTime);
                 } catch (InterruptedException e) {
                     long y = time - System.currentTimeMillis();
-                    System.out.println(rb.getString("wokeup") + " " + y + " " + rb.getString("m.early.ex"));
+                    out.println(rb.getString("wokeup") + " " + y + " " + rb.getString("m.early.ex"));
                 }
                 if (firstSignalToSet == 1) {
                     if (exitDTRstate2 != exitDTRstate1) {
@@ -845,75 +1033,159 @@ public final class CmdLineHandler implements ICmdProgressListener {
                         uci.setDTR(exitDTRstate2);
                     }
                 }
-                System.out.println(rb.getString("seq.done"));
+                out.println(rb.getString("seq.done"));
             } catch (Exception e) {
-                System.out.println(rb.getString("cant.ex.blm") + e.getMessage());
+                out.println(rb.getString("cant.ex.blm") + e.getMessage());
                 closeDevice();
             }
         }
     }
 
     /*
-     * Translate baudrate to a form as expected by serialpundit sdk. If the stm32
-     * can't determine baudrate and initialize its serial port, we can't get into
+     * Baudrates tried with -br auto, fastest first. Rates below 115200 are not
+     * tried as they bring no benefit over the default. If the stm32 can't
+     * determine baudrate and initialize its serial port, we can't get into
      * bootloader mode. In this case user must give correct baudrate explicitly for
      * his particular device.
      */
-    BAUDRATE translateBaudrate(int baudrate) {
-        switch (baudrate) {
-        case 9600:
-            return BAUDRATE.B9600;
-        case 115200:
-            return BAUDRATE.B115200;
-        case 2400:
-            return BAUDRATE.B2400;
-        case 4800:
-            return BAUDRATE.B4800;
-        case 14400:
-            return BAUDRATE.B14400;
-        case 19200:
-            return BAUDRATE.B19200;
-        case 28800:
-            return BAUDRATE.B28800;
-        case 38400:
-            return BAUDRATE.B38400;
-        case 56000:
-            return BAUDRATE.B56000;
-        case 57600:
-            return BAUDRATE.B57600;
-        default:
-            return BAUDRATE.B115200;
+    int[] negotiationBaudrates() {
+        int x;
+        int y = 0;
+        int[] supported = UARTInterface.getSupportedBaudrates();
+        int[] rates = new int[supported.length];
+        for (x = supported.length - 1; x >= 0; x--) {
+            if (supported[x] >= 115200) {
+                rates[y] = supported[x];
+                y++;
+            }
+        }
+        return Arrays.copyOf(rates, y);
+    }
+
+    /*
+     * Applies bootloader entry sequence given by user with -er option. Also used
+     * during baudrate negotiation to reset stm32 into bootloader mode again.
+     */
+    @Override
+    public void enterBootloaderMode(UARTInterface uci) throws IOException {
+        if (firstSignalToSet == 1) {
+            uci.setDTR(entryDTRstate1);
+            uci.setRTS(entryRTSstate1);
+        } else {
+            uci.setRTS(entryRTSstate1);
+            uci.setDTR(entryDTRstate1);
+        }
+        try {
+            time = System.currentTimeMillis() + holdTime;
+            Thread.sleep(holdTime);
+        } catch (InterruptedException e) {
+            long y = time - System.currentTimeMillis();
+            out.println(rb.getString("wokeup") + " " + y + " " + rb.getString("m.early.en"));
+        }
+        if (firstSignalToSet == 1) {
+            if (entryDTRstate2 != entryDTRstate1) {
+                uci.setDTR(entryDTRstate2);
+            }
+            if (entryRTSstate2 != entryRTSstate1) {
+                uci.setRTS(entryRTSstate2);
+            }
+        } else {
+            if (entryRTSstate2 != entryRTSstate1) {
+                uci.setRTS(entryRTSstate2);
+            }
+            if (entryDTRstate2 != entryDTRstate1) {
+                uci.setDTR(entryDTRstate2);
+            }
         }
     }
 
     /*
      * Some command trigger system reset after they have been executed, so we need
      * to re-init (handshake with bootloader) again so that next commands if given
-     * by user can be sent to it.
+     * by user can be sent to it. It is the same stm32, so pid, bootloader version
+     * and supported commands found by first handshake are kept.
      */
     int reinit() {
         try {
             Thread.sleep(300);
-            dev = uci.initAndIdentifyDevice();
+            dev = uci.reconnect();
+            dev.setCancelToken(cancelToken);
         } catch (Exception e) {
-            System.out.println(rb.getString("cant.reinit") + e.getMessage());
+            out.println(rb.getString("cant.reinit") + e.getMessage());
             closeDevice();
             return -1;
         }
         return 0;
     }
 
+    /*
+     * On Ctrl+C, operation in progress is stopped at next block boundary and this
+     * thread is given some time to leave bootloader waiting for a command and
+     * close serial port before JVM exits.
+     */
+    private void stopOnInterrupt() {
+        final Thread worker = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                cancelToken.cancel();
+                try {
+                    worker.join(5000);
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+    }
+
+    /*
+     * With -fl, tells user that firmware has been written by bootloader because
+     * flash loader could not be used (device or USART not supported).
+     */
+    private void reportLoaderRefusal() {
+        if ((uci != null) && (uci.getFlashLoaderRefusal() != null)) {
+            out.println(uci.getFlashLoaderRefusal());
+        }
+    }
+
+    /*
+     * Opens serial port, or connection to a raw TCP serial server like ser2net
+     * when given as tcp:host:port (line is configured on server).
+     */
+    static void openPort(UARTInterface uci, String device, int baudrate) throws IOException {
+        if (device.startsWith("tcp:") == true) {
+            uci.open(TcpTransport.connect(device.substring(4)), baudrate);
+        } else {
+            uci.open(device, baudrate, DATABITS.DB_8, STOPBITS.SB_1, PARITY.P_EVEN, FLOWCONTROL.NONE);
+        }
+    }
+
+    /*
+     * Relative file names given to daemon are relative to directory of client.
+     */
+    private File resolveFile(String name) {
+        File f = new File(name);
+        if ((workDir == null) || (f.isAbsolute() == true)) {
+            return f;
+        }
+        return new File(workDir, name);
+    }
+
     /*
      * Close serial port
      */
     void closeDevice() {
+        if (portCache != null) {
+            /* daemon keeps port open for next command */
+            opened = false;
+            return;
+        }
         try {
             if (opened == true) {
                 uci.close();
                 opened = false;
             }
         } catch (Exception e) {
-            System.out.println(rb.getString("cls.com.fl") + e.getMessage());
+            out.println(rb.getString("cls.com.fl") + e.getMessage());
         }
     }
 
@@ -929,7 +1201,7 @@ public final class CmdLineHandler implements ICmdProgressListener {
             } else if (args[i].equals("0")) {
                 exitDTRstate1 = false;
             } else {
-                System.out.println(rb.getString("inval.exdtr.vl") + args[i]);
+                out.println(rb.getString("inval.exdtr.vl") + args[i]);
                 return -1;
             }
             i++;
@@ -938,7 +1210,7 @@ public final class CmdLineHandler implements ICmdProgressListener {
             } else if (args[i].equals("0")) {
                 exitDTRstate2 = false;
             } else {
-                System.out.println(rb.getString("inval.exdtr.vl") + args[i]);
+                out.println(rb.getString("inval.exdtr.vl") + args[i]);
                 return -1;
             }
         } else if (args[i].equals("-rts")) {
@@ -948,7 +1220,7 @@ public final class CmdLineHandler implements ICmdProgressListener {
             } else if (args[i].equals("0")) {
                 exitRTSstate1 = false;
             } else {
-                System.out.println(rb.getString("inval.exrts.vl") + args[i]);
+                out.println(rb.getString("inval.exrts.vl") + args[i]);
                 return -1;
             }
             i++;
@@ -957,11 +1229,11 @@ public final class CmdLineHandler implements ICmdProgressListener {
             } else if (args[i].equals("0")) {
                 exitRTSstate2 = false;
             } else {
-                System.out.println(rb.getString("inval.exrts.vl") + args[i]);
+                out.println(rb.getString("inval.exrts.vl") + args[i]);
                 return -1;
             }
         } else {
-            System.out.println(rb.getString("ex.gv.dr.nt.gvn") + args[i]);
+            out.println(rb.getString("ex.gv.dr.nt.gvn") + args[i]);
             return -1;
         }
 
@@ -983,7 +1255,7 @@ public final class CmdLineHandler implements ICmdProgressListener {
             } else if (args[i].equals("0")) {
                 entryDTRstate1 = false;
             } else {
-                System.out.println(rb.getString("inval.endtr.vl") + args[i]);
+                out.println(rb.getString("inval.endtr.vl") + args[i]);
                 return -1;
             }
             i++;
@@ -992,7 +1264,7 @@ public final class CmdLineHandler implements ICmdProgressListener {
             } else if (args[i].equals("0")) {
                 entryDTRstate2 = false;
             } else {
-                System.out.println(rb.getString("inval.endtr.vl") + args[i]);
+                out.println(rb.getString("inval.endtr.vl") + args[i]);
                 return -1;
             }
         } else if (args[i].equals("-rts")) {
@@ -1005,7 +1277,7 @@ public final class CmdLineHandler implements ICmdProgressListener {
             } else if (args[i].equals("0")) {
                 entryRTSstate1 = false;
             } else {
-                System.out.println(rb.getString("inval.enrts.vl") + args[i]);
+                out.println(rb.getString("inval.enrts.vl") + args[i]);
                 return -1;
             }
             i++;
@@ -1014,17 +1286,267 @@ public final class CmdLineHandler implements ICmdProgressListener {
             } else if (args[i].equals("0")) {
                 entryRTSstate2 = false;
             } else {
-                System.out.println(rb.getString("inval.enrts.vl") + args[i]);
+                out.println(rb.getString("inval.enrts.vl") + args[i]);
                 return -1;
             }
         } else {
-            System.out.println(rb.getString("en.gv.dr.nt.gvn") + args[i]);
+            out.println(rb.getString("en.gv.dr.nt.gvn") + args[i]);
             return -1;
         }
 
         return 0;
     }
 
+    /*
+     * Runs steps of batch file one after the other in the current session and
+     * stops at the first step which fails. Bootloader is initialized again only
+     * after steps which reset stm32 and only if more steps follow.
+     */
+    private void runBatch(BatchScript script, Locale curlocale) {
+
+        int x;
+        int done = 0;
+        byte[] readBuf;
+        List<BatchScript.Step> steps = script.getSteps();
+
+        for (BatchScript.Step step : steps) {
+            out.println(rb.getString("bat.step") + " " + step.line + ": " + step.text);
+            try {
+                switch (step.kind) {
+
+                case BatchScript.ERASE_MASS:
+                    if ((allowedCmds & BLCMDS.ERASE) == BLCMDS.ERASE) {
+                        dev.eraseMemoryRegion(REGTYPE.MAIN, -1, -1);
+                    } else if ((allowedCmds & BLCMDS.EXTENDED_ERASE) == BLCMDS.EXTENDED_ERASE) {
+                        dev.extendedEraseMemoryRegion(REGTYPE.MAIN, -1, -1);
+                    } else {
+                        throw new IllegalStateException(rb.getString("bl.dnt.sprt.mers"));
+                    }
+                    out.println(rb.getString("m.ers.done"));
+                    break;
+
+                case BatchScript.ERASE_PAGES:
+                    if ((allowedCmds & BLCMDS.ERASE) == BLCMDS.ERASE) {
+                        dev.eraseMemoryRegion(REGTYPE.MAIN, step.start, step.total);
+                    } else if ((allowedCmds & BLCMDS.EXTENDED_ERASE) == BLCMDS.EXTENDED_ERASE) {
+                        dev.extendedEraseMemoryRegion(REGTYPE.MAIN, step.start, step.total);
+                    } else {
+                        throw new IllegalStateException(rb.getString("bl.dnt.sprt.ers"));
+                    }
+                    out.println(rb.getString("ers.done"));
+                    break;
+
+                case BatchScript.ERASE_FW:
+                    x = dev.eraseMemoryForFirmware(
+                            this.loadSegmentedFirmware(step.fileType, step.file, step.address, curlocale), this);
+                    out.println("\n" + rb.getString("pgs.ersd") + " " + x);
+                    break;
+
+                case BatchScript.WRITE:
+                    dev.writeMemory(step.fileType, step.file, step.address, this);
+                    out.println("\n" + rb.getString("wdn"));
+                    this.reportLoaderRefusal();
+                    break;
+
+                case BatchScript.VERIFY:
+                    if (verifyByReadBack(step.fileType, step.file, step.address, curlocale) == false) {
+                        throw new IllegalStateException(rb.getString("vrfy.fl"));
+                    }
+                    break;
+
+                case BatchScript.READ:
+                    if ((allowedCmds & BLCMDS.READ_MEMORY) != BLCMDS.READ_MEMORY) {
+                        throw new IllegalStateException(rb.getString("bl.dnt.sprt.rdm"));
+                    }
+                    if (step.stdout == true) {
+                        readBuf = new byte[step.total];
+                        dev.readMemory(readBuf, step.address, step.total, null);
+                        out.println(SerialComUtil.byteArrayToHexString(readBuf, " "));
+                    } else {
+                        dev.readMemory(step.file.getPath(), step.address, step.total, this);
+                        out.println("\n" + rb.getString("rd.dn"));
+                    }
+                    break;
+
+                case BatchScript.GET_PID:
+                    out.println(rb.getString("pid") + " " + dev.getChipID());
+                    break;
+
+                case BatchScript.GET_BLID:
+                    out.println(rb.getString("blid") + " " + dev.getBootloaderID());
+                    break;
+
+                case BatchScript.GET_BLVER:
+                    out.println(rb.getString("bl.ver") + " " + dev.getBootloaderProtocolVersion());
+                    break;
+
+                case BatchScript.READ_UNPROTECT:
+                    dev.readoutUnprotectMemoryRegion();
+                    out.println(rb.getString("disabled.rp"));
+                    break;
+
+                case BatchScript.WRITE_UNPROTECT:
+                    dev.writeUnprotectMemoryRegion();
+                    out.println(rb.getString("disbled.wp"));
+                    break;
+
+                case BatchScript.READ_PROTECT:
+                    dev.readoutprotectMemoryRegion();
+                    out.println(rb.getString("end.rdp"));
+                    break;
+
+                case BatchScript.WRITE_PROTECT:
+                    dev.writeProtectMemoryRegion(step.start, step.total);
+                    out.println(rb.getString("end.wrtp"));
+                    break;
+
+                case BatchScript.SOFT_RESET:
+                    dev.triggerSystemReset();
+                    out.println(rb.getString("sft.dn"));
+                    break;
+
+                case BatchScript.GO:
+                    dev.goJump(step.address);
+                    out.println(rb.getString("bgnd.exe.adr") + Integer.toHexString(step.address));
+                    break;
+
+                default:
+                    break;
+                }
+            } catch (Exception e) {
+                out.println("\n" + rb.getString("bat.stop") + " " + step.line + ": " + e.getMessage());
+                return;
+            }
+
+            done++;
+            if ((step.resetsDevice() == true) && (done < steps.size()) && (reinit() == -1)) {
+                return;
+            }
+        }
+
+        out.println(rb.getString("bat.dn") + " " + done);
+    }
+
+    /*
+     * Parses firmware file block by block and compares every block with what is
+     * read back from the same address, so memory used does not depend upon
+     * firmware size. Prints result and returns true if everything matched.
+     */
+    private boolean verifyByReadBack(int fileType, File fwFile, int startAddress, Locale curlocale) {
+
+        int offset;
+        int blockLen;
+        int numBytesRead = 0;
+        boolean matched = true;
+        FirmwareBlockReader fwReader;
+        byte[] wrtBuf = new byte[FirmwareBlockReader.BLOCK_SIZE];
+        byte[] readBuf = new byte[FirmwareBlockReader.BLOCK_SIZE];
+
+        try {
+            FlashUtils fu = new FlashUtils(ResourceBundle.getBundle("flash.stm32.resources.MessagesBundle", curlocale));
+            fwReader = fu.openFirmwareFile(fileType, fwFile, startAddress);
+        } catch (Exception e) {
+            out.println(rb.getString("cant.fw.host") + e.getMessage());
+            out.println(rb.getString("vrfy.fl"));
+            return false;
+        }
+
+        try {
+            while (matched == true) {
+                blockLen = fwReader.nextBlock(wrtBuf);
+                if (blockLen < 0) {
+                    break;
+                }
+                numBytesRead = numBytesRead + dev.readMemory(readBuf, fwReader.getBlockAddress(), blockLen, null);
+                /* Data byte written must be equal to the data byte read */
+                for (offset = 0; offset < blockLen; offset++) {
+                    if (wrtBuf[offset] != readBuf[offset]) {
+                        out.println(rb.getString("mismch") + " 0x"
+                                + Integer.toHexString(fwReader.getBlockAddress() + offset) + " " + rb.getString("expc")
+                                + " " + wrtBuf[offset] + " " + rb.getString("fnd") + " " + readBuf[offset]);
+                        matched = false;
+                        break;
+                    }
+                }
+            }
+            out.println(rb.getString("rd.frm.flsh") + numBytesRead);
+        } catch (Exception e) {
+            out.println(rb.getString("cant.rd.flsh") + e.getMessage());
+            matched = false;
+        }
+        try {
+            fwReader.close();
+        } catch (Exception e1) {
+        }
+
+        if (matched == true) {
+            out.println(rb.getString("vrfy.dn"));
+        } else {
+            out.println(rb.getString("vrfy.fl"));
+        }
+        return matched;
+    }
+
+    /*
+     * Programs same firmware through all given ports concurrently and prints
+     * result for every port. Firmware file is parsed only once.
+     */
+    private void gangProgram(String[] ports, int fileType, File fwFile, int startAddress, Locale curlocale,
+            int baudrate, int eraseMode, boolean verifyWrite, boolean pipelinedWrite, int verifyWindow,
+            boolean flashLoader, int loaderBaudrate, RetryPolicy retryPolicy) {
+
+        int failed = 0;
+        SegmentedFirmware segFw;
+        GangProgrammer gang;
+        List<GangProgrammer.PortResult> results;
+
+        try {
+            segFw = this.loadSegmentedFirmware(fileType, fwFile, startAddress, curlocale);
+            gang = new GangProgrammer(new UARTDeviceManager(curlocale), "progstm32jqix7");
+            gang.setBaudrate(baudrate);
+            gang.setEraseMode(eraseMode);
+            gang.setVerify(verifyWrite);
+            gang.setWritePipelining(pipelinedWrite);
+            gang.setWriteVerify(verifyWindow);
+            gang.setFlashLoader(flashLoader, loaderBaudrate);
+            gang.setRetryPolicy(retryPolicy);
+            gang.setCancelToken(cancelToken);
+            gang.setCommandMetrics(cmdMetrics);
+            if ((action & ACT_BL_ENTRY) == ACT_BL_ENTRY) {
+                gang.setBootloaderEntry(this);
+            }
+            out.println(rb.getString("gang.strt") + " " + ports.length);
+            stopOnInterrupt();
+            results = gang.program(Arrays.asList(ports), segFw);
+        } catch (Exception e) {
+            out.println(rb.getString("cant.wrt") + e.getMessage());
+            return;
+        }
+
+        for (GangProgrammer.PortResult res : results) {
+            if (res.success == true) {
+                out.println(res.port + " : 0x" + Integer.toHexString(res.pid) + " " + rb.getString("gang.ok")
+                        + " " + res.timeMillis + " ms");
+            } else {
+                failed++;
+                out.println(res.port + " : " + rb.getString("gang.fail") + " (" + res.failedStep + ") "
+                        + res.error);
+            }
+        }
+        out.println(rb.getString("gang.done") + " " + (results.size() - failed) + "/" + results.size());
+        printCommandMetrics();
+    }
+
+    /*
+     * Reads whole firmware file in segments, used when pages to be erased or
+     * compared have to be known before writing.
+     */
+    private SegmentedFirmware loadSegmentedFirmware(int fileType, File fwFile, int startAddress, Locale curlocale)
+            throws IOException {
+        FlashUtils fu = new FlashUtils(ResourceBundle.getBundle("flash.stm32.resources.MessagesBundle", curlocale));
+        return fu.readSegmentedFirmware(fileType, fwFile, startAddress);
+    }
+
     /*
      * Prints usage of command line options on stdout
      */
@@ -1039,21 +1561,42 @@ public final class CmdLineHandler implements ICmdProgressListener {
             while ((line = r.readLine()) != null) {
                 sb.append(line).append(LINE_SEPARATOR);
             }
-            System.out.println(sb.toString());
+            out.println(sb.toString());
         } catch (Exception e) {
-            System.out.println(rb.getString("cant.rhlp"));
+            out.println(rb.getString("cant.rhlp"));
         }
     }
 
+    /* printed by onProgress() along with speed and time remaining */
     @Override
     public void onDataReadProgressUpdate(int totalBytesReadTillNow, int numBytesToRead) {
-        System.out.print("\r" + rb.getString("tbrd") + " " + totalBytesReadTillNow + " " + rb.getString("of") + " "
-                + numBytesToRead);
     }
 
     @Override
     public void onDataWriteProgressUpdate(int totalBytesWrittenTillNow, int numBytesToWrite) {
-        System.out.print("\r" + rb.getString("tbwrt") + " " + totalBytesWrittenTillNow + " " + rb.getString("of") + " "
-                + numBytesToWrite);
+    }
+
+    @Override
+    public void onPhaseStarted(int phase) {
+    }
+
+    @Override
+    public void onProgress(int phase, int address, long bytesDone, long bytesTotal, long bytesPerSecond,
+            long etaMillis, int retries) {
+        out.print("\r" + rb.getString((phase == PHASE_WRITE) ? "tbwrt" : "tbrd") + " " + bytesDone + " "
+                + rb.getString("of") + " " + bytesTotal + ", " + (bytesPerSecond / 1024) + " KiB/s, "
+                + rb.getString("tm.left") + " " + ((etaMillis + 999) / 1000) + " s   ");
+    }
+
+    @Override
+    public void onEraseProgress(int firstPage, int numPages, int pagesErased, int totalPages, long etaMillis) {
+        out.print("\r" + rb.getString("pgs.ersd") + " " + pagesErased + " " + rb.getString("of") + " "
+                + totalPages + ", " + rb.getString("tm.left") + " " + ((etaMillis + 999) / 1000) + " s   ");
+    }
+
+    @Override
+    public void onBlockRetry(int address, int attempt, int totalRetries, String reason) {
+        out.println("\n" + rb.getString("blk.retry") + " 0x" + Integer.toHexString(address) + " (" + attempt
+                + "/" + totalRetries + ") " + reason);
     }
 }
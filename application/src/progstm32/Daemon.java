@@ -0,0 +1,221 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package progstm32;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+
+/* Long running mode. JVM, serial port library and opened ports stay warm and
+ * commands come over a loopback TCP connection, so a command costs milliseconds
+ * instead of JVM start, library load, port open and handshake.
+ *
+ * Daemon listens on a free port of 127.0.0.1 and writes this port and a random
+ * token to endpoint file, which only its owner can read. Client must send the
+ * token first, so other users of this host can not run commands.
+ *
+ * Protocol (UTF-8 text): client sends token on first line, its working
+ * directory on second line, then one argument per line and an empty line.
+ * Daemon runs the arguments exactly like progstm32 command line, sends
+ * everything it prints back and closes the connection. Commands run one after
+ * the other. Arguments --shutdown make daemon close ports and exit.
+ *
+ *   { sed -n 2p /tmp/progstm32.daemon; printf '%s\n' "$PWD" -d /dev/ttyUSB0 -w fw.hex ''; } |
+ *       socat - TCP:127.0.0.1:$(sed -n 1p /tmp/progstm32.daemon)
+ */
+final class Daemon {
+
+    /* Default endpoint file, in temp directory */
+    static final String DEFAULT_ENDPOINT = new File(System.getProperty("java.io.tmpdir"), "progstm32.daemon")
+            .getPath();
+
+    private static final String SHUTDOWN = "--shutdown";
+
+    /* Time client gets to send its whole request, in milliseconds */
+    private static final int REQUEST_TIMEOUT = 5000;
+
+    private final File endpointFile;
+    private final PortCache portCache;
+    private String token;
+
+    Daemon(String endpoint) {
+        endpointFile = new File(endpoint);
+        portCache = new PortCache();
+    }
+
+    /*
+     * Serves commands until told to shut down.
+     */
+    void run() throws IOException {
+
+        Socket client;
+        boolean running = true;
+        byte[] rnd = new byte[16];
+        StringBuilder sb = new StringBuilder();
+
+        new SecureRandom().nextBytes(rnd);
+        for (byte b : rnd) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        token = sb.toString();
+
+        try (ServerSocket server = new ServerSocket(0, 4, InetAddress.getLoopbackAddress())) {
+            this.writeEndpoint(server.getLocalPort());
+            endpointFile.deleteOnExit();
+            System.out.println("Listening on 127.0.0.1:" + server.getLocalPort() + ", endpoint " + endpointFile);
+
+            while (running == true) {
+                client = server.accept();
+                try {
+                    running = this.serve(client);
+                } catch (IOException e) {
+                    /* client went away or timed out, nothing to report to */
+                } finally {
+                    client.close();
+                }
+            }
+        } finally {
+            portCache.closeAll();
+            endpointFile.delete();
+        }
+    }
+
+    /*
+     * Writes port and token to endpoint file. File left by a daemon which did not
+     * exit cleanly is replaced. Permissions are narrowed to owner before anything
+     * is written into it.
+     */
+    private void writeEndpoint(int port) throws IOException {
+
+        endpointFile.delete();
+        if (endpointFile.createNewFile() == false) {
+            throw new IOException("Can not create endpoint file");
+        }
+        endpointFile.setReadable(false, false);
+        endpointFile.setWritable(false, false);
+        if ((endpointFile.setReadable(true, true) == false) || (endpointFile.setWritable(true, true) == false)) {
+            throw new IOException("Can not restrict endpoint file to owner");
+        }
+
+        try (OutputStream os = new FileOutputStream(endpointFile)) {
+            os.write((port + "\n" + token + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /*
+     * Runs one command with output going to client. Returns false when daemon
+     * should stop.
+     */
+    private boolean serve(Socket client) throws IOException {
+
+        String line;
+        String workDir;
+        ArrayList<String> args = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+        PrintStream out = new PrintStream(client.getOutputStream(), true, "UTF-8");
+
+        /* silent client must not block daemon, read then throws SocketTimeoutException */
+        client.setSoTimeout(REQUEST_TIMEOUT);
+
+        /* connection not made by a client which could read endpoint file */
+        line = in.readLine();
+        if ((line == null) || (line.equals(token) == false)) {
+            return true;
+        }
+
+        workDir = in.readLine();
+        if (workDir == null) {
+            return true;
+        }
+        while (((line = in.readLine()) != null) && (line.length() > 0)) {
+            args.add(line);
+        }
+
+        if ((args.size() == 1) && (args.get(0).equals(SHUTDOWN) == true)) {
+            out.println("Daemon stopped");
+            return false;
+        }
+
+        /* every message of command line handler goes to client */
+        try {
+            new CmdLineHandler(portCache, new File(workDir), out).process(args.toArray(new String[0]));
+        } catch (RuntimeException e) {
+            out.println(e.toString());
+        } finally {
+            out.flush();
+        }
+
+        return true;
+    }
+
+    /*
+     * Thin client, sends arguments to a running daemon and prints its output.
+     */
+    static void runClient(String endpoint, String[] args, int first) throws IOException {
+
+        int x;
+        int port;
+        String portLine;
+        String tokenLine;
+        byte[] buf = new byte[4096];
+        StringBuilder req = new StringBuilder();
+
+        try (BufferedReader br = new BufferedReader(
+                new InputStreamReader(new FileInputStream(endpoint), StandardCharsets.UTF_8))) {
+            portLine = br.readLine();
+            tokenLine = br.readLine();
+        }
+        if ((portLine == null) || (tokenLine == null) || (portLine.matches("[0-9]+") == false)) {
+            throw new IOException("Invalid endpoint file, is daemon running ?");
+        }
+        port = Integer.parseInt(portLine);
+
+        req.append(tokenLine).append('\n');
+        req.append(new File("").getAbsolutePath()).append('\n');
+        for (x = first; x < args.length; x++) {
+            req.append(args[x]).append('\n');
+        }
+        req.append('\n');
+
+        try (Socket sock = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            OutputStream os = sock.getOutputStream();
+            InputStream is = sock.getInputStream();
+            os.write(req.toString().getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            while ((x = is.read(buf)) > 0) {
+                System.out.write(buf, 0, x);
+            }
+            System.out.flush();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package progstm32;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+
+import flash.stm32.uart.UARTDeviceManager;
+import flash.stm32.uart.UARTDeviceManager.IFace;
+import flash.stm32.uart.UARTInterface;
+
+/* Serial ports opened by daemon, kept open between commands. Used by one
+ * thread at a time. */
+final class PortCache {
+
+    private static final class Entry {
+        final Locale locale;
+        final UARTInterface uci;
+        boolean opened;
+
+        Entry(Locale locale, UARTInterface uci) {
+            this.locale = locale;
+            this.uci = uci;
+        }
+    }
+
+    private final HashMap<String, Entry> ports = new HashMap<String, Entry>();
+    private final HashMap<Locale, UARTDeviceManager> devMgrs = new HashMap<Locale, UARTDeviceManager>();
+
+    /*
+     * Gives interface for the given port, messages of interface are in given
+     * locale. Interface is created the first time, native library is loaded
+     * only then.
+     */
+    UARTInterface getInterface(String device, Locale locale) throws IOException {
+
+        Entry e = ports.get(device);
+        UARTDeviceManager devMgr;
+
+        if ((e != null) && (e.locale.equals(locale) == false)) {
+            this.close(device);
+            e = null;
+        }
+        if (e == null) {
+            devMgr = devMgrs.get(locale);
+            if (devMgr == null) {
+                devMgr = new UARTDeviceManager(locale);
+                devMgrs.put(locale, devMgr);
+            }
+            e = new Entry(locale, (UARTInterface) devMgr.getCommunicationIface(IFace.UART, "progstm32jqix7"));
+            ports.put(device, e);
+        }
+
+        return e.uci;
+    }
+
+    /*
+     * Opens port if it is not open yet, otherwise only changes baudrate. If an
+     * open port can not be configured (for example adapter was unplugged), it
+     * is opened again.
+     */
+    void open(String device, int baudrate) throws IOException {
+
+        Entry e = ports.get(device);
+
+        if (e.opened == true) {
+            try {
+                if (e.uci.getBaudrate() != baudrate) {
+                    e.uci.setBaudrate(baudrate);
+                }
+                return;
+            } catch (IOException ex) {
+                try {
+                    e.uci.close();
+                } catch (IOException ex1) {
+                }
+                e.opened = false;
+            }
+        }
+
+        CmdLineHandler.openPort(e.uci, device, baudrate);
+        e.opened = true;
+    }
+
+    /*
+     * Closes given port and forgets it.
+     */
+    void close(String device) {
+
+        Entry e = ports.remove(device);
+
+        if ((e != null) && (e.opened == true)) {
+            try {
+                e.uci.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /*
+     * Closes all ports, done when daemon stops.
+     */
+    void closeAll() {
+        for (String device : ports.keySet().toArray(new String[0])) {
+            this.close(device);
+        }
+    }
+}
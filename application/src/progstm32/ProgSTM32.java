@@ -43,6 +43,26 @@ public final class ProgSTM32 {
 
         System.out.println("progstm32 " + AppVersion);
 
+        /* --daemon [endpoint file] and --client [endpoint file] args... */
+        if ((args.length > 0) && ((args[0].equals("--daemon") == true) || (args[0].equals("--client") == true))) {
+            String endpoint = Daemon.DEFAULT_ENDPOINT;
+            int first = 1;
+            if ((args.length > 1) && (args[1].startsWith("-") == false)) {
+                endpoint = args[1];
+                first = 2;
+            }
+            try {
+                if (args[0].equals("--daemon") == true) {
+                    new Daemon(endpoint).run();
+                } else {
+                    Daemon.runClient(endpoint, args, first);
+                }
+            } catch (Exception e) {
+                System.out.println(endpoint + " : " + e.getMessage());
+            }
+            return;
+        }
+
         CmdLineHandler cmdlhdlr = new CmdLineHandler();
         cmdlhdlr.process(args);
         return;
@@ -1,6 +1,7 @@
 # Jars generated by make
 progstm32app_jar=progstm32-app-1.0.jar
 progstm32uart_jar=progstm32-uart-1.0.jar
+progstm32jfr_jar=progstm32-jfr-1.0.jar
 
 # Jars taken from external projects
 extlib_spcore=progstm32-sp-core-1.0.jar
@@ -0,0 +1,403 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+import java.io.File;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>
+ * Asynchronous facade over a Device. Every method returns immediately with a
+ * CompletableFuture and the operation runs on the executor given when creating
+ * this facade. Operations on the same device are run one after the other in
+ * the order they were submitted, since bootloader executes only one command at
+ * a time; operations on different devices run concurrently.
+ * </p>
+ * 
+ * <p>
+ * Operations block while waiting for the bootloader, so executor should be one
+ * meant for blocking tasks, for example a cached thread pool or, on Java 21 and
+ * later, Executors.newVirtualThreadPerTaskExecutor() which lets hundreds of
+ * devices be driven without a platform thread per serial port.
+ * </p>
+ * 
+ * <p>
+ * Cancelling a future whose operation has not started yet removes it from the
+ * queue. If the operation is already running, thread running it is
+ * interrupted and operation stops at the next block boundary leaving
+ * bootloader ready for further commands, see Device.setCancelToken(). Next
+ * operation on this device starts only after the cancelled one has actually
+ * returned.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class AsyncDevice {
+
+    private final Device dev;
+    private final Executor executor;
+
+    /* completes when the last submitted operation has finished running */
+    private CompletableFuture<Void> tail;
+
+    /*
+     * Future of one operation. Runs the operation unless it has been cancelled
+     * meanwhile and interrupts the running thread when cancelled.
+     */
+    private final class Operation<T> extends CompletableFuture<T> implements Runnable {
+
+        private final Callable<T> task;
+        private final CompletableFuture<Void> finished = new CompletableFuture<Void>();
+        private Thread runner;
+
+        Operation(Callable<T> task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+
+            if (this.isDone() == true) {
+                finished.complete(null);
+                return;
+            }
+
+            synchronized (this) {
+                runner = Thread.currentThread();
+            }
+            try {
+                this.complete(task.call());
+            } catch (Throwable e) {
+                this.completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    if (this.isCancelled() == true) {
+                        /* do not leave interrupt meant for this operation on pooled thread */
+                        Thread.interrupted();
+                    }
+                }
+                finished.complete(null);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+
+            boolean res = super.cancel(mayInterruptIfRunning);
+
+            if (res == true) {
+                synchronized (this) {
+                    if (runner != null) {
+                        runner.interrupt();
+                    }
+                }
+            }
+            return res;
+        }
+    }
+
+    /**
+     * <p>
+     * Creates asynchronous facade for given device.
+     * </p>
+     * 
+     * @param dev
+     *            device on which operations are performed
+     * @param executor
+     *            executor on which operations run
+     */
+    public AsyncDevice(Device dev, Executor executor) {
+        if ((dev == null) || (executor == null)) {
+            /* without device there is no device manager, message is then in default locale */
+            ResourceBundle rb = (dev != null) ? dev.cmdExtr.getResourceBundle()
+                    : ResourceBundle.getBundle("flash.stm32.resources.MessagesBundle");
+            throw new IllegalArgumentException(rb.getString("nul.dev.exec"));
+        }
+        this.dev = dev;
+        this.executor = executor;
+        this.tail = CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * <p>
+     * Gives the device on which operations are performed. It must not be used
+     * directly while operations submitted through this facade are pending.
+     * </p>
+     * 
+     * @return underlying device
+     */
+    public Device getDevice() {
+        return dev;
+    }
+
+    /*
+     * Queues given task behind all operations submitted till now. If executor
+     * rejects the task, its future completes exceptionally.
+     */
+    private synchronized <T> CompletableFuture<T> submit(Callable<T> task) {
+
+        final Operation<T> op = new Operation<T>(task);
+
+        tail.thenRun(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(op);
+                } catch (RuntimeException e) {
+                    op.completeExceptionally(e);
+                    op.finished.complete(null);
+                }
+            }
+        });
+        tail = op.finished;
+        return op;
+    }
+
+    /**
+     * <p>
+     * Asynchronous version of Device.writeMemory(SegmentedFirmware,
+     * ICmdProgressListener).
+     * </p>
+     * 
+     * @param fw
+     *            firmware to be flashed
+     * @param progressListener
+     *            listener called from the thread running operation or null
+     * @return future giving 0 on success
+     */
+    public CompletableFuture<Integer> writeMemory(final SegmentedFirmware fw,
+            final ICmdProgressListener progressListener) {
+        return this.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return dev.writeMemory(fw, progressListener);
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Asynchronous version of Device.writeMemory(int, File, int,
+     * ICmdProgressListener).
+     * </p>
+     * 
+     * @param fwType
+     *            FileType.BIN or FileType.HEX
+     * @param fwFile
+     *            firmware file
+     * @param startAddr
+     *            address for binary files, ignored for hex files
+     * @param progressListener
+     *            listener called from the thread running operation or null
+     * @return future giving 0 on success
+     */
+    public CompletableFuture<Integer> writeMemory(final int fwType, final File fwFile, final int startAddr,
+            final ICmdProgressListener progressListener) {
+        return this.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return dev.writeMemory(fwType, fwFile, startAddr, progressListener);
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Asynchronous version of Device.writeMemoryDelta(SegmentedFirmware,
+     * ICmdProgressListener).
+     * </p>
+     * 
+     * @param fw
+     *            firmware to be flashed
+     * @param progressListener
+     *            listener called from the thread running operation or null
+     * @return future giving number of pages erased and/or written
+     */
+    public CompletableFuture<Integer> writeMemoryDelta(final SegmentedFirmware fw,
+            final ICmdProgressListener progressListener) {
+        return this.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return dev.writeMemoryDelta(fw, progressListener);
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Asynchronous version of Device.readMemory(byte[], int, int,
+     * ICmdProgressListener). Given buffer must not be touched until future
+     * completes.
+     * </p>
+     * 
+     * @param data
+     *            buffer where data read will be stored
+     * @param startAddr
+     *            address from where 1st byte will be read
+     * @param numBytesToRead
+     *            number of bytes to be read
+     * @param progressListener
+     *            listener called from the thread running operation or null
+     * @return future giving number of bytes read
+     */
+    public CompletableFuture<Integer> readMemory(final byte[] data, final int startAddr, final int numBytesToRead,
+            final ICmdProgressListener progressListener) {
+        return this.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return dev.readMemory(data, startAddr, numBytesToRead, progressListener);
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Asynchronous version of Device.readMemory(String, int, int,
+     * ICmdProgressListener).
+     * </p>
+     * 
+     * @param file
+     *            file to which data read will be written
+     * @param startAddr
+     *            address from where 1st byte will be read
+     * @param numBytesToRead
+     *            number of bytes to be read
+     * @param progressListener
+     *            listener called from the thread running operation or null
+     * @return future giving number of bytes read
+     */
+    public CompletableFuture<Integer> readMemory(final String file, final int startAddr, final int numBytesToRead,
+            final ICmdProgressListener progressListener) {
+        return this.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return dev.readMemory(file, startAddr, numBytesToRead, progressListener);
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Asynchronous version of Device.eraseMemoryForFirmware(SegmentedFirmware).
+     * </p>
+     * 
+     * @param fw
+     *            firmware which is going to be written
+     * @return future giving number of pages erased
+     */
+    public CompletableFuture<Integer> eraseMemoryForFirmware(final SegmentedFirmware fw) {
+        return this.eraseMemoryForFirmware(fw, null);
+    }
+
+    /**
+     * <p>
+     * Asynchronous version of Device.eraseMemoryForFirmware(SegmentedFirmware,
+     * ICmdProgressListener).
+     * </p>
+     * 
+     * @param fw
+     *            firmware which is going to be written
+     * @param progressListener
+     *            listener called from the thread running operation or null
+     * @return future giving number of pages erased
+     */
+    public CompletableFuture<Integer> eraseMemoryForFirmware(final SegmentedFirmware fw,
+            final ICmdProgressListener progressListener) {
+        return this.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return dev.eraseMemoryForFirmware(fw, progressListener);
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Asynchronous version of Device.eraseMemoryRegion(int, int, int).
+     * </p>
+     * 
+     * @param memReg
+     *            memory region, REGTYPE.MAIN
+     * @param startPageNum
+     *            first page to erase or -1 for mass erase
+     * @param totalNumOfPages
+     *            number of pages to erase or -1 for mass erase
+     * @return future which completes when erase is done
+     */
+    public CompletableFuture<Void> eraseMemoryRegion(final int memReg, final int startPageNum,
+            final int totalNumOfPages) {
+        return this.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                dev.eraseMemoryRegion(memReg, startPageNum, totalNumOfPages);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Asynchronous version of Device.extendedEraseMemoryRegion(int, int, int).
+     * </p>
+     * 
+     * @param memReg
+     *            memory region, REGTYPE.MAIN
+     * @param startPageNum
+     *            first page to erase or -1 for mass erase
+     * @param totalNumOfPages
+     *            number of pages to erase or -1 for mass erase
+     * @return future which completes when erase is done
+     */
+    public CompletableFuture<Void> extendedEraseMemoryRegion(final int memReg, final int startPageNum,
+            final int totalNumOfPages) {
+        return this.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                dev.extendedEraseMemoryRegion(memReg, startPageNum, totalNumOfPages);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Asynchronous version of Device.verifyMemoryCRC(SegmentedFirmware).
+     * </p>
+     * 
+     * @param fw
+     *            firmware which has been written
+     * @return future giving segments which differ, or null if verification on
+     *         stm32 is not supported for this device
+     */
+    public CompletableFuture<List<SegmentedFirmware.Segment>> verifyMemoryCRC(final SegmentedFirmware fw) {
+        return this.submit(new Callable<List<SegmentedFirmware.Segment>>() {
+            @Override
+            public List<SegmentedFirmware.Segment> call() throws Exception {
+                return dev.verifyMemoryCRC(fw);
+            }
+        });
+    }
+}
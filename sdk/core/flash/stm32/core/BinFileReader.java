@@ -0,0 +1,99 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>
+ * Internal use only. Gives a binary firmware file in blocks, flashed as is
+ * starting from the address given by caller.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+final class BinFileReader extends FirmwareBlockReader {
+
+    private final FileChannel channel;
+    private final int totalLength;
+    private int nextAddr;
+    private int blockAddr;
+
+    /**
+     * <p>
+     * Opens given binary file.
+     * </p>
+     * 
+     * @param file
+     *            firmware file
+     * @param startAddr
+     *            address where first byte of this file should be flashed
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    BinFileReader(File file, int startAddr) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        totalLength = (int) channel.size();
+        nextAddr = startAddr;
+        blockAddr = startAddr;
+    }
+
+    @Override
+    public int nextBlock(byte[] buf) throws IOException {
+
+        int res;
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, BLOCK_SIZE);
+
+        while (bb.hasRemaining()) {
+            res = channel.read(bb);
+            if (res < 0) {
+                break;
+            }
+        }
+
+        if (bb.position() == 0) {
+            return -1;
+        }
+
+        blockAddr = nextAddr;
+        nextAddr = nextAddr + bb.position();
+        return bb.position();
+    }
+
+    @Override
+    public int getBlockAddress() {
+        return blockAddr;
+    }
+
+    @Override
+    public int getTotalLength() {
+        return totalLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
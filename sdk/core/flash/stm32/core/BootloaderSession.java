@@ -0,0 +1,136 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+/**
+ * <p>
+ * What bootloader told about itself when the device was identified: product
+ * id from Get ID command, and protocol version and supported commands from one
+ * Get command. These do not change while bootloader runs, or after a reset of
+ * the same stm32, so they are asked once per handshake and later queries like
+ * Device.getAllowedCommands() are answered from here without talking to
+ * bootloader.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class BootloaderSession {
+
+    private final int pid;
+    private final int version;
+    private final String versionName;
+    private final int allowedCommands;
+    private final Device device;
+
+    /**
+     * <p>
+     * Allocates an instance of BootloaderSession class; done by communication
+     * interface after handshake.
+     * </p>
+     * 
+     * @param pid
+     *            product id as reported by Get ID command
+     * @param version
+     *            protocol version byte as reported by Get command, for example 0x31
+     * @param versionName
+     *            protocol version in human readable format, for example v3.1
+     * @param allowedCommands
+     *            bit mask of BLCMDS constants as reported by Get command
+     * @param device
+     *            device created for the product id
+     */
+    public BootloaderSession(int pid, int version, String versionName, int allowedCommands, Device device) {
+        this.pid = pid;
+        this.version = version;
+        this.versionName = versionName;
+        this.allowedCommands = allowedCommands;
+        this.device = device;
+    }
+
+    /**
+     * <p>
+     * Gives product id of the stm32.
+     * </p>
+     * 
+     * @return product id, for example 0x415
+     */
+    public int getPID() {
+        return pid;
+    }
+
+    /**
+     * <p>
+     * Gives protocol version byte, major version in upper and minor version in
+     * lower nibble.
+     * </p>
+     * 
+     * @return version, for example 0x31
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * <p>
+     * Gives protocol version in human readable format.
+     * </p>
+     * 
+     * @return version, for example v3.1
+     */
+    public String getVersionName() {
+        return versionName;
+    }
+
+    /**
+     * <p>
+     * Gives commands supported by bootloader.
+     * </p>
+     * 
+     * @return bit mask of BLCMDS constants
+     */
+    public int getAllowedCommands() {
+        return allowedCommands;
+    }
+
+    /**
+     * <p>
+     * Tells whether bootloader supports the given command.
+     * </p>
+     * 
+     * @param command
+     *            one of BLCMDS constants
+     * @return true if command is supported
+     */
+    public boolean isSupported(int command) {
+        return (allowedCommands & command) == command;
+    }
+
+    /**
+     * <p>
+     * Gives device created for the product id.
+     * </p>
+     * 
+     * @return device
+     */
+    public Device getDevice() {
+        return device;
+    }
+}
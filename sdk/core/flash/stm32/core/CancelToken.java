@@ -0,0 +1,64 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+/**
+ * <p>
+ * Token through which read, write and erase operations running on a device can
+ * be stopped from another thread. Operations check the token (and whether the
+ * calling thread has been interrupted) at block boundaries, that is when
+ * bootloader has finished the previous command and is waiting for the next one.
+ * A cancelled operation throws java.util.concurrent.CancellationException and
+ * leaves bootloader ready to accept further commands.
+ * </p>
+ * 
+ * <p>
+ * Once cancelled a token stays cancelled; a new token should be set for
+ * operations to be run afterwards.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class CancelToken {
+
+    private volatile boolean cancelled;
+
+    /**
+     * <p>
+     * Requests operations using this token to stop at the next block boundary.
+     * Returns immediately without waiting for them to stop.
+     * </p>
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * <p>
+     * Tells whether cancellation has been requested.
+     * </p>
+     * 
+     * @return true if cancel() has been called
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
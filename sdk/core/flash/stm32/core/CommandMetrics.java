@@ -0,0 +1,308 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+import java.util.Locale;
+
+/**
+ * <p>
+ * Collects metrics of bootloader commands: for every command code number of
+ * commands, bytes sent and received, NACKs, timeouts, and for command, address
+ * and data frames a latency histogram. Histogram bucket n counts answers which
+ * took less than 2^n microseconds (and at least 2^(n-1)), the last bucket
+ * (about 67 seconds) counts everything slower.
+ * </p>
+ * 
+ * <p>
+ * One instance may be shared by interfaces driven from different threads, for
+ * example to get aggregate numbers for a gang of boards.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class CommandMetrics implements ICmdMetricsListener {
+
+    /** Number of buckets in every latency histogram, enough for longest erase timeout. */
+    public static final int NUM_BUCKETS = 27;
+
+    private final long[] count = new long[256];
+    private final long[] bytesSent = new long[256];
+    private final long[] bytesReceived = new long[256];
+    private final long[] nacks = new long[256];
+    private final long[] timeouts = new long[256];
+    private final long[] invalid = new long[256];
+    private final long[][][] histogram = new long[256][3][NUM_BUCKETS];
+    private final long[][] latencySum = new long[256][3];
+
+    @Override
+    public synchronized void onFrameAnswered(int command, int stage, int numBytes, int result, long latencyNanos) {
+
+        int bucket;
+        long micros = latencyNanos / 1000;
+
+        command = command & 0xFF;
+        if (stage == STAGE_COMMAND) {
+            count[command]++;
+        }
+        bytesSent[command] = bytesSent[command] + numBytes;
+
+        if (result == RESULT_NACK) {
+            nacks[command]++;
+        } else if (result == RESULT_TIMEOUT) {
+            timeouts[command]++;
+        } else if (result == RESULT_INVALID) {
+            invalid[command]++;
+        } else {
+        }
+
+        /* bucket n holds latencies in [2^(n-1), 2^n) microseconds */
+        bucket = 64 - Long.numberOfLeadingZeros(micros);
+        if (bucket >= NUM_BUCKETS) {
+            bucket = NUM_BUCKETS - 1;
+        }
+        histogram[command][stage][bucket]++;
+        latencySum[command][stage] = latencySum[command][stage] + latencyNanos;
+    }
+
+    @Override
+    public synchronized void onDataReceived(int command, int numBytes, long durationNanos) {
+        bytesReceived[command & 0xFF] = bytesReceived[command & 0xFF] + numBytes;
+    }
+
+    /**
+     * <p>
+     * Gives number of commands with given command code sent till now.
+     * </p>
+     * 
+     * @param command
+     *            command code
+     * @return number of commands
+     */
+    public synchronized long getCount(int command) {
+        return count[command & 0xFF];
+    }
+
+    /**
+     * <p>
+     * Gives number of bytes sent in all frames of given command.
+     * </p>
+     * 
+     * @param command
+     *            command code
+     * @return number of bytes sent
+     */
+    public synchronized long getBytesSent(int command) {
+        return bytesSent[command & 0xFF];
+    }
+
+    /**
+     * <p>
+     * Gives number of data bytes received for given command.
+     * </p>
+     * 
+     * @param command
+     *            command code
+     * @return number of bytes received
+     */
+    public synchronized long getBytesReceived(int command) {
+        return bytesReceived[command & 0xFF];
+    }
+
+    /**
+     * <p>
+     * Gives number of frames of given command answered with NACK.
+     * </p>
+     * 
+     * @param command
+     *            command code
+     * @return number of NACKs
+     */
+    public synchronized long getNacks(int command) {
+        return nacks[command & 0xFF];
+    }
+
+    /**
+     * <p>
+     * Gives number of frames of given command not answered in time.
+     * </p>
+     * 
+     * @param command
+     *            command code
+     * @return number of timeouts
+     */
+    public synchronized long getTimeouts(int command) {
+        return timeouts[command & 0xFF];
+    }
+
+    /**
+     * <p>
+     * Gives number of frames of given command answered with something other than
+     * ACK or NACK, usually a sign of line errors.
+     * </p>
+     * 
+     * @param command
+     *            command code
+     * @return number of invalid answers
+     */
+    public synchronized long getInvalidAnswers(int command) {
+        return invalid[command & 0xFF];
+    }
+
+    /**
+     * <p>
+     * Gives copy of latency histogram of given frame of given command.
+     * </p>
+     * 
+     * @param command
+     *            command code
+     * @param stage
+     *            ICmdMetricsListener.STAGE_COMMAND, STAGE_ADDRESS or STAGE_DATA
+     * @return NUM_BUCKETS counts, see class description
+     */
+    public synchronized long[] getHistogram(int command, int stage) {
+        return histogram[command & 0xFF][stage].clone();
+    }
+
+    /**
+     * <p>
+     * Gives upper bound of given percentile of latency of given frame, at the
+     * resolution of histogram buckets.
+     * </p>
+     * 
+     * @param command
+     *            command code
+     * @param stage
+     *            ICmdMetricsListener.STAGE_COMMAND, STAGE_ADDRESS or STAGE_DATA
+     * @param percentile
+     *            percentile, 0 to 100
+     * @return latency in microseconds below which given percentile of answers
+     *         fall, or 0 if no frame has been answered
+     */
+    public synchronized long getPercentileMicros(int command, int stage, double percentile) {
+
+        int x;
+        long seen = 0;
+        long total = this.numAnswers(command, stage);
+        long[] h = histogram[command & 0xFF][stage];
+
+        if (total == 0) {
+            return 0;
+        }
+        for (x = 0; x < NUM_BUCKETS; x++) {
+            seen = seen + h[x];
+            if ((seen * 100.0) >= (total * percentile)) {
+                break;
+            }
+        }
+        return 1L << Math.min(x, NUM_BUCKETS - 1);
+    }
+
+    /**
+     * <p>
+     * Gives average latency of given frame of given command.
+     * </p>
+     * 
+     * @param command
+     *            command code
+     * @param stage
+     *            ICmdMetricsListener.STAGE_COMMAND, STAGE_ADDRESS or STAGE_DATA
+     * @return average latency in microseconds or 0 if no frame has been answered
+     */
+    public synchronized long getAverageMicros(int command, int stage) {
+
+        long total = this.numAnswers(command, stage);
+
+        if (total == 0) {
+            return 0;
+        }
+        return latencySum[command & 0xFF][stage] / total / 1000;
+    }
+
+    /* number of frames of given stage answered or timed out */
+    private long numAnswers(int command, int stage) {
+
+        int x;
+        long total = 0;
+        long[] h = histogram[command & 0xFF][stage];
+
+        for (x = 0; x < NUM_BUCKETS; x++) {
+            total = total + h[x];
+        }
+        return total;
+    }
+
+    /**
+     * <p>
+     * Clears everything collected till now.
+     * </p>
+     */
+    public synchronized void reset() {
+
+        int x;
+
+        for (x = 0; x < 256; x++) {
+            count[x] = 0;
+            bytesSent[x] = 0;
+            bytesReceived[x] = 0;
+            nacks[x] = 0;
+            timeouts[x] = 0;
+            invalid[x] = 0;
+            histogram[x] = new long[3][NUM_BUCKETS];
+            latencySum[x] = new long[3];
+        }
+    }
+
+    /**
+     * <p>
+     * Gives one line for every command used with count, bytes, NACKs, timeouts
+     * and average, median and 99th percentile latency of every frame in
+     * microseconds.
+     * </p>
+     * 
+     * @return summary as text
+     */
+    @Override
+    public synchronized String toString() {
+
+        int x;
+        int stage;
+        StringBuilder sb = new StringBuilder();
+        String[] stages = new String[] { "cmd", "addr", "data" };
+
+        for (x = 0; x < 256; x++) {
+            if ((count[x] == 0) && (bytesSent[x] == 0) && (bytesReceived[x] == 0)) {
+                continue;
+            }
+            sb.append(String.format(Locale.ROOT, "0x%02X count %d sent %d received %d nack %d timeout %d invalid %d",
+                    x, count[x], bytesSent[x], bytesReceived[x], nacks[x], timeouts[x], invalid[x]));
+            for (stage = 0; stage < 3; stage++) {
+                if (this.numAnswers(x, stage) == 0) {
+                    continue;
+                }
+                sb.append(String.format(Locale.ROOT, " | %s avg %d p50 <%d p99 <%d us", stages[stage],
+                        this.getAverageMicros(x, stage), this.getPercentileMicros(x, stage, 50),
+                        this.getPercentileMicros(x, stage, 99)));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
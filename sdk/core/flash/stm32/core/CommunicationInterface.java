@@ -20,6 +20,8 @@
 
 package flash.stm32.core;
 
+import java.io.IOException;
+
 import flash.stm32.core.internal.SystemProperties;
 
 /**
@@ -27,6 +29,12 @@ import flash.stm32.core.internal.SystemProperties;
  * Base class representing a communication interface for example; serial port.
  * </p>
  * 
+ * <p>
+ * Interface runs bootloader protocol over a byte transport (ITransport). Besides
+ * transports opened by the interface itself (for example serial port given by
+ * its name), any transport created by application can be given to open().
+ * </p>
+ * 
  * @author Rishi Gupta
  */
 public abstract class CommunicationInterface {
@@ -42,4 +50,19 @@ public abstract class CommunicationInterface {
 
         sysprop = new SystemProperties();
     }
+
+    /**
+     * <p>
+     * Opens this interface over the given transport and sets it to the given
+     * baudrate. Data received but not read yet is discarded.
+     * </p>
+     * 
+     * @param transport
+     *            transport through which bootloader is reached
+     * @param baudRate
+     *            rate of signal change used for communication, for example 115200
+     * @throws IOException
+     *             if the transport can not be configured
+     */
+    public abstract void open(ITransport transport, int baudRate) throws IOException;
 }
@@ -22,9 +22,22 @@ package flash.stm32.core;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 import flash.stm32.core.internal.CommandExecutor;
+import flash.stm32.core.internal.ProgressMeter;
 
 /**
  * <p>
@@ -60,6 +73,8 @@ public abstract class Device {
 
     public int resetCodeAddress;
 
+    public FlashGeometry flashGeometry;
+
     /**
      * <p>
      * Gets the product series to which given stm32 belongs.
@@ -95,12 +110,30 @@ public abstract class Device {
 
     /**
      * <p>
-     * Sends command 'Get' (0x00) to stm32 to get commands supported by bootloader
-     * running in the stm32 device currently connected to host.
+     * Sets token through which read, write and erase operations on this device
+     * can be stopped from another thread. Interrupting the thread running an
+     * operation stops it the same way, with or without a token. Operation stops at
+     * the next block boundary with java.util.concurrent.CancellationException;
+     * pending write ACK is collected and flash loader, if running, is stopped
+     * first so that bootloader is ready for the next command. A journaled write
+     * stopped this way can be resumed later.
+     * </p>
+     * 
+     * @param token
+     *            cancel token or null to remove it
+     */
+    public void setCancelToken(CancelToken token) {
+        cmdExtr.setCancelToken(token);
+    }
+
+    /**
+     * <p>
+     * Gives commands supported by bootloader running in the stm32 device currently
+     * connected to host. They are found by the 'Get' (0x00) command sent when the
+     * device was identified, nothing is sent to stm32 here.
      * </p>
      * 
-     * @return 0 if operation fails or bit mask of commands supported by given
-     *         bootloader
+     * @return bit mask of commands supported by given bootloader
      * @throws IOException
      *             if an error happens when communicating with the device
      * @throws TimeoutException
@@ -113,10 +146,9 @@ public abstract class Device {
 
     /**
      * <p>
-     * Sends command 'Get' (0x00) to know commands supported by this bootloader and
-     * then extracts bootloader version for the received response. This represents
-     * version of the serial peripheral (USART, CAN, USB, etc.) communication
-     * protocol used in the bootloader.
+     * Gives bootloader version found by the 'Get' (0x00) command sent when the
+     * device was identified. This represents version of the serial peripheral
+     * (USART, CAN, USB, etc.) communication protocol used in the bootloader.
      * </p>
      * 
      * @return bootloader version in human readable format
@@ -132,11 +164,11 @@ public abstract class Device {
 
     /**
      * <p>
-     * Read product specific system memory and extracts bootloader ID programmed
-     * into stm32.
+     * Gives product id found by the 'Get ID' (0x02) command sent when the device
+     * was identified.
      * </p>
      * 
-     * @return bootloader ID of the stm32
+     * @return product id of the stm32
      * @throws IOException
      *             if an error happens when communicating with the device
      * @throws TimeoutException
@@ -147,6 +179,18 @@ public abstract class Device {
         return cmdExtr.getChipID();
     }
 
+    /**
+     * <p>
+     * Gives product id, bootloader version and supported commands found during
+     * last handshake with bootloader, all in one object.
+     * </p>
+     * 
+     * @return session or null if device has not been identified yet
+     */
+    public BootloaderSession getSession() {
+        return cmdExtr.getSession();
+    }
+
     /**
      * <p>
      * Reads bootloader ID programmed into the last two byte of the device's system
@@ -251,6 +295,200 @@ public abstract class Device {
         return cmdExtr.readMemory(file, startAddr, numBytesToRead, progressListener);
     }
 
+    /**
+     * <p>
+     * Reads given memory area and writes every chunk of 256 bytes to the given
+     * output stream as soon as it has been received. Memory used does not depend
+     * upon number of bytes to read, so large dumps (for example whole flash of a
+     * F7 or H7 device) can be taken, and all chunks received before a failure have
+     * already been written to stream. Stream is neither flushed nor closed by this
+     * method.
+     * </p>
+     * 
+     * @param out
+     *            stream to which data read will be written
+     * @param startAddr
+     *            address from where 1st byte will be read
+     * @param numBytesToRead
+     *            number of bytes to be read
+     * @param progressListener
+     *            instance of class which implements callback to know reading
+     *            progress or null if not required
+     * 
+     * @return number of bytes read from stm32 device
+     * @throws IOException
+     *             if an error happens when communicating with the device or when
+     *             writing to stream
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    public int readMemory(OutputStream out, int startAddr, final int numBytesToRead,
+            ICmdProgressListener progressListener) throws IOException, TimeoutException {
+        return cmdExtr.readMemory(out, startAddr, numBytesToRead, progressListener);
+    }
+
+    /**
+     * <p>
+     * Reads as many bytes as remain in the given buffer from memory starting at
+     * given address into the buffer, advancing its position. Direct and memory
+     * mapped buffers are filled by serial port driver directly and heap buffers
+     * through their backing array, so nothing is copied or allocated per block.
+     * This suits programs driving many ports from one JVM.
+     * </p>
+     * 
+     * @param data
+     *            buffer where data read will be stored
+     * @param startAddr
+     *            address from where 1st byte will be read
+     * @return number of bytes read from stm32
+     * @throws IOException
+     *             if an error happens when communicating with the device
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    public int readMemory(ByteBuffer data, int startAddr) throws IOException, TimeoutException {
+        return cmdExtr.readMemory(data, startAddr, null);
+    }
+
+    /**
+     * <p>
+     * Same as readMemory(OutputStream, int, int, ICmdProgressListener) but every
+     * chunk is written to the given channel, for example a FileChannel or a
+     * SocketChannel in blocking mode. Channel is not closed by this method.
+     * </p>
+     * 
+     * @param channel
+     *            channel to which data read will be written
+     * @param startAddr
+     *            address from where 1st byte will be read
+     * @param numBytesToRead
+     *            number of bytes to be read
+     * @param progressListener
+     *            instance of class which implements callback to know reading
+     *            progress or null if not required
+     * 
+     * @return number of bytes read from stm32 device
+     * @throws IOException
+     *             if an error happens when communicating with the device or when
+     *             writing to channel
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    public int readMemory(WritableByteChannel channel, int startAddr, final int numBytesToRead,
+            ICmdProgressListener progressListener) throws IOException, TimeoutException {
+        if (channel == null) {
+            throw new IllegalArgumentException(this.getString("nul.chnl"));
+        }
+        return cmdExtr.readMemory(Channels.newOutputStream(channel), startAddr, numBytesToRead, progressListener);
+    }
+
+    /**
+     * <p>
+     * Reads given memory area into a file which is first created (or truncated) to
+     * the size of the area and memory mapped. Every chunk is put directly into the
+     * mapping, so nothing is buffered on heap and chunks received before a failure
+     * are in the file. Rest of the file then contains zeros. Mapping is released
+     * before returning, so the file can be deleted or mapped again right away.
+     * </p>
+     * 
+     * @param file
+     *            absolute path to file which will be written by this method
+     * @param startAddr
+     *            address from where 1st byte will be read
+     * @param numBytesToRead
+     *            number of bytes to be read
+     * @param progressListener
+     *            instance of class which implements callback to know reading
+     *            progress or null if not required
+     * 
+     * @return number of bytes read from stm32 device
+     * @throws IOException
+     *             if an error happens when communicating with the device or when
+     *             creating or mapping file
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    public int readMemoryToMappedFile(String file, int startAddr, final int numBytesToRead,
+            ICmdProgressListener progressListener) throws IOException, TimeoutException {
+
+        final MappedByteBuffer mbuf;
+        RandomAccessFile raf;
+        FileChannel fc;
+
+        if (file == null) {
+            throw new IllegalArgumentException(this.getString("nul.fl"));
+        }
+        if (numBytesToRead <= 0) {
+            throw new IllegalArgumentException(this.getString("inval.r.len") + " " + numBytesToRead);
+        }
+
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(numBytesToRead);
+            fc = raf.getChannel();
+            mbuf = fc.map(FileChannel.MapMode.READ_WRITE, 0, numBytesToRead);
+            try {
+                return cmdExtr.readMemory(new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                        mbuf.put((byte) b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        mbuf.put(b, off, len);
+                    }
+                }, startAddr, numBytesToRead, progressListener);
+            } finally {
+                mbuf.force();
+                unmap(mbuf);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*
+     * Releases mapping now instead of whenever buffer is garbage collected, which
+     * on Windows keeps file locked. Through Unsafe.invokeCleaner() on Java 9 and
+     * later, cleaner of sun.nio.ch.DirectBuffer on Java 8. Buffer must not be used
+     * afterwards. If neither is accessible mapping is left to garbage collector.
+     */
+    private static void unmap(MappedByteBuffer buf) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                invokeCleaner = null;
+            }
+            if (invokeCleaner != null) {
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buf);
+            } else {
+                Object cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner").invoke(buf);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            /* not accessible in this runtime */
+        }
+    }
+
+    /*
+     * Message for the user in locale given to device manager.
+     */
+    private String getString(String key) {
+        return cmdExtr.getResourceBundle().getString(key);
+    }
+
     /**
      * <p>
      * Sends command 'Go command' (0x21) to stm32 to make program counter jump to
@@ -299,6 +537,9 @@ public abstract class Device {
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
+     * @throws IllegalStateException
+     *             if write verification is enabled and data read back from flash
+     *             differs from data written
      */
     public int writeMemory(final int fwType, final File fwFile, final int startAddr,
             ICmdProgressListener progressListener) throws IOException, TimeoutException {
@@ -336,12 +577,684 @@ public abstract class Device {
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
+     * @throws IllegalStateException
+     *             if write verification is enabled and data read back from flash
+     *             differs from data written
      */
     public int writeMemory(final int fwType, final byte[] data, int startAddr, ICmdProgressListener progressListener)
             throws IOException, TimeoutException {
         return cmdExtr.writeMemory(fwType, data, startAddr, progressListener);
     }
 
+    /**
+     * <p>
+     * Writes given segmented firmware to stm32. Every segment is written starting
+     * from its own address. Address range between two segments is skipped
+     * entirely; nothing is sent for it.
+     * </p>
+     * 
+     * <p>
+     * Sends command 'Write Memory command' (0x31) to stm32 to write to memory.
+     * </p>
+     * 
+     * @param fw
+     *            firmware to be flashed
+     * @param progressListener
+     *            instance of class which implements callback methods to know how
+     *            many bytes have been sent till now or null if not required
+     * @return 0 on success
+     * @throws IOException
+     *             if an error happens when communicating with the device
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     * @throws IllegalStateException
+     *             if write verification is enabled and data read back from flash
+     *             differs from data written
+     */
+    public int writeMemory(final SegmentedFirmware fw, ICmdProgressListener progressListener)
+            throws IOException, TimeoutException {
+        return cmdExtr.writeMemory(fw, progressListener);
+    }
+
+    /**
+     * <p>
+     * Same as writeMemory(SegmentedFirmware, ICmdProgressListener) but records
+     * progress in the given journal after every block acknowledged by stm32. If
+     * writing fails, resumeWrite() can later continue from the last acknowledged
+     * block. Journal file is deleted once whole firmware has been written.
+     * </p>
+     * 
+     * @param fw
+     *            firmware to be flashed
+     * @param journal
+     *            journal to record progress in
+     * @param progressListener
+     *            instance of class which implements callback methods to know how
+     *            many bytes have been sent till now or null if not required
+     * @return 0 on success
+     * @throws IOException
+     *             if an error happens when communicating with the device or
+     *             journal file can not be written
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     * @throws IllegalStateException
+     *             if write verification is enabled and data read back from flash
+     *             differs from data written
+     */
+    public int writeMemory(final SegmentedFirmware fw, final WriteJournal journal,
+            ICmdProgressListener progressListener) throws IOException, TimeoutException {
+
+        if (fw == null) {
+            throw new IllegalArgumentException(this.getString("nul.fw"));
+        }
+        if (journal == null) {
+            throw new IllegalArgumentException(this.getString("nul.jrnl"));
+        }
+
+        this.writeJournaled(fw, fw, journal, fw.getStartAddress(), progressListener);
+        return 0;
+    }
+
+    /**
+     * <p>
+     * Continues writing of given firmware which was interrupted earlier. The last
+     * block recorded in the journal as acknowledged is read back and compared
+     * with the firmware first. Then the block which was in flight when writing
+     * stopped (up to one flash loader frame if this device has a flash loader)
+     * is read back; it may have been programmed partly. If the last block does
+     * not match or the block in flight is not blank, flash pages containing them
+     * are erased and writing continues from the start of first such page; flash
+     * geometry of this device must be known for this. Otherwise writing continues
+     * just after the last acknowledged block.
+     * </p>
+     * 
+     * <p>
+     * Pages which were not reached by the interrupted write must still be in
+     * erased state; they were erased before that write started.
+     * </p>
+     * 
+     * @param fw
+     *            firmware to be flashed, same as given to the interrupted write
+     * @param journal
+     *            journal of the interrupted write
+     * @param progressListener
+     *            instance of class which implements callback methods to know how
+     *            many bytes have been sent till now or null if not required
+     * @return address from which writing was continued
+     * @throws IOException
+     *             if an error happens when communicating with the device or
+     *             journal file can not be read or written
+     * @throws TimeoutException
+     *             when bootloader declines a command, fails to execute it or sends
+     *             no response at all
+     * @throws IllegalStateException
+     *             if write verification is enabled and data read back from flash
+     *             differs from data written
+     */
+    public int resumeWrite(final SegmentedFirmware fw, final WriteJournal journal,
+            ICmdProgressListener progressListener) throws IOException, TimeoutException {
+
+        int x;
+        int firstPage;
+        int lastPage;
+        int resumeAddr;
+        int inFlightLen = 256;
+        int[] pages;
+        int[] lastBlock;
+        int[] inFlight;
+        int[] damaged = null;
+        FlashLoader loader;
+        ArrayList<SegmentedFirmware.Segment> remaining = new ArrayList<SegmentedFirmware.Segment>();
+
+        if (fw == null) {
+            throw new IllegalArgumentException(this.getString("nul.fw"));
+        }
+        if (journal == null) {
+            throw new IllegalArgumentException(this.getString("nul.jrnl"));
+        }
+        if (journal.canResume(fw) == false) {
+            throw new IllegalArgumentException(this.getString("jrnl.not.fw") + " " + journal.getFile());
+        }
+
+        /* last acknowledged block is at most 256 bytes below resume address */
+        resumeAddr = journal.getResumeAddress();
+        lastBlock = this.findDamaged(fw, resumeAddr - 256, resumeAddr, false);
+        if (lastBlock != null) {
+            damaged = new int[] { lastBlock[0], resumeAddr };
+        }
+
+        /* block in flight starts at resume address, flash loader sends whole frames */
+        loader = FlashLoader.getLoader(this);
+        if ((loader != null) && (loader.frameSize > inFlightLen)) {
+            inFlightLen = loader.frameSize;
+        }
+        inFlight = this.findDamaged(fw, resumeAddr, resumeAddr + inFlightLen, true);
+        if (inFlight != null) {
+            if (damaged == null) {
+                damaged = new int[] { resumeAddr, inFlight[1] };
+            } else {
+                damaged[1] = inFlight[1];
+            }
+        }
+
+        if (damaged != null) {
+            /* block was not programmed completely, flash must be erased again */
+            if (flashGeometry == null) {
+                throw new IllegalArgumentException(this.getString("geo.unknown") + " " + mcuSeries);
+            }
+            firstPage = flashGeometry.getPageNumber(damaged[0]);
+            lastPage = flashGeometry.getPageNumber(damaged[1] - 1);
+            if ((firstPage < 0) || (lastPage < 0)) {
+                resumeAddr = damaged[0];
+            } else {
+                pages = new int[lastPage - firstPage + 1];
+                for (x = 0; x < pages.length; x++) {
+                    pages[x] = firstPage + x;
+                }
+                this.erasePages(pages, progressListener);
+                resumeAddr = flashGeometry.getPageAddress(firstPage);
+            }
+        }
+
+        /* firmware bytes from resume address onwards */
+        for (SegmentedFirmware.Segment seg : fw.getSegments()) {
+            if ((seg.address & 0xFFFFFFFFL) >= (resumeAddr & 0xFFFFFFFFL)) {
+                remaining.add(seg);
+            } else if (((seg.address & 0xFFFFFFFFL) + seg.data.length) > (resumeAddr & 0xFFFFFFFFL)) {
+                remaining.add(new SegmentedFirmware.Segment(resumeAddr,
+                        Arrays.copyOfRange(seg.data, resumeAddr - seg.address, seg.data.length)));
+            } else {
+            }
+        }
+
+        this.writeJournaled(fw, new SegmentedFirmware(remaining), journal, resumeAddr, progressListener);
+        return resumeAddr;
+    }
+
+    /*
+     * Reads back firmware bytes which lie in [from, to) and compares them with the
+     * firmware, or with erased state (0xFF) if blank is true. Returns start of the
+     * first segment part which differs and end of the last one, or null if all
+     * match.
+     */
+    private int[] findDamaged(final SegmentedFirmware fw, final int from, final int to, final boolean blank)
+            throws IOException, TimeoutException {
+
+        int x;
+        int start;
+        int end;
+        byte expected;
+        byte[] current;
+        int[] damaged = null;
+
+        for (SegmentedFirmware.Segment seg : fw.getSegments()) {
+            start = Math.max(seg.address, from);
+            end = Math.min(seg.address + seg.data.length, to);
+            if (start >= end) {
+                continue;
+            }
+            current = new byte[end - start];
+            this.readMemory(current, start, current.length, null);
+            for (x = 0; x < current.length; x++) {
+                expected = (blank == true) ? (byte) 0xFF : seg.data[start - seg.address + x];
+                if (current[x] != expected) {
+                    break;
+                }
+            }
+            if (x == current.length) {
+                continue;
+            }
+            if (damaged == null) {
+                damaged = new int[] { start, end };
+            } else {
+                damaged[1] = end;
+            }
+        }
+
+        return damaged;
+    }
+
+    /*
+     * Writes part of firmware updating journal of the whole firmware. Journal is
+     * kept if writing fails and deleted when it completes.
+     */
+    private void writeJournaled(final SegmentedFirmware fw, final SegmentedFirmware part, final WriteJournal journal,
+            final int startAddr, ICmdProgressListener progressListener) throws IOException, TimeoutException {
+
+        boolean completed = false;
+
+        journal.begin(fw, startAddr);
+        cmdExtr.setWriteJournal(journal);
+        try {
+            cmdExtr.writeMemory(part, progressListener);
+            completed = true;
+        } finally {
+            cmdExtr.setWriteJournal(null);
+            journal.end(completed);
+        }
+    }
+
+    /**
+     * <p>
+     * Writes bytes remaining in the given buffer to memory starting at given
+     * address, advancing buffer's position to its limit. Frames are built in a
+     * buffer reused for every block, so nothing is allocated per block.
+     * </p>
+     * 
+     * @param data
+     *            data bytes to be written, heap, direct or memory mapped buffer
+     * @param startAddr
+     *            memory address in stm32 from where writing should start
+     * @return 0 on success
+     * @throws IOException
+     *             if an error happens when communicating with the device
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     * @throws IllegalStateException
+     *             if write verification is enabled and data read back from flash
+     *             differs from data written
+     */
+    public int writeMemory(final ByteBuffer data, final int startAddr) throws IOException, TimeoutException {
+        return cmdExtr.writeMemory(data, startAddr, null);
+    }
+
+    /**
+     * <p>
+     * Writes given firmware erasing and writing only those flash pages whose
+     * contents differ from the firmware. Every page covered by the firmware is
+     * read back and compared with what it would contain after erase and write,
+     * that is firmware data with 0xFF at addresses not covered by firmware. Pages
+     * which already match are not touched, pages which are already erased are
+     * only written and remaining pages are erased and written. Erase or extended
+     * erase command is used, whichever is supported by the bootloader, once for
+     * every run of consecutive pages.
+     * </p>
+     * 
+     * <p>
+     * Reading a page back is much faster than erasing and programming it, so
+     * small changes to a large firmware take a fraction of time of full write.
+     * Pages not covered by the firmware at all are never erased. Read protection
+     * must not be active. Flash geometry of this device is used to find pages.
+     * </p>
+     * 
+     * <p>
+     * When FlashLoader supports this device, CRC of every page is calculated on
+     * stm32 instead (see verifyMemoryCRC()) and compared with CRC of expected page
+     * contents and of an erased page, so pages are not read back at all. Progress
+     * of comparing pages is reported as PHASE_READ.
+     * </p>
+     * 
+     * @param fw
+     *            firmware to be flashed
+     * @param progressListener
+     *            instance of class which implements callback methods to know
+     *            progress of reading pages and writing changed pages or null if
+     *            not required
+     * @return number of pages which were erased and/or written
+     * @throws IOException
+     *             if an error happens when communicating with the device
+     * @throws TimeoutException
+     *             when bootloader declines a command, fails to execute it or sends
+     *             no response at all
+     * @throws IllegalStateException
+     *             if write verification is enabled and data read back from flash
+     *             differs from data written
+     */
+    public int writeMemoryDelta(final SegmentedFirmware fw, ICmdProgressListener progressListener)
+            throws IOException, TimeoutException {
+
+        if (flashGeometry == null) {
+            throw new IllegalArgumentException(this.getString("geo.unknown") + " " + mcuSeries);
+        }
+        return this.writeMemoryDelta(fw, flashGeometry, progressListener);
+    }
+
+    /**
+     * <p>
+     * Same as writeMemoryDelta(SegmentedFirmware, ICmdProgressListener) but for
+     * flash with uniform pages of given size, for example when flash geometry of
+     * device is not known or differs from the default one.
+     * </p>
+     * 
+     * @param fw
+     *            firmware to be flashed
+     * @param flashStartAddr
+     *            address of page 0 of main flash, for example 0x08000000
+     * @param pageSize
+     *            size of a flash page in bytes
+     * @param progressListener
+     *            instance of class which implements callback methods to know
+     *            progress of reading pages and writing changed pages or null if
+     *            not required
+     * @return number of pages which were erased and/or written
+     * @throws IOException
+     *             if an error happens when communicating with the device
+     * @throws TimeoutException
+     *             when bootloader declines a command, fails to execute it or sends
+     *             no response at all
+     * @throws IllegalStateException
+     *             if write verification is enabled and data read back from flash
+     *             differs from data written
+     */
+    public int writeMemoryDelta(final SegmentedFirmware fw, final int flashStartAddr, final int pageSize,
+            ICmdProgressListener progressListener) throws IOException, TimeoutException {
+
+        long end = 0;
+        int numPages;
+
+        if (fw == null) {
+            throw new IllegalArgumentException(this.getString("nul.fw"));
+        }
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException(this.getString("inval.pg.size") + " " + pageSize);
+        }
+
+        /* enough pages to cover the firmware */
+        for (SegmentedFirmware.Segment seg : fw.getSegments()) {
+            end = Math.max(end, (seg.address & 0xFFFFFFFFL) + seg.data.length - (flashStartAddr & 0xFFFFFFFFL));
+        }
+        numPages = (int) Math.max(1, (end + pageSize - 1) / pageSize);
+        return this.writeMemoryDelta(fw, new FlashGeometry(flashStartAddr, new int[] { numPages, pageSize }),
+                progressListener);
+    }
+
+    private int writeMemoryDelta(final SegmentedFirmware fw, final FlashGeometry geometry,
+            ICmdProgressListener progressListener) throws IOException, TimeoutException {
+
+        int x;
+        int y;
+        int page;
+        int first;
+        int last;
+        int pageSize;
+        int pageAddr;
+        int numBytes = 0;
+        int numBytesRead = 0;
+        int numPagesChanged = 0;
+        int numErase = 0;
+        int[] pages;
+        int[] erasePages;
+        int[] pageAddrs;
+        int[] pageSizes;
+        int[] crcs = null;
+        boolean same;
+        boolean blank;
+        byte[] target;
+        byte[] current;
+        ProgressMeter meter;
+        ArrayList<SegmentedFirmware.Segment> changed = new ArrayList<SegmentedFirmware.Segment>();
+
+        if (fw == null) {
+            throw new IllegalArgumentException(this.getString("nul.fw"));
+        }
+
+        pages = geometry.planErase(fw);
+        erasePages = new int[pages.length];
+        pageAddrs = new int[pages.length];
+        pageSizes = new int[pages.length];
+        for (x = 0; x < pages.length; x++) {
+            pageAddrs[x] = geometry.getPageAddress(pages[x]);
+            pageSizes[x] = geometry.getPageSize(pages[x]);
+            numBytes = numBytes + pageSizes[x];
+        }
+        meter = ProgressMeter.start(progressListener, ICmdDetailedProgressListener.PHASE_READ, numBytes);
+
+        /* 4 bytes per page from stm32 instead of whole page when stub can be used */
+        if ((pages.length > 0) && (FlashLoader.getLoader(this) != null)) {
+            crcs = cmdExtr.calculateMemoryCRC(pageAddrs, pageSizes);
+        }
+
+        for (x = 0; x < pages.length; x++) {
+            page = pages[x];
+            pageAddr = pageAddrs[x];
+            pageSize = pageSizes[x];
+            target = new byte[pageSize];
+            current = new byte[pageSize];
+
+            this.fillPage(fw, pageAddr, target);
+            if (crcs != null) {
+                Arrays.fill(current, (byte) 0xFF);
+                same = crcs[x] == FlashLoader.calculateCRC(target, 0, pageSize);
+                blank = crcs[x] == FlashLoader.calculateCRC(current, 0, pageSize);
+            } else {
+                this.readMemory(current, pageAddr, pageSize, null);
+                same = Arrays.equals(target, current);
+                blank = true;
+                for (y = 0; y < pageSize; y++) {
+                    if (current[y] != (byte) 0xFF) {
+                        blank = false;
+                        break;
+                    }
+                }
+            }
+            numBytesRead = numBytesRead + pageSize;
+            if (progressListener != null) {
+                progressListener.onDataReadProgressUpdate(numBytesRead, numBytes);
+            }
+            if (meter != null) {
+                meter.update(pageAddr + pageSize, numBytesRead, 0);
+            }
+
+            if (same == true) {
+                continue;
+            }
+            numPagesChanged++;
+
+            /* page which is already blank need not be erased */
+            if (blank == false) {
+                erasePages[numErase] = page;
+                numErase++;
+            }
+
+            /* write only between first and last word that is not 0xFF */
+            first = 0;
+            while ((first < pageSize) && (target[first] == (byte) 0xFF)) {
+                first++;
+            }
+            last = pageSize;
+            while ((last > first) && (target[last - 1] == (byte) 0xFF)) {
+                last--;
+            }
+            if (first < last) {
+                first = first & ~0x03;
+                last = Math.min(pageSize, (last + 3) & ~0x03);
+                changed.add(new SegmentedFirmware.Segment(pageAddr + first, Arrays.copyOfRange(target, first, last)));
+            }
+        }
+
+        this.erasePages(Arrays.copyOf(erasePages, numErase), progressListener);
+
+        if (changed.isEmpty() == false) {
+            cmdExtr.writeMemory(new SegmentedFirmware(changed), progressListener);
+        }
+
+        return numPagesChanged;
+    }
+
+    /**
+     * <p>
+     * Verifies that memory contains the given firmware without reading it back.
+     * CRC of every segment is calculated on stm32 by flash loader stub (using CRC
+     * unit of stm32 when segment is word aligned) and compared with CRC calculated
+     * here, so only 4 bytes per segment are transferred. Bootloader is running
+     * again when this method returns.
+     * </p>
+     * 
+     * <p>
+     * A CRC match does not prove that every byte is correct but failing to detect
+     * a programming error this way is very unlikely. Only devices supported by
+     * FlashLoader can be verified like this; for others null is returned and
+     * caller should read memory back and compare.
+     * </p>
+     * 
+     * @param fw
+     *            firmware which has been written
+     * @return segments whose contents differ (empty if firmware is verified) or
+     *         null if verification on stm32 is not supported for this device
+     * @throws IOException
+     *             if an error happens when communicating with the device
+     * @throws TimeoutException
+     *             when bootloader or flash loader stub declines a command or sends
+     *             no response at all
+     */
+    public List<SegmentedFirmware.Segment> verifyMemoryCRC(final SegmentedFirmware fw)
+            throws IOException, TimeoutException {
+
+        int x;
+        int[] addrs;
+        int[] lens;
+        int[] crcs;
+        List<SegmentedFirmware.Segment> segs;
+        List<SegmentedFirmware.Segment> mismatched = new ArrayList<SegmentedFirmware.Segment>();
+
+        if (fw == null) {
+            throw new IllegalArgumentException(this.getString("nul.fw"));
+        }
+        if (FlashLoader.getLoader(this) == null) {
+            return null;
+        }
+
+        segs = fw.getSegments();
+        addrs = new int[segs.size()];
+        lens = new int[segs.size()];
+        for (x = 0; x < segs.size(); x++) {
+            addrs[x] = segs.get(x).address;
+            lens[x] = segs.get(x).data.length;
+        }
+
+        crcs = cmdExtr.calculateMemoryCRC(addrs, lens);
+        if (crcs == null) {
+            return null;
+        }
+
+        for (x = 0; x < segs.size(); x++) {
+            if (crcs[x] != FlashLoader.calculateCRC(segs.get(x).data, 0, lens[x])) {
+                mismatched.add(segs.get(x));
+            }
+        }
+        return mismatched;
+    }
+
+    /**
+     * <p>
+     * Erases only those pages (or sectors) of main flash which will be written by
+     * the given firmware, as found using flash geometry of this device. Erase time
+     * thus depends upon size of firmware rather than size of flash.
+     * </p>
+     * 
+     * @param fw
+     *            firmware which is going to be written
+     * @return number of pages erased
+     * @throws IOException
+     *             if an error happens when communicating with the device
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    public int eraseMemoryForFirmware(final SegmentedFirmware fw) throws IOException, TimeoutException {
+        return this.eraseMemoryForFirmware(fw, null);
+    }
+
+    /**
+     * <p>
+     * Same as eraseMemoryForFirmware(SegmentedFirmware) but erase progress is
+     * reported to given listener, if it is an ICmdDetailedProgressListener, after
+     * every erase command.
+     * </p>
+     * 
+     * @param fw
+     *            firmware which is going to be written
+     * @param progressListener
+     *            listener to which erase progress is reported or null
+     * @return number of pages erased
+     * @throws IOException
+     *             if an error happens when communicating with the device
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    public int eraseMemoryForFirmware(final SegmentedFirmware fw, ICmdProgressListener progressListener)
+            throws IOException, TimeoutException {
+
+        int[] pages;
+
+        if (fw == null) {
+            throw new IllegalArgumentException(this.getString("nul.fw"));
+        }
+        if (flashGeometry == null) {
+            throw new IllegalArgumentException(this.getString("geo.unknown") + " " + mcuSeries);
+        }
+
+        pages = flashGeometry.planErase(fw);
+        this.erasePages(pages, progressListener);
+        return pages.length;
+    }
+
+    /*
+     * Erases given pages (in ascending order) issuing one erase or extended erase
+     * command for every run of consecutive page numbers, at most 255 pages per
+     * command as bootloader takes, and reports progress after every command.
+     * Erase command (0x43) carries page number in one byte; if only this command
+     * is available pages beyond 255 are refused before anything is erased, mass
+     * erase would also wipe flash outside the given pages.
+     */
+    private void erasePages(final int[] pages, ICmdProgressListener progressListener)
+            throws IOException, TimeoutException {
+
+        int x;
+        int y;
+        int allowedCmds;
+        ProgressMeter meter;
+
+        if (pages.length == 0) {
+            return;
+        }
+
+        allowedCmds = this.getAllowedCommands();
+        if (((allowedCmds & BLCMDS.ERASE) == BLCMDS.ERASE) && (pages[pages.length - 1] > 255)) {
+            throw new IllegalArgumentException(this.getString("inval.pg.fw") + " " + pages[pages.length - 1]);
+        }
+        meter = ProgressMeter.start(progressListener, ICmdDetailedProgressListener.PHASE_ERASE, pages.length);
+        x = 0;
+        while (x < pages.length) {
+            y = x + 1;
+            while ((y < pages.length) && (pages[y] == (pages[y - 1] + 1)) && ((y - x) < 255)) {
+                y++;
+            }
+            if ((allowedCmds & BLCMDS.ERASE) == BLCMDS.ERASE) {
+                this.eraseMemoryRegion(REGTYPE.MAIN, pages[x], y - x);
+            } else {
+                this.extendedEraseMemoryRegion(REGTYPE.MAIN, pages[x], y - x);
+            }
+            if (meter != null) {
+                meter.erased(pages[x], y - x, y);
+            }
+            x = y;
+        }
+    }
+
+    /*
+     * Fills given page buffer with firmware data that falls in this page and 0xFF
+     * at all other addresses.
+     */
+    private void fillPage(final SegmentedFirmware fw, final int pageAddr, byte[] page) {
+
+        int start;
+        int end;
+
+        Arrays.fill(page, (byte) 0xFF);
+        for (SegmentedFirmware.Segment seg : fw.getSegments()) {
+            start = Math.max(seg.address, pageAddr);
+            end = Math.min(seg.address + seg.data.length, pageAddr + page.length);
+            if (start < end) {
+                System.arraycopy(seg.data, start - seg.address, page, start - pageAddr, end - start);
+            }
+        }
+    }
+
     /**
      * <p>
      * Sends command 'Erase Memory command' (0x43) to stm32 to erase given memory
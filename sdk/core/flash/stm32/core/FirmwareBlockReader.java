@@ -0,0 +1,101 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * <p>
+ * Pull based reader which gives firmware in blocks of at most 256 bytes ready to
+ * be sent with one write memory command. The firmware file is read through a
+ * bounded buffer as blocks are requested, so memory used stays the same
+ * regardless of the size of firmware and flashing starts while rest of the file
+ * is still to be parsed.
+ * </p>
+ * 
+ * <p>
+ * Bytes in one block are always contiguous in stm32 memory. When there is a large
+ * gap in the firmware, the block ends before it and the next block starts after
+ * it.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public abstract class FirmwareBlockReader implements Closeable {
+
+    /**
+     * <p>
+     * Maximum number of bytes given in one block.
+     * </p>
+     */
+    public static final int BLOCK_SIZE = 256;
+
+    /**
+     * <p>
+     * Reads next block of firmware into the given buffer starting at offset 0.
+     * Address of this block can be retrieved using getBlockAddress().
+     * </p>
+     * 
+     * @param buf
+     *            buffer of at least BLOCK_SIZE bytes
+     * @return number of bytes placed in buffer or -1 if there is no more data
+     * @throws IOException
+     *             if the firmware file can not be read
+     * @throws IllegalArgumentException
+     *             if the firmware file is malformed
+     */
+    public abstract int nextBlock(byte[] buf) throws IOException;
+
+    /**
+     * <p>
+     * Gives stm32 memory address of the block most recently returned by
+     * nextBlock().
+     * </p>
+     * 
+     * @return address of the last block
+     */
+    public abstract int getBlockAddress();
+
+    /**
+     * <p>
+     * Gives total number of bytes that all the blocks together will contain. For
+     * hex files this requires one quick pass over the file which is done when this
+     * method is called for the first time.
+     * </p>
+     * 
+     * @return total number of bytes in all blocks
+     * @throws IOException
+     *             if the firmware file can not be read
+     */
+    public abstract int getTotalLength() throws IOException;
+
+    /**
+     * <p>
+     * Releases the underlying file.
+     * </p>
+     * 
+     * @throws IOException
+     *             if the file can not be closed
+     */
+    @Override
+    public abstract void close() throws IOException;
+}
@@ -0,0 +1,250 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+import java.util.Arrays;
+import java.util.ResourceBundle;
+
+/**
+ * <p>
+ * Describes layout of main flash memory of a stm32 device as seen by the erase
+ * command of bootloader. Flash is a sequence of pages (or sectors) numbered from
+ * 0. Pages may all be of same size (F0, F1, F3, L0, L1, L4) or of mixed sizes
+ * (sectors on F2, F4, F7).
+ * </p>
+ * 
+ * <p>
+ * Devices sharing a pid come with different flash sizes; geometry describes the
+ * largest one. Firmware for a smaller part never touches pages beyond its flash
+ * so this does not affect erase planning.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class FlashGeometry {
+
+    /**
+     * <p>
+     * Address of page 0 of main flash.
+     * </p>
+     */
+    public final int flashStartAddr;
+
+    /**
+     * <p>
+     * Number of first page in second bank or -1 if flash has only one bank or
+     * split depends upon flash size.
+     * </p>
+     */
+    public final int bank2FirstPage;
+
+    /* offset of every page from flash start, one extra entry for end of flash */
+    private final int[] pageOffset;
+
+    /**
+     * <p>
+     * Allocates an instance of FlashGeometry class for single bank flash.
+     * </p>
+     * 
+     * @param flashStartAddr
+     *            address of page 0
+     * @param layout
+     *            pairs of number of pages and page size in bytes, in address
+     *            order, for example { 4, 16384, 1, 65536, 7, 131072 }
+     */
+    public FlashGeometry(int flashStartAddr, int[] layout) {
+        this(flashStartAddr, -1, layout);
+    }
+
+    /**
+     * <p>
+     * Allocates an instance of FlashGeometry class.
+     * </p>
+     * 
+     * @param flashStartAddr
+     *            address of page 0
+     * @param bank2FirstPage
+     *            number of first page in second bank or -1
+     * @param layout
+     *            pairs of number of pages and page size in bytes, in address
+     *            order
+     * @throws IllegalArgumentException
+     *             if layout is empty or contains invalid values
+     */
+    public FlashGeometry(int flashStartAddr, int bank2FirstPage, int[] layout) {
+
+        int x;
+        int y;
+        int page = 0;
+        int numPages = 0;
+        long offset = 0;
+
+        if ((layout == null) || (layout.length == 0) || ((layout.length % 2) != 0)) {
+            throw new IllegalArgumentException(getString("inval.layout"));
+        }
+        for (x = 0; x < layout.length; x = x + 2) {
+            if ((layout[x] <= 0) || (layout[x + 1] <= 0)) {
+                throw new IllegalArgumentException(getString("inval.layout"));
+            }
+            numPages = numPages + layout[x];
+        }
+
+        pageOffset = new int[numPages + 1];
+        for (x = 0; x < layout.length; x = x + 2) {
+            for (y = 0; y < layout[x]; y++) {
+                pageOffset[page] = (int) offset;
+                offset = offset + layout[x + 1];
+                page++;
+            }
+        }
+        if (offset > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(getString("inval.layout"));
+        }
+        pageOffset[numPages] = (int) offset;
+
+        this.flashStartAddr = flashStartAddr;
+        this.bank2FirstPage = bank2FirstPage;
+    }
+
+    /**
+     * <p>
+     * Gives total number of pages.
+     * </p>
+     * 
+     * @return number of pages
+     */
+    public int getNumPages() {
+        return pageOffset.length - 1;
+    }
+
+    /**
+     * <p>
+     * Gives size of flash in bytes.
+     * </p>
+     * 
+     * @return flash size
+     */
+    public int getFlashSize() {
+        return pageOffset[pageOffset.length - 1];
+    }
+
+    /**
+     * <p>
+     * Gives address of first byte of given page.
+     * </p>
+     * 
+     * @param page
+     *            page number
+     * @return start address of page
+     */
+    public int getPageAddress(int page) {
+        return flashStartAddr + pageOffset[page];
+    }
+
+    /**
+     * <p>
+     * Gives size of given page.
+     * </p>
+     * 
+     * @param page
+     *            page number
+     * @return page size in bytes
+     */
+    public int getPageSize(int page) {
+        return pageOffset[page + 1] - pageOffset[page];
+    }
+
+    /**
+     * <p>
+     * Gives number of page which contains given address.
+     * </p>
+     * 
+     * @param addr
+     *            memory address
+     * @return page number or -1 if address is not in main flash
+     */
+    public int getPageNumber(int addr) {
+
+        int x;
+        long offset = (addr & 0xFFFFFFFFL) - (flashStartAddr & 0xFFFFFFFFL);
+
+        if ((offset < 0) || (offset >= getFlashSize())) {
+            return -1;
+        }
+
+        x = Arrays.binarySearch(pageOffset, (int) offset);
+        if (x < 0) {
+            /* insertion point is the page after the one containing offset */
+            x = -x - 2;
+        }
+        return x;
+    }
+
+    /**
+     * <p>
+     * Finds smallest set of pages which must be erased before the given firmware
+     * can be written, that is every page containing at least one byte of the
+     * firmware.
+     * </p>
+     * 
+     * @param fw
+     *            firmware to be written
+     * @return page numbers in ascending order
+     * @throws IllegalArgumentException
+     *             if firmware has data outside main flash
+     */
+    public int[] planErase(final SegmentedFirmware fw) {
+
+        int x;
+        int first;
+        int last;
+        int count = 0;
+        int lastPage = -1;
+        int[] pages = new int[getNumPages()];
+
+        for (SegmentedFirmware.Segment seg : fw.getSegments()) {
+            if (seg.data.length == 0) {
+                continue;
+            }
+            first = getPageNumber(seg.address);
+            last = getPageNumber(seg.address + seg.data.length - 1);
+            if ((first < 0) || (last < 0)) {
+                throw new IllegalArgumentException(
+                        getString("fw.out.flash") + " 0x" + Integer.toHexString(seg.address));
+            }
+            /* segments are sorted, a page shared with previous segment is counted once */
+            for (x = Math.max(first, lastPage + 1); x <= last; x++) {
+                pages[count] = x;
+                count++;
+            }
+            lastPage = Math.max(lastPage, last);
+        }
+
+        return Arrays.copyOf(pages, count);
+    }
+
+    /*
+     * Geometry is not tied to a device manager, so messages are in default locale.
+     */
+    private static String getString(String key) {
+        return ResourceBundle.getBundle("flash.stm32.resources.MessagesBundle").getString(key);
+    }
+}
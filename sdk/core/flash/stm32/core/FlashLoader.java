@@ -0,0 +1,340 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+/**
+ * <p>
+ * Contains the flash loader stub that can be run from stm32 RAM and the
+ * information needed to set it up for a given device.
+ * </p>
+ * 
+ * <p>
+ * The ROM bootloader accepts at most 256 bytes per write memory command and
+ * every command needs its own ACK. The stub (see loader/loader.S) instead
+ * receives frames of up to 16 KiB protected by CRC32, programs them in one go
+ * and can run the USART at a higher baudrate. It is supported on STM32F0, F1,
+ * F2, F3 and F4 devices whose bootloader talks over USART1. For other devices
+ * getLoader() returns null and caller should use the ROM write memory command.
+ * </p>
+ * 
+ * <p>
+ * The stub can also calculate CRC of a memory range using CRC unit of stm32, so
+ * that written data can be verified by reading back only 4 bytes per range.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class FlashLoader {
+
+    /** Byte sent by stub once it is running and flash is unlocked. */
+    public static final int READY = 0xA5;
+
+    /** Byte sent by stub when programming or verification of a frame failed. */
+    public static final int FAIL = 0xEE;
+
+    /** Ping, stub replies with ACK. */
+    public static final byte CMD_PING = 'G';
+
+    /** Query current baudrate register, stub replies 4 bytes little endian. */
+    public static final byte CMD_QUERY_BRR = 'Q';
+
+    /** Change baudrate register, followed by 4 bytes little endian. */
+    public static final byte CMD_BAUD = 'B';
+
+    /** Program frame: addr[4] len[4] data[len] crc32[4], all little endian. */
+    public static final byte CMD_WRITE = 'W';
+
+    /**
+     * Calculate CRC of memory range: addr[4] len[4] crc32[4], stub replies ACK and
+     * then 4 bytes little endian, see calculateCRC().
+     */
+    public static final byte CMD_CRC = 'C';
+
+    /** Trigger system reset. */
+    public static final byte CMD_RESET = 'X';
+
+    /** Largest frame that stub will be asked to receive. */
+    public static final int MAX_FRAME_SIZE = 16 * 1024;
+
+    private static final int MIN_FRAME_SIZE = 1024;
+    private static final int STACK_SIZE = 256;
+    private static final int CODE_OFFSET = 0x4C;
+    private static final int NUM_PARAMS = 17;
+
+    /* USART register layout; SR, RDR, TDR, CR1, UE bit, BRR */
+    private static final int[] USART_V1 = { 0x00, 0x04, 0x04, 0x0C, 1 << 13, 0x08 };
+    private static final int[] USART_V2 = { 0x1C, 0x24, 0x28, 0x00, 1, 0x0C };
+
+    /* Flash interface; base, CR value for programming, BSY bit, error bits, programming unit */
+    private static final int[] FLASH_F1 = { 0x40022000, 0x01, 0x01, 0x14, 2 };
+    private static final int[] FLASH_F4 = { 0x40023C00, 0x201, 1 << 16, 0xF2, 4 };
+
+    /* CRC unit; base, RCC register with clock enable bit, clock enable bit */
+    private static final int[] CRC_AHB = { 0x40023000, 0x40021014, 1 << 6 };
+    private static final int[] CRC_AHB1 = { 0x40023000, 0x40023830, 1 << 12 };
+
+    private static int[] crcTable;
+
+    private static final byte[] loaderCode = {
+            0x7f, 0x46, 0x48, 0x3f, (byte) 0xf8, 0x69, (byte) 0x85, 0x49, 0x41, 0x60, (byte) 0x85, 0x49, 0x41, 0x60,
+            (byte) 0xa5, 0x20, 0x00, (byte) 0xf0, (byte) 0xe0, (byte) 0xf8, 0x00, (byte) 0xf0, (byte) 0xd4, (byte) 0xf8,
+            0x57, 0x28, 0x37, (byte) 0xd0, 0x47, 0x28, 0x08, (byte) 0xd0, 0x51, 0x28, 0x0e, (byte) 0xd0, 0x42, 0x28,
+            0x17, (byte) 0xd0, 0x58, 0x28, 0x06, (byte) 0xd0, 0x43, 0x28, (byte) 0xf1, (byte) 0xd1, (byte) 0x88,
+            (byte) 0xe0, 0x79, 0x20, 0x00, (byte) 0xf0, (byte) 0xce, (byte) 0xf8, (byte) 0xec, (byte) 0xe7, 0x7a, 0x49,
+            0x7a, 0x4a, 0x0a, 0x60, (byte) 0xfe, (byte) 0xe7, 0x39, 0x68, (byte) 0xba, 0x69, (byte) 0x8c, 0x58, 0x04,
+            0x25, (byte) 0xe0, (byte) 0xb2, 0x00, (byte) 0xf0, (byte) 0xc2, (byte) 0xf8, 0x24, 0x0a, 0x01, 0x3d,
+            (byte) 0xf9, (byte) 0xd1, (byte) 0xdd, (byte) 0xe7, 0x00, (byte) 0xf0, (byte) 0xd4, (byte) 0xf8,
+            (byte) 0x80, 0x46, 0x79, 0x20, 0x00, (byte) 0xf0, (byte) 0xb8, (byte) 0xf8, 0x39, 0x68, 0x7a, 0x68,
+            (byte) 0x8a, 0x18, 0x13, 0x68, 0x5b, 0x06, (byte) 0xfc, (byte) 0xd5, 0x3a, 0x69, (byte) 0x8a, 0x18, 0x78,
+            0x69, 0x13, 0x68, (byte) 0x83, 0x43, 0x13, 0x60, (byte) 0xb8, 0x69, 0x43, 0x46, 0x0b, 0x50, 0x78, 0x69,
+            0x13, 0x68, 0x03, 0x43, 0x13, 0x60, (byte) 0xc3, (byte) 0xe7, 0x00, 0x26, (byte) 0xf6, 0x43, 0x00,
+            (byte) 0xf0, (byte) 0xb8, (byte) 0xf8, (byte) 0x80, 0x46, 0x00, (byte) 0xf0, (byte) 0xb5, (byte) 0xf8,
+            (byte) 0x81, 0x46, 0x05, 0x00, 0x3c, 0x6b, 0x79, 0x6b, (byte) 0x8d, 0x42, 0x45, (byte) 0xd8, 0x00, 0x2d,
+            0x05, (byte) 0xd0, 0x00, (byte) 0xf0, (byte) 0xa5, (byte) 0xf8, 0x20, 0x70, 0x01, 0x34, 0x01, 0x3d,
+            (byte) 0xf7, (byte) 0xe7, (byte) 0xb2, 0x46, 0x00, (byte) 0xf0, (byte) 0xa4, (byte) 0xf8, 0x51, 0x46,
+            (byte) 0xc9, 0x43, (byte) 0x88, 0x42, 0x3b, (byte) 0xd1, (byte) 0xfb, 0x6a, 0x59, 0x1e, 0x40, 0x46, 0x4a,
+            0x46, 0x10, 0x43, 0x08, 0x42, 0x34, (byte) 0xd1, (byte) 0xf8, 0x69, (byte) 0xb9, 0x6a, (byte) 0xc1, 0x60,
+            0x39, 0x6a, 0x01, 0x61, 0x3c, 0x6b, 0x45, 0x46, 0x00, 0x2a, 0x1a, (byte) 0xd0, 0x02, 0x2b, 0x02,
+            (byte) 0xd1, 0x21, (byte) 0x88, 0x29, (byte) 0x80, 0x01, (byte) 0xe0, 0x21, 0x68, 0x29, 0x60, (byte) 0xc1,
+            0x68, 0x7e, 0x6a, 0x31, 0x42, (byte) 0xfb, (byte) 0xd1, (byte) 0xbe, 0x6a, 0x31, 0x42, 0x12, (byte) 0xd1,
+            0x02, 0x2b, 0x02, (byte) 0xd1, 0x21, (byte) 0x88, 0x2e, (byte) 0x88, 0x01, (byte) 0xe0, 0x21, 0x68, 0x2e,
+            0x68, (byte) 0xb1, 0x42, 0x09, (byte) 0xd1, (byte) 0xe4, 0x18, (byte) 0xed, 0x18, (byte) 0xd2, 0x1a,
+            (byte) 0xe2, (byte) 0xe7, 0x00, 0x21, 0x01, 0x61, 0x79, 0x20, 0x00, (byte) 0xf0, 0x58, (byte) 0xf8, 0x76,
+            (byte) 0xe7, 0x00, 0x21, 0x01, 0x61, (byte) 0xee, 0x20, 0x00, (byte) 0xf0, 0x52, (byte) 0xf8, 0x70,
+            (byte) 0xe7, 0x04, 0x35, 0x00, (byte) 0xf0, 0x44, (byte) 0xf8, 0x01, 0x3d, (byte) 0xfb, (byte) 0xd1, 0x1f,
+            0x20, 0x00, (byte) 0xf0, 0x49, (byte) 0xf8, 0x67, (byte) 0xe7, 0x00, 0x26, (byte) 0xf6, 0x43, 0x00,
+            (byte) 0xf0, 0x5c, (byte) 0xf8, (byte) 0x80, 0x46, 0x00, (byte) 0xf0, 0x59, (byte) 0xf8, (byte) 0x81, 0x46,
+            (byte) 0xb2, 0x46, 0x00, (byte) 0xf0, 0x55, (byte) 0xf8, 0x51, 0x46, (byte) 0xc9, 0x43, (byte) 0x88, 0x42,
+            (byte) 0xec, (byte) 0xd1, 0x79, 0x20, 0x00, (byte) 0xf0, 0x36, (byte) 0xf8, 0x44, 0x46, 0x4d, 0x46, 0x00,
+            0x26, (byte) 0xf6, 0x43, (byte) 0xbb, 0x6b, 0x00, 0x2b, 0x13, (byte) 0xd0, 0x03, 0x20, 0x04, 0x42, 0x10,
+            (byte) 0xd1, (byte) 0xf8, 0x6b, 0x39, 0x6c, 0x02, 0x68, 0x0a, 0x43, 0x02, 0x60, 0x02, 0x68, 0x01, 0x21,
+            (byte) 0x99, 0x60, 0x04, 0x2d, 0x05, (byte) 0xd3, 0x20, 0x68, 0x00, (byte) 0xba, 0x18, 0x60, 0x04, 0x34,
+            0x04, 0x3d, (byte) 0xf7, (byte) 0xe7, 0x1e, 0x68, 0x23, 0x4b, 0x00, 0x2d, 0x0b, (byte) 0xd0, 0x20, 0x78,
+            0x00, 0x06, 0x46, 0x40, 0x08, 0x21, 0x76, 0x00, 0x00, (byte) 0xd3, 0x5e, 0x40, 0x01, 0x39, (byte) 0xfa,
+            (byte) 0xd1, 0x01, 0x34, 0x01, 0x3d, (byte) 0xf1, (byte) 0xe7, 0x34, 0x00, 0x43, (byte) 0xe7, 0x39, 0x68,
+            0x7a, 0x68, (byte) 0x8a, 0x18, 0x10, 0x68, (byte) 0x80, 0x06, (byte) 0xfc, (byte) 0xd5, (byte) 0xba, 0x68,
+            (byte) 0x88, 0x58, (byte) 0xc0, (byte) 0xb2, 0x70, 0x47, 0x39, 0x68, 0x7a, 0x68, (byte) 0x8a, 0x18, 0x13,
+            0x68, 0x1b, 0x06, (byte) 0xfc, (byte) 0xd5, (byte) 0xfa, 0x68, (byte) 0x88, 0x50, 0x70, 0x47, 0x46, 0x40,
+            0x08, 0x21, 0x11, 0x4b, 0x76, 0x08, 0x00, (byte) 0xd3, 0x5e, 0x40, 0x01, 0x39, (byte) 0xfa, (byte) 0xd1,
+            0x70, 0x47, 0x00, (byte) 0xb5, (byte) 0xff, (byte) 0xf7, (byte) 0xe1, (byte) 0xff, (byte) 0xff, (byte) 0xf7,
+            (byte) 0xf2, (byte) 0xff, 0x00, (byte) 0xbd, 0x30, (byte) 0xb5, 0x00, 0x24, 0x00, 0x25, (byte) 0xff,
+            (byte) 0xf7, (byte) 0xf5, (byte) 0xff, (byte) 0xa8, 0x40, 0x04, 0x43, 0x08, 0x35, 0x20, 0x2d, (byte) 0xf8,
+            (byte) 0xd1, 0x20, 0x00, 0x30, (byte) 0xbd, 0x23, 0x01, 0x67, 0x45, (byte) 0xab, (byte) 0x89, (byte) 0xef,
+            (byte) 0xcd, 0x0c, (byte) 0xed, 0x00, (byte) 0xe0, 0x04, 0x00, (byte) 0xfa, 0x05, (byte) 0xb7, 0x1d,
+            (byte) 0xc1, 0x04, 0x20, (byte) 0x83, (byte) 0xb8, (byte) 0xed };
+
+    /**
+     * <p>
+     * Address at which loader image is to be written and given to go command.
+     * </p>
+     */
+    public final int loadAddress;
+
+    /**
+     * <p>
+     * Address of USART used by bootloader and hence by stub.
+     * </p>
+     */
+    public final int usartBase;
+
+    /**
+     * <p>
+     * Offset of control register 1 and mask of USART enable bit in it.
+     * </p>
+     */
+    public final int usartCR1Offset;
+    public final int usartUEMask;
+
+    /**
+     * <p>
+     * Maximum number of data bytes in one frame, multiple of 256.
+     * </p>
+     */
+    public final int frameSize;
+
+    /**
+     * <p>
+     * Address and length of every frame must be multiple of this value.
+     * </p>
+     */
+    public final int programUnit;
+
+    private final int[] params;
+
+    private FlashLoader(Device dev, int usartBase, int[] usart, int[] flash, int[] crc) {
+
+        this.loadAddress = dev.RAMMemStartAddr;
+        this.usartBase = usartBase;
+        this.usartCR1Offset = usart[3];
+        this.usartUEMask = usart[4];
+        this.programUnit = flash[4];
+
+        int bufAddr = (loadAddress + CODE_OFFSET + loaderCode.length + 3) & ~3;
+        int stackTop = (dev.RAMMemEndAddr + 1) & ~7;
+        this.frameSize = Math.min(MAX_FRAME_SIZE, stackTop - STACK_SIZE - bufAddr) & ~0xFF;
+
+        params = new int[] { usartBase, usart[0], usart[1], usart[2], usart[3], usart[4], usart[5], flash[0], flash[1],
+                flash[2], flash[3], flash[4], bufAddr, frameSize, crc[0], crc[1], crc[2], stackTop };
+    }
+
+    /**
+     * <p>
+     * Gives flash loader set up for the given device.
+     * </p>
+     * 
+     * @param dev
+     *            device to be programmed
+     * @return flash loader or null if stub can not be used with this device
+     */
+    public static FlashLoader getLoader(Device dev) {
+
+        FlashLoader ldr = null;
+
+        if ((dev == null) || (dev.RAMMemStartAddr == 0x00) || (dev.RAMMemEndAddr == 0x00)) {
+            return null;
+        }
+
+        switch (dev.pid) {
+        /* F1 */
+        case 0x410:
+        case 0x412:
+        case 0x414:
+        case 0x418:
+        case 0x420:
+        case 0x428:
+        case 0x430:
+            ldr = new FlashLoader(dev, 0x40013800, USART_V1, FLASH_F1, CRC_AHB);
+            break;
+        /* F0 and F3 */
+        case 0x440:
+        case 0x442:
+        case 0x444:
+        case 0x445:
+        case 0x448:
+        case 0x422:
+        case 0x432:
+        case 0x438:
+        case 0x439:
+        case 0x446:
+            ldr = new FlashLoader(dev, 0x40013800, USART_V2, FLASH_F1, CRC_AHB);
+            break;
+        /* F2 and F4 */
+        case 0x411:
+        case 0x413:
+        case 0x419:
+        case 0x421:
+        case 0x423:
+        case 0x431:
+        case 0x433:
+        case 0x441:
+        case 0x458:
+        case 0x463:
+            ldr = new FlashLoader(dev, 0x40011000, USART_V1, FLASH_F4, CRC_AHB1);
+            break;
+        default:
+            return null;
+        }
+
+        if (ldr.frameSize < MIN_FRAME_SIZE) {
+            return null;
+        }
+        return ldr;
+    }
+
+    /**
+     * <p>
+     * Assemble loader image in plain binary format with stack pointer, entry
+     * point and parameters filled in. The image is to be written at loadAddress
+     * and executed using go command at the same address.
+     * </p>
+     * 
+     * @return loader image
+     */
+    public byte[] getLoaderImage() {
+
+        int x;
+        byte[] image = new byte[CODE_OFFSET + loaderCode.length];
+
+        /* main stack pointer, entry point (thumb bit set) and parameter block */
+        putInt(image, 0, params[NUM_PARAMS]);
+        putInt(image, 4, loadAddress + CODE_OFFSET + 1);
+        for (x = 0; x < NUM_PARAMS; x++) {
+            putInt(image, 8 + (4 * x), params[x]);
+        }
+
+        System.arraycopy(loaderCode, 0, image, CODE_OFFSET, loaderCode.length);
+        return image;
+    }
+
+    /**
+     * <p>
+     * Calculates CRC of given data the same way as stub does for CMD_CRC. This is
+     * CRC-32/MPEG-2 (polynomial 0x04C11DB7, initial value 0xFFFFFFFF, bits not
+     * reflected, no final xor) over bytes in address order. Stub uses CRC unit
+     * of stm32 for it which gives the same result when fed with byte swapped
+     * words.
+     * </p>
+     * 
+     * @param data
+     *            data bytes
+     * @param offset
+     *            offset in data buffer of 1st byte
+     * @param length
+     *            number of bytes
+     * @return CRC value
+     */
+    public static int calculateCRC(final byte[] data, final int offset, final int length) {
+
+        int x;
+        int y;
+        int crc = 0xFFFFFFFF;
+        int[] table = crcTable;
+
+        if (table == null) {
+            table = new int[256];
+            for (x = 0; x < 256; x++) {
+                crc = x << 24;
+                for (y = 0; y < 8; y++) {
+                    if (crc < 0) {
+                        crc = (crc << 1) ^ 0x04C11DB7;
+                    } else {
+                        crc = crc << 1;
+                    }
+                }
+                table[x] = crc;
+            }
+            crcTable = table;
+            crc = 0xFFFFFFFF;
+        }
+
+        for (x = offset; x < (offset + length); x++) {
+            crc = (crc << 8) ^ table[((crc >>> 24) ^ data[x]) & 0xFF];
+        }
+        return crc;
+    }
+
+    private void putInt(byte[] buf, int offset, int val) {
+        buf[offset] = (byte) (val & 0xFF);
+        buf[offset + 1] = (byte) ((val >> 8) & 0xFF);
+        buf[offset + 2] = (byte) ((val >> 16) & 0xFF);
+        buf[offset + 3] = (byte) ((val >> 24) & 0xFF);
+    }
+}
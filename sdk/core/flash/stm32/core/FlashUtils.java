@@ -28,9 +28,31 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 
 public final class FlashUtils {
 
+    /* Value of an ASCII hex character indexed by its code, -1 if not a hex digit */
+    static final byte[] HEXVAL = new byte[256];
+
+    /* Value used to fill the gaps between two data records */
+    static final byte FILLER = (byte) 0xFF;
+
+    static {
+        Arrays.fill(HEXVAL, (byte) -1);
+        for (int x = 0; x < 10; x++) {
+            HEXVAL['0' + x] = (byte) x;
+        }
+        for (int x = 0; x < 6; x++) {
+            HEXVAL['A' + x] = (byte) (10 + x);
+            HEXVAL['a' + x] = (byte) (10 + x);
+        }
+    }
+
     private ResourceBundle rb;
 
     /**
@@ -56,256 +78,431 @@ public final class FlashUtils {
 
     /**
      * <p>
-     * Converts ASCII hex data in data buffer to its equivalent integer value
-     * starting from the given offset for the given length of data.
+     * Converts two ASCII hex characters starting at the given offset to the byte
+     * value they represent. Conversion is done through a lookup table so that no
+     * intermediate string or object is created for every byte.
      * </p>
      * 
      * @param data
      *            buffer containing ASCII hex values
      * @param offset
-     *            starting location where from where conversion should start
-     * @param length
-     *            length of ASCII hex bytes to be converted
-     * @return integer value calculated
+     *            location of the most significant hex character
+     * @return value in the range 0 to 255
      */
-    private int hexAsciiToIntValue(final byte[] data, int offset, int length) {
+    private int hexByteAt(final byte[] data, final int offset) {
 
-        int x;
-        StringBuilder sBuilder = new StringBuilder();
+        int hi = HEXVAL[data[offset] & 0xFF];
+        int lo = HEXVAL[data[offset + 1] & 0xFF];
 
-        for (x = 0; x < length; x++) {
-            sBuilder.append((char) data[offset]);
-            offset++;
+        if ((hi | lo) < 0) {
+            throw new IllegalArgumentException(rb.getString("inval.hex.chr") + " " + offset);
         }
 
-        return Integer.parseInt(sBuilder.toString(), 16);
+        return (hi << 4) | lo;
     }
 
     /**
      * <p>
-     * Converts ASCII hex data to its equivalent binary byte data and then
-     * calculates checksum for the length of data given starting from the given
-     * offset.
+     * Internal use only. Holds outcome of parsing a hex file; decoded data bytes
+     * and where every segment (run of data placed back to back) begins.
      * </p>
-     * 
-     * @param data
-     *            buffer containing ASCII hex values
-     * @param offset
-     *            starting location where from where conversion should start
-     * @param length
-     *            length of ASCII hex bytes to be converted
-     * @return checksum calculated
      */
-    private int calCheckSum(final byte[] data, int offset, int length) {
-
-        int x = 0;
-        int val = 0;
-
-        StringBuilder sBuilder = new StringBuilder();
-
-        for (x = 0; x < length; x = x + 2) {
-            sBuilder.append((char) data[offset]);
-            offset++;
-            sBuilder.append((char) data[offset]);
-            offset++;
-            val = val + Integer.parseInt(sBuilder.toString(), 16);
-            sBuilder.setLength(0);
-        }
-
-        if (val > 0xFF) {
-            sBuilder.setLength(0);
-
-            /* convert to binary representation */
-            String s1 = Integer.toBinaryString(val);
-
-            /* replace 0's and 1's */
-            int strLen = s1.length();
-            for (x = 0; x < strLen; x++) {
-                if (s1.charAt(x) == '0') {
-                    sBuilder.append('1');
-                } else {
-                    sBuilder.append('0');
-                }
+    private static final class ParsedHex {
+        byte[] binbuf;
+        int binLen;
+        int startAddr;
+        int numSegs;
+        int[] segOffset = new int[8];
+        int[] segAddr = new int[8];
+
+        void newSegment(int offset, int addr) {
+            if (numSegs == segOffset.length) {
+                segOffset = Arrays.copyOf(segOffset, 2 * numSegs);
+                segAddr = Arrays.copyOf(segAddr, 2 * numSegs);
             }
-            String s2 = sBuilder.toString();
-
-            /* add 1 to get final 2's complement */
-            val = Integer.valueOf(s2, 2) + 1;
-
-            /* drop everything except last byte */
-            val = 0x000000FF & val;
-        } else {
-            val = 256 - val;
+            segOffset[numSegs] = offset;
+            segAddr[numSegs] = addr;
+            numSegs++;
         }
-
-        return val;
     }
 
     /**
      * <p>
-     * Creates byte array out of ASCII hex data (2 hex character representing a
-     * single byte) and write it to the given byte array output stream.
+     * Decodes all the records in the given intel hex data. Records are decoded
+     * directly from the ASCII bytes. Checksum of every record is verified
+     * arithmetically; sum of all the bytes of a record including its checksum must
+     * be zero modulo 256.
      * </p>
      * 
-     * @param data
-     *            buffer containing ASCII hex values
-     * @param offset
-     *            starting location where from where conversion should start
-     * @param length
-     *            length of ASCII hex bytes to be converted
-     * @param outbuf
-     *            stream to which converted data should be written
-     * @return 0 on success
-     */
-    private int hexAsciiToByteArray(final byte[] data, int offset, int length, final ByteArrayOutputStream outbuf) {
-
-        int x;
-        byte val;
-        StringBuilder sBuilder = new StringBuilder();
-
-        for (x = 0; x < length; x = x + 2) {
-            sBuilder.append((char) data[offset]);
-            offset++;
-            sBuilder.append((char) data[offset]);
-            offset++;
-            val = (byte) Integer.parseInt(sBuilder.toString(), 16);
-            outbuf.write(val);
-            sBuilder.setLength(0);
-        }
-
-        return 0;
-    }
-
-    /**
      * <p>
-     * Converts data in given buffer to its equivalent data in binary format. It
-     * extracts base address to which this firmware should be flashed.
+     * When segmented is false, gap between two data records is filled with 0xFF
+     * and everything is one contiguous run. When segmented is true, every record
+     * which does not continue exactly where the previous one ended starts a new
+     * segment, so segments hold only bytes given in the file and may be out of
+     * order or overlap.
      * </p>
      * 
      * @param hexbuf
      *            data in intel hex format
-     * @return converted data and base address
+     * @param segmented
+     *            true if every discontinuity should start a new segment instead
+     *            of being filled
+     * @return decoded data
      */
-    public HexFirmware hexToBinFwFormat(byte[] hexbuf) {
+    private ParsedHex parseHex(final byte[] hexbuf, final boolean segmented) {
 
         int x = 0;
         int y = 0;
+        int val = 0;
+        int sum = 0;
+        int recordEnd = 0;
         int fillerData = 0;
-        int startFWaddress = 0;
+        boolean firstDataRecord = true;
 
         int curAbsAddr = 0;
         int curBaseAddr = 0;
-        int curDataOffset = 0;
         int curRecordLength = 0;
         int curRecordType = 0;
-        int curChkSum = 0;
 
         int prevAbsAddr = 0;
         int prevRecordLength = 0;
 
-        int FILLER = 0xFF;
+        int hexLen = hexbuf.length;
         byte COLON = 0x3A;
-        ByteArrayOutputStream binbuf = new ByteArrayOutputStream();
+
+        /* every data byte takes at least two ASCII characters in hex file */
+        ParsedHex ph = new ParsedHex();
+        byte[] binbuf = new byte[(hexLen / 2) + 1];
+        int binLen = 0;
 
         while (true) {
 
+            if (x >= hexLen) {
+                throw new IllegalArgumentException(rb.getString("inval.eof.rcd"));
+            }
+
             if (hexbuf[x] != COLON) {
                 /* bypass line feed and carriage return looking for a record starting with : */
                 x++;
                 continue;
             }
 
-            /* extract current record length */
-            curRecordLength = this.hexAsciiToIntValue(hexbuf, x + 1, 2);
-
-            /* extract current record type */
-            curRecordType = this.hexAsciiToIntValue(hexbuf, x + 7, 2);
+            /* : + length + offset + type + data + checksum */
+            if ((x + 11) > hexLen) {
+                throw new IllegalArgumentException(rb.getString("inval.eof.rcd"));
+            }
 
-            /* extract and verify checksum of current record */
-            curChkSum = this.hexAsciiToIntValue(hexbuf, x + (2 * curRecordLength) + 9, 2);
+            /* extract current record length and type */
+            curRecordLength = hexByteAt(hexbuf, x + 1);
+            curRecordType = hexByteAt(hexbuf, x + 7);
 
-            y = this.calCheckSum(hexbuf, x + 1, (2 * curRecordLength) + 8);
-            if (y != curChkSum) {
-                throw new IllegalArgumentException(rb.getString("inval.cksum") + " at record " + x);
+            recordEnd = x + 11 + (2 * curRecordLength);
+            if (recordEnd > hexLen) {
+                throw new IllegalArgumentException(rb.getString("inval.eof.rcd"));
             }
 
+            sum = curRecordLength + curRecordType + hexByteAt(hexbuf, x + 3) + hexByteAt(hexbuf, x + 5)
+                    + hexByteAt(hexbuf, recordEnd - 2);
+
             switch (curRecordType) {
 
             case 0x00:
                 /* data record */
-                curDataOffset = this.hexAsciiToIntValue(hexbuf, x + 3, 4);
-
-                curAbsAddr = curBaseAddr + curDataOffset;
+                curAbsAddr = curBaseAddr + ((hexByteAt(hexbuf, x + 3) << 8) | hexByteAt(hexbuf, x + 5));
 
                 /*
                  * if the very 1st data record comes before very 1st address record which sets
                  * base address than padding must not be done. the exact start address is
                  * specified by caller in write command already.
                  */
-                if ((prevAbsAddr != 0) && (prevRecordLength != 0)) {
+                fillerData = 0;
+                if (firstDataRecord == false) {
                     fillerData = curAbsAddr - prevAbsAddr - prevRecordLength;
-                    if (fillerData > 0) {
-                        for (y = 0; y < fillerData; y++) {
-                            binbuf.write(FILLER);
-                        }
+                    if ((segmented == true) && (fillerData != 0)) {
+                        ph.newSegment(binLen, curAbsAddr);
+                        fillerData = 0;
+                    } else if (fillerData < 0) {
+                        fillerData = 0;
                     }
                 } else {
-                    startFWaddress = curAbsAddr;
+                    ph.startAddr = curAbsAddr;
+                    ph.newSegment(0, curAbsAddr);
+                    firstDataRecord = false;
+                }
+
+                y = binLen + fillerData + curRecordLength;
+                if (y > binbuf.length) {
+                    binbuf = Arrays.copyOf(binbuf, Math.max(y, 2 * binbuf.length));
+                }
+
+                if (fillerData > 0) {
+                    Arrays.fill(binbuf, binLen, binLen + fillerData, FILLER);
+                    binLen = binLen + fillerData;
                 }
 
-                this.hexAsciiToByteArray(hexbuf, x + 9, 2 * curRecordLength, binbuf);
+                /* decode data bytes straight into the output buffer */
+                for (y = x + 9; y < (recordEnd - 2); y = y + 2) {
+                    val = hexByteAt(hexbuf, y);
+                    sum = sum + val;
+                    binbuf[binLen] = (byte) val;
+                    binLen++;
+                }
 
                 prevAbsAddr = curAbsAddr;
                 prevRecordLength = curRecordLength;
-                x = x + 9 + (2 * curRecordLength);
                 break;
 
             case 0x01:
-                /* end of file */
-                HexFirmware hf = new HexFirmware(binbuf.toByteArray(), startFWaddress);
-                return hf;
-
             case 0x02:
-                /* extended segment address */
-                curBaseAddr = this.hexAsciiToIntValue(hexbuf, 9, 4);
-                curBaseAddr = curBaseAddr << 4;
-
-                x = x + 14;
-                break;
-
             case 0x03:
-                /* start segment address */
-                /*
-                 * not applicable for ARM CPU, increment to go to next record and ignoring
-                 * current record
-                 */
-                x++;
-                break;
-
             case 0x04:
-                /* extended linear address */
-                curBaseAddr = this.hexAsciiToIntValue(hexbuf, (x + 9), 4);
-                /* set upper 16 bits of base address */
-                curBaseAddr = curBaseAddr << 16;
-
-                x = x + 14;
-                break;
-
             case 0x05:
-                /* start linear address */
-                /*
-                 * not applicable for ARM CPU, increment to go to next record and ignoring
-                 * current record
-                 */
-                x++;
+                if (((curRecordType == 0x02) || (curRecordType == 0x04)) && (curRecordLength != 2)) {
+                    /* address records carry exactly 2 bytes, anything else would set a wrong base address */
+                    throw new IllegalArgumentException(rb.getString("inval.rcd.len") + " " + curRecordLength
+                            + " at record " + x);
+                }
+                for (y = x + 9; y < (recordEnd - 2); y = y + 2) {
+                    sum = sum + hexByteAt(hexbuf, y);
+                }
+                if (curRecordType == 0x02) {
+                    /* extended segment address */
+                    curBaseAddr = ((hexByteAt(hexbuf, x + 9) << 8) | hexByteAt(hexbuf, x + 11)) << 4;
+                } else if (curRecordType == 0x04) {
+                    /* extended linear address, set upper 16 bits of base address */
+                    curBaseAddr = ((hexByteAt(hexbuf, x + 9) << 8) | hexByteAt(hexbuf, x + 11)) << 16;
+                } else {
+                    /*
+                     * end of file is handled after checksum verification, start segment/linear
+                     * address is not applicable for ARM CPU and therefore ignored.
+                     */
+                }
                 break;
 
             default:
                 throw new IllegalArgumentException(rb.getString("inval.rcd.tp") + " " + curRecordType);
             }
+
+            if ((sum & 0xFF) != 0) {
+                throw new IllegalArgumentException(rb.getString("inval.cksum") + " at record " + x);
+            }
+
+            if (curRecordType == 0x01) {
+                ph.binbuf = binbuf;
+                ph.binLen = binLen;
+                return ph;
+            }
+
+            x = recordEnd;
         }
     }
 
+    /**
+     * <p>
+     * Converts data in given buffer to its equivalent data in binary format. It
+     * extracts base address to which this firmware should be flashed. Gaps between
+     * data records are filled with 0xFF.
+     * </p>
+     * 
+     * @param hexbuf
+     *            data in intel hex format
+     * @return converted data and base address
+     */
+    public HexFirmware hexToBinFwFormat(byte[] hexbuf) {
+
+        ParsedHex ph = parseHex(hexbuf, false);
+
+        return new HexFirmware(Arrays.copyOf(ph.binbuf, ph.binLen), ph.startAddr);
+    }
+
+    /**
+     * <p>
+     * Converts data in given buffer to firmware made up of one or more segments
+     * sorted by address. Data records placed back to back form one segment. A gap
+     * of MAX_FILLED_GAP bytes or more between two records starts a new segment so
+     * that no filler data needs to be sent for it. Smaller gaps are filled with
+     * 0xFF as sending them costs less than an extra write command.
+     * </p>
+     * 
+     * <p>
+     * Records need not be in address order. Overlapping, adjacent or nearby
+     * address ranges are merged first, where records overlap the one coming later
+     * in the file wins. Only then start of every segment is aligned down to 4 byte
+     * boundary (padding with 0xFF) as bootloader expects word aligned write
+     * address, so padding never covers data of another record.
+     * </p>
+     * 
+     * @param hexbuf
+     *            data in intel hex format
+     * @return firmware segments
+     */
+    public SegmentedFirmware hexToSegmentedFwFormat(byte[] hexbuf) {
+
+        int x;
+        int y;
+        int n;
+        int lead;
+        long start;
+        long end;
+        byte[] data;
+        final ParsedHex ph = parseHex(hexbuf, true);
+        final int[] runEnd = new int[ph.numSegs];
+        ArrayList<Integer> runs = new ArrayList<Integer>(ph.numSegs);
+        ArrayList<Integer> members = new ArrayList<Integer>();
+        ArrayList<SegmentedFirmware.Segment> segments = new ArrayList<SegmentedFirmware.Segment>();
+
+        for (x = 0; x < ph.numSegs; x++) {
+            runEnd[x] = (x + 1) < ph.numSegs ? ph.segOffset[x + 1] : ph.binLen;
+            if (runEnd[x] > ph.segOffset[x]) {
+                runs.add(x);
+            }
+        }
+
+        /* stable sort, runs at same address stay in file order */
+        Collections.sort(runs, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer r1, Integer r2) {
+                return Long.compare(ph.segAddr[r1] & 0xFFFFFFFFL, ph.segAddr[r2] & 0xFFFFFFFFL);
+            }
+        });
+
+        x = 0;
+        while (x < runs.size()) {
+            /* runs closer than MAX_FILLED_GAP to the range collected so far join it */
+            members.clear();
+            start = ph.segAddr[runs.get(x)] & 0xFFFFFFFFL;
+            end = start;
+            while ((x < runs.size())
+                    && ((ph.segAddr[runs.get(x)] & 0xFFFFFFFFL) < (end + SegmentedFirmware.MAX_FILLED_GAP))) {
+                y = runs.get(x);
+                end = Math.max(end, (ph.segAddr[y] & 0xFFFFFFFFL) + runEnd[y] - ph.segOffset[y]);
+                members.add(y);
+                x++;
+            }
+
+            lead = (int) (start & 0x03);
+            data = new byte[lead + (int) (end - start)];
+            Arrays.fill(data, FILLER);
+
+            /* copy in file order so that a later record overwrites an earlier one */
+            Collections.sort(members);
+            for (Integer m : members) {
+                n = runEnd[m] - ph.segOffset[m];
+                System.arraycopy(ph.binbuf, ph.segOffset[m], data,
+                        lead + (int) ((ph.segAddr[m] & 0xFFFFFFFFL) - start), n);
+            }
+            segments.add(new SegmentedFirmware.Segment((int) start - lead, data));
+        }
+
+        return new SegmentedFirmware(segments);
+    }
+
+    /**
+     * <p>
+     * Opens given firmware file for reading it block by block. Only a small fixed
+     * size buffer is used irrespective of file size, except for a hex file whose
+     * records are not in address order; it is read completely and merged as done
+     * by hexToSegmentedFwFormat().
+     * </p>
+     * 
+     * @param fwType
+     *            bitmask FileType.HEX or FileType.BIN
+     * @param file
+     *            firmware file
+     * @param startAddr
+     *            address where binary file should be flashed, not used for hex
+     *            file as address is taken from the file itself
+     * @return reader giving firmware in blocks, caller must close it
+     * @throws IOException
+     *             if the file can not be opened
+     * @throws IllegalArgumentException
+     *             if the file type is invalid
+     */
+    public FirmwareBlockReader openFirmwareFile(int fwType, File file, int startAddr) throws IOException {
+
+        if (file == null) {
+            throw new IllegalArgumentException(rb.getString("nul.fl"));
+        }
+
+        switch (fwType) {
+        case FileType.HEX:
+            HexFileReader hexReader = new HexFileReader(file, rb);
+            try {
+                if (hexReader.isInAddressOrder() == true) {
+                    return hexReader;
+                }
+            } catch (IOException | RuntimeException e) {
+                /* malformed file, caller never gets the reader to close */
+                hexReader.close();
+                throw e;
+            }
+            /* records out of order, must see all of them before anything is written */
+            hexReader.close();
+            return new SegmentedFirmwareReader(this.hexToSegmentedFwFormat(Files.readAllBytes(file.toPath())));
+        case FileType.BIN:
+            return new BinFileReader(file, startAddr);
+        default:
+            throw new IllegalArgumentException(rb.getString("inval.fl.tp"));
+        }
+    }
+
+    /**
+     * <p>
+     * Reads given firmware file completely into segments. Contiguous blocks are
+     * merged into one segment, so a binary file gives one segment and a hex file
+     * gives one segment for every address range separated by a large gap.
+     * </p>
+     * 
+     * @param fwType
+     *            bitmask FileType.HEX or FileType.BIN
+     * @param file
+     *            firmware file
+     * @param startAddr
+     *            address where binary file should be flashed, not used for hex
+     *            file as address is taken from the file itself
+     * @return firmware in segmented format
+     * @throws IOException
+     *             if the file can not be read
+     * @throws IllegalArgumentException
+     *             if the file type is invalid or hex file is malformed
+     */
+    public SegmentedFirmware readSegmentedFirmware(int fwType, File file, int startAddr) throws IOException {
+
+        int x;
+        int segAddr = 0;
+        int nextAddr = 0;
+        byte[] block = new byte[FirmwareBlockReader.BLOCK_SIZE];
+        ByteArrayOutputStream segData = new ByteArrayOutputStream();
+        ArrayList<SegmentedFirmware.Segment> segments = new ArrayList<SegmentedFirmware.Segment>();
+        FirmwareBlockReader fwReader = this.openFirmwareFile(fwType, file, startAddr);
+
+        try {
+            while (true) {
+                x = fwReader.nextBlock(block);
+                if (x < 0) {
+                    break;
+                }
+                if ((segData.size() > 0) && (fwReader.getBlockAddress() != nextAddr)) {
+                    segments.add(new SegmentedFirmware.Segment(segAddr, segData.toByteArray()));
+                    segData.reset();
+                }
+                if (segData.size() == 0) {
+                    segAddr = fwReader.getBlockAddress();
+                }
+                segData.write(block, 0, x);
+                nextAddr = fwReader.getBlockAddress() + x;
+            }
+        } finally {
+            fwReader.close();
+        }
+
+        if (segData.size() > 0) {
+            segments.add(new SegmentedFirmware.Segment(segAddr, segData.toByteArray()));
+        }
+
+        return new SegmentedFirmware(segments);
+    }
+
     /**
      * <p>
      * Try to parse and check if the given file is in intel hex format or not.
@@ -361,12 +558,17 @@ public final class FlashUtils {
                     continue;
                 }
 
-                switch (this.hexAsciiToIntValue(data, x + 7, 2)) {
+                switch (hexByteAt(data, x + 7)) {
+                case 0x02:
+                case 0x04:
+                    if (hexByteAt(data, x + 1) != 2) {
+                        return false;
+                    }
+                    y++;
+                    break;
                 case 0x00:
                 case 0x01:
-                case 0x02:
                 case 0x03:
-                case 0x04:
                 case 0x05:
                     y++;
                     break;
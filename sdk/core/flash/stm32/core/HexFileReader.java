@@ -0,0 +1,365 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.ResourceBundle;
+
+/**
+ * <p>
+ * Internal use only. Parses an intel hex file record by record through a fixed
+ * size buffer and gives data in blocks. Gaps are handled exactly like
+ * FlashUtils.hexToSegmentedFwFormat() does; a gap smaller than
+ * SegmentedFirmware.MAX_FILLED_GAP is filled with 0xFF, a larger gap ends the
+ * current block and the next block starts at 4 byte aligned address.
+ * </p>
+ * 
+ * <p>
+ * Records must be in address order, otherwise padding of a new block could cover
+ * data given later for the same flash word. FlashUtils checks this with
+ * isInAddressOrder() and reads other files completely instead.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+final class HexFileReader extends FirmwareBlockReader {
+
+    /* : + length + offset + type + 255 data bytes + checksum + CR LF */
+    private static final int MAX_RECORD_LEN = 11 + 510 + 2;
+
+    private final File file;
+    private final ResourceBundle rb;
+    private final FileChannel channel;
+    private final ByteBuffer fileBuf;
+    private final byte[] fbuf;
+    private int pos;
+    private int lim;
+    private long fileOffset;
+    private boolean fileEnded;
+    private boolean eofRecordFound;
+
+    private int baseAddr;
+    private final byte[] recData = new byte[255];
+    private int recPos;
+    private int recRemaining;
+    private int recAddr;
+
+    private boolean inSegment;
+    private int curAddr;
+    private int blockAddr;
+    private int totalLength = -1;
+    private boolean ordered = true;
+
+    /**
+     * <p>
+     * Opens given hex file.
+     * </p>
+     * 
+     * @param file
+     *            firmware file in intel hex format
+     * @param rb
+     *            resource bundle for error messages
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    HexFileReader(File file, ResourceBundle rb) throws IOException {
+        this.file = file;
+        this.rb = rb;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        fileBuf = ByteBuffer.allocate(64 * 1024);
+        fbuf = fileBuf.array();
+    }
+
+    /*
+     * Moves unconsumed bytes to the beginning of buffer and reads more from file,
+     * until at least one complete record is available or file ends.
+     */
+    private void fill() throws IOException {
+
+        int res;
+
+        if (((lim - pos) >= MAX_RECORD_LEN) || (fileEnded == true)) {
+            return;
+        }
+
+        System.arraycopy(fbuf, pos, fbuf, 0, lim - pos);
+        fileOffset = fileOffset + pos;
+        lim = lim - pos;
+        pos = 0;
+
+        fileBuf.clear();
+        fileBuf.position(lim);
+        while ((lim < MAX_RECORD_LEN) && (fileEnded == false)) {
+            res = channel.read(fileBuf);
+            if (res < 0) {
+                fileEnded = true;
+            } else {
+                lim = fileBuf.position();
+            }
+        }
+    }
+
+    private int hexByteAt(final int offset) {
+
+        int hi = FlashUtils.HEXVAL[fbuf[offset] & 0xFF];
+        int lo = FlashUtils.HEXVAL[fbuf[offset + 1] & 0xFF];
+
+        if ((hi | lo) < 0) {
+            throw new IllegalArgumentException(rb.getString("inval.hex.chr") + " " + (fileOffset + offset));
+        }
+
+        return (hi << 4) | lo;
+    }
+
+    /*
+     * Parses records until next data record is found. Returns false when end of
+     * file record is reached. When decode is false, data bytes are neither
+     * extracted nor checksum verified; used for quick length scan.
+     */
+    private boolean readRecord(final boolean decode) throws IOException {
+
+        int y;
+        int val;
+        int sum;
+        int recordEnd;
+        int curRecordLength;
+        int curRecordType;
+        byte COLON = 0x3A;
+
+        while (eofRecordFound == false) {
+
+            fill();
+
+            /* bypass line feed and carriage return looking for a record starting with : */
+            while ((pos < lim) && (fbuf[pos] != COLON)) {
+                pos++;
+            }
+            if (pos >= lim) {
+                if (fileEnded == true) {
+                    throw new IllegalArgumentException(rb.getString("inval.eof.rcd"));
+                }
+                continue;
+            }
+
+            fill();
+            if ((pos + 11) > lim) {
+                throw new IllegalArgumentException(rb.getString("inval.eof.rcd"));
+            }
+
+            curRecordLength = hexByteAt(pos + 1);
+            curRecordType = hexByteAt(pos + 7);
+
+            recordEnd = pos + 11 + (2 * curRecordLength);
+            if (recordEnd > lim) {
+                throw new IllegalArgumentException(rb.getString("inval.eof.rcd"));
+            }
+
+            sum = curRecordLength + curRecordType + hexByteAt(pos + 3) + hexByteAt(pos + 5)
+                    + hexByteAt(recordEnd - 2);
+
+            switch (curRecordType) {
+
+            case 0x00:
+                recAddr = baseAddr + ((hexByteAt(pos + 3) << 8) | hexByteAt(pos + 5));
+                recPos = 0;
+                recRemaining = curRecordLength;
+                if (decode == true) {
+                    val = 0;
+                    for (y = pos + 9; y < (recordEnd - 2); y = y + 2) {
+                        recData[val] = (byte) hexByteAt(y);
+                        sum = sum + (recData[val] & 0xFF);
+                        val++;
+                    }
+                }
+                break;
+
+            case 0x01:
+            case 0x02:
+            case 0x03:
+            case 0x04:
+            case 0x05:
+                if (((curRecordType == 0x02) || (curRecordType == 0x04)) && (curRecordLength != 2)) {
+                    /* address records carry exactly 2 bytes, anything else would set a wrong base address */
+                    throw new IllegalArgumentException(rb.getString("inval.rcd.len") + " " + curRecordLength
+                            + " at record " + (fileOffset + pos));
+                }
+                for (y = pos + 9; y < (recordEnd - 2); y = y + 2) {
+                    sum = sum + hexByteAt(y);
+                }
+                if (curRecordType == 0x02) {
+                    /* extended segment address */
+                    baseAddr = ((hexByteAt(pos + 9) << 8) | hexByteAt(pos + 11)) << 4;
+                } else if (curRecordType == 0x04) {
+                    /* extended linear address, set upper 16 bits of base address */
+                    baseAddr = ((hexByteAt(pos + 9) << 8) | hexByteAt(pos + 11)) << 16;
+                } else if (curRecordType == 0x01) {
+                    eofRecordFound = true;
+                } else {
+                    /* start segment/linear address is not applicable for ARM CPU */
+                }
+                break;
+
+            default:
+                throw new IllegalArgumentException(rb.getString("inval.rcd.tp") + " " + curRecordType);
+            }
+
+            if ((decode == true) && ((sum & 0xFF) != 0)) {
+                throw new IllegalArgumentException(rb.getString("inval.cksum") + " at record " + (fileOffset + pos));
+            }
+
+            pos = recordEnd;
+
+            if ((curRecordType == 0x00) && (curRecordLength > 0)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public int nextBlock(byte[] buf) throws IOException {
+
+        int n;
+        int gap;
+        int len = 0;
+
+        while (len < BLOCK_SIZE) {
+
+            if (recRemaining == 0) {
+                if (readRecord(true) == false) {
+                    break;
+                }
+            }
+
+            gap = recAddr - curAddr;
+            if ((inSegment == true) && ((gap < 0) || (gap >= SegmentedFirmware.MAX_FILLED_GAP))) {
+                inSegment = false;
+                if (len > 0) {
+                    break;
+                }
+            }
+
+            if (inSegment == false) {
+                /* new segment starts at 4 byte aligned address */
+                gap = recAddr & 0x03;
+                curAddr = recAddr - gap;
+                inSegment = true;
+            }
+
+            if (len == 0) {
+                blockAddr = curAddr;
+            }
+
+            /* filler for small gap, may continue in next block */
+            n = Math.min(gap, BLOCK_SIZE - len);
+            if (n > 0) {
+                Arrays.fill(buf, len, len + n, FlashUtils.FILLER);
+                len = len + n;
+                curAddr = curAddr + n;
+                if (n < gap) {
+                    break;
+                }
+            }
+
+            n = Math.min(recRemaining, BLOCK_SIZE - len);
+            System.arraycopy(recData, recPos, buf, len, n);
+            len = len + n;
+            recPos = recPos + n;
+            recRemaining = recRemaining - n;
+            recAddr = recAddr + n;
+            curAddr = curAddr + n;
+        }
+
+        if (len == 0) {
+            return -1;
+        }
+
+        return len;
+    }
+
+    @Override
+    public int getBlockAddress() {
+        return blockAddr;
+    }
+
+    @Override
+    public int getTotalLength() throws IOException {
+        this.scan();
+        return totalLength;
+    }
+
+    /*
+     * Returns true if no data record starts before the end of previous one.
+     */
+    boolean isInAddressOrder() throws IOException {
+        this.scan();
+        return ordered;
+    }
+
+    /*
+     * One quick pass over the file looking only at record headers, with same gap
+     * rules as nextBlock(). Done only once.
+     */
+    private void scan() throws IOException {
+
+        int gap;
+        int total;
+        int addr = 0;
+        boolean segment = false;
+        HexFileReader scanner;
+
+        if (totalLength >= 0) {
+            return;
+        }
+
+        total = 0;
+        scanner = new HexFileReader(file, rb);
+        try {
+            while (scanner.readRecord(false) == true) {
+                gap = scanner.recAddr - addr;
+                if ((segment == true) && (gap < 0)) {
+                    ordered = false;
+                }
+                if ((segment == false) || (gap < 0) || (gap >= SegmentedFirmware.MAX_FILLED_GAP)) {
+                    gap = scanner.recAddr & 0x03;
+                    segment = true;
+                }
+                total = total + gap + scanner.recRemaining;
+                addr = scanner.recAddr + scanner.recRemaining;
+            }
+        } finally {
+            scanner.close();
+        }
+
+        totalLength = total;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,110 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+/**
+ * <p>
+ * The interface ICmdDetailedProgressListener should be implemented by a class
+ * who wish to know, besides number of bytes sent or received, which phase of
+ * programming is going on, at what speed, when it will finish and how erasing
+ * progresses. Production fixtures may use it to show estimated time remaining
+ * and to flag stations which are slower than others.
+ * </p>
+ * 
+ * <p>
+ * Methods of ICmdProgressListener and ICmdRetryListener keep being called as
+ * usual; methods of this interface are called in addition to them. Speed and
+ * estimated time remaining are worked out from the time since the operation
+ * started, so that they are steady from block to block.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public interface ICmdDetailedProgressListener extends ICmdRetryListener {
+
+    /** Bootloader is being initialized and device identified. */
+    public static final int PHASE_IDENTIFY = 0;
+
+    /** Flash pages are being erased. */
+    public static final int PHASE_ERASE = 1;
+
+    /** Data is being written. */
+    public static final int PHASE_WRITE = 2;
+
+    /** Data written is being read back and compared. */
+    public static final int PHASE_VERIFY = 3;
+
+    /** Data is being read. */
+    public static final int PHASE_READ = 4;
+
+    /**
+     * <p>
+     * Called when a new phase starts.
+     * </p>
+     * 
+     * @param phase
+     *            one of the PHASE_ constants
+     */
+    public abstract void onPhaseStarted(int phase);
+
+    /**
+     * <p>
+     * Called whenever a block has been written, read or verified.
+     * </p>
+     * 
+     * @param phase
+     *            PHASE_WRITE, PHASE_VERIFY or PHASE_READ
+     * @param address
+     *            address just after the last byte done
+     * @param bytesDone
+     *            number of bytes done till now in this operation
+     * @param bytesTotal
+     *            total number of bytes of this operation
+     * @param bytesPerSecond
+     *            average speed since start of operation
+     * @param etaMillis
+     *            estimated time remaining in milliseconds, -1 if nothing is done
+     *            yet
+     * @param retries
+     *            number of blocks retried till now in this operation
+     */
+    public abstract void onProgress(int phase, int address, long bytesDone, long bytesTotal, long bytesPerSecond,
+            long etaMillis, int retries);
+
+    /**
+     * <p>
+     * Called whenever a chunk of pages has been erased.
+     * </p>
+     * 
+     * @param firstPage
+     *            first page of the chunk just erased
+     * @param numPages
+     *            number of pages in the chunk
+     * @param pagesErased
+     *            number of pages erased till now in this operation
+     * @param totalPages
+     *            total number of pages to erase
+     * @param etaMillis
+     *            estimated time remaining in milliseconds
+     */
+    public abstract void onEraseProgress(int firstPage, int numPages, int pagesErased, int totalPages,
+            long etaMillis);
+}
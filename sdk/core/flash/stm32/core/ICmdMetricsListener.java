@@ -0,0 +1,102 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+/**
+ * <p>
+ * The interface ICmdMetricsListener should be implemented by a class who wish
+ * to know how long bootloader takes to answer every frame sent to it. A
+ * bootloader command consists of command frame (command code and its
+ * complement), for some commands an address frame and then a data frame (data
+ * to write, page numbers to erase or number of bytes to read); each of them is
+ * answered by ACK or NACK.
+ * </p>
+ * 
+ * <p>
+ * Latency of a command frame is mostly round trip time of serial link and USB
+ * adapter, data frame latency of write memory is flash programming time and that
+ * of erase commands is erase time. CommandMetrics aggregates these into counts
+ * and histograms.
+ * </p>
+ * 
+ * <p>
+ * Methods are called from the thread running the command, they should return as
+ * early as possible.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public interface ICmdMetricsListener {
+
+    /** Command code frame. */
+    public static final int STAGE_COMMAND = 0;
+
+    /** Address frame of read memory, go and write memory commands. */
+    public static final int STAGE_ADDRESS = 1;
+
+    /** Any frame after command (and address) frame. */
+    public static final int STAGE_DATA = 2;
+
+    /** Frame was acknowledged. */
+    public static final int RESULT_ACK = 0;
+
+    /** Frame was declined. */
+    public static final int RESULT_NACK = -1;
+
+    /** Bootloader did not answer in time. */
+    public static final int RESULT_TIMEOUT = -2;
+
+    /** Bootloader answered with neither ACK nor NACK. */
+    public static final int RESULT_INVALID = -3;
+
+    /**
+     * <p>
+     * Called when bootloader has answered a frame, or has not answered it in time.
+     * </p>
+     * 
+     * @param command
+     *            command code (for example 0x31 for write memory)
+     * @param stage
+     *            STAGE_COMMAND, STAGE_ADDRESS or STAGE_DATA
+     * @param bytesSent
+     *            length of the frame sent
+     * @param result
+     *            RESULT_ACK, RESULT_NACK, RESULT_TIMEOUT or RESULT_INVALID
+     * @param latencyNanos
+     *            time from start of sending the frame till answer, or till giving
+     *            up waiting for it, in nanoseconds
+     */
+    public abstract void onFrameAnswered(int command, int stage, int bytesSent, int result, long latencyNanos);
+
+    /**
+     * <p>
+     * Called when data requested by a read memory command has been received.
+     * </p>
+     * 
+     * @param command
+     *            command code
+     * @param bytesReceived
+     *            number of data bytes received
+     * @param durationNanos
+     *            time from ACK of last frame till all data bytes were received
+     */
+    public abstract void onDataReceived(int command, int bytesReceived, long durationNanos);
+}
@@ -0,0 +1,52 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+/**
+ * <p>
+ * Progress listener which is also told about every block that had to be sent or
+ * read again because of a NACK, timeout or line error. Retrying is done only if
+ * a retry policy has been set for the communication interface. A progress
+ * listener passed to read and write methods which implements this interface
+ * gets these callbacks in addition to usual progress updates.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public interface ICmdRetryListener extends ICmdProgressListener {
+
+    /**
+     * <p>
+     * Called before a block is sent or read again. This method should return as
+     * early as possible.
+     * </p>
+     * 
+     * @param address
+     *            stm32 memory address of the block being retried
+     * @param attempt
+     *            retry number for this block starting from 1
+     * @param totalRetries
+     *            number of retries in current operation including this one
+     * @param reason
+     *            message of the error which caused this retry
+     */
+    public abstract void onBlockRetry(int address, int attempt, int totalRetries, String reason);
+}
@@ -0,0 +1,213 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Byte transport between host and bootloader. Bootloader protocol code talks
+ * only to this interface, so the same protocol implementation runs over a serial
+ * port opened through serialpundit, a tty opened as a plain file channel, a TCP
+ * connection to a remote serial server or an in-process emulator.
+ * </p>
+ * 
+ * <p>
+ * Reads take a deadline given as a value of System.nanoTime(); they return as
+ * soon as at least one byte is available, or 0 once the deadline has passed.
+ * Transports which can not wait with fine granularity may return up to about
+ * 100 milliseconds after deadline.
+ * </p>
+ * 
+ * <p>
+ * A transport is used by one thread at a time.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public interface ITransport {
+
+    /**
+     * <p>
+     * Framing error bit in value returned by getLineErrors().
+     * </p>
+     */
+    public static final int LINE_ERR_FRAME = 0x01;
+
+    /**
+     * <p>
+     * Parity error bit in value returned by getLineErrors().
+     * </p>
+     */
+    public static final int LINE_ERR_PARITY = 0x02;
+
+    /**
+     * <p>
+     * Overrun error bit in value returned by getLineErrors().
+     * </p>
+     */
+    public static final int LINE_ERR_OVERRUN = 0x04;
+
+    /**
+     * <p>
+     * Sends given bytes, blocking until all of them have been handed to the
+     * transport.
+     * </p>
+     * 
+     * @param buf
+     *            buffer containing bytes to be sent
+     * @param offset
+     *            index in buffer of first byte to be sent
+     * @param length
+     *            number of bytes to be sent
+     * @throws IOException
+     *             if an error happens when communicating through transport
+     */
+    public void write(byte[] buf, int offset, int length) throws IOException;
+
+    /**
+     * <p>
+     * Sends all remaining bytes of given buffer, advancing its position. Direct
+     * buffers are handed to the operating system without copying where
+     * transport supports it.
+     * </p>
+     * 
+     * @param buf
+     *            buffer containing bytes to be sent
+     * @throws IOException
+     *             if an error happens when communicating through transport
+     */
+    public void write(ByteBuffer buf) throws IOException;
+
+    /**
+     * <p>
+     * Reads up to given number of bytes.
+     * </p>
+     * 
+     * @param buf
+     *            buffer where bytes read will be stored
+     * @param offset
+     *            index in buffer where first byte will be stored
+     * @param length
+     *            maximum number of bytes to read
+     * @param deadline
+     *            value of System.nanoTime() after which no more waiting is done
+     * @return number of bytes read, 0 if nothing arrived before deadline
+     * @throws IOException
+     *             if an error happens when communicating through transport
+     */
+    public int read(byte[] buf, int offset, int length, long deadline) throws IOException;
+
+    /**
+     * <p>
+     * Reads up to remaining number of bytes of given buffer, advancing its
+     * position.
+     * </p>
+     * 
+     * @param buf
+     *            buffer where bytes read will be stored
+     * @param deadline
+     *            value of System.nanoTime() after which no more waiting is done
+     * @return number of bytes read, 0 if nothing arrived before deadline
+     * @throws IOException
+     *             if an error happens when communicating through transport
+     */
+    public int read(ByteBuffer buf, long deadline) throws IOException;
+
+    /**
+     * <p>
+     * Blocks until bytes written have been sent out, as far as transport can tell.
+     * </p>
+     * 
+     * @throws IOException
+     *             if an error happens when communicating through transport
+     */
+    public void flush() throws IOException;
+
+    /**
+     * <p>
+     * Discards bytes received but not read yet.
+     * </p>
+     * 
+     * @throws IOException
+     *             if an error happens when communicating through transport
+     */
+    public void discardInput() throws IOException;
+
+    /**
+     * <p>
+     * Changes baudrate of the line and discards bytes received but not read yet.
+     * Transports whose line is configured elsewhere (for example by a remote
+     * serial server) may only take note of it.
+     * </p>
+     * 
+     * @param baudRate
+     *            new baudrate, for example 115200
+     * @throws IOException
+     *             if the line can not be configured
+     */
+    public void setBaudrate(int baudRate) throws IOException;
+
+    /**
+     * <p>
+     * Sets the DTR signal of the host side to the given value.
+     * </p>
+     * 
+     * @param value
+     *            level of signal
+     * @throws IOException
+     *             if signal can not be set or transport has no such signal
+     */
+    public void setDTR(boolean value) throws IOException;
+
+    /**
+     * <p>
+     * Sets the RTS signal of the host side to the given value.
+     * </p>
+     * 
+     * @param value
+     *            level of signal
+     * @throws IOException
+     *             if signal can not be set or transport has no such signal
+     */
+    public void setRTS(boolean value) throws IOException;
+
+    /**
+     * <p>
+     * Gives line errors detected since previous call and clears them.
+     * </p>
+     * 
+     * @return bitmask of LINE_ERR_XXX values, 0 if there were none or transport
+     *         can not detect them
+     */
+    public int getLineErrors();
+
+    /**
+     * <p>
+     * Closes transport and releases resources if any.
+     * </p>
+     * 
+     * @throws IOException
+     *             if transport can not be closed for some reason
+     */
+    public void close() throws IOException;
+}
@@ -0,0 +1,161 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ResourceBundle;
+
+/**
+ * <p>
+ * Firmware made up of one or more segments. Each segment is a run of bytes to be
+ * flashed back to back starting at its address. Address range between two
+ * segments is not part of the firmware and therefore is never sent to the
+ * bootloader. This saves time for example when a hex file contains both a
+ * bootloader and an application placed far apart in flash.
+ * </p>
+ * 
+ * <p>
+ * Segments are kept sorted by address (treated as unsigned) and do not overlap.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class SegmentedFirmware {
+
+    /**
+     * <p>
+     * Gap (in bytes) between two data records at or above which a new segment is
+     * started instead of filling the gap with 0xFF. It equals the maximum size of
+     * one write memory command, so a gap is filled only when that costs less than
+     * an extra write command.
+     * </p>
+     */
+    public static final int MAX_FILLED_GAP = 256;
+
+    /**
+     * <p>
+     * One contiguous run of firmware bytes.
+     * </p>
+     */
+    public static final class Segment {
+
+        public final int address;
+        public final byte[] data;
+
+        /**
+         * <p>
+         * Contains bytes and address where first of these bytes should be flashed.
+         * </p>
+         * 
+         * @param address
+         *            address where this segment should be flashed
+         * @param data
+         *            bytes of this segment
+         */
+        public Segment(int address, byte[] data) {
+            this.address = address;
+            this.data = data;
+        }
+    }
+
+    private final List<Segment> segments;
+    private final int totalLength;
+
+    /**
+     * <p>
+     * Creates firmware from given segments. Segments are sorted by address.
+     * </p>
+     * 
+     * @param segments
+     *            segments of this firmware
+     * @throws IllegalArgumentException
+     *             if any two segments overlap
+     */
+    public SegmentedFirmware(List<Segment> segments) {
+
+        int x;
+        int total = 0;
+        long prevEnd = -1;
+        ArrayList<Segment> sorted = new ArrayList<Segment>(segments);
+
+        Collections.sort(sorted, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment s1, Segment s2) {
+                return Long.compare(s1.address & 0xFFFFFFFFL, s2.address & 0xFFFFFFFFL);
+            }
+        });
+
+        for (x = 0; x < sorted.size(); x++) {
+            Segment seg = sorted.get(x);
+            if ((seg.address & 0xFFFFFFFFL) < prevEnd) {
+                /* firmware is built without a device manager, so message is in default locale */
+                throw new IllegalArgumentException(
+                        ResourceBundle.getBundle("flash.stm32.resources.MessagesBundle").getString("seg.overlap")
+                                + " 0x" + Integer.toHexString(seg.address));
+            }
+            prevEnd = (seg.address & 0xFFFFFFFFL) + seg.data.length;
+            total = total + seg.data.length;
+        }
+
+        this.segments = Collections.unmodifiableList(sorted);
+        this.totalLength = total;
+    }
+
+    /**
+     * <p>
+     * Gives all segments of this firmware sorted by address.
+     * </p>
+     * 
+     * @return unmodifiable list of segments
+     */
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    /**
+     * <p>
+     * Gives number of bytes which will actually be sent to the bootloader; sum of
+     * length of all segments.
+     * </p>
+     * 
+     * @return total length of all segments
+     */
+    public int getTotalLength() {
+        return totalLength;
+    }
+
+    /**
+     * <p>
+     * Gives address of the first segment or 0 if there is no segment.
+     * </p>
+     * 
+     * @return lowest address of this firmware
+     */
+    public int getStartAddress() {
+        if (segments.size() == 0) {
+            return 0;
+        }
+        return segments.get(0).address;
+    }
+}
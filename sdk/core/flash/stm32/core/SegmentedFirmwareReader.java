@@ -0,0 +1,91 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Internal use only. Gives firmware already held in memory as segments in
+ * blocks, used for hex files whose records are not in address order.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+final class SegmentedFirmwareReader extends FirmwareBlockReader {
+
+    private final SegmentedFirmware fw;
+    private final List<SegmentedFirmware.Segment> segments;
+    private int segIndex;
+    private int segPos;
+    private int blockAddr;
+
+    /**
+     * <p>
+     * Creates reader giving blocks of given firmware.
+     * </p>
+     * 
+     * @param fw
+     *            firmware to be given in blocks
+     */
+    SegmentedFirmwareReader(SegmentedFirmware fw) {
+        this.fw = fw;
+        this.segments = fw.getSegments();
+    }
+
+    @Override
+    public int nextBlock(byte[] buf) {
+
+        int len;
+        SegmentedFirmware.Segment seg;
+
+        if (segIndex >= segments.size()) {
+            return -1;
+        }
+
+        seg = segments.get(segIndex);
+        len = Math.min(BLOCK_SIZE, seg.data.length - segPos);
+        System.arraycopy(seg.data, segPos, buf, 0, len);
+        blockAddr = seg.address + segPos;
+
+        segPos = segPos + len;
+        if (segPos >= seg.data.length) {
+            segIndex++;
+            segPos = 0;
+        }
+
+        return len;
+    }
+
+    @Override
+    public int getBlockAddress() {
+        return blockAddr;
+    }
+
+    @Override
+    public int getTotalLength() {
+        return fw.getTotalLength();
+    }
+
+    @Override
+    public void close() {
+    }
+}
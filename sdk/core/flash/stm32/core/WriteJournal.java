@@ -0,0 +1,248 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.ResourceBundle;
+
+/**
+ * <p>
+ * Small file which records how far writing of a firmware has progressed, so
+ * that an interrupted write (cable pulled, power lost, NACK from bootloader)
+ * can be continued later instead of erasing and writing everything again.
+ * </p>
+ * 
+ * <p>
+ * The file contains SHA-256 hash of the firmware (addresses and data of all
+ * segments) and the address just after the last block acknowledged by stm32.
+ * Blocks are written in ascending address order, so every firmware byte below
+ * this address has been written. The address is updated in place after every
+ * acknowledged block; it is a single 4 byte write to an already open file.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class WriteJournal {
+
+    private static final int MAGIC = 0x50534A31;
+    private static final int HASH_LEN = 32;
+    private static final int RECORD_LEN = 4 + HASH_LEN + 4;
+
+    private final File file;
+    private final byte[] record = new byte[RECORD_LEN];
+    private final byte[] addrBuf = new byte[4];
+    private RandomAccessFile raf;
+    private int resumeAddr;
+
+    /**
+     * <p>
+     * Creates journal backed by given file. Nothing is read or written until
+     * canResume() or begin() is called.
+     * </p>
+     * 
+     * @param file
+     *            journal file, created if it does not exist
+     */
+    public WriteJournal(File file) {
+        if (file == null) {
+            /* no device manager yet, so message is in default locale */
+            throw new IllegalArgumentException(
+                    ResourceBundle.getBundle("flash.stm32.resources.MessagesBundle").getString("nul.jrnl"));
+        }
+        this.file = file;
+    }
+
+    /**
+     * <p>
+     * Gives the file backing this journal.
+     * </p>
+     * 
+     * @return journal file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * <p>
+     * Finds whether journal file exists and belongs to the given firmware. If it
+     * does, address from which writing can be continued is available through
+     * getResumeAddress().
+     * </p>
+     * 
+     * @param fw
+     *            firmware which is to be written
+     * @return true if an earlier write of this firmware can be resumed
+     * @throws IOException
+     *             if journal file exists but can not be read
+     */
+    public boolean canResume(final SegmentedFirmware fw) throws IOException {
+
+        byte[] buf = new byte[RECORD_LEN];
+        RandomAccessFile in;
+
+        if ((file.isFile() == false) || (file.length() != RECORD_LEN)) {
+            return false;
+        }
+
+        in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(buf);
+        } finally {
+            in.close();
+        }
+
+        if (getInt(buf, 0) != MAGIC) {
+            return false;
+        }
+        if (Arrays.equals(Arrays.copyOfRange(buf, 4, 4 + HASH_LEN), hash(fw)) == false) {
+            return false;
+        }
+        resumeAddr = getInt(buf, 4 + HASH_LEN);
+        return true;
+    }
+
+    /**
+     * <p>
+     * Gives address just after the last block acknowledged by stm32 as found by
+     * the last successful call to canResume().
+     * </p>
+     * 
+     * @return address from which writing can be continued
+     */
+    public int getResumeAddress() {
+        return resumeAddr;
+    }
+
+    /**
+     * <p>
+     * Internal use only. Creates or overwrites journal file for given firmware and
+     * keeps it open for updates.
+     * </p>
+     * 
+     * @param fw
+     *            firmware which is going to be written
+     * @param startAddr
+     *            address from which writing starts
+     * @throws IOException
+     *             if journal file can not be written
+     */
+    public void begin(final SegmentedFirmware fw, final int startAddr) throws IOException {
+
+        if (raf != null) {
+            raf.close();
+        }
+
+        putInt(record, 0, MAGIC);
+        System.arraycopy(hash(fw), 0, record, 4, HASH_LEN);
+        putInt(record, 4 + HASH_LEN, startAddr);
+        resumeAddr = startAddr;
+
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(RECORD_LEN);
+        raf.seek(0);
+        raf.write(record);
+    }
+
+    /**
+     * <p>
+     * Internal use only. Records that all firmware bytes below given address have
+     * been written and acknowledged.
+     * </p>
+     * 
+     * @param endAddr
+     *            address just after the last acknowledged block
+     * @throws IOException
+     *             if journal file can not be written
+     */
+    public void blockWritten(final int endAddr) throws IOException {
+        if (raf == null) {
+            return;
+        }
+        putInt(addrBuf, 0, endAddr);
+        raf.seek(4 + HASH_LEN);
+        raf.write(addrBuf);
+        resumeAddr = endAddr;
+    }
+
+    /**
+     * <p>
+     * Internal use only. Closes journal file. When the write has completed the
+     * file is deleted as there is nothing left to resume.
+     * </p>
+     * 
+     * @param completed
+     *            true if whole firmware has been written
+     * @throws IOException
+     *             if journal file can not be closed
+     */
+    public void end(final boolean completed) throws IOException {
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+        if (completed == true) {
+            file.delete();
+        }
+    }
+
+    /*
+     * SHA-256 over address, length and data of every segment, so that same bytes
+     * placed at other addresses give a different hash.
+     */
+    private static byte[] hash(final SegmentedFirmware fw) {
+
+        byte[] hdr = new byte[8];
+        MessageDigest md;
+
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            /* every java platform is required to support SHA-256 */
+            throw new IllegalStateException(e);
+        }
+
+        for (SegmentedFirmware.Segment seg : fw.getSegments()) {
+            putInt(hdr, 0, seg.address);
+            putInt(hdr, 4, seg.data.length);
+            md.update(hdr);
+            md.update(seg.data);
+        }
+        return md.digest();
+    }
+
+    private static void putInt(byte[] buf, int offset, int val) {
+        buf[offset] = (byte) (val >> 24);
+        buf[offset + 1] = (byte) (val >> 16);
+        buf[offset + 2] = (byte) (val >> 8);
+        buf[offset + 3] = (byte) val;
+    }
+
+    private static int getInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xFF) << 24) | ((buf[offset + 1] & 0xFF) << 16) | ((buf[offset + 2] & 0xFF) << 8)
+                | (buf[offset + 3] & 0xFF);
+    }
+}
@@ -22,9 +22,16 @@ package flash.stm32.core.internal;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ResourceBundle;
 import java.util.concurrent.TimeoutException;
 
+import flash.stm32.core.BootloaderSession;
+import flash.stm32.core.CancelToken;
 import flash.stm32.core.ICmdProgressListener;
+import flash.stm32.core.SegmentedFirmware;
+import flash.stm32.core.WriteJournal;
 import flash.stm32.core.internal.DeviceCreator;
 
 /**
@@ -39,6 +46,10 @@ public abstract class CommandExecutor {
 
     public final DeviceCreator dCreator;
 
+    protected WriteJournal writeJournal;
+
+    protected volatile CancelToken cancelToken;
+
     /**
      * <p>
      * Allocates an instance of CommandExecutor.
@@ -50,12 +61,57 @@ public abstract class CommandExecutor {
 
     /**
      * <p>
-     * Sends command 'Get' (0x00) to stm32 to get commands supported by bootloader
-     * running in the stm32 device currently connected to host.
+     * Sets journal to be updated after every block of data acknowledged by stm32
+     * when writing memory, or null to stop updating it.
+     * </p>
+     * 
+     * @param journal
+     *            journal of the write in progress or null
+     */
+    public void setWriteJournal(WriteJournal journal) {
+        writeJournal = journal;
+    }
+
+    /**
+     * <p>
+     * Sets token checked at block boundaries of read, write and erase operations,
+     * or null to stop only when calling thread is interrupted.
+     * </p>
+     * 
+     * @param token
+     *            cancel token or null
+     */
+    public void setCancelToken(CancelToken token) {
+        cancelToken = token;
+    }
+
+    /**
+     * <p>
+     * Tells whether running operation should stop at this block boundary, either
+     * because cancel token has been cancelled or calling thread has been
+     * interrupted. Interrupt status is left as it is.
      * </p>
      * 
-     * @return 0 if operation fails or bit mask of commands supported by given
-     *         bootloader
+     * @return true if operation should be stopped
+     */
+    protected boolean isCancelRequested() {
+
+        CancelToken token = cancelToken;
+
+        if (Thread.currentThread().isInterrupted() == true) {
+            return true;
+        }
+        return (token != null) && (token.isCancelled() == true);
+    }
+
+    /**
+     * <p>
+     * Gives commands supported by bootloader running in the stm32 device currently
+     * connected to host. They are found by the 'Get' (0x00) command sent when the
+     * device was identified, nothing is sent to stm32 here.
+     * </p>
+     * 
+     * @return bit mask of commands supported by given bootloader
      * @throws IOException
      *             if an error happens when communicating with the device
      * @throws TimeoutException
@@ -66,10 +122,9 @@ public abstract class CommandExecutor {
 
     /**
      * <p>
-     * Sends command 'Get' (0x00) to know commands supported by this bootloader and
-     * then extracts bootloader version for the received response. This represents
-     * version of the serial peripheral (USART, CAN, USB, etc.) communication
-     * protocol used in the bootloader.
+     * Gives bootloader version found by the 'Get' (0x00) command sent when the
+     * device was identified. This represents version of the serial peripheral
+     * (USART, CAN, USB, etc.) communication protocol used in the bootloader.
      * </p>
      * 
      * @return bootloader version in human readable format
@@ -83,7 +138,8 @@ public abstract class CommandExecutor {
 
     /**
      * <p>
-     * Sends command 'Get ID' (0x02) to stm32 to get product id.
+     * Gives product id found by the 'Get ID' (0x02) command sent when the device
+     * was identified.
      * </p>
      * 
      * @return product id of the stm32 as reported by bootloader
@@ -95,6 +151,26 @@ public abstract class CommandExecutor {
      */
     public abstract int getChipID() throws IOException, TimeoutException;
 
+    /**
+     * <p>
+     * Gives what bootloader reported about itself during last handshake.
+     * </p>
+     * 
+     * @return session or null if device has not been identified yet
+     */
+    public abstract BootloaderSession getSession();
+
+    /**
+     * <p>
+     * Gives resource bundle from which messages for the user are taken, so that
+     * device and other classes of core package report errors in the locale
+     * given to device manager.
+     * </p>
+     * 
+     * @return resource bundle of this executor
+     */
+    public abstract ResourceBundle getResourceBundle();
+
     /**
      * <p>
      * Sends command 'Get Version and Read Protection Status' (0x01) to stm32 and
@@ -176,6 +252,59 @@ public abstract class CommandExecutor {
     public abstract int readMemory(String file, int startAddr, final int numBytesToRead,
             ICmdProgressListener progressListener) throws IOException, TimeoutException;
 
+    /**
+     * <p>
+     * Reads given memory area and writes every chunk to the given output stream as
+     * soon as it has been received, so memory used does not depend upon number of
+     * bytes to read and chunks received before a failure are not lost. Stream is
+     * neither flushed nor closed by this method.
+     * </p>
+     * 
+     * @param out
+     *            stream to which data read will be written
+     * @param startAddr
+     *            address from where 1st byte will be read
+     * @param numBytesToRead
+     *            number of bytes to be read
+     * @param progressListener
+     *            instance of class which implements callback to know reading
+     *            progress or null if not required
+     * 
+     * @return number of bytes read from stm32 device
+     * @throws IOException
+     *             if an error happens when communicating with the device or when
+     *             writing to stream
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    public abstract int readMemory(OutputStream out, int startAddr, final int numBytesToRead,
+            ICmdProgressListener progressListener) throws IOException, TimeoutException;
+
+    /**
+     * <p>
+     * Reads as many bytes as remain in the given buffer from memory starting at
+     * given address into the buffer, advancing its position. Direct and memory
+     * mapped buffers are filled by serial layer without intermediate copies.
+     * </p>
+     * 
+     * @param data
+     *            buffer where data read will be stored
+     * @param startAddr
+     *            address from where 1st byte will be read
+     * @param progressListener
+     *            instance of class which implements callback to know reading
+     *            progress or null if not required
+     * @return number of bytes read from stm32
+     * @throws IOException
+     *             if an error happens when communicating with the device
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    public abstract int readMemory(ByteBuffer data, int startAddr, ICmdProgressListener progressListener)
+            throws IOException, TimeoutException;
+
     /**
      * <p>
      * Sends command 'Go command' (0x21) to stm32 to make program counter jump to
@@ -337,6 +466,78 @@ public abstract class CommandExecutor {
     public abstract int writeMemory(final int fwType, final byte[] data, int startAddr,
             ICmdProgressListener progressListener) throws IOException, TimeoutException;
 
+    /**
+     * <p>
+     * Writes given segmented firmware to stm32. Every segment is written starting
+     * from its own address. Address range between two segments is skipped
+     * entirely; nothing is sent for it.
+     * </p>
+     * 
+     * <p>
+     * Sends command 'Write Memory command' (0x31) to stm32 to write to memory.
+     * </p>
+     * 
+     * @param fw
+     *            firmware to be flashed
+     * @param progressListener
+     *            instance of class which implements callback methods to know how
+     *            many bytes have been sent till now or null if not required
+     * @return 0 on success
+     * @throws IOException
+     *             if an error happens when communicating with the device
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    public abstract int writeMemory(final SegmentedFirmware fw, ICmdProgressListener progressListener)
+            throws IOException, TimeoutException;
+
+    /**
+     * <p>
+     * Writes bytes remaining in the given buffer to memory starting at given
+     * address, advancing buffer's position to its limit. No buffer is allocated
+     * per block written.
+     * </p>
+     * 
+     * @param data
+     *            data bytes to be written
+     * @param startAddr
+     *            memory address in stm32 from where writing should start
+     * @param progressListener
+     *            instance of class which implements callback methods to know how
+     *            many bytes have been sent till now or null if not required
+     * @return 0 on success
+     * @throws IOException
+     *             if an error happens when communicating with the device
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    public abstract int writeMemory(final ByteBuffer data, final int startAddr, ICmdProgressListener progressListener)
+            throws IOException, TimeoutException;
+
+    /**
+     * <p>
+     * Calculates CRC of given memory ranges on stm32 itself using flash loader
+     * stub, only 4 bytes per range are sent back. Stub is started, used for all
+     * ranges and stopped, bootloader is running again when this method returns.
+     * See FlashLoader.calculateCRC() for the CRC used.
+     * </p>
+     * 
+     * @param startAddrs
+     *            start address of every range
+     * @param lengths
+     *            number of bytes in every range
+     * @return CRC of every range or null if flash loader stub can not be used
+     *         with this device
+     * @throws IOException
+     *             if an error happens when communicating with the device
+     * @throws TimeoutException
+     *             when bootloader or stub declines a command or sends no response
+     */
+    public abstract int[] calculateMemoryCRC(final int[] startAddrs, final int[] lengths)
+            throws IOException, TimeoutException;
+
     /**
      * <p>
      * Sends command 'Write Protect command' (0x63) to stm32. It enables write
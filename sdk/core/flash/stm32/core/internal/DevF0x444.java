@@ -21,6 +21,7 @@
 package flash.stm32.core.internal;
 
 import flash.stm32.core.Device;
+import flash.stm32.core.FlashGeometry;
 
 /**
  * <p>
@@ -49,5 +50,6 @@ public final class DevF0x444 extends Device {
         IBSysMemStartAddr = 0x1FFFEC00;
         IBSysMemEndAddr = 0x1FFFF7FF;
         resetCodeAddress = RAMMemStartAddr;
+        flashGeometry = new FlashGeometry(0x08000000, new int[] { 32, 1024 });
     }
 }
@@ -21,6 +21,7 @@
 package flash.stm32.core.internal;
 
 import flash.stm32.core.Device;
+import flash.stm32.core.FlashGeometry;
 
 /**
  * <p>
@@ -49,5 +50,6 @@ public final class DevF0x448 extends Device {
         IBSysMemStartAddr = 0x1FFFC800;
         IBSysMemEndAddr = 0x1FFFC800;
         resetCodeAddress = 0x20001800;
+        flashGeometry = new FlashGeometry(0x08000000, new int[] { 64, 2048 });
     }
 }
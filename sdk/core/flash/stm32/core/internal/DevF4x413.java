@@ -21,6 +21,7 @@
 package flash.stm32.core.internal;
 
 import flash.stm32.core.Device;
+import flash.stm32.core.FlashGeometry;
 
 /**
  * <p>
@@ -44,10 +45,11 @@ public final class DevF4x413 extends Device {
         this.cmdExtr = cmdExtr;
         pid = 0x413;
         mcuSeries = "STM32F40xxx/41xxx";
-        RAMMemStartAddr = 0x00;
-        RAMMemEndAddr = 0x00;
+        RAMMemStartAddr = 0x20003000;
+        RAMMemEndAddr = 0x2001FFFF;
         IBSysMemStartAddr = 0x1FFF0000;
         IBSysMemEndAddr = 0x1FFF77FF;
         resetCodeAddress = 0x20003000;
+        flashGeometry = new FlashGeometry(0x08000000, new int[] { 4, 16384, 1, 65536, 7, 131072 });
     }
 }
@@ -21,6 +21,7 @@
 package flash.stm32.core.internal;
 
 import flash.stm32.core.Device;
+import flash.stm32.core.FlashGeometry;
 
 /**
  * <p>
@@ -49,5 +50,7 @@ public final class DevF4x419 extends Device {
         IBSysMemStartAddr = 0x1FFF0000;
         IBSysMemEndAddr = 0x1FFF77FF;
         resetCodeAddress = RAMMemStartAddr;
+        flashGeometry = new FlashGeometry(0x08000000, 12,
+                new int[] { 4, 16384, 1, 65536, 7, 131072, 4, 16384, 1, 65536, 7, 131072 });
     }
 }
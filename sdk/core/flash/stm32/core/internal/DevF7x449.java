@@ -21,6 +21,7 @@
 package flash.stm32.core.internal;
 
 import flash.stm32.core.Device;
+import flash.stm32.core.FlashGeometry;
 
 /**
  * <p>
@@ -49,5 +50,6 @@ public final class DevF7x449 extends Device {
         IBSysMemStartAddr = 0x1FF00000;
         IBSysMemEndAddr = 0x1FF0EDBF;
         resetCodeAddress = RAMMemStartAddr;
+        flashGeometry = new FlashGeometry(0x08000000, new int[] { 4, 32768, 1, 131072, 3, 262144 });
     }
 }
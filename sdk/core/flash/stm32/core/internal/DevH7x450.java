@@ -21,6 +21,7 @@
 package flash.stm32.core.internal;
 
 import flash.stm32.core.Device;
+import flash.stm32.core.FlashGeometry;
 
 /**
  * <p>
@@ -50,5 +51,6 @@ public final class DevH7x450 extends Device {
         IBSysMemStartAddr = 0x1FF00000;
         IBSysMemEndAddr = 0x1FF1E7FF;
         resetCodeAddress = 0x20004100;
+        flashGeometry = new FlashGeometry(0x08000000, 8, new int[] { 16, 131072 });
     }
 }
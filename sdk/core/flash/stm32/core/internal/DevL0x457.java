@@ -21,6 +21,7 @@
 package flash.stm32.core.internal;
 
 import flash.stm32.core.Device;
+import flash.stm32.core.FlashGeometry;
 
 /**
  * <p>
@@ -50,5 +51,6 @@ public final class DevL0x457 extends Device {
         IBSysMemStartAddr = 0x1FF00000;
         IBSysMemEndAddr = 0x1FF00FFF;
         resetCodeAddress = 0x00;
+        flashGeometry = new FlashGeometry(0x08000000, new int[] { 128, 128 });
     }
 }
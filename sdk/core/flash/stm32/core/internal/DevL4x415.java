@@ -21,6 +21,7 @@
 package flash.stm32.core.internal;
 
 import flash.stm32.core.Device;
+import flash.stm32.core.FlashGeometry;
 
 /**
  * <p>
@@ -49,5 +50,6 @@ public final class DevL4x415 extends Device {
         IBSysMemStartAddr = 0x1FFF0000;
         IBSysMemEndAddr = 0x1FFF6FFF;
         resetCodeAddress = 0x20003100;
+        flashGeometry = new FlashGeometry(0x08000000, 256, new int[] { 512, 2048 });
     }
 }
@@ -0,0 +1,117 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.core.internal;
+
+import flash.stm32.core.ICmdDetailedProgressListener;
+import flash.stm32.core.ICmdProgressListener;
+
+/**
+ * <p>
+ * Works out speed and estimated time remaining of one operation and reports
+ * them to a detailed progress listener.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class ProgressMeter {
+
+    private final ICmdDetailedProgressListener listener;
+    private final int phase;
+    private final long total;
+    private final long startNanos;
+
+    private ProgressMeter(ICmdDetailedProgressListener listener, int phase, long total) {
+        this.listener = listener;
+        this.phase = phase;
+        this.total = total;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * <p>
+     * Starts measuring an operation and reports its phase, if given listener
+     * wants detailed progress.
+     * </p>
+     * 
+     * @param progressListener
+     *            listener given to operation or null
+     * @param phase
+     *            one of ICmdDetailedProgressListener.PHASE_ constants
+     * @param total
+     *            total number of bytes, or pages for erase
+     * @return meter or null if listener is not an ICmdDetailedProgressListener
+     */
+    public static ProgressMeter start(ICmdProgressListener progressListener, int phase, long total) {
+        if ((progressListener instanceof ICmdDetailedProgressListener) == false) {
+            return null;
+        }
+        ((ICmdDetailedProgressListener) progressListener).onPhaseStarted(phase);
+        return new ProgressMeter((ICmdDetailedProgressListener) progressListener, phase, total);
+    }
+
+    /**
+     * <p>
+     * Reports bytes done till now.
+     * </p>
+     * 
+     * @param address
+     *            address just after the last byte done
+     * @param done
+     *            number of bytes done till now
+     * @param retries
+     *            number of blocks retried till now
+     */
+    public void update(int address, long done, int retries) {
+
+        long elapsed = Math.max(1, System.nanoTime() - startNanos);
+
+        listener.onProgress(phase, address, done, total, (done * 1000000000L) / elapsed,
+                this.remainingMillis(done, elapsed), retries);
+    }
+
+    /**
+     * <p>
+     * Reports a chunk of pages erased.
+     * </p>
+     * 
+     * @param firstPage
+     *            first page of the chunk
+     * @param numPages
+     *            number of pages in the chunk
+     * @param pagesErased
+     *            number of pages erased till now
+     */
+    public void erased(int firstPage, int numPages, int pagesErased) {
+
+        long elapsed = Math.max(1, System.nanoTime() - startNanos);
+
+        listener.onEraseProgress(firstPage, numPages, pagesErased, (int) total,
+                this.remainingMillis(pagesErased, elapsed));
+    }
+
+    /* time for rest at average speed till now */
+    private long remainingMillis(long done, long elapsedNanos) {
+        if (done <= 0) {
+            return -1;
+        }
+        return ((total - done) * (elapsedNanos / 1000000L)) / done;
+    }
+}
@@ -0,0 +1,142 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import flash.stm32.core.ICmdMetricsListener;
+
+/**
+ * <p>
+ * Emits every answered frame and every read memory data transfer as Java Flight
+ * Recorder event, so that bootloader latencies can be seen on the same
+ * timeline as everything else in a recording. Events are named
+ * progstm32.BootloaderFrame and progstm32.BootloaderRead and cost almost
+ * nothing when recording is not running. Needs a JDK with jdk.jfr module (JDK 11
+ * or later), so it is built into optional jar progstm32-jfr by ant target
+ * jfrsdk and core SDK does not depend on it.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class JfrCommandMetrics implements ICmdMetricsListener {
+
+    private static final String[] STAGES = new String[] { "command", "address", "data" };
+    private static final String[] RESULTS = new String[] { "ACK", "NACK", "timeout", "invalid" };
+
+    @Name("progstm32.BootloaderFrame")
+    @Label("Bootloader Frame")
+    @Category("progstm32")
+    @Description("Frame sent to stm32 bootloader and its answer")
+    static final class FrameEvent extends Event {
+
+        @Label("Command")
+        @Description("Bootloader command code")
+        int command;
+
+        @Label("Stage")
+        String stage;
+
+        @Label("Frame Size")
+        @DataAmount
+        int bytes;
+
+        @Label("Result")
+        String result;
+
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("progstm32.BootloaderRead")
+    @Label("Bootloader Read")
+    @Category("progstm32")
+    @Description("Data received for a read memory command")
+    static final class ReadEvent extends Event {
+
+        @Label("Command")
+        int command;
+
+        @Label("Size")
+        @DataAmount
+        int bytes;
+
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long transferTime;
+    }
+
+    private final ICmdMetricsListener next;
+
+    /**
+     * <p>
+     * Creates listener emitting JFR events.
+     * </p>
+     * 
+     * @param next
+     *            listener to which every call is passed on after emitting event,
+     *            for example a CommandMetrics, or null
+     */
+    public JfrCommandMetrics(ICmdMetricsListener next) {
+        this.next = next;
+    }
+
+    @Override
+    public void onFrameAnswered(int command, int stage, int bytesSent, int result, long latencyNanos) {
+
+        FrameEvent event = new FrameEvent();
+
+        if (event.isEnabled() == true) {
+            event.command = command & 0xFF;
+            event.stage = STAGES[stage];
+            event.bytes = bytesSent;
+            event.result = RESULTS[-result];
+            event.latency = latencyNanos;
+            event.commit();
+        }
+        if (next != null) {
+            next.onFrameAnswered(command, stage, bytesSent, result, latencyNanos);
+        }
+    }
+
+    @Override
+    public void onDataReceived(int command, int bytesReceived, long durationNanos) {
+
+        ReadEvent event = new ReadEvent();
+
+        if (event.isEnabled() == true) {
+            event.command = command & 0xFF;
+            event.bytes = bytesReceived;
+            event.transferTime = durationNanos;
+            event.commit();
+        }
+        if (next != null) {
+            next.onDataReceived(command, bytesReceived, durationNanos);
+        }
+    }
+}
@@ -0,0 +1,476 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.uart;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.serialpundit.serial.SerialComManager.DATABITS;
+import com.serialpundit.serial.SerialComManager.FLOWCONTROL;
+import com.serialpundit.serial.SerialComManager.PARITY;
+import com.serialpundit.serial.SerialComManager.STOPBITS;
+
+import flash.stm32.core.BLCMDS;
+import flash.stm32.core.CancelToken;
+import flash.stm32.core.Device;
+import flash.stm32.core.ICmdDetailedProgressListener;
+import flash.stm32.core.ICmdMetricsListener;
+import flash.stm32.core.REGTYPE;
+import flash.stm32.core.SegmentedFirmware;
+import flash.stm32.core.internal.ProgressMeter;
+import flash.stm32.uart.UARTDeviceManager.IFace;
+
+/**
+ * <p>
+ * Programs same firmware into many stm32 devices at the same time, each one
+ * connected to its own serial port. Every port is driven by its own thread
+ * through its own UARTInterface, running identify, erase, write and verify. The
+ * firmware is parsed once by the caller and shared read-only by all threads, so
+ * total time is close to the time taken by the slowest board.
+ * </p>
+ * 
+ * <p>
+ * Failure on one port does not affect other ports; outcome of every port is
+ * reported in its own PortResult.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class GangProgrammer {
+
+    /** Do not erase before writing. */
+    public static final int ERASE_NONE = 0;
+
+    /** Mass erase before writing. */
+    public static final int ERASE_MASS = 1;
+
+    /** Erase only pages covered by firmware, as per flash geometry of device. */
+    public static final int ERASE_FIRMWARE = 2;
+
+    /**
+     * <p>
+     * Outcome of programming one device.
+     * </p>
+     */
+    public static final class PortResult {
+
+        /** Serial port name as given by caller. */
+        public final String port;
+
+        /** Product ID of device or -1 if it could not be identified. */
+        public final int pid;
+
+        /** True if all steps completed successfully. */
+        public final boolean success;
+
+        /** Step which failed (open, identify, erase, write, verify) or null. */
+        public final String failedStep;
+
+        /** Error message or null. */
+        public final String error;
+
+        /** Time taken for this port in milliseconds. */
+        public final long timeMillis;
+
+        PortResult(String port, int pid, String failedStep, String error, long timeMillis) {
+            this.port = port;
+            this.pid = pid;
+            this.success = (failedStep == null);
+            this.failedStep = failedStep;
+            this.error = error;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    private final UARTDeviceManager devMgr;
+    private final String libName;
+    private int baudRate = 115200;
+    private int eraseMode = ERASE_NONE;
+    private boolean verify;
+    private boolean pipelinedWrite;
+    private int verifyWindowBlocks;
+    private boolean flashLoader;
+    private int loaderBaudrate;
+    private RetryPolicy retryPolicy;
+    private CancelToken cancelToken;
+    private ICmdMetricsListener metrics;
+    private Map<String, ICmdDetailedProgressListener> progressListeners;
+    private IBootloaderEntry entry;
+
+    /**
+     * <p>
+     * Allocates an instance of GangProgrammer class.
+     * </p>
+     * 
+     * @param devMgr
+     *            device manager used to create interface for every port
+     * @param libName
+     *            unique name for the shared library, as given to
+     *            getCommunicationIface()
+     */
+    public GangProgrammer(UARTDeviceManager devMgr, String libName) {
+        if ((devMgr == null) || (libName == null)) {
+            throw new IllegalArgumentException("Device manager and library name can not be null");
+        }
+        this.devMgr = devMgr;
+        this.libName = libName;
+    }
+
+    /**
+     * <p>
+     * Sets baudrate used for all ports, default is 115200.
+     * </p>
+     * 
+     * @param baudRate
+     *            baudrate
+     */
+    public void setBaudrate(int baudRate) {
+        this.baudRate = baudRate;
+    }
+
+    /**
+     * <p>
+     * Sets how flash is erased before writing, default is ERASE_NONE.
+     * </p>
+     * 
+     * @param eraseMode
+     *            ERASE_NONE, ERASE_MASS or ERASE_FIRMWARE
+     */
+    public void setEraseMode(int eraseMode) {
+        if ((eraseMode < ERASE_NONE) || (eraseMode > ERASE_FIRMWARE)) {
+            throw new IllegalArgumentException("Invalid erase mode " + eraseMode);
+        }
+        this.eraseMode = eraseMode;
+    }
+
+    /**
+     * <p>
+     * Enables reading back and comparing firmware after writing.
+     * </p>
+     * 
+     * @param verify
+     *            true to verify
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * <p>
+     * Enables pipelined write memory commands on every port, see
+     * UARTInterface.setWritePipelining().
+     * </p>
+     * 
+     * @param enable
+     *            true to enable pipelined writes
+     */
+    public void setWritePipelining(boolean enable) {
+        pipelinedWrite = enable;
+    }
+
+    /**
+     * <p>
+     * Enables verification while writing on every port, see
+     * UARTInterface.setWriteVerify(). A board whose flash does not read back
+     * correctly fails as soon as the failing window is read instead of after the
+     * whole firmware has been written.
+     * </p>
+     * 
+     * @param windowBlocks
+     *            number of blocks written between two read backs or 0 to disable
+     */
+    public void setWriteVerify(int windowBlocks) {
+        verifyWindowBlocks = windowBlocks;
+    }
+
+    /**
+     * <p>
+     * Enables flash loader on every port, see UARTInterface.setFlashLoader().
+     * </p>
+     * 
+     * @param enable
+     *            true to use flash loader
+     * @param baudRate
+     *            baudrate used while loader runs or 0 to keep current baudrate
+     */
+    public void setFlashLoader(boolean enable, int baudRate) {
+        flashLoader = enable;
+        loaderBaudrate = baudRate;
+    }
+
+    /**
+     * <p>
+     * Sets block level retry policy used on every port, see
+     * UARTInterface.setRetryPolicy(). A glitch on one board then costs a retried
+     * block instead of reprogramming that board.
+     * </p>
+     * 
+     * @param policy
+     *            retry policy or null to fail on first error
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        retryPolicy = policy;
+    }
+
+    /**
+     * <p>
+     * Sets token shared by all ports through which whole gang can be stopped at
+     * the next block boundary, see Device.setCancelToken(). Interrupting the
+     * thread waiting in program() stops all ports the same way.
+     * </p>
+     * 
+     * @param token
+     *            cancel token or null
+     */
+    public void setCancelToken(CancelToken token) {
+        cancelToken = token;
+    }
+
+    /**
+     * <p>
+     * Sets metrics listener used on every port, see
+     * UARTInterface.setCommandMetrics(). It is called concurrently from all ports;
+     * CommandMetrics may be shared to get aggregate numbers for the gang.
+     * </p>
+     * 
+     * @param listener
+     *            metrics listener or null
+     */
+    public void setCommandMetrics(ICmdMetricsListener listener) {
+        metrics = listener;
+    }
+
+    /**
+     * <p>
+     * Sets listener for every port, keyed by port name as given to program(). A
+     * listener gets phase (identify, erase, write, verify), speed, estimated time
+     * remaining, retries and erase progress of its own port, from the thread
+     * driving that port. Ports without a listener are not reported.
+     * </p>
+     * 
+     * @param listeners
+     *            listener for every port or null
+     */
+    public void setProgressListeners(Map<String, ICmdDetailedProgressListener> listeners) {
+        progressListeners = listeners;
+    }
+
+    /**
+     * <p>
+     * Sets sequence applied on every port to put stm32 into bootloader mode
+     * before init sequence is sent. It is called concurrently for different
+     * ports and hence must not depend upon shared mutable state.
+     * </p>
+     * 
+     * @param entry
+     *            entry sequence or null if boards are already in bootloader mode
+     */
+    public void setBootloaderEntry(IBootloaderEntry entry) {
+        this.entry = entry;
+    }
+
+    /**
+     * <p>
+     * Programs given firmware through all given ports concurrently and waits
+     * until all of them are done.
+     * </p>
+     * 
+     * <p>
+     * Interfaces are created one after the other in the calling thread (creating
+     * them loads native library) and then one thread per port does the work.
+     * </p>
+     * 
+     * @param ports
+     *            serial ports to which stm32 devices are connected
+     * @param fw
+     *            firmware to be written, not modified by this method
+     * @return result for every port in same order as ports
+     * @throws InterruptedException
+     *             if calling thread is interrupted while waiting, operations on
+     *             all ports are then stopped at next block boundary
+     */
+    public List<PortResult> program(final List<String> ports, final SegmentedFirmware fw)
+            throws InterruptedException {
+
+        int x;
+        ExecutorService executor;
+        ArrayList<Future<PortResult>> futures = new ArrayList<Future<PortResult>>();
+        ArrayList<PortResult> results = new ArrayList<PortResult>();
+        UARTInterface[] ifaces;
+
+        if ((ports == null) || (ports.size() == 0) || (fw == null)) {
+            throw new IllegalArgumentException("Ports and firmware must be given");
+        }
+
+        ifaces = new UARTInterface[ports.size()];
+        for (x = 0; x < ifaces.length; x++) {
+            try {
+                ifaces[x] = (UARTInterface) devMgr.getCommunicationIface(IFace.UART, libName);
+            } catch (Exception e) {
+                ifaces[x] = null;
+            }
+        }
+
+        executor = Executors.newFixedThreadPool(ports.size());
+        try {
+            for (x = 0; x < ifaces.length; x++) {
+                final String port = ports.get(x);
+                final UARTInterface uci = ifaces[x];
+                futures.add(executor.submit(new Callable<PortResult>() {
+                    @Override
+                    public PortResult call() {
+                        return programOne(port, uci, fw);
+                    }
+                }));
+            }
+            for (x = 0; x < futures.size(); x++) {
+                try {
+                    results.add(futures.get(x).get());
+                } catch (ExecutionException e) {
+                    results.add(new PortResult(ports.get(x), -1, "internal", String.valueOf(e.getCause()), 0));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return results;
+    }
+
+    /*
+     * Runs all steps on one port, never throws; error is reported in result.
+     */
+    private PortResult programOne(String port, UARTInterface uci, SegmentedFirmware fw) {
+
+        int pid = -1;
+        int allowedCmds;
+        String step = "open";
+        long start = System.currentTimeMillis();
+        boolean opened = false;
+        Device dev;
+        ICmdDetailedProgressListener listener = null;
+
+        try {
+            if (uci == null) {
+                throw new IllegalStateException("Can not create interface");
+            }
+            uci.setWritePipelining(pipelinedWrite);
+            uci.setWriteVerify(verifyWindowBlocks);
+            uci.setFlashLoader(flashLoader, loaderBaudrate);
+            uci.setRetryPolicy(retryPolicy);
+            uci.setCommandMetrics(metrics);
+            uci.open(port, baudRate, DATABITS.DB_8, STOPBITS.SB_1, PARITY.P_EVEN, FLOWCONTROL.NONE);
+            opened = true;
+
+            if (progressListeners != null) {
+                listener = progressListeners.get(port);
+            }
+
+            step = "identify";
+            if (listener != null) {
+                listener.onPhaseStarted(ICmdDetailedProgressListener.PHASE_IDENTIFY);
+            }
+            if (entry != null) {
+                entry.enterBootloaderMode(uci);
+            }
+            dev = uci.initAndIdentifyDevice();
+            dev.setCancelToken(cancelToken);
+            pid = dev.pid;
+
+            step = "erase";
+            if (eraseMode == ERASE_MASS) {
+                if (listener != null) {
+                    listener.onPhaseStarted(ICmdDetailedProgressListener.PHASE_ERASE);
+                }
+                allowedCmds = dev.getAllowedCommands();
+                if ((allowedCmds & BLCMDS.ERASE) == BLCMDS.ERASE) {
+                    dev.eraseMemoryRegion(REGTYPE.MAIN, -1, -1);
+                } else {
+                    dev.extendedEraseMemoryRegion(REGTYPE.MAIN, -1, -1);
+                }
+            } else if (eraseMode == ERASE_FIRMWARE) {
+                dev.eraseMemoryForFirmware(fw, listener);
+            } else {
+            }
+
+            step = "write";
+            dev.writeMemory(fw, listener);
+
+            if (verify == true) {
+                step = "verify";
+                this.verify(dev, fw, listener);
+            }
+            step = null;
+        } catch (Exception e) {
+            return this.finish(uci, opened, new PortResult(port, pid, step,
+                    (e.getMessage() == null) ? e.toString() : e.getMessage(), System.currentTimeMillis() - start));
+        }
+
+        return this.finish(uci, opened, new PortResult(port, pid, null, null, System.currentTimeMillis() - start));
+    }
+
+    private PortResult finish(UARTInterface uci, boolean opened, PortResult result) {
+        if (opened == true) {
+            try {
+                uci.close();
+            } catch (Exception e) {
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Reads back every segment in chunks and compares with firmware.
+     */
+    private void verify(Device dev, SegmentedFirmware fw, ICmdDetailedProgressListener listener) throws Exception {
+
+        int x;
+        int len;
+        int offset;
+        int done = 0;
+        byte[] readBuf = new byte[4096];
+        ProgressMeter meter = ProgressMeter.start(listener, ICmdDetailedProgressListener.PHASE_VERIFY,
+                fw.getTotalLength());
+
+        for (SegmentedFirmware.Segment seg : fw.getSegments()) {
+            for (offset = 0; offset < seg.data.length; offset = offset + len) {
+                len = Math.min(readBuf.length, seg.data.length - offset);
+                dev.readMemory(readBuf, seg.address + offset, len, null);
+                for (x = 0; x < len; x++) {
+                    if (readBuf[x] != seg.data[offset + x]) {
+                        throw new IllegalStateException(
+                                "Mismatch at 0x" + Integer.toHexString(seg.address + offset + x));
+                    }
+                }
+                done = done + len;
+                if (meter != null) {
+                    meter.update(seg.address + offset + len, done, 0);
+                }
+            }
+        }
+    }
+}
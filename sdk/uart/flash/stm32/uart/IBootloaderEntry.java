@@ -0,0 +1,54 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.uart;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * The interface IBootloaderEntry should be implemented by a class who can put
+ * stm32 into bootloader mode again, for example by toggling DTR/RTS lines
+ * connected to BOOT0 and NRST pins.
+ * </p>
+ * 
+ * <p>
+ * Bootloader detects baudrate only once using the very first 0x7F byte it
+ * receives. When baudrate negotiation fails at a particular baudrate, stm32 must
+ * be reset into bootloader mode before trying next baudrate.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public interface IBootloaderEntry {
+
+    /**
+     * <p>
+     * Resets stm32 and makes it start executing bootloader. This method should
+     * return when bootloader is ready to receive init sequence.
+     * </p>
+     * 
+     * @param uci
+     *            serial port interface through which stm32 is connected
+     * @throws IOException
+     *             if the bootloader mode can not be entered
+     */
+    public abstract void enterBootloaderMode(UARTInterface uci) throws IOException;
+}
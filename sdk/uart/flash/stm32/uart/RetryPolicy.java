@@ -0,0 +1,122 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.uart;
+
+/**
+ * <p>
+ * Tells how a failed block of a read or write memory operation is retried
+ * instead of aborting the whole operation. Before every retry, host waits for
+ * backoff time (doubled for every further retry of same block), discards
+ * whatever stm32 is still sending and resynchronizes with bootloader by sending
+ * 0x7F until it answers, so that bootloader is again waiting for a command. A
+ * block whose write was not acknowledged is read back first and written again
+ * only if it differs.
+ * </p>
+ * 
+ * <p>
+ * If line errors (framing or parity) keep occurring, baudrate can be lowered.
+ * While flash loader is running it simply switches to the lower baudrate. The
+ * bootloader detects baudrate only after reset, so stm32 is reset and bootloader
+ * initialized again at the lower baudrate; BOOT0 must still be held high.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class RetryPolicy {
+
+    /**
+     * <p>
+     * Number of times a block is retried before the operation fails.
+     * </p>
+     */
+    public final int maxRetries;
+
+    /**
+     * <p>
+     * Time in milliseconds to wait before the first retry of a block.
+     * </p>
+     */
+    public final int backoffMillis;
+
+    /**
+     * <p>
+     * Baudrate to switch to after repeated line errors or 0 to never switch.
+     * </p>
+     */
+    public final int lowerBaudrate;
+
+    /**
+     * <p>
+     * Number of consecutive failed attempts with line errors after which
+     * baudrate is lowered.
+     * </p>
+     */
+    public final int lineErrorsBeforeDrop;
+
+    /**
+     * <p>
+     * Creates policy which retries every block given number of times and never
+     * changes baudrate.
+     * </p>
+     * 
+     * @param maxRetries
+     *            number of retries per block, for example 3
+     * @param backoffMillis
+     *            wait before first retry of a block in milliseconds, for example 10
+     * @throws IllegalArgumentException
+     *             if any argument is negative
+     */
+    public RetryPolicy(int maxRetries, int backoffMillis) {
+        this(maxRetries, backoffMillis, 0, 0);
+    }
+
+    /**
+     * <p>
+     * Creates policy which retries every block given number of times and lowers
+     * baudrate after given number of consecutive attempts failed with line
+     * errors.
+     * </p>
+     * 
+     * @param maxRetries
+     *            number of retries per block, for example 3
+     * @param backoffMillis
+     *            wait before first retry of a block in milliseconds, for example 10
+     * @param lowerBaudrate
+     *            baudrate to switch to, for example 57600, or 0 to never switch
+     * @param lineErrorsBeforeDrop
+     *            consecutive failed attempts with line errors before switching
+     * @throws IllegalArgumentException
+     *             if any argument is negative or lowerBaudrate is given without
+     *             lineErrorsBeforeDrop
+     */
+    public RetryPolicy(int maxRetries, int backoffMillis, int lowerBaudrate, int lineErrorsBeforeDrop) {
+        if ((maxRetries < 0) || (backoffMillis < 0) || (lowerBaudrate < 0) || (lineErrorsBeforeDrop < 0)) {
+            throw new IllegalArgumentException("Retry policy values can not be negative");
+        }
+        if ((lowerBaudrate > 0) && (lineErrorsBeforeDrop == 0)) {
+            throw new IllegalArgumentException("Number of line errors before lowering baudrate not given");
+        }
+        this.maxRetries = maxRetries;
+        this.backoffMillis = backoffMillis;
+        this.lowerBaudrate = lowerBaudrate;
+        this.lineErrorsBeforeDrop = lineErrorsBeforeDrop;
+    }
+}
@@ -151,6 +151,32 @@ public final class UARTDeviceManager {
         return null;
     }
 
+    /**
+     * <p>
+     * Gives an instance of UARTInterface without loading serial port library. It
+     * can only be opened with a transport given by caller, for example a
+     * TcpTransport or an EmulatorTransport connected to an in-process bootloader
+     * emulator.
+     * </p>
+     * 
+     * @param iface
+     *            set it to IFace.UART
+     * @return an instance of UARTInterface
+     */
+    public CommunicationInterface getCommunicationIface(IFace iface) {
+
+        if (iface == null) {
+            throw new IllegalArgumentException(rb.getString("inval.iface"));
+        }
+
+        int x = iface.getValue();
+        if (x == 1) {
+            return new UARTInterface(rb, flashUtils);
+        }
+
+        return null;
+    }
+
     /**
      * <p>
      * Try to parse and check if the given file is in intel hex format or not.
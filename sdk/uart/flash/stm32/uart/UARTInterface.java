@@ -21,14 +21,19 @@
 package flash.stm32.uart;
 
 import flash.stm32.uart.internal.UARTCommandExecutor;
+import flash.stm32.uart.transport.SerialComTransport;
+import flash.stm32.core.BootloaderSession;
 import flash.stm32.core.CommunicationInterface;
 import flash.stm32.core.Device;
 import flash.stm32.core.FlashUtils;
+import flash.stm32.core.ICmdMetricsListener;
+import flash.stm32.core.ITransport;
 
 import com.serialpundit.core.SerialComException;
 import com.serialpundit.serial.SerialComManager;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.ResourceBundle;
 import java.util.concurrent.TimeoutException;
 
@@ -42,11 +47,15 @@ import java.util.concurrent.TimeoutException;
  */
 public final class UARTInterface extends CommunicationInterface {
 
+    /* High baudrates tried when serial port library supports custom baudrates */
+    private static final int[] HIGH_BAUDRATES = new int[] { 230400, 460800, 921600 };
+
     private final ResourceBundle rb;
     private final SerialComManager scm;
     private final UARTCommandExecutor uartce;
 
-    private long comPortHandle;
+    private ITransport transport;
+    private int curBaudrate;
 
     /**
      * <p>
@@ -74,9 +83,31 @@ public final class UARTInterface extends CommunicationInterface {
 
         scm = new SerialComManager(libName, tmpDir, true, false);
 
-        uartce = new UARTCommandExecutor(scm, rb, flashUtils);
+        uartce = new UARTCommandExecutor(rb, flashUtils);
+    }
 
-        comPortHandle = -1;
+    /**
+     * <p>
+     * Allocates and prepares classes responsible for stm32 bootloader protocol
+     * implementation without loading serial port library. Such an interface can
+     * only be opened with a transport given by caller, for example a TcpTransport
+     * or an EmulatorTransport connected to an in-process bootloader emulator.
+     * </p>
+     * 
+     * @param rb
+     *            resource bundle currently active
+     * @param flashUtils
+     *            an instance of utility class to carry out common operations
+     */
+    public UARTInterface(ResourceBundle rb, FlashUtils flashUtils) {
+
+        super();
+
+        this.rb = rb;
+
+        scm = null;
+
+        uartce = new UARTCommandExecutor(rb, flashUtils);
     }
 
     /**
@@ -84,7 +115,7 @@ public final class UARTInterface extends CommunicationInterface {
      * Opens and configures serial port as per the given parameters. Although most
      * of the devices uses even parity, few devices may use no parity, therefore
      * proper documents should be referred for such devices. This also sets the
-     * minimum timeout to 500 milliseconds for reading data from serial port
+     * read timeout of serial port to 100 milliseconds.
      * </p>
      * 
      * <p>
@@ -115,20 +146,181 @@ public final class UARTInterface extends CommunicationInterface {
             SerialComManager.STOPBITS stopBits, SerialComManager.PARITY parity, SerialComManager.FLOWCONTROL flowCtrl)
             throws SerialComException {
 
-        comPortHandle = scm.openComPort(port, true, true, true);
+        this.open(port, baudRate.getValue(), dataBits, stopBits, parity, flowCtrl);
+    }
+
+    /**
+     * <p>
+     * Opens and configures serial port as per the given parameters. Baudrate is
+     * given as a number; any baudrate supported by serial port library can be used
+     * (see getSupportedBaudrates()), including high baudrates like 230400, 460800
+     * and 921600 when library supports them.
+     * </p>
+     * 
+     * <p>
+     * Data in input and output buffers is discarded (clear serial port buffers).
+     * </p>
+     * 
+     * @param port
+     *            serial port (COMxx/ttyXX) through which stm32 is connected to host
+     *            computer
+     * @param baudRate
+     *            rate of signal change used for communication, for example 115200
+     * @param dataBits
+     *            number of data bits a serial frame will contain, set to
+     *            DATABITS.DB_8
+     * @param stopBits
+     *            number of stop bits a serial frame will contain, set to
+     *            STOPBITS.SB_1
+     * @param parity
+     *            parity type for error checking, set to PARITY.P_EVEN
+     * @param flowCtrl
+     *            set to FLOWCONTROL.NONE as default bootloader does not use flow
+     *            control
+     * @throws SerialComException
+     *             if the port is not found, unable to open and configure it
+     * @throws IllegalArgumentException
+     *             if the given baudrate is not supported by serial port library
+     */
+    public void open(String port, int baudRate, SerialComManager.DATABITS dataBits,
+            SerialComManager.STOPBITS stopBits, SerialComManager.PARITY parity, SerialComManager.FLOWCONTROL flowCtrl)
+            throws SerialComException {
+
+        long comPortHandle;
 
-        scm.configureComPortData(comPortHandle, dataBits, stopBits, parity, baudRate, 0);
+        if (scm == null) {
+            throw new IllegalStateException(rb.getString("uart.nolib"));
+        }
 
+        /* validate before opening port so that nothing needs to be undone */
+        toBaudrate(baudRate);
+
+        comPortHandle = scm.openComPort(port, true, true, true);
+
+        scm.configureComPortData(comPortHandle, dataBits, stopBits, parity, toBaudrate(baudRate), baudRate);
         scm.configureComPortControl(comPortHandle, flowCtrl, 'x', 'x', false, false);
 
         /*
-         * 500 milliseconds timeout on serial port read. Some methods have timeouts
-         * which are multiple of this 500. So if this is changed update those methods
-         * also.
+         * 100 milliseconds timeout on serial port read. SerialComTransport repeats
+         * reads until the deadline given by caller, this is how late it may return.
          */
-        scm.fineTuneReadBehaviour(comPortHandle, 0, 5, 100, 5, 200);
+        scm.fineTuneReadBehaviour(comPortHandle, 0, 1, 100, 5, 100);
 
         scm.clearPortIOBuffers(comPortHandle, true, true);
+
+        transport = new SerialComTransport(scm, comPortHandle, dataBits, stopBits, parity);
+        curBaudrate = baudRate;
+    }
+
+    /**
+     * <p>
+     * Uses the given transport, for example a FileChannelTransport, TcpTransport
+     * or EmulatorTransport, instead of a serial port opened through serialpundit
+     * and sets it to the given baudrate. Data received but not read yet is
+     * discarded. Transport is closed when this interface is closed.
+     * </p>
+     * 
+     * @param transport
+     *            transport through which bootloader is reached
+     * @param baudRate
+     *            rate of signal change used for communication, for example 115200
+     * @throws IOException
+     *             if the transport can not be configured
+     */
+    @Override
+    public void open(ITransport transport, int baudRate) throws IOException {
+
+        this.transport = transport;
+        this.setBaudrate(baudRate);
+    }
+
+    /**
+     * <p>
+     * Changes baudrate of the opened serial port. Data in input and output buffers
+     * is discarded. Bootloader detects baudrate only from the first init sequence
+     * after reset, so stm32 must be put into bootloader mode again before
+     * communicating at the new baudrate.
+     * </p>
+     * 
+     * @param baudRate
+     *            new baudrate, for example 460800
+     * @throws IOException
+     *             if the port can not be configured
+     * @throws IllegalArgumentException
+     *             if the given baudrate is not supported by serial port library
+     */
+    public void setBaudrate(int baudRate) throws IOException {
+
+        toBaudrate(baudRate);
+
+        transport.setBaudrate(baudRate);
+        curBaudrate = baudRate;
+    }
+
+    /**
+     * <p>
+     * Gives baudrate serial port is currently configured at.
+     * </p>
+     * 
+     * @return current baudrate
+     */
+    public int getBaudrate() {
+        return curBaudrate;
+    }
+
+    /**
+     * <p>
+     * Gives baudrates which can be used with this interface in ascending order. It
+     * contains all standard baudrates known to serial port library. If library
+     * supports custom baudrates, 230400, 460800 and 921600 are also included;
+     * other custom baudrates may also be given to open() and setBaudrate().
+     * </p>
+     * 
+     * @return supported baudrates
+     */
+    public static int[] getSupportedBaudrates() {
+
+        int x = 0;
+        boolean custom = false;
+        SerialComManager.BAUDRATE[] all = SerialComManager.BAUDRATE.values();
+        int[] rates = new int[all.length + HIGH_BAUDRATES.length];
+
+        for (SerialComManager.BAUDRATE b : all) {
+            if (b.name().equals("BCUSTOM")) {
+                custom = true;
+            } else {
+                rates[x] = b.getValue();
+                x++;
+            }
+        }
+
+        if (custom == true) {
+            for (int rate : HIGH_BAUDRATES) {
+                if (Arrays.binarySearch(rates, 0, x, rate) < 0) {
+                    rates[x] = rate;
+                    x++;
+                }
+            }
+        }
+
+        rates = Arrays.copyOf(rates, x);
+        Arrays.sort(rates);
+        return rates;
+    }
+
+    /*
+     * Maps given baudrate to the constant expected by serialpundit, throws
+     * exception if library does not support it. Any baudrate is accepted when
+     * library is not used.
+     */
+    private SerialComManager.BAUDRATE toBaudrate(int baudRate) {
+
+        SerialComManager.BAUDRATE brate = SerialComTransport.toBaudrate(baudRate);
+
+        if ((brate == null) && (scm != null)) {
+            throw new IllegalArgumentException(rb.getString("baud.nsprt") + " " + baudRate);
+        }
+        return brate;
     }
 
     /**
@@ -136,12 +328,12 @@ public final class UARTInterface extends CommunicationInterface {
      * Closes opened serial port and release resources if any.
      * </p>
      * 
-     * @throws SerialComException
+     * @throws IOException
      *             if port can not be closed for some reason
      */
-    public void close() throws SerialComException {
+    public void close() throws IOException {
 
-        scm.closeComPort(comPortHandle);
+        transport.close();
     }
 
     /**
@@ -162,20 +354,227 @@ public final class UARTInterface extends CommunicationInterface {
      * should be selected.
      * </p>
      * 
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader sends NACK or timeout happens
      */
-    public Device initAndIdentifyDevice() throws SerialComException, TimeoutException {
+    public Device initAndIdentifyDevice() throws IOException, TimeoutException {
 
-        if (comPortHandle != -1) {
-            return uartce.initAndIdentifyDevice(comPortHandle);
+        if (transport != null) {
+            return uartce.initAndIdentifyDevice(transport);
         }
 
         throw new IllegalStateException(rb.getString("uart.notopen"));
     }
 
+    /**
+     * <p>
+     * Handshakes with bootloader again after stm32 has been reset by a command
+     * like readout unprotect, write protect or go to reset code. Only init
+     * sequence is sent; product id, bootloader version and supported commands
+     * found by last initAndIdentifyDevice() are kept as it is the same stm32. Use
+     * initAndIdentifyDevice() when a different stm32 may have been connected.
+     * </p>
+     * 
+     * @return an instance of Device class representing stm32 device
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader does not respond to init sequence
+     */
+    public Device reconnect() throws IOException, TimeoutException {
+
+        if (transport != null) {
+            return uartce.reconnect(transport);
+        }
+
+        throw new IllegalStateException(rb.getString("uart.notopen"));
+    }
+
+    /**
+     * <p>
+     * Gives product id, bootloader version and supported commands found during
+     * last handshake with bootloader.
+     * </p>
+     * 
+     * @return session or null if device has not been identified yet
+     */
+    public BootloaderSession getSession() {
+        return uartce.getSession();
+    }
+
+    /**
+     * <p>
+     * Negotiates the fastest working baudrate. Baudrates are tried in the given
+     * order (fastest first); at each baudrate init sequence 0x7F is sent and if
+     * bootloader does not respond, next baudrate is tried. Stm32 must already be
+     * in bootloader mode before calling this method.
+     * </p>
+     * 
+     * <p>
+     * Bootloader locks on to the baudrate of the first 0x7F it receives. Therefore
+     * before every attempt other than the first, stm32 is put into bootloader mode
+     * again using the given entry handler. If no handler is given, next baudrate is
+     * tried without reset which works only if bootloader did not detect anything
+     * at previous baudrate.
+     * </p>
+     * 
+     * @param baudRates
+     *            baudrates to try, fastest first
+     * @param entry
+     *            puts stm32 into bootloader mode again, or null
+     * @return an instance of Device class representing stm32 device
+     * @throws IOException
+     *             if an error happens when communicating through serial port or
+     *             bootloader mode can not be entered
+     * @throws TimeoutException
+     *             when bootloader does not respond at any of the given baudrates
+     */
+    public Device initAndIdentifyDevice(int[] baudRates, IBootloaderEntry entry)
+            throws IOException, TimeoutException {
+
+        int x;
+        TimeoutException lastException = null;
+
+        if (transport == null) {
+            throw new IllegalStateException(rb.getString("uart.notopen"));
+        }
+        if ((baudRates == null) || (baudRates.length == 0)) {
+            throw new IllegalArgumentException(rb.getString("inval.baud.list"));
+        }
+
+        for (x = 0; x < baudRates.length; x++) {
+            this.setBaudrate(baudRates[x]);
+            if ((x > 0) && (entry != null)) {
+                entry.enterBootloaderMode(this);
+            }
+            try {
+                return uartce.initAndIdentifyDevice(transport);
+            } catch (TimeoutException e) {
+                lastException = e;
+            }
+        }
+
+        throw lastException;
+    }
+
+    /**
+     * <p>
+     * Enables or disables pipelining of write memory commands. When enabled, next
+     * block is prepared while stm32 is still programming previous block. ACKs are
+     * read with a blocking read whether or not pipelining is enabled, so this only
+     * overlaps host side preparation of the frame and does not noticeably change
+     * write throughput. Disabled by default.
+     * </p>
+     * 
+     * @param enable
+     *            true to enable pipelined writes
+     */
+    public void setWritePipelining(boolean enable) {
+        uartce.setWritePipelining(enable);
+    }
+
+    /**
+     * <p>
+     * Enables or disables verification of main flash while it is being written.
+     * After every given number of 256 byte blocks written, these blocks are read
+     * back and compared, so a write operation fails close to the failing page
+     * rather than after the whole firmware has been written. Disabled by default.
+     * </p>
+     * 
+     * @param windowBlocks
+     *            number of blocks written between two read backs, for example 16,
+     *            or 0 to disable
+     * @throws IllegalArgumentException
+     *             if windowBlocks is negative
+     */
+    public void setWriteVerify(int windowBlocks) {
+        if (windowBlocks < 0) {
+            throw new IllegalArgumentException(rb.getString("inval.vw.blocks") + " " + windowBlocks);
+        }
+        uartce.setWriteVerify(windowBlocks);
+    }
+
+    /**
+     * <p>
+     * Enables or disables use of flash loader stub for writing to main flash. The
+     * stub is run from stm32 RAM and programs frames of up to 16 KiB sent with
+     * CRC32, optionally at a higher baudrate. At the end of write operation stm32
+     * is reset and bootloader is initialized again at the original baudrate, so
+     * BOOT0 must still be held high. Devices not supported by the stub are written
+     * using bootloader as usual. Disabled by default.
+     * </p>
+     * 
+     * @param enable
+     *            true to use flash loader
+     * @param baudRate
+     *            baudrate to be used while stub is running, for example 921600, or
+     *            0 to keep current baudrate
+     * @throws IllegalArgumentException
+     *             if the given baudrate is not supported by serial port library
+     */
+    public void setFlashLoader(boolean enable, int baudRate) {
+        if (baudRate != 0) {
+            toBaudrate(baudRate);
+        }
+        uartce.setFlashLoader(enable, baudRate, this);
+    }
+
+    /**
+     * <p>
+     * Tells why flash loader stub enabled through setFlashLoader() has not been
+     * used. Stub runs only when bootloader is reached through USART1 of STM32F0,
+     * F1, F2, F3 or F4; otherwise (for example STM32L4 or USART2 of a nucleo
+     * virtual COM port) main flash is written using bootloader as usual.
+     * </p>
+     * 
+     * @return localized reason or null if stub has not been refused
+     */
+    public String getFlashLoaderRefusal() {
+        return uartce.getFlashLoaderRefusal();
+    }
+
+    /**
+     * <p>
+     * Sets policy for retrying a block of read or write memory operation which
+     * fails because of NACK, timeout or line errors, instead of failing the whole
+     * operation. Retries are reported to progress listeners which implement
+     * ICmdRetryListener. Frames of flash loader are always resent up to 3 times
+     * when received with bad CRC; with a policy they are resent as many times as
+     * policy allows and the lower baudrate of policy is used by the loader after
+     * repeated bad frames. By default no block is retried.
+     * </p>
+     * 
+     * @param policy
+     *            retry policy or null to fail on first error
+     * @throws IllegalArgumentException
+     *             if lower baudrate of policy is not supported by serial port
+     *             library
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        if ((policy != null) && (policy.lowerBaudrate != 0)) {
+            toBaudrate(policy.lowerBaudrate);
+        }
+        uartce.setRetryPolicy(policy, this);
+    }
+
+    /**
+     * <p>
+     * Sets listener to which every frame sent to bootloader is reported with its
+     * answer and latency, for example a CommandMetrics collecting histograms per
+     * command or a flash.stm32.jfr.JfrCommandMetrics (optional progstm32-jfr jar)
+     * emitting flight recorder events. Frames of flash loader are not reported as
+     * they are not bootloader commands.
+     * </p>
+     * 
+     * @param listener
+     *            metrics listener or null to stop reporting (default)
+     */
+    public void setCommandMetrics(ICmdMetricsListener listener) {
+        uartce.setCommandMetrics(listener);
+    }
+
     /**
      * <p>
      * Sets the DTR signal of the host side serial port to the given value.
@@ -184,11 +583,12 @@ public final class UARTInterface extends CommunicationInterface {
      * @param value
      *            true or false corresponding to the voltage level desired at
      *            hardware level
-     * @throws SerialComException
-     *             if an error happens when communicating through serial port
+     * @throws IOException
+     *             if an error happens when communicating through serial port or
+     *             transport has no DTR signal
      */
-    public void setDTR(boolean value) throws SerialComException {
-        scm.setDTR(comPortHandle, value);
+    public void setDTR(boolean value) throws IOException {
+        transport.setDTR(value);
     }
 
     /**
@@ -199,10 +599,11 @@ public final class UARTInterface extends CommunicationInterface {
      * @param value
      *            true or false corresponding to the voltage level desired at
      *            hardware level
-     * @throws SerialComException
-     *             if an error happens when communicating through serial port
+     * @throws IOException
+     *             if an error happens when communicating through serial port or
+     *             transport has no RTS signal
      */
-    public void setRTS(boolean value) throws SerialComException {
-        scm.setRTS(comPortHandle, value);
+    public void setRTS(boolean value) throws IOException {
+        transport.setRTS(value);
     }
 }
@@ -0,0 +1,753 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.uart.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import flash.stm32.core.Device;
+import flash.stm32.core.FlashGeometry;
+import flash.stm32.core.internal.DeviceCreator;
+
+/**
+ * <p>
+ * Software model of the USART bootloader of stm32 as described in AN3155. It
+ * understands Get, Get Version and Read Protection Status, Get ID, Read
+ * Memory, Go, Write Memory, Erase, Extended Erase and the write and readout
+ * protection commands, and keeps simulated memory whose main flash has the
+ * geometry of the device with the given pid as known to DeviceCreator.
+ * </p>
+ * 
+ * <p>
+ * Main flash behaves like real flash; programming can only clear bits, so
+ * writing to a location which is not erased is answered with NACK just like
+ * writing to a write protected page. Erase sets pages to 0xFF. Other memory
+ * (RAM, system memory, option bytes, data EEPROM) is plain storage initialized
+ * to 0xFF. Addresses in main flash, from 0x08000000 to 0x0FFFFFFF and from
+ * 0x1FF00000 to 0x3FFFFFFF are accepted by read and write memory commands,
+ * any other address is answered with NACK.
+ * </p>
+ * 
+ * <p>
+ * Go and the protection commands end with a system reset after which the
+ * emulator again waits for init sequence 0x7F, as real bootloader does when
+ * BOOT0 is held high. Code written to RAM is not executed, so the flash loader
+ * stub and CRC program run from RAM are not emulated.
+ * </p>
+ * 
+ * <p>
+ * Time taken by erase and programming of main flash is given to the transport
+ * through which emulator is reached, which delays the answer accordingly.
+ * Emulator is connected to UARTInterface through an EmulatorTransport, or
+ * through an EmulatorServer and a TcpTransport.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class BootloaderEmulator {
+
+    private static final byte ACK = 0x79;
+    private static final byte NACK = 0x1F;
+
+    /* waiting for init sequence after reset */
+    private static final int ST_INIT = 0;
+    /* waiting for command code and its complement */
+    private static final int ST_CMD = 1;
+    private static final int ST_CMD_XOR = 2;
+    /* collecting frames of commands */
+    private static final int ST_ADDR = 3;
+    private static final int ST_READ_NUM = 4;
+    private static final int ST_WRITE_DATA = 5;
+    private static final int ST_ERASE = 6;
+    private static final int ST_EXT_ERASE = 7;
+    private static final int ST_WRITE_PROTECT = 8;
+
+    private static final int CMD_GET = 0x00;
+    private static final int CMD_GET_VRPS = 0x01;
+    private static final int CMD_GET_ID = 0x02;
+    private static final int CMD_READ_MEMORY = 0x11;
+    private static final int CMD_GO = 0x21;
+    private static final int CMD_WRITE_MEMORY = 0x31;
+    private static final int CMD_ERASE = 0x43;
+    private static final int CMD_EXTD_ERASE = 0x44;
+    private static final int CMD_WRITE_PROTECT = 0x63;
+    private static final int CMD_WRITE_UNPROTECT = 0x73;
+    private static final int CMD_READOUT_PROTECT = 0x82;
+    private static final int CMD_READOUT_UNPROTECT = 0x92;
+
+    /* memory outside main flash is allocated in chunks of this size when written */
+    private static final int CHUNK_SIZE = 1024;
+
+    private final int pid;
+    private final int version;
+    private final int[] commands;
+    private final FlashGeometry geometry;
+    private final byte[] flash;
+    private final boolean[] writeProtected;
+    private final HashMap<Integer, byte[]> otherMemory;
+
+    /* frame being received, large enough for extended erase of all pages */
+    private final byte[] frame = new byte[(2 * 65536) + 3];
+    private int frameLen;
+    private int frameNeed;
+
+    private int state;
+    private int cmd;
+    private int addr;
+    private boolean readProtected;
+    private long eraseNanosPerKiB;
+    private long programNanosPerKiB;
+
+    /**
+     * <p>
+     * Allocates an instance of BootloaderEmulator class emulating bootloader
+     * version 3.1 (extended erase) of the device with the given pid. Main flash
+     * is erased and timing defaults to 20 ms per KiB for erase and 8 ms per KiB
+     * for programming.
+     * </p>
+     * 
+     * @param pid
+     *            product id of stm32 device to be emulated, for example 0x415
+     * @throws IllegalArgumentException
+     *             if flash geometry of the given pid is not known
+     */
+    public BootloaderEmulator(int pid) {
+        this(pid, 0x31);
+    }
+
+    /**
+     * <p>
+     * Allocates an instance of BootloaderEmulator class. Bootloader versions below
+     * 3.0 support erase command (0x43), others extended erase command (0x44).
+     * </p>
+     * 
+     * @param pid
+     *            product id of stm32 device to be emulated, for example 0x415
+     * @param version
+     *            bootloader version reported by Get command, for example 0x31 for
+     *            v3.1
+     * @throws IllegalArgumentException
+     *             if flash geometry of the given pid is not known
+     */
+    public BootloaderEmulator(int pid, int version) {
+
+        Device dev = new DeviceCreator().createDevFromPID(pid, null);
+
+        if (dev.flashGeometry == null) {
+            throw new IllegalArgumentException("Unknown pid " + Integer.toHexString(pid));
+        }
+
+        this.pid = pid;
+        this.version = version & 0xFF;
+        if (this.version < 0x30) {
+            commands = new int[] { CMD_GET, CMD_GET_VRPS, CMD_GET_ID, CMD_READ_MEMORY, CMD_GO, CMD_WRITE_MEMORY,
+                    CMD_ERASE, CMD_WRITE_PROTECT, CMD_WRITE_UNPROTECT, CMD_READOUT_PROTECT,
+                    CMD_READOUT_UNPROTECT };
+        } else {
+            commands = new int[] { CMD_GET, CMD_GET_VRPS, CMD_GET_ID, CMD_READ_MEMORY, CMD_GO, CMD_WRITE_MEMORY,
+                    CMD_EXTD_ERASE, CMD_WRITE_PROTECT, CMD_WRITE_UNPROTECT, CMD_READOUT_PROTECT,
+                    CMD_READOUT_UNPROTECT };
+        }
+
+        geometry = dev.flashGeometry;
+        flash = new byte[geometry.getFlashSize()];
+        Arrays.fill(flash, (byte) 0xFF);
+        writeProtected = new boolean[geometry.getNumPages()];
+        otherMemory = new HashMap<Integer, byte[]>();
+
+        this.setFlashTiming(20000, 8000);
+        state = ST_INIT;
+    }
+
+    /**
+     * <p>
+     * Sets time main flash takes to erase and program. Erase time of a page is
+     * proportional to its size. Use 0 for both to get answers as soon as they
+     * can be sent.
+     * </p>
+     * 
+     * @param eraseMicrosPerKiB
+     *            erase time in microseconds per KiB of flash
+     * @param programMicrosPerKiB
+     *            programming time in microseconds per KiB of data
+     * @throws IllegalArgumentException
+     *             if any of the times is negative
+     */
+    public synchronized void setFlashTiming(int eraseMicrosPerKiB, int programMicrosPerKiB) {
+        if ((eraseMicrosPerKiB < 0) || (programMicrosPerKiB < 0)) {
+            throw new IllegalArgumentException("Invalid flash timing");
+        }
+        eraseNanosPerKiB = eraseMicrosPerKiB * 1000L;
+        programNanosPerKiB = programMicrosPerKiB * 1000L;
+    }
+
+    /**
+     * <p>
+     * Gives product id of emulated device.
+     * </p>
+     * 
+     * @return pid
+     */
+    public int getPID() {
+        return pid;
+    }
+
+    /**
+     * <p>
+     * Gives flash geometry of emulated device.
+     * </p>
+     * 
+     * @return flash geometry
+     */
+    public FlashGeometry getFlashGeometry() {
+        return geometry;
+    }
+
+    /**
+     * <p>
+     * Tells whether readout protection is active.
+     * </p>
+     * 
+     * @return true if readout protected
+     */
+    public synchronized boolean isReadProtected() {
+        return readProtected;
+    }
+
+    /**
+     * <p>
+     * Tells whether given page of main flash is write protected.
+     * </p>
+     * 
+     * @param page
+     *            page number
+     * @return true if page is write protected
+     */
+    public synchronized boolean isWriteProtected(int page) {
+        return writeProtected[page];
+    }
+
+    /**
+     * <p>
+     * Gives contents of simulated memory, for example to check what has been
+     * written.
+     * </p>
+     * 
+     * @param startAddr
+     *            address of first byte
+     * @param length
+     *            number of bytes
+     * @return memory contents
+     */
+    public synchronized byte[] readMemory(int startAddr, int length) {
+
+        int x;
+        byte[] data = new byte[length];
+
+        for (x = 0; x < length; x++) {
+            data[x] = this.getByte(startAddr + x);
+        }
+        return data;
+    }
+
+    /**
+     * <p>
+     * Stores given data in simulated memory as is, for example to load firmware
+     * before a test. Flash programming rules and write protection do not apply.
+     * </p>
+     * 
+     * @param startAddr
+     *            address of first byte
+     * @param data
+     *            bytes to be stored
+     */
+    public synchronized void loadMemory(int startAddr, byte[] data) {
+
+        int x;
+
+        for (x = 0; x < data.length; x++) {
+            this.putByte(startAddr + x, data[x]);
+        }
+    }
+
+    /**
+     * <p>
+     * Resets emulated device; bootloader starts again waiting for init sequence.
+     * </p>
+     */
+    public synchronized void reset() {
+        state = ST_INIT;
+    }
+
+    /**
+     * <p>
+     * Tells whether bootloader is waiting for init sequence, that is whether it
+     * will detect baudrate from the next byte.
+     * </p>
+     * 
+     * @return true if waiting for 0x7F
+     */
+    synchronized boolean isWaitingForInit() {
+        return state == ST_INIT;
+    }
+
+    /**
+     * <p>
+     * Processes one byte received from host. Bytes to be sent to host in response
+     * are appended to answer.
+     * </p>
+     * 
+     * @param data
+     *            byte received
+     * @param answer
+     *            where response is stored
+     * @return time in nanoseconds bootloader is busy before sending the response
+     */
+    synchronized long receive(int data, ByteArrayOutputStream answer) {
+
+        int x;
+        long busy = 0;
+
+        data = data & 0xFF;
+
+        switch (state) {
+        case ST_INIT:
+            if (data == 0x7F) {
+                answer.write(ACK);
+                state = ST_CMD;
+            }
+            break;
+
+        case ST_CMD:
+            cmd = data;
+            state = ST_CMD_XOR;
+            break;
+
+        case ST_CMD_XOR:
+            state = ST_CMD;
+            if (data != (cmd ^ 0xFF)) {
+                answer.write(NACK);
+            } else {
+                busy = this.startCommand(answer);
+            }
+            break;
+
+        default:
+            frame[frameLen] = (byte) data;
+            frameLen++;
+            if (frameLen == 1) {
+                this.frameStarted();
+            } else if ((frameLen == 2) && (state == ST_EXT_ERASE)) {
+                x = ((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF);
+                frameNeed = (x >= 0xFFF0) ? 3 : ((2 * (x + 1)) + 3);
+            } else {
+            }
+            if (frameLen == frameNeed) {
+                busy = this.frameReceived(answer);
+            }
+            break;
+        }
+
+        return busy;
+    }
+
+    /*
+     * Acknowledges valid command code and sends its response or prepares for
+     * its frames.
+     */
+    private long startCommand(ByteArrayOutputStream answer) {
+
+        int x;
+        long busy = 0;
+
+        for (x = 0; x < commands.length; x++) {
+            if (commands[x] == cmd) {
+                break;
+            }
+        }
+        if (x == commands.length) {
+            answer.write(NACK);
+            return 0;
+        }
+
+        /* while readout protected only these commands are allowed */
+        if ((readProtected == true) && (cmd != CMD_GET) && (cmd != CMD_GET_VRPS) && (cmd != CMD_GET_ID)
+                && (cmd != CMD_READOUT_UNPROTECT)) {
+            answer.write(NACK);
+            return 0;
+        }
+
+        answer.write(ACK);
+        frameLen = 0;
+        frameNeed = 5;
+
+        switch (cmd) {
+        case CMD_GET:
+            answer.write(commands.length);
+            answer.write(version);
+            for (x = 0; x < commands.length; x++) {
+                answer.write(commands[x]);
+            }
+            answer.write(ACK);
+            break;
+        case CMD_GET_VRPS:
+            answer.write(version);
+            answer.write(0x00);
+            answer.write(0x00);
+            answer.write(ACK);
+            break;
+        case CMD_GET_ID:
+            answer.write(1);
+            answer.write(pid >> 8);
+            answer.write(pid);
+            answer.write(ACK);
+            break;
+        case CMD_READ_MEMORY:
+        case CMD_GO:
+        case CMD_WRITE_MEMORY:
+            state = ST_ADDR;
+            break;
+        case CMD_ERASE:
+            state = ST_ERASE;
+            break;
+        case CMD_EXTD_ERASE:
+            state = ST_EXT_ERASE;
+            break;
+        case CMD_WRITE_PROTECT:
+            state = ST_WRITE_PROTECT;
+            break;
+        case CMD_WRITE_UNPROTECT:
+            Arrays.fill(writeProtected, false);
+            answer.write(ACK);
+            state = ST_INIT;
+            break;
+        case CMD_READOUT_PROTECT:
+            readProtected = true;
+            answer.write(ACK);
+            state = ST_INIT;
+            break;
+        case CMD_READOUT_UNPROTECT:
+            /* whole flash is erased when protection is removed */
+            Arrays.fill(writeProtected, false);
+            busy = this.erasePages(0, geometry.getNumPages());
+            readProtected = false;
+            answer.write(ACK);
+            state = ST_INIT;
+            break;
+        default:
+            break;
+        }
+
+        return busy;
+    }
+
+    /*
+     * First byte of a frame gives length of frames of write memory, erase and
+     * write protect commands.
+     */
+    private void frameStarted() {
+
+        int n = frame[0] & 0xFF;
+
+        switch (state) {
+        case ST_READ_NUM:
+            frameNeed = 2;
+            break;
+        case ST_WRITE_DATA:
+            frameNeed = n + 3;
+            break;
+        case ST_ERASE:
+            frameNeed = (n == 0xFF) ? 2 : (n + 3);
+            break;
+        case ST_EXT_ERASE:
+            frameNeed = 3;
+            break;
+        case ST_WRITE_PROTECT:
+            frameNeed = n + 3;
+            break;
+        default:
+            break;
+        }
+    }
+
+    /*
+     * Executes command once its frame is complete.
+     */
+    private long frameReceived(ByteArrayOutputStream answer) {
+
+        int x;
+        int n;
+        int first;
+        int numPages;
+        long busy = 0;
+        boolean ok = this.checksum(frameLen) == 0;
+
+        switch (state) {
+        case ST_ADDR:
+            addr = ((frame[0] & 0xFF) << 24) | ((frame[1] & 0xFF) << 16) | ((frame[2] & 0xFF) << 8)
+                    | (frame[3] & 0xFF);
+            if ((ok == false) || (this.isValidAddress(addr) == false)) {
+                answer.write(NACK);
+                state = ST_CMD;
+                break;
+            }
+            answer.write(ACK);
+            frameLen = 0;
+            if (cmd == CMD_READ_MEMORY) {
+                state = ST_READ_NUM;
+            } else if (cmd == CMD_WRITE_MEMORY) {
+                state = ST_WRITE_DATA;
+            } else {
+                /* go, jumped to code resets system in the end */
+                state = ST_INIT;
+            }
+            break;
+
+        case ST_READ_NUM:
+            n = (frame[0] & 0xFF) + 1;
+            state = ST_CMD;
+            if ((ok == false) || (this.isValidAddress(addr + n - 1) == false)) {
+                answer.write(NACK);
+                break;
+            }
+            answer.write(ACK);
+            for (x = 0; x < n; x++) {
+                answer.write(this.getByte(addr + x));
+            }
+            break;
+
+        case ST_WRITE_DATA:
+            n = (frame[0] & 0xFF) + 1;
+            state = ST_CMD;
+            if ((ok == false) || (this.isValidAddress(addr + n - 1) == false)) {
+                answer.write(NACK);
+                break;
+            }
+            busy = this.program(addr, n);
+            answer.write((busy >= 0) ? ACK : NACK);
+            break;
+
+        case ST_ERASE:
+            state = ST_CMD;
+            n = frame[0] & 0xFF;
+            if (ok == false) {
+                answer.write(NACK);
+            } else if (n == 0xFF) {
+                busy = this.eraseRange(0, geometry.getNumPages(), answer);
+            } else {
+                busy = this.erasePageList(1, n + 1, 1, answer);
+            }
+            break;
+
+        case ST_EXT_ERASE:
+            state = ST_CMD;
+            n = ((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF);
+            numPages = geometry.getNumPages();
+            first = (geometry.bank2FirstPage > 0) ? geometry.bank2FirstPage : numPages;
+            if (ok == false) {
+                answer.write(NACK);
+            } else if (n == 0xFFFF) {
+                busy = this.eraseRange(0, numPages, answer);
+            } else if ((n == 0xFFFE) && (first < numPages)) {
+                busy = this.eraseRange(0, first, answer);
+            } else if ((n == 0xFFFD) && (first < numPages)) {
+                busy = this.eraseRange(first, numPages - first, answer);
+            } else if (n >= 0xFFF0) {
+                answer.write(NACK);
+            } else {
+                busy = this.erasePageList(2, n + 1, 2, answer);
+            }
+            break;
+
+        case ST_WRITE_PROTECT:
+            n = (frame[0] & 0xFF) + 1;
+            for (x = 1; x <= n; x++) {
+                if ((frame[x] & 0xFF) >= writeProtected.length) {
+                    ok = false;
+                }
+            }
+            if (ok == false) {
+                answer.write(NACK);
+                state = ST_CMD;
+                break;
+            }
+            for (x = 1; x <= n; x++) {
+                writeProtected[frame[x] & 0xFF] = true;
+            }
+            answer.write(ACK);
+            state = ST_INIT;
+            break;
+
+        default:
+            break;
+        }
+
+        return busy;
+    }
+
+    /*
+     * Xor of all bytes of frame, 0 when checksum is correct. Address and number
+     * of bytes frames carry complement or xor of the bytes before last one, so
+     * same check applies to all frames.
+     */
+    private int checksum(int len) {
+
+        int x;
+        int res = 0;
+
+        for (x = 0; x < len; x++) {
+            res = res ^ frame[x];
+        }
+        if ((state == ST_READ_NUM) || ((state == ST_ERASE) && (len == 2) && (frame[0] == (byte) 0xFF))) {
+            /* N and its complement, or 0xFF and 0x00 */
+            res = res ^ 0xFF;
+        }
+        return res & 0xFF;
+    }
+
+    /*
+     * Erases pages given as list in frame, each page number is of given size.
+     */
+    private long erasePageList(int offset, int count, int size, ByteArrayOutputStream answer) {
+
+        int x;
+        int page;
+        long busy = 0;
+        int[] pages = new int[count];
+
+        for (x = 0; x < count; x++) {
+            if (size == 1) {
+                page = frame[offset + x] & 0xFF;
+            } else {
+                page = ((frame[offset + (2 * x)] & 0xFF) << 8) | (frame[offset + (2 * x) + 1] & 0xFF);
+            }
+            if ((page >= writeProtected.length) || (writeProtected[page] == true)) {
+                answer.write(NACK);
+                return 0;
+            }
+            pages[x] = page;
+        }
+        for (x = 0; x < count; x++) {
+            busy = busy + this.erasePages(pages[x], 1);
+        }
+        answer.write(ACK);
+        return busy;
+    }
+
+    /*
+     * Erases consecutive pages unless one of them is write protected.
+     */
+    private long eraseRange(int firstPage, int numPages, ByteArrayOutputStream answer) {
+
+        int x;
+
+        for (x = firstPage; x < (firstPage + numPages); x++) {
+            if (writeProtected[x] == true) {
+                answer.write(NACK);
+                return 0;
+            }
+        }
+        answer.write(ACK);
+        return this.erasePages(firstPage, numPages);
+    }
+
+    private long erasePages(int firstPage, int numPages) {
+
+        int start = geometry.getPageAddress(firstPage) - geometry.flashStartAddr;
+        int end = geometry.getPageAddress(firstPage + numPages - 1) + geometry.getPageSize(firstPage + numPages - 1)
+                - geometry.flashStartAddr;
+
+        Arrays.fill(flash, start, end, (byte) 0xFF);
+        return ((end - start) * eraseNanosPerKiB) / 1024;
+    }
+
+    /*
+     * Writes data frame to memory. Returns time taken or -1 if a flash location
+     * is write protected or not erased, in which case nothing is written.
+     */
+    private long program(int startAddr, int length) {
+
+        int x;
+        int page;
+        int inFlash = 0;
+        byte cur;
+
+        for (x = 0; x < length; x++) {
+            page = geometry.getPageNumber(startAddr + x);
+            if (page >= 0) {
+                cur = this.getByte(startAddr + x);
+                if ((writeProtected[page] == true) || ((cur & frame[x + 1]) != frame[x + 1])) {
+                    return -1;
+                }
+                inFlash++;
+            }
+        }
+
+        for (x = 0; x < length; x++) {
+            this.putByte(startAddr + x, frame[x + 1]);
+        }
+        return (inFlash * programNanosPerKiB) / 1024;
+    }
+
+    private boolean isValidAddress(int address) {
+
+        long a = address & 0xFFFFFFFFL;
+
+        if (geometry.getPageNumber(address) >= 0) {
+            return true;
+        }
+        return ((a >= 0x08000000L) && (a <= 0x0FFFFFFFL)) || ((a >= 0x1FF00000L) && (a <= 0x3FFFFFFFL));
+    }
+
+    private byte getByte(int address) {
+
+        byte[] chunk;
+        int page = geometry.getPageNumber(address);
+
+        if (page >= 0) {
+            return flash[address - geometry.flashStartAddr];
+        }
+        chunk = otherMemory.get(address & ~(CHUNK_SIZE - 1));
+        if (chunk == null) {
+            return (byte) 0xFF;
+        }
+        return chunk[address & (CHUNK_SIZE - 1)];
+    }
+
+    private void putByte(int address, byte data) {
+
+        byte[] chunk;
+        int page = geometry.getPageNumber(address);
+
+        if (page >= 0) {
+            flash[address - geometry.flashStartAddr] = data;
+            return;
+        }
+        chunk = otherMemory.get(address & ~(CHUNK_SIZE - 1));
+        if (chunk == null) {
+            chunk = new byte[CHUNK_SIZE];
+            Arrays.fill(chunk, (byte) 0xFF);
+            otherMemory.put(address & ~(CHUNK_SIZE - 1), chunk);
+        }
+        chunk[address & (CHUNK_SIZE - 1)] = data;
+    }
+}
@@ -0,0 +1,210 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.uart.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * Local stand-in for a serial port server such as ser2net in raw mode, with a
+ * BootloaderEmulator at the other end of the line. Lets TcpTransport and
+ * anything built upon it be tested without network hardware or stm32.
+ * </p>
+ * 
+ * <p>
+ * Server listens on loopback address only and serves one connection at a time
+ * from a daemon thread. Bytes received are given to emulator as they arrive and
+ * its answers are sent back right away; answer is delayed by the time emulator
+ * is busy erasing or programming flash. Serial line timing is not modelled,
+ * use EmulatorTransport for that.
+ * </p>
+ * 
+ * <pre>
+ * EmulatorServer server = new EmulatorServer(new BootloaderEmulator(0x415), 0);
+ * server.start();
+ * uci.open(new TcpTransport("localhost", server.getPort()), 115200);
+ * </pre>
+ * 
+ * @author Rishi Gupta
+ */
+public final class EmulatorServer {
+
+    private final BootloaderEmulator emu;
+    private final ServerSocket serverSocket;
+    private Thread worker;
+    private volatile boolean running;
+
+    /**
+     * <p>
+     * Binds a server for given emulator to the loopback address.
+     * </p>
+     * 
+     * @param emu
+     *            emulator serving connections
+     * @param port
+     *            TCP port to listen on, 0 for any free port
+     * @throws IOException
+     *             if port can not be bound
+     */
+    public EmulatorServer(BootloaderEmulator emu, int port) throws IOException {
+
+        if (emu == null) {
+            throw new IllegalArgumentException("Emulator can not be null");
+        }
+
+        this.emu = emu;
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * <p>
+     * Gives TCP port the server is listening on.
+     * </p>
+     * 
+     * @return port number
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * <p>
+     * Gives emulator behind this server.
+     * </p>
+     * 
+     * @return emulator
+     */
+    public BootloaderEmulator getEmulator() {
+        return emu;
+    }
+
+    /**
+     * <p>
+     * Starts accepting connections.
+     * </p>
+     * 
+     * @throws IllegalStateException
+     *             if server is already running
+     */
+    public synchronized void start() {
+
+        if (worker != null) {
+            throw new IllegalStateException("Server already started");
+        }
+
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "progstm32-emulator-server");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * <p>
+     * Stops accepting connections and closes the listening socket. A connection
+     * being served ends when client closes it.
+     * </p>
+     * 
+     * @throws IOException
+     *             if socket can not be closed
+     */
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+    }
+
+    private void serve() {
+
+        Socket client;
+
+        while (running == true) {
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            try {
+                this.relay(client);
+            } catch (IOException e) {
+                /* client went away, wait for next one */
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /*
+     * Same byte by byte feeding as EmulatorTransport, answers go out as soon as
+     * emulator gives them.
+     */
+    private void relay(Socket client) throws IOException {
+
+        int x;
+        int y;
+        int len;
+        long busy;
+        byte[] buf = new byte[4096];
+        ByteArrayOutputStream answer = new ByteArrayOutputStream(300);
+        InputStream in;
+        OutputStream out;
+
+        client.setTcpNoDelay(true);
+        in = client.getInputStream();
+        out = client.getOutputStream();
+
+        while (true) {
+            len = in.read(buf);
+            if (len < 0) {
+                return;
+            }
+            for (x = 0; x < len; x++) {
+                answer.reset();
+                synchronized (emu) {
+                    busy = emu.receive(buf[x], answer);
+                }
+                if (busy > 0) {
+                    LockSupport.parkNanos(busy);
+                }
+                y = answer.size();
+                if (y > 0) {
+                    answer.writeTo(out);
+                }
+            }
+            out.flush();
+        }
+    }
+}
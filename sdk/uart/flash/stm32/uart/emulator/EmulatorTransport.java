@@ -0,0 +1,344 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.uart.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+import flash.stm32.core.ITransport;
+
+/**
+ * <p>
+ * In-memory transport connecting UARTInterface to a BootloaderEmulator, so that
+ * bootloader protocol code can be run and benchmarked without stm32 hardware.
+ * </p>
+ * 
+ * <p>
+ * Timing of a serial line is modelled; every byte takes 11 bit times (start
+ * bit, 8 data bits, even parity and stop bit) at the current baudrate in each
+ * direction, bootloader processes bytes in the order they arrive and is busy
+ * while erasing or programming flash. Bytes sent by bootloader in one go are
+ * given to reads once the last of them has arrived, like USB serial adapters
+ * deliver them. Reads wait for data in real time, so throughput measured
+ * through this transport is that of the modelled line and flash and does not
+ * depend upon host hardware. Line timing can be turned off to run functional
+ * tests as fast as possible.
+ * </p>
+ * 
+ * <p>
+ * Bootloader locks on to the baudrate of the init sequence. If baudrate is
+ * changed afterwards without a reset, bytes in both directions are received as
+ * 0x00 just like on a real line.
+ * </p>
+ * 
+ * <pre>
+ * BootloaderEmulator emu = new BootloaderEmulator(0x415);
+ * UARTInterface uci = new UARTInterface(rb, flashUtils);
+ * uci.open(new EmulatorTransport(emu), 115200);
+ * Device dev = uci.initAndIdentifyDevice();
+ * </pre>
+ * 
+ * @author Rishi Gupta
+ */
+public final class EmulatorTransport implements ITransport {
+
+    private static final int BITS_PER_BYTE = 11;
+
+    /* Bytes sent by bootloader in one go and the time last of them arrives */
+    private static final class Burst {
+        final byte[] data;
+        final long readyAt;
+        int pos;
+
+        Burst(byte[] data, long readyAt) {
+            this.data = data;
+            this.readyAt = readyAt;
+        }
+    }
+
+    private final BootloaderEmulator emu;
+    private final ByteArrayOutputStream answer;
+    private final ArrayDeque<Burst> rxQueue;
+
+    private boolean lineTiming;
+    private int baudRate;
+    private int lockedBaudrate;
+    private long byteNanos;
+
+    /* times when host transmit line, bootloader and bootloader transmit line are free */
+    private long hostTxFree;
+    private long blFree;
+    private long blTxFree;
+
+    /* bytes to be written before the one which is corrupted, 0 if none */
+    private int corruptCountdown;
+
+    /**
+     * <p>
+     * Allocates an instance of EmulatorTransport class with line timing enabled.
+     * </p>
+     * 
+     * @param emu
+     *            emulator to be connected
+     */
+    public EmulatorTransport(BootloaderEmulator emu) {
+        this.emu = emu;
+        answer = new ByteArrayOutputStream(300);
+        rxQueue = new ArrayDeque<Burst>();
+        lineTiming = true;
+    }
+
+    /**
+     * <p>
+     * Enables or disables modelling of line and flash timing. When disabled,
+     * answers of bootloader are available as soon as the command has been
+     * written. Reads still wait until deadline when bootloader sends nothing.
+     * </p>
+     * 
+     * @param enable
+     *            true to model timing (default)
+     */
+    public synchronized void setLineTiming(boolean enable) {
+        lineTiming = enable;
+    }
+
+    /**
+     * <p>
+     * Makes the n-th byte written from now on (counting from 1) reach bootloader
+     * with all its bits inverted, as if it was hit by noise on the line. A fault
+     * in the middle of a data frame makes bootloader answer the frame with NACK
+     * because of its checksum, which is how retries are tested.
+     * </p>
+     * 
+     * @param n
+     *            number of the byte to be corrupted, 0 to cancel
+     */
+    public synchronized void corruptByte(int n) {
+        corruptCountdown = n;
+    }
+
+    /**
+     * <p>
+     * Gives emulator connected to this transport.
+     * </p>
+     * 
+     * @return emulator
+     */
+    public BootloaderEmulator getEmulator() {
+        return emu;
+    }
+
+    @Override
+    public void write(byte[] buf, int offset, int length) throws IOException {
+        this.send(buf, offset, length);
+    }
+
+    @Override
+    public void write(ByteBuffer buf) throws IOException {
+
+        int length = buf.remaining();
+        byte[] data = new byte[length];
+
+        buf.get(data);
+        this.send(data, 0, length);
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int length, long deadline) throws IOException {
+
+        int x;
+        int total = 0;
+        Burst head;
+        long wakeAt;
+        long now = System.nanoTime();
+
+        while (true) {
+            synchronized (this) {
+                head = rxQueue.peekFirst();
+                while ((head != null) && ((head.readyAt - now) <= 0) && (total < length)) {
+                    x = Math.min(length - total, head.data.length - head.pos);
+                    System.arraycopy(head.data, head.pos, buf, offset + total, x);
+                    head.pos = head.pos + x;
+                    total = total + x;
+                    if (head.pos == head.data.length) {
+                        rxQueue.pollFirst();
+                        head = rxQueue.peekFirst();
+                    }
+                }
+                if (total > 0) {
+                    return total;
+                }
+                if ((head != null) && ((head.readyAt - deadline) < 0)) {
+                    wakeAt = head.readyAt;
+                } else {
+                    wakeAt = deadline;
+                }
+            }
+            if ((now - deadline) >= 0) {
+                return 0;
+            }
+            this.waitUntil(wakeAt);
+            now = System.nanoTime();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer buf, long deadline) throws IOException {
+
+        byte[] data = new byte[buf.remaining()];
+        int res = this.read(data, 0, data.length, deadline);
+
+        buf.put(data, 0, res);
+        return res;
+    }
+
+    /*
+     * Bytes written are given to emulator right away.
+     */
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public synchronized void discardInput() throws IOException {
+        rxQueue.clear();
+    }
+
+    @Override
+    public synchronized void setBaudrate(int baudRate) throws IOException {
+        this.baudRate = baudRate;
+        byteNanos = (BITS_PER_BYTE * 1000000000L) / baudRate;
+        rxQueue.clear();
+    }
+
+    /*
+     * Line signals are not wired to emulator, stm32 stays in bootloader.
+     */
+    @Override
+    public void setDTR(boolean value) throws IOException {
+    }
+
+    @Override
+    public void setRTS(boolean value) throws IOException {
+    }
+
+    /*
+     * Line is modelled without noise.
+     */
+    @Override
+    public int getLineErrors() {
+        return 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        rxQueue.clear();
+    }
+
+    /*
+     * Feeds bytes to bootloader one by one at the time they arrive and queues
+     * its answers with the time they reach host.
+     */
+    private synchronized void send(byte[] data, int offset, int length) {
+
+        int x;
+        int y;
+        int b;
+        long busy;
+        long arrival;
+        byte[] reply;
+        long now = System.nanoTime();
+
+        if ((hostTxFree - now) < 0) {
+            hostTxFree = now;
+        }
+
+        for (x = 0; x < length; x++) {
+            b = data[offset + x];
+            if (emu.isWaitingForInit() == true) {
+                lockedBaudrate = baudRate;
+            } else if (lockedBaudrate != baudRate) {
+                b = 0;
+            } else {
+            }
+            if (corruptCountdown > 0) {
+                corruptCountdown--;
+                if (corruptCountdown == 0) {
+                    b = ~b;
+                }
+            }
+
+            if (lineTiming == true) {
+                hostTxFree = hostTxFree + byteNanos;
+                arrival = hostTxFree;
+            } else {
+                arrival = now;
+            }
+            if ((blFree - arrival) < 0) {
+                blFree = arrival;
+            }
+
+            answer.reset();
+            busy = emu.receive(b, answer);
+            if (lineTiming == true) {
+                blFree = blFree + busy;
+            }
+            if (answer.size() == 0) {
+                continue;
+            }
+
+            reply = answer.toByteArray();
+            if (lockedBaudrate != baudRate) {
+                for (y = 0; y < reply.length; y++) {
+                    reply[y] = 0;
+                }
+            }
+            if (lineTiming == true) {
+                if ((blTxFree - blFree) < 0) {
+                    blTxFree = blFree;
+                }
+                blTxFree = blTxFree + (reply.length * byteNanos);
+                rxQueue.addLast(new Burst(reply, blTxFree));
+            } else {
+                rxQueue.addLast(new Burst(reply, now));
+            }
+        }
+    }
+
+    /*
+     * Sleeps until given time; last part is spun so that modelled timing is kept
+     * closely.
+     */
+    private void waitUntil(long time) {
+
+        long remaining = time - System.nanoTime();
+
+        if (remaining > 200000L) {
+            LockSupport.parkNanos(remaining - 100000L);
+        }
+        while ((time - System.nanoTime()) > 0) {
+            /* spin, Thread.onSpinWait() needs Java 9 */
+        }
+    }
+}
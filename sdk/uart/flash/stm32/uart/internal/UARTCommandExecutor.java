@@ -20,29 +20,40 @@
 
 package flash.stm32.uart.internal;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.ResourceBundle;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
 
-import com.serialpundit.core.SerialComException;
 import com.serialpundit.core.util.SerialComUtil;
-import com.serialpundit.serial.SerialComManager;
 
 import flash.stm32.core.BLCMDS;
+import flash.stm32.core.BootloaderSession;
 import flash.stm32.core.Device;
 import flash.stm32.core.FileType;
+import flash.stm32.core.FirmwareBlockReader;
+import flash.stm32.core.FlashLoader;
 import flash.stm32.core.FlashUtils;
-import flash.stm32.core.HexFirmware;
+import flash.stm32.core.ICmdDetailedProgressListener;
+import flash.stm32.core.ICmdMetricsListener;
 import flash.stm32.core.ICmdProgressListener;
+import flash.stm32.core.ICmdRetryListener;
+import flash.stm32.core.ITransport;
 import flash.stm32.core.REGTYPE;
 import flash.stm32.core.Reset;
+import flash.stm32.core.SegmentedFirmware;
 import flash.stm32.core.internal.CommandExecutor;
+import flash.stm32.core.internal.ProgressMeter;
 import flash.stm32.core.internal.Debug;
+import flash.stm32.uart.RetryPolicy;
+import flash.stm32.uart.UARTInterface;
 
 /**
  * <p>
@@ -75,6 +86,16 @@ public final class UARTCommandExecutor extends CommandExecutor {
     /* General five second timeout */
     private final int TIMEOUT_FIVE = 5;
 
+    /* Half a second for a single read from transport, in nanoseconds */
+    private final long READ_TIMEOUT = 500000000L;
+
+    /*
+     * Wait for answer to first init sequence when bootloader is probably still
+     * waiting for a command from last handshake; a freshly reset bootloader
+     * answers much faster than this, in nanoseconds.
+     */
+    private final long WARM_INIT_WAIT = 20000000L;
+
     /* Values as per AN2606 document */
     private final byte INITSEQ = 0x7F;
     private final byte ACK = 0x79;
@@ -94,36 +115,99 @@ public final class UARTCommandExecutor extends CommandExecutor {
     private final byte[] CMD_READOUT_PROTECT = new byte[] { (byte) 0x82, (byte) 0x7D };
     private final byte[] CMD_READOUT_UNPROTECT = new byte[] { (byte) 0x92, (byte) 0x6D };
 
-    private final SerialComManager scm;
     private final ResourceBundle rb;
     private final FlashUtils flashUtils;
     private final Debug dbg;
 
-    private long comPortHandle;
+    private ITransport transport;
     private Device curDev;
     private int blVer;
+    private BootloaderSession session;
     private Reset rst;
 
+    /* Pipelined write memory */
+    private boolean pipelinedWrite;
+    private boolean dataAckPending;
+    private int dataAckEndAddr;
+
+    /*
+     * Address, length and data frames of read and write memory commands are built
+     * in these buffers, reused for every block. Data frame is direct so that it is
+     * handed to serial port driver without copying.
+     */
+    private final byte[] addrFrame = new byte[5];
+    private final byte[] numFrame = new byte[2];
+    private final ByteBuffer dataFrame = ByteBuffer.allocateDirect(258);
+    private final byte[] blockBuf = new byte[256];
+    private final byte[] rspByte = new byte[1];
+    private final byte[] sndByte = new byte[1];
+
+    /* Main flash area, writes to it go through flash loader stub if enabled */
+    private final int FLASH_AREA_START = 0x08000000;
+    private final int FLASH_AREA_END = 0x10000000;
+
+    /* Flash loader stub running from RAM, data is collected in frame buffer */
+    private boolean useFlashLoader;
+    private boolean flashLoaderRunning;
+    private String flashLoaderRefusal;
+    private int flashLoaderBaudrate;
+    private int origBaudrate;
+    private UARTInterface uartIface;
+    private FlashLoader flashLoader;
+    private byte[] ldrFrame;
+    private int ldrFrameAddr;
+    private int ldrFrameLen;
+    private final CRC32 ldrCrc = new CRC32();
+
+    /* Blocks written to main flash are kept here until read back and compared */
+    private int verifyWindowBlocks;
+    private byte[] vwBuf;
+    private byte[] vwReadBuf;
+    private int vwAddr;
+    private int vwLen;
+
+    /*
+     * Block level retries, copy of last pipelined block is kept to write it again.
+     * Line errors are collected only if policy may lower baudrate because of them.
+     */
+    private RetryPolicy retryPolicy;
+    private ICmdRetryListener retryListener;
+    private int totalRetries;
+    private int lineErrorFailures;
+    private boolean trackLineErrors;
+    private final byte[] resyncBurst = new byte[258];
+    private final byte[] retryReadBuf = new byte[256];
+    private final byte[] plBlock = new byte[256];
+    private int plLen;
+
+    /* Detailed progress of the read or write operation going on, if wanted */
+    private ProgressMeter meter;
+
+    /* Command metrics, frame whose answer is awaited is described by these */
+    private ICmdMetricsListener metrics;
+    private int mtrCommand;
+    private int mtrStage;
+    private int mtrBytes;
+    private long mtrStart;
+
     /**
      * <p>
      * Allocates an instance of UARTCommandExecutor class.
      * </p>
      * 
-     * @param scm
-     *            an instance of SerialComManager to communicate through serial port
      * @param rb
      *            an instance of ResourceBundle to get appropriate messages and
      *            resources
      * @param flashUtils
      *            an instance of utility class to carry out common operations
      */
-    public UARTCommandExecutor(SerialComManager scm, ResourceBundle rb, FlashUtils flashUtils) {
+    public UARTCommandExecutor(ResourceBundle rb, FlashUtils flashUtils) {
 
         super();
-        this.scm = scm;
         this.rb = rb;
         this.flashUtils = flashUtils;
         dbg = new Debug();
+        Arrays.fill(resyncBurst, INITSEQ);
     }
 
     /**
@@ -152,16 +236,94 @@ public final class UARTCommandExecutor extends CommandExecutor {
      * should be selected.
      * </p>
      * 
-     * @param comPortHandle
-     *            handle of serial port to which stm32 is connected
+     * @param transport
+     *            transport through which stm32 is reached
      * @return an instance of Device class representing stm32 device
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
-    public Device initAndIdentifyDevice(long comPortHandle) throws SerialComException, TimeoutException {
+    public Device initAndIdentifyDevice(ITransport transport) throws IOException, TimeoutException {
+
+        int pid;
+        boolean warm = (session != null) && (transport == this.transport);
+
+        this.transport = transport;
+        this.sendInitSequence(warm);
+
+        /* create stm32 device based on pid */
+        pid = this.queryChipID();
+        curDev = dCreator.createDevFromPID(pid, this);
+
+        /*
+         * One Get gives bootloader version (so that quirks can be handled) as well as
+         * supported commands, later queries are answered from session.
+         */
+        session = this.queryGet(pid);
+
+        return curDev;
+    }
+
+    /**
+     * <p>
+     * Sends init sequence again after stm32 has been reset, for example by a
+     * protection command or by go command jumping to reset code. Product id,
+     * version and supported commands found by last initAndIdentifyDevice() are
+     * kept as it is the same stm32, so no Get or Get ID command is sent. If the
+     * device has not been identified yet, this is same as initAndIdentifyDevice().
+     * </p>
+     * 
+     * @param transport
+     *            transport through which stm32 is connected
+     * @return an instance of Device class representing stm32 device
+     * @throws IOException
+     *             if an error happens when communicating through transport
+     * @throws TimeoutException
+     *             when bootloader sends nothing in response to init sequence
+     */
+    public Device reconnect(ITransport transport) throws IOException, TimeoutException {
+
+        if ((session == null) || (transport != this.transport)) {
+            return this.initAndIdentifyDevice(transport);
+        }
+
+        this.sendInitSequence(true);
+        return curDev;
+    }
+
+    /**
+     * <p>
+     * Gives what bootloader reported about itself during last handshake.
+     * </p>
+     * 
+     * @return session or null if device has not been identified yet
+     */
+    @Override
+    public BootloaderSession getSession() {
+        return session;
+    }
+
+    /**
+     * <p>
+     * Gives resource bundle from which messages for the user are taken.
+     * </p>
+     * 
+     * @return resource bundle given when this executor was created
+     */
+    @Override
+    public ResourceBundle getResourceBundle() {
+        return rb;
+    }
+
+    /*
+     * Sends init sequence 0x7F until bootloader answers with ACK or NACK. When
+     * warm, bootloader used through this transport before is likely still
+     * waiting for a command and answers the first 0x7F only after the next one
+     * (with NACK), so first answer is waited for only briefly.
+     */
+    private void sendInitSequence(boolean warm) throws IOException, TimeoutException {
 
         int x;
         int y;
@@ -170,12 +332,14 @@ public final class UARTCommandExecutor extends CommandExecutor {
         int nackReceived = 0;
         byte[] rcvData = null;
 
-        this.comPortHandle = comPortHandle;
-
         for (x = 0; x < 4; x++) {
-            scm.writeSingleByte(comPortHandle, INITSEQ);
+            this.writeByte(INITSEQ);
 
-            rcvData = scm.readBytes(comPortHandle);
+            if ((warm == true) && (x == 0)) {
+                rcvData = this.readUpTo(1024, WARM_INIT_WAIT);
+            } else {
+                rcvData = this.readUpTo(1024, READ_TIMEOUT);
+            }
             if (rcvData != null) {
                 y = rcvData.length;
                 for (z = 0; z < y; z++) {
@@ -187,33 +351,33 @@ public final class UARTCommandExecutor extends CommandExecutor {
                      * sending NACK. If it was waiting for data like address or checksum etc after a
                      * command that it has received previously, than we send it enough invalid bytes
                      * such that it has no choice other than sending NACK and aborting current
-                     * command execution.
+                     * command execution. Either way bootloader is waiting for a command now;
+                     * another 0x7F would start a new command, so stop here.
                      */
                     if (rcvData[z] == ACK) {
                         ackReceived = 1;
+                        if ((warm == true) && (x > 0)) {
+                            /*
+                             * Late ACK of a freshly reset bootloader to first 0x7F, the one sent
+                             * after it has started a command; next 0x7F gets that rejected.
+                             */
+                            continue;
+                        }
                         x = 20;
                         break;
                     } else if (rcvData[z] == NACK) {
                         nackReceived = 1;
+                        x = 20;
+                        break;
                     } else {
                     }
                 }
             }
         }
 
-        if ((ackReceived == 1) || (nackReceived == 1)) {
-
-            /* create stm32 device based on pid */
-            x = getChipID();
-            curDev = dCreator.createDevFromPID(x, this);
-
-            /* get bootloader protocol version so that quirks can be handled */
-            this.getBootloaderProtocolVersion();
-        } else {
+        if ((ackReceived == 0) && (nackReceived == 0)) {
             throw new TimeoutException(rb.getString("init.to"));
         }
-
-        return curDev;
     }
 
     /**
@@ -229,50 +393,202 @@ public final class UARTCommandExecutor extends CommandExecutor {
      * 
      * @return 0 if ACK is received, -1 if NACK is received, -2 if stm32 sends no
      *         response at all
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             if unexpected data is received from stm32
      */
-    private int sendCmdOrCmdData(byte[] sndbuf, int timeOutDuration) throws SerialComException, TimeoutException {
-
-        int x;
-        byte[] buf = new byte[2];
-        long curTime;
-        long responseWaitTime;
+    private int sendCmdOrCmdData(byte[] sndbuf, int timeOutDuration) throws IOException, TimeoutException {
 
         if (dbg.state == true) {
             System.out.println("sendCmdOrCmdData " + SerialComUtil.byteArrayToHexString(sndbuf, ":"));
         }
 
-        scm.writeBytes(comPortHandle, sndbuf);
+        /*
+         * A pipelined write abandoned between blocks (for example a listener threw)
+         * leaves ACK of its last data frame unread; take it before it is mistaken for
+         * ACK of this command.
+         */
+        if ((dataAckPending == true) && (this.isCommandFrame(sndbuf) == true)) {
+            this.waitForDataAck();
+        }
 
-        responseWaitTime = System.currentTimeMillis() + (1000 * timeOutDuration);
+        this.frameSent(sndbuf, sndbuf.length);
+        transport.write(sndbuf, 0, sndbuf.length);
 
-        while (true) {
-            // TODO parity error handling
-            x = scm.readBytes(comPortHandle, buf, 0, 1, -1, null);
+        // TODO parity error handling
+        return waitForAck(1000L * timeOutDuration);
+    }
+
+    /**
+     * <p>
+     * Internal use only. Waits for ACK or NACK from stm32 until the given time
+     * elapses. Read blocks in the transport until the deadline and returns as
+     * soon as a byte arrives, so the response is handled as soon as stm32 sends
+     * it. There is no sleeping in between reads; for long operations like mass
+     * erase, transport keeps waiting until the deadline.
+     * </p>
+     * 
+     * @param timeOutMillis
+     *            maximum time to wait in milliseconds, at least read timeout (500
+     *            milliseconds) is always waited
+     * @return 0 if ACK is received, -1 if NACK is received, -2 if stm32 sends no
+     *         response at all
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             if unexpected data is received from stm32
+     */
+    private int waitForAck(long timeOutMillis) throws IOException, TimeoutException {
 
+        int x;
+        int res = -2;
+        long responseWaitTime = System.nanoTime() + Math.max(timeOutMillis * 1000000L, READ_TIMEOUT);
+
+        do {
+            x = transport.read(rspByte, 0, 1, responseWaitTime);
             if (x > 0) {
-                if (buf[0] == ACK) {
-                    return 0;
-                } else if (buf[0] == NACK) {
-                    return -1;
+                if (rspByte[0] == ACK) {
+                    res = 0;
+                } else if (rspByte[0] == NACK) {
+                    res = -1;
                 } else {
-                    throw new TimeoutException("Unexpected data: " + SerialComUtil.byteToHexString(buf[0]));
+                    this.frameAnswered(ICmdMetricsListener.RESULT_INVALID);
+                    throw new TimeoutException("Unexpected data: " + SerialComUtil.byteToHexString(rspByte[0]));
                 }
+                break;
             }
-            curTime = System.currentTimeMillis();
-            if (curTime >= responseWaitTime) {
-                return -2;
-            }
+        } while ((System.nanoTime() - responseWaitTime) < 0);
 
-            if ((responseWaitTime - curTime) > 1000) {
-                try {
-                    Thread.sleep(800);
-                } catch (InterruptedException e) {
-                }
-            }
+        this.frameAnswered(res);
+        return res;
+    }
+
+    /**
+     * <p>
+     * Internal use only. Reads at most given number of bytes, waiting up to read
+     * timeout for the first one.
+     * </p>
+     * 
+     * @param buf
+     *            buffer where bytes are stored
+     * @param offset
+     *            index in buf at which first byte is stored
+     * @param length
+     *            maximum number of bytes to read
+     * @return number of bytes read, 0 if nothing arrived in time
+     * @throws IOException
+     *             if an error happens when communicating through transport
+     */
+    private int read(byte[] buf, int offset, int length) throws IOException {
+        return transport.read(buf, offset, length, System.nanoTime() + READ_TIMEOUT);
+    }
+
+    /**
+     * <p>
+     * Internal use only. Reads at most given number of bytes into a new array.
+     * </p>
+     * 
+     * @param maxLength
+     *            maximum number of bytes to read
+     * @param timeout
+     *            time to wait for first byte in nanoseconds
+     * @return bytes read or null if nothing arrived in time
+     * @throws IOException
+     *             if an error happens when communicating through transport
+     */
+    private byte[] readUpTo(int maxLength, long timeout) throws IOException {
+
+        byte[] buf = new byte[maxLength];
+        int x = transport.read(buf, 0, maxLength, System.nanoTime() + timeout);
+
+        if (x <= 0) {
+            return null;
+        }
+        if (x < maxLength) {
+            return Arrays.copyOf(buf, x);
+        }
+        return buf;
+    }
+
+    private void writeByte(byte data) throws IOException {
+        sndByte[0] = data;
+        transport.write(sndByte, 0, 1);
+    }
+
+    private void write(byte[] data) throws IOException {
+        transport.write(data, 0, data.length);
+    }
+
+    /**
+     * <p>
+     * Sets listener to which answer of every frame sent to bootloader and its
+     * latency is reported, or null to stop reporting.
+     * </p>
+     * 
+     * @param listener
+     *            metrics listener or null
+     */
+    public void setCommandMetrics(ICmdMetricsListener listener) {
+        metrics = listener;
+    }
+
+    /**
+     * <p>
+     * Internal use only. Notes frame which is about to be sent, so that its
+     * answer can be reported to metrics listener. A command frame starts a new
+     * command; frame after command frame of read memory, go and write memory is
+     * address frame and every other frame is data frame.
+     * </p>
+     * 
+     * @param frame
+     *            frame to be sent or null if it is not in a byte array
+     * @param length
+     *            number of bytes in frame
+     */
+    private void frameSent(final byte[] frame, final int length) {
+
+        if (metrics == null) {
+            return;
+        }
+
+        if ((frame != null) && (this.isCommandFrame(frame) == true)) {
+            mtrCommand = frame[0] & 0xFF;
+            mtrStage = ICmdMetricsListener.STAGE_COMMAND;
+        } else if ((mtrStage == ICmdMetricsListener.STAGE_COMMAND) && ((mtrCommand == CMD_READ_MEMORY[0])
+                || (mtrCommand == CMD_GO[0]) || (mtrCommand == CMD_WRITE_MEMORY[0]))) {
+            mtrStage = ICmdMetricsListener.STAGE_ADDRESS;
+        } else {
+            mtrStage = ICmdMetricsListener.STAGE_DATA;
+        }
+        mtrBytes = length;
+        mtrStart = System.nanoTime();
+    }
+
+    /*
+     * Command frames are told apart by identity, as for example number of bytes
+     * frame of read memory can have same contents as a command frame.
+     */
+    private boolean isCommandFrame(final byte[] frame) {
+        return (frame == CMD_GET_ALLOWED_CMDS) || (frame == CMD_GET_VRPS) || (frame == CMD_GET_ID)
+                || (frame == CMD_READ_MEMORY) || (frame == CMD_GO) || (frame == CMD_WRITE_MEMORY)
+                || (frame == CMD_ERASE) || (frame == CMD_EXTD_ERASE) || (frame == CMD_WRITE_PROTECT)
+                || (frame == CMD_WRITE_UNPROTECT) || (frame == CMD_READOUT_PROTECT)
+                || (frame == CMD_READOUT_UNPROTECT);
+    }
+
+    /**
+     * <p>
+     * Internal use only. Reports answer of the last frame sent to metrics
+     * listener, if any.
+     * </p>
+     * 
+     * @param result
+     *            0 for ACK, -1 for NACK, -2 for no answer, -3 for invalid answer
+     */
+    private void frameAnswered(final int result) {
+        if (metrics != null) {
+            metrics.onFrameAnswered(mtrCommand, mtrStage, mtrBytes, result, System.nanoTime() - mtrStart);
         }
     }
 
@@ -285,10 +601,10 @@ public final class UARTCommandExecutor extends CommandExecutor {
      * @param res
      *            buffer that will contain response received from stm32 device
      * @return number of bytes read including length of data, ACK, NACK
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      */
-    private int receiveResponse(byte[] buf) throws SerialComException {
+    private int receiveResponse(byte[] buf) throws IOException {
 
         int x = 0;
         int y = 0;
@@ -296,7 +612,7 @@ public final class UARTCommandExecutor extends CommandExecutor {
         int numBytesToRead = buf.length;
 
         for (y = 0; y < 3; y++) {
-            x = scm.readBytes(comPortHandle, buf, index, numBytesToRead, -1, null);
+            x = this.read(buf, index, numBytesToRead);
             if (x > 0) {
                 index = index + x;
                 numBytesToRead = numBytesToRead - x;
@@ -314,44 +630,71 @@ public final class UARTCommandExecutor extends CommandExecutor {
 
     /**
      * <p>
-     * Sends command 'Get' (0x00) to stm32 to get commands supported by bootloader
-     * running in the stm32 device currently connected to host.
+     * Gives commands supported by bootloader running in the stm32 device currently
+     * connected to host, as reported by the 'Get' (0x00) command sent during
+     * handshake.
      * </p>
      * 
-     * @return 0 if operation fails or bit mask of commands supported by given
-     *         bootloader
-     * @throws SerialComException
+     * @return bit mask of commands supported by given bootloader
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
-    public int getAllowedCommands() throws SerialComException, TimeoutException {
+    public int getAllowedCommands() throws IOException, TimeoutException {
+        return this.currentSession().getAllowedCommands();
+    }
 
-        int x;
-        int res;
-        int supportedCmds = 0;
-        byte[] buf = new byte[32];
+    /**
+     * <p>
+     * Gives version of the serial peripheral communication protocol used in the
+     * bootloader, as reported by the 'Get' (0x00) command sent during handshake.
+     * </p>
+     * 
+     * @return bootloader version in human readable format
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    public String getBootloaderProtocolVersion() throws IOException, TimeoutException {
+        return this.currentSession().getVersionName();
+    }
 
-        res = sendCmdOrCmdData(CMD_GET_ALLOWED_CMDS, TIMEOUT_ZERO);
-        if (res < 0) {
-            if (res == -1) {
-                throw new TimeoutException(rb.getString("nack.prot"));
-            } else if (res == -2) {
-                throw new TimeoutException(rb.getString("prot.cmd.to"));
-            } else {
-            }
-        }
+    /**
+     * <p>
+     * Gives product id of the stm32 as reported by the 'Get ID' (0x02) command sent
+     * during handshake.
+     * </p>
+     * 
+     * @return product id of the stm32 as reported by bootloader
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    public int getChipID() throws IOException, TimeoutException {
+        return this.currentSession().getPID();
+    }
 
-        res = receiveResponse(buf);
-        if (res <= 0) {
-            if (res == -1) {
-                throw new TimeoutException(rb.getString("nack.meta.data"));
-            } else if (res == 0) {
-                throw new TimeoutException(rb.getString("info.to"));
-            } else {
-            }
+    private BootloaderSession currentSession() {
+        if (session == null) {
+            throw new IllegalStateException(rb.getString("uart.notopen"));
         }
+        return session;
+    }
+
+    /*
+     * Extracts bit mask of supported commands from response to 'Get' command,
+     * command codes follow number of bytes and version.
+     */
+    private int commandsFromGet(byte[] buf, int res) {
+
+        int x;
+        int supportedCmds = 0;
 
         x = 2;
         while ((buf[x] != ACK) && (x < res)) {
@@ -414,20 +757,22 @@ public final class UARTCommandExecutor extends CommandExecutor {
 
     /**
      * <p>
-     * Sends command 'Get' (0x00) to know commands supported by this bootloader and
-     * then extracts bootloader version for the received response. This represents
-     * version of the serial peripheral (USART, CAN, USB, etc.) communication
-     * protocol used in the bootloader.
+     * Internal use only. Sends command 'Get' (0x00) and extracts from the response
+     * both bootloader version and commands supported by this bootloader. Version
+     * represents version of the serial peripheral (USART, CAN, USB, etc.)
+     * communication protocol used in the bootloader.
      * </p>
      * 
-     * @return bootloader version in human readable format
-     * @throws SerialComException
+     * @param pid
+     *            product id found by Get ID command
+     * @return session describing connected bootloader
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
-    public String getBootloaderProtocolVersion() throws SerialComException, TimeoutException {
+    private BootloaderSession queryGet(int pid) throws IOException, TimeoutException {
 
         int res;
         String bootloaderVersion = null;
@@ -547,25 +892,28 @@ public final class UARTCommandExecutor extends CommandExecutor {
             blVer = buf[1];
         }
 
-        return bootloaderVersion;
+        return new BootloaderSession(pid, blVer & 0xFF, bootloaderVersion, this.commandsFromGet(buf, res), curDev);
     }
 
     /**
      * <p>
-     * Sends command 'Get ID' (0x02) to stm32 to get product id.
+     * Internal use only. Sends command 'Get ID' (0x02) to stm32 to get product id.
      * </p>
      * 
      * @return product id of the stm32 as reported by bootloader
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
-    public int getChipID() throws SerialComException, TimeoutException {
+    private int queryChipID() throws IOException, TimeoutException {
 
+        int x;
         int res;
-        byte[] buf;
+        int len;
+        int total;
+        byte[] buf = new byte[258];
 
         res = sendCmdOrCmdData(CMD_GET_ID, TIMEOUT_ZERO);
         if (res < 0) {
@@ -578,71 +926,25 @@ public final class UARTCommandExecutor extends CommandExecutor {
         }
 
         /*
-         * some stm32 sends 2 bytes presenting pid while some sends 4 bytes. we read all
-         * data from serial port so that serial port buffers are clear for next command.
-         * we discard extra bytes.
+         * Response is number of bytes - 1, pid (2 bytes on every stm32 so far) and
+         * ACK. Exactly that many bytes are read so that nothing is left for next
+         * command and no time is spent waiting for bytes which never come.
          */
-        res = 0;
-        buf = scm.readBytes(comPortHandle, 5);
-
-        if (buf != null) {
-            if (buf[0] == 2) {
-                /* 2 byte pid */
-                if (buf.length > 2) {
-                    res = res | (buf[1] << 8);
-                    res = res | buf[2];
-                } else {
-                    if (buf.length == 1) {
-                        byte[] buf1 = scm.readBytes(comPortHandle, 2);
-                        if (buf1 != null) {
-                            res = res | (buf1[0] << 8);
-                            res = res | buf1[1];
-                        } else {
-                            throw new TimeoutException(rb.getString("info.to"));
-                        }
-                    } else {
-                        byte[] buf2 = scm.readBytes(comPortHandle, 1);
-                        if (buf2 != null) {
-                            res = res | (buf[1] << 8);
-                            res = res | buf2[0];
-                        } else {
-                            throw new TimeoutException(rb.getString("info.to"));
-                        }
-                    }
-                }
-            } else {
-                /* 4 byte pid */
-                if (buf.length > 2) {
-                    res = res | (buf[1] << 8);
-                    res = res | buf[2];
-                    if (buf.length < 5) {
-                        /* read and discard extra bytes */
-                        scm.readBytes(comPortHandle, 5);
-                    }
-                } else {
-                    if (buf.length == 1) {
-                        byte[] buf1 = scm.readBytes(comPortHandle, 4);
-                        if (buf1 != null) {
-                            res = res | (buf1[0] << 8);
-                            res = res | buf1[1];
-                        } else {
-                            throw new TimeoutException(rb.getString("info.to"));
-                        }
-                    } else {
-                        byte[] buf2 = scm.readBytes(comPortHandle, 3);
-                        if (buf2 != null) {
-                            res = res | (buf[1] << 8);
-                            res = res | buf2[0];
-                        } else {
-                            throw new TimeoutException(rb.getString("info.to"));
-                        }
-                    }
-                }
+        len = 0;
+        total = buf.length;
+        while (len < total) {
+            x = this.read(buf, len, total - len);
+            if (x <= 0) {
+                throw new TimeoutException(rb.getString("info.to"));
             }
-        } else {
+            len = len + x;
+            total = (buf[0] & 0xFF) + 3;
+        }
+        if (total < 4) {
             throw new TimeoutException(rb.getString("info.to"));
         }
 
+        res = ((buf[1] & 0xFF) << 8) | (buf[2] & 0xFF);
         return res;
     }
 
@@ -654,10 +956,10 @@ public final class UARTCommandExecutor extends CommandExecutor {
      * between host and stm32 is clear and ready for next command.
      * </p>
      * 
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      */
-    private void handleReadProtectionQuirk() throws SerialComException {
+    private void handleReadProtectionQuirk() throws IOException {
 
         int read = 0;
 
@@ -683,7 +985,7 @@ public final class UARTCommandExecutor extends CommandExecutor {
          * milliseconds.
          */
         if (read == 1) {
-            scm.readBytes(comPortHandle);
+            this.readUpTo(1024, READ_TIMEOUT);
         }
     }
 
@@ -694,13 +996,13 @@ public final class UARTCommandExecutor extends CommandExecutor {
      * </p>
      * 
      * @return response data received from bootloader as is
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
-    public byte[] getReadProtectionStatus() throws SerialComException, TimeoutException {
+    public byte[] getReadProtectionStatus() throws IOException, TimeoutException {
 
         int x;
         int res;
@@ -737,7 +1039,7 @@ public final class UARTCommandExecutor extends CommandExecutor {
 
     /**
      * <p>
-     * Internal use.
+     * Internal use. Reads one block, retrying it as per retry policy if set.
      * </p>
      * 
      * <p>
@@ -754,45 +1056,123 @@ public final class UARTCommandExecutor extends CommandExecutor {
      * @param offset
      *            offset in data buffer where data read will be stored
      * @return 0 on success
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
     private int readGivenMemory(byte[] data, int startAddr, int numBytesToRead, int offset)
-            throws SerialComException, TimeoutException {
+            throws IOException, TimeoutException {
+
+        int attempt = 0;
+
+        while (true) {
+            try {
+                return this.readMemoryOnce(data, startAddr, numBytesToRead, offset);
+            } catch (TimeoutException e) {
+                attempt++;
+                this.prepareRetry(startAddr, attempt, e);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Internal use only. Reads one block without any retry.
+     * </p>
+     * 
+     * @param data
+     *            buffer where data read from stm32 will be stored
+     * @param startAddr
+     *            starting address from where 1 byte will be fetched
+     * @param numBytesToRead
+     *            total number of bytes to read from the given starting address
+     * @param offset
+     *            offset in data buffer where data read will be stored
+     * @return 0 on success
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    private int readMemoryOnce(byte[] data, int startAddr, int numBytesToRead, int offset)
+            throws IOException, TimeoutException {
 
         int res;
         int x = 0;
-        byte[] numbuf = new byte[2];
-        byte[] addrbuf = new byte[5];
+        int len = numBytesToRead;
+        long start;
 
         if (dbg.state == true) {
             System.out.println("Read 0x" + SerialComUtil.intToHexString(startAddr) + " len " + numBytesToRead
                     + " offset " + offset);
         }
 
-        res = sendCmdOrCmdData(CMD_READ_MEMORY, TIMEOUT_ZERO);
-        if (res < 0) {
-            if (res == -1) {
-                /* some devices may send 2 NACK */
-                handleReadProtectionQuirk();
-                throw new TimeoutException(rb.getString("nack.prot"));
-            } else if (res == -2) {
-                throw new TimeoutException(rb.getString("prot.cmd.to"));
-            } else {
-            }
-        }
-
-        /* start address and its checksum */
-        addrbuf[0] = (byte) ((startAddr >> 24) & 0x000000FF);
-        addrbuf[1] = (byte) ((startAddr >> 16) & 0x000000FF);
-        addrbuf[2] = (byte) ((startAddr >> 8) & 0x000000FF);
-        addrbuf[3] = (byte) (startAddr & 0x000000FF);
-        addrbuf[4] = (byte) (addrbuf[0] ^ addrbuf[1] ^ addrbuf[2] ^ addrbuf[3]);
+        this.sendReadCommand(startAddr, numBytesToRead);
+        start = System.nanoTime();
 
-        res = sendCmdOrCmdData(addrbuf, TIMEOUT_ONE);
+        /*
+         * 1 second timeout between two consecutive bytes read is used here to ensure
+         * that we timeout to handle situations like stm32 is removed physically from
+         * serial port or stm32 device stops sending data for some reason etc.
+         */
+        while (numBytesToRead > 0) {
+            for (res = 0; res < 2; res++) {
+                x = this.read(data, offset, numBytesToRead);
+                if (x > 0) {
+                    break;
+                }
+            }
+            if (x > 0) {
+                offset = offset + x;
+                numBytesToRead = numBytesToRead - x;
+            } else {
+                throw new TimeoutException(rb.getString("read.to"));
+            }
+        }
+
+        if (metrics != null) {
+            metrics.onDataReceived(CMD_READ_MEMORY[0], len, System.nanoTime() - start);
+        }
+        return 0;
+    }
+
+    /**
+     * <p>
+     * Internal use only. Sends read memory command, address and number of bytes
+     * to be read. Data is to be received by the caller.
+     * </p>
+     * 
+     * @param startAddr
+     *            starting address from where 1 byte will be fetched
+     * @param numBytesToRead
+     *            total number of bytes to read (0 < numBytesToRead <= 256)
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader declines this command or sends no response
+     */
+    private void sendReadCommand(int startAddr, int numBytesToRead) throws IOException, TimeoutException {
+
+        int res;
+
+        res = sendCmdOrCmdData(CMD_READ_MEMORY, TIMEOUT_ZERO);
+        if (res < 0) {
+            if (res == -1) {
+                /* some devices may send 2 NACK */
+                handleReadProtectionQuirk();
+                throw new TimeoutException(rb.getString("nack.prot"));
+            } else if (res == -2) {
+                throw new TimeoutException(rb.getString("prot.cmd.to"));
+            } else {
+            }
+        }
+
+        /* start address and its checksum */
+        this.buildAddrFrame(startAddr);
+        res = sendCmdOrCmdData(addrFrame, TIMEOUT_ONE);
         if (res < 0) {
             if (res == -1) {
                 throw new TimeoutException(rb.getString("nack.adr.sm"));
@@ -803,11 +1183,10 @@ public final class UARTCommandExecutor extends CommandExecutor {
         }
 
         /* total number of bytes to read and its checksum */
-        x = numBytesToRead - 1;
-        numbuf[0] = (byte) x;
-        numbuf[1] = (byte) (x ^ 0xFF);
+        numFrame[0] = (byte) (numBytesToRead - 1);
+        numFrame[1] = (byte) ((numBytesToRead - 1) ^ 0xFF);
 
-        res = sendCmdOrCmdData(numbuf, TIMEOUT_ONE);
+        res = sendCmdOrCmdData(numFrame, TIMEOUT_ONE);
         if (res < 0) {
             if (res == -1) {
                 throw new TimeoutException(rb.getString("nack.r.data"));
@@ -816,28 +1195,89 @@ public final class UARTCommandExecutor extends CommandExecutor {
             } else {
             }
         }
+    }
 
-        /*
-         * 1 second timeout between two consecutive bytes read is used here to ensure
-         * that we timeout to handle situations like stm32 is removed physically from
-         * serial port or stm32 device stops sending data for some reason etc.
-         */
-        while (numBytesToRead > 0) {
-            for (res = 0; res < 2; res++) {
-                x = scm.readBytes(comPortHandle, data, offset, numBytesToRead, -1, null);
+    /**
+     * <p>
+     * Internal use only. Same as readGivenMemory(byte[], int, int, int) but data is
+     * received by serial port driver directly into the given direct buffer at its
+     * position, which is advanced.
+     * </p>
+     * 
+     * @param data
+     *            direct buffer where data read from stm32 will be stored
+     * @param startAddr
+     *            starting address from where 1 byte will be fetched
+     * @param numBytesToRead
+     *            total number of bytes to read (0 < numBytesToRead <= 256)
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    private void readGivenMemory(ByteBuffer data, int startAddr, int numBytesToRead)
+            throws IOException, TimeoutException {
+
+        int attempt = 0;
+        int position = data.position();
+
+        while (true) {
+            try {
+                this.readMemoryOnce(data, startAddr, numBytesToRead);
+                return;
+            } catch (TimeoutException e) {
+                data.position(position);
+                attempt++;
+                this.prepareRetry(startAddr, attempt, e);
+            }
+        }
+    }
+
+    /*
+     * Reads one block into direct buffer without any retry.
+     */
+    private void readMemoryOnce(ByteBuffer data, int startAddr, int numBytesToRead)
+            throws IOException, TimeoutException {
+
+        int x = 0;
+        int res;
+        int limit;
+        int len = numBytesToRead;
+        long start;
+
+        if (dbg.state == true) {
+            System.out.println("Read 0x" + SerialComUtil.intToHexString(startAddr) + " len " + numBytesToRead
+                    + " direct");
+        }
+
+        this.sendReadCommand(startAddr, numBytesToRead);
+        start = System.nanoTime();
+
+        /* same timeout handling as for byte array, limit keeps read within block */
+        limit = data.limit();
+        data.limit(data.position() + numBytesToRead);
+        try {
+            while (numBytesToRead > 0) {
+                for (res = 0; res < 2; res++) {
+                    x = transport.read(data, System.nanoTime() + READ_TIMEOUT);
+                    if (x > 0) {
+                        break;
+                    }
+                }
                 if (x > 0) {
-                    break;
+                    numBytesToRead = numBytesToRead - x;
+                } else {
+                    throw new TimeoutException(rb.getString("read.to"));
                 }
             }
-            if (x > 0) {
-                offset = offset + x;
-                numBytesToRead = numBytesToRead - x;
-            } else {
-                throw new TimeoutException(rb.getString("read.to"));
-            }
+        } finally {
+            data.limit(limit);
         }
 
-        return 0;
+        if (metrics != null) {
+            metrics.onDataReceived(CMD_READ_MEMORY[0], len, System.nanoTime() - start);
+        }
     }
 
     /**
@@ -864,14 +1304,14 @@ public final class UARTCommandExecutor extends CommandExecutor {
      *            progress or null if not required
      * 
      * @return number of bytes read from stm32 device
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port.
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
     public int readMemory(byte[] data, int startAddr, final int numBytesToRead, ICmdProgressListener progressListener)
-            throws SerialComException, TimeoutException {
+            throws IOException, TimeoutException {
 
         int x;
         int y;
@@ -880,6 +1320,8 @@ public final class UARTCommandExecutor extends CommandExecutor {
         int totalBytesReadTillNow = 0;
         int bytesToRead;
 
+        this.startRetryCount(progressListener);
+
         if (data == null) {
             throw new IllegalArgumentException(rb.getString("nul.buf"));
         }
@@ -890,18 +1332,22 @@ public final class UARTCommandExecutor extends CommandExecutor {
             throw new IllegalArgumentException(rb.getString("inval.buf"));
         }
 
+        meter = ProgressMeter.start(progressListener, ICmdDetailedProgressListener.PHASE_READ, numBytesToRead);
+
         /* read data chunks in multiples of 256 */
         x = numBytesToRead / 256;
 
         if (x > 0) {
             bytesToRead = 256;
             for (z = 0; z < x; z++) {
+                this.checkCancelled();
                 this.readGivenMemory(data, startAddr, bytesToRead, index);
                 index = index + 256;
                 startAddr = startAddr + 256;
                 if (progressListener != null) {
                     totalBytesReadTillNow = totalBytesReadTillNow + 256;
                     progressListener.onDataReadProgressUpdate(totalBytesReadTillNow, numBytesToRead);
+                    this.reportProgress(startAddr, totalBytesReadTillNow);
                 }
             }
         }
@@ -910,10 +1356,12 @@ public final class UARTCommandExecutor extends CommandExecutor {
         y = numBytesToRead % 256;
 
         if (y > 0) {
+            this.checkCancelled();
             this.readGivenMemory(data, startAddr, y, index);
             if (progressListener != null) {
                 totalBytesReadTillNow = totalBytesReadTillNow + y;
                 progressListener.onDataReadProgressUpdate(totalBytesReadTillNow, numBytesToRead);
+                this.reportProgress(startAddr + y, totalBytesReadTillNow);
             }
             index = index + y;
         }
@@ -921,6 +1369,70 @@ public final class UARTCommandExecutor extends CommandExecutor {
         return index;
     }
 
+    /**
+     * <p>
+     * Reads as many bytes as remain in the given buffer from memory starting at
+     * given address and puts them at buffer's position, which is advanced. Data
+     * is received by serial port driver directly into direct or memory mapped
+     * buffers and into backing array of other buffers, so no block is copied or
+     * allocated on the way.
+     * </p>
+     * 
+     * @param data
+     *            buffer where data read will be stored
+     * @param startAddr
+     *            address from where 1st byte will be read
+     * @param progressListener
+     *            instance of class which implements callback to know reading
+     *            progress or null if not required
+     * @return number of bytes read from stm32
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    public int readMemory(ByteBuffer data, int startAddr, ICmdProgressListener progressListener)
+            throws IOException, TimeoutException {
+
+        int len;
+        int index = 0;
+        int numBytesToRead;
+
+        this.startRetryCount(progressListener);
+
+        if (data == null) {
+            throw new IllegalArgumentException(rb.getString("nul.buf"));
+        }
+        if (data.isReadOnly() == true) {
+            throw new IllegalArgumentException(rb.getString("inval.buf"));
+        }
+        numBytesToRead = data.remaining();
+        if (numBytesToRead <= 0) {
+            throw new IllegalArgumentException(rb.getString("inval.r.len"));
+        }
+
+        meter = ProgressMeter.start(progressListener, ICmdDetailedProgressListener.PHASE_READ, numBytesToRead);
+
+        while (index < numBytesToRead) {
+            len = Math.min(256, numBytesToRead - index);
+            this.checkCancelled();
+            if (data.isDirect() == true) {
+                this.readGivenMemory(data, startAddr + index, len);
+            } else {
+                this.readGivenMemory(data.array(), startAddr + index, len, data.arrayOffset() + data.position());
+                data.position(data.position() + len);
+            }
+            index = index + len;
+            if (progressListener != null) {
+                progressListener.onDataReadProgressUpdate(index, numBytesToRead);
+                this.reportProgress(startAddr + index, index);
+            }
+        }
+
+        return index;
+    }
+
     /**
      * <p>
      * This API read data from any valid memory address in RAM, main flash memory
@@ -945,17 +1457,17 @@ public final class UARTCommandExecutor extends CommandExecutor {
      *            progress or null if not required
      * 
      * @return number of bytes read from stm32 device
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port.
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
     public int readMemory(String file, int startAddr, final int numBytesToRead, ICmdProgressListener progressListener)
-            throws SerialComException, TimeoutException {
+            throws IOException, TimeoutException {
 
-        int x = 0;
         FileOutputStream fout = null;
+        BufferedOutputStream bout;
 
         if (file == null) {
             throw new IllegalArgumentException(rb.getString("inval.file"));
@@ -967,23 +1479,78 @@ public final class UARTCommandExecutor extends CommandExecutor {
             throw new IllegalArgumentException(rb.getString("inval.file"));
         }
 
-        BufferedOutputStream bout = new BufferedOutputStream(fout);
-
-        byte[] data = new byte[numBytesToRead];
-        x = readMemory(data, startAddr, numBytesToRead, progressListener);
-
+        /* data read till failure, if any, is still written to file on close */
+        bout = new BufferedOutputStream(fout);
         try {
-            bout.write(data);
-            bout.flush();
+            return this.readMemory(bout, startAddr, numBytesToRead, progressListener);
+        } finally {
             bout.close();
-        } catch (Exception e) {
-            try {
-                bout.close();
-            } catch (IOException e1) {
+        }
+    }
+
+    /**
+     * <p>
+     * Reads given memory area and writes every chunk of 256 bytes to the given
+     * output stream as soon as it has been received. Memory used does not depend
+     * upon number of bytes to read and if reading fails, all chunks received
+     * before the failure have already been written to stream. Stream is neither
+     * flushed nor closed by this method.
+     * </p>
+     * 
+     * <p>
+     * Sends command 'Read Memory command' (0x11) to stm32 to read the data from
+     * address till specified length.
+     * </p>
+     * 
+     * @param out
+     *            stream to which data read will be written
+     * @param startAddr
+     *            address from where 1st byte will be read
+     * @param numBytesToRead
+     *            number of bytes to be read
+     * @param progressListener
+     *            instance of class which implements callback to know reading
+     *            progress or null if not required
+     * 
+     * @return number of bytes read from stm32 device
+     * @throws IOException
+     *             if an error happens when communicating through serial port or
+     *             when writing to stream
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    public int readMemory(OutputStream out, int startAddr, final int numBytesToRead,
+            ICmdProgressListener progressListener) throws IOException, TimeoutException {
+
+        int len;
+        int index = 0;
+        byte[] chunk = new byte[256];
+
+        this.startRetryCount(progressListener);
+
+        if (out == null) {
+            throw new IllegalArgumentException(rb.getString("nul.buf"));
+        }
+        if (numBytesToRead <= 0) {
+            throw new IllegalArgumentException(rb.getString("inval.r.len"));
+        }
+
+        meter = ProgressMeter.start(progressListener, ICmdDetailedProgressListener.PHASE_READ, numBytesToRead);
+
+        while (index < numBytesToRead) {
+            len = Math.min(256, numBytesToRead - index);
+            this.checkCancelled();
+            this.readGivenMemory(chunk, startAddr + index, len, 0);
+            out.write(chunk, 0, len);
+            index = index + len;
+            if (progressListener != null) {
+                progressListener.onDataReadProgressUpdate(index, numBytesToRead);
+                this.reportProgress(startAddr + index, index);
             }
         }
 
-        return x;
+        return index;
     }
 
     /**
@@ -994,13 +1561,13 @@ public final class UARTCommandExecutor extends CommandExecutor {
      * 
      * @param addrToJumpTo
      *            address where program counter should jump
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
-    public void goJump(int addrToJumpTo) throws SerialComException, TimeoutException {
+    public void goJump(int addrToJumpTo) throws IOException, TimeoutException {
 
         int res;
         byte[] addrBuf = new byte[5];
@@ -1040,126 +1607,1368 @@ public final class UARTCommandExecutor extends CommandExecutor {
 
     /**
      * <p>
-     * Internal use. Actually writes data to stm32 main flash, option byte or RAM
-     * area. Data must be in binary format.
-     * </p>
-     * 
-     * <p>
-     * Sends command 'Write Memory command' (0x31) to stm32 to write to memory.
+     * Internal use. Actually writes data to stm32 main flash, option byte or RAM
+     * area. Data must be in binary format. Block is retried as per retry policy
+     * if set.
+     * </p>
+     * 
+     * <p>
+     * Sends command 'Write Memory command' (0x31) to stm32 to write to memory.
+     * </p>
+     * 
+     * @param data
+     *            data bytes to be written to given memory area
+     * @param offset
+     *            offset in data buffer from which 1st byte should be fetched
+     * @param length
+     *            number of data bytes to be written from given data buffer (0 <
+     *            length <= 256)
+     * @param startAddr
+     *            memory address in stm32 from which flashing should start
+     * @return 0 on success
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    private int writeMemoryInBinFormat(final byte[] data, int offset, final int length, final int startAddr)
+            throws IOException, TimeoutException {
+
+        try {
+            return this.writeMemoryOnce(data, offset, length, startAddr);
+        } catch (TimeoutException e) {
+            this.retryWrite(data, offset, length, startAddr, e);
+        }
+        return 0;
+    }
+
+    /*
+     * Writes one block without any retry.
+     */
+    private int writeMemoryOnce(final byte[] data, int offset, final int length, final int startAddr)
+            throws IOException, TimeoutException {
+
+        if (dbg.state == true) {
+            System.out.println(
+                    "Write 0x" + SerialComUtil.intToHexString(startAddr) + " len " + length + " offset " + offset);
+        }
+
+        this.sendWriteCommand(startAddr);
+
+        /* total number of bytes, data, padding and checksum */
+        this.sendDataFrame(this.buildDataFrame(data, offset, length));
+        this.waitForWriteAck();
+
+        return 0;
+    }
+
+    /**
+     * <p>
+     * Internal use only. Sends write memory command and address of a block and
+     * waits for both ACKs; data frame is to be sent next.
+     * </p>
+     * 
+     * @param startAddr
+     *            memory address in stm32 where block should be written
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader declines command or address or sends no
+     *             response
+     */
+    private void sendWriteCommand(final int startAddr) throws IOException, TimeoutException {
+
+        int res;
+
+        /* send write memory command */
+        res = sendCmdOrCmdData(CMD_WRITE_MEMORY, TIMEOUT_ZERO);
+        if (res < 0) {
+            if (res == -1) {
+                /* some devices may send 2 NACK */
+                handleReadProtectionQuirk();
+                throw new TimeoutException(rb.getString("nack.prot"));
+            } else if (res == -2) {
+                throw new TimeoutException(rb.getString("prot.cmd.to"));
+            } else {
+            }
+        }
+
+        /* send address and checksum of address */
+        this.buildAddrFrame(startAddr);
+        res = sendCmdOrCmdData(addrFrame, TIMEOUT_ONE);
+        if (res < 0) {
+            if (res == -1) {
+                throw new TimeoutException(rb.getString("nack.adr.sm"));
+            } else if (res == -2) {
+                throw new TimeoutException(rb.getString("adr.sm.to"));
+            } else {
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Internal use only. Waits for ACK of data frame just sent, that is until
+     * stm32 has programmed the block.
+     * </p>
+     * 
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader fails to write the block or sends no response
+     */
+    private void waitForWriteAck() throws IOException, TimeoutException {
+
+        /* wait for 2 seconds for write operation to complete */
+        int res = waitForAck(2000);
+        if (res == -1) {
+            throw new TimeoutException(rb.getString("nack.w.data"));
+        } else if (res == -2) {
+            throw new TimeoutException(rb.getString("write.to"));
+        } else {
+        }
+    }
+
+    /**
+     * <p>
+     * Internal use only. Builds address frame, 4 bytes big endian followed by
+     * their checksum, in reused buffer.
+     * </p>
+     * 
+     * @param startAddr
+     *            address to be sent
+     */
+    private void buildAddrFrame(final int startAddr) {
+        addrFrame[0] = (byte) ((startAddr >> 24) & 0xFF);
+        addrFrame[1] = (byte) ((startAddr >> 16) & 0xFF);
+        addrFrame[2] = (byte) ((startAddr >> 8) & 0xFF);
+        addrFrame[3] = (byte) (startAddr & 0xFF);
+        addrFrame[4] = (byte) (addrFrame[0] ^ addrFrame[1] ^ addrFrame[2] ^ addrFrame[3]);
+    }
+
+    /**
+     * <p>
+     * Internal use only. Builds data frame of write memory command in reused
+     * direct buffer; N, data padded with 0xFF so that N + 1 is multiple of 4 and
+     * checksum.
+     * </p>
+     * 
+     * @param data
+     *            data bytes to be written
+     * @param offset
+     *            offset in data buffer from which 1st byte should be fetched
+     * @param length
+     *            number of data bytes (0 < length <= 256)
+     * @return number of data bytes including padding
+     */
+    private int buildDataFrame(final byte[] data, final int offset, final int length) {
+
+        int x;
+        int checksum;
+        int frameLen = (length + 3) & ~0x03;
+
+        checksum = frameLen - 1;
+        for (x = offset; x < (offset + length); x++) {
+            checksum = checksum ^ data[x];
+        }
+        if (((frameLen - length) & 1) == 1) {
+            /* odd number of 0xFF padding bytes */
+            checksum = checksum ^ 0xFF;
+        }
+
+        dataFrame.clear();
+        dataFrame.put((byte) (frameLen - 1));
+        dataFrame.put(data, offset, length);
+        for (x = length; x < frameLen; x++) {
+            dataFrame.put((byte) 0xFF);
+        }
+        dataFrame.put((byte) checksum);
+        return frameLen;
+    }
+
+    /**
+     * <p>
+     * Internal use only. Same as buildDataFrame(byte[], int, int) but takes data
+     * bytes straight from given buffer, which is how blocks of direct and memory
+     * mapped buffers are framed without an intermediate copy. Position of the
+     * buffer is advanced by length.
+     * </p>
+     * 
+     * @param data
+     *            buffer whose next length bytes are to be written
+     * @param length
+     *            number of data bytes (0 < length <= 256)
+     * @return number of data bytes including padding
+     */
+    private int buildDataFrame(final ByteBuffer data, final int length) {
+
+        int x;
+        int checksum;
+        int limit = data.limit();
+        int pos = data.position();
+        int frameLen = (length + 3) & ~0x03;
+
+        checksum = frameLen - 1;
+        for (x = pos; x < (pos + length); x++) {
+            checksum = checksum ^ data.get(x);
+        }
+        if (((frameLen - length) & 1) == 1) {
+            /* odd number of 0xFF padding bytes */
+            checksum = checksum ^ 0xFF;
+        }
+
+        dataFrame.clear();
+        dataFrame.put((byte) (frameLen - 1));
+        data.limit(pos + length);
+        dataFrame.put(data);
+        data.limit(limit);
+        for (x = length; x < frameLen; x++) {
+            dataFrame.put((byte) 0xFF);
+        }
+        dataFrame.put((byte) checksum);
+        return frameLen;
+    }
+
+    /**
+     * <p>
+     * Internal use only. Sends data frame built by buildDataFrame().
+     * </p>
+     * 
+     * @param frameLen
+     *            number of data bytes including padding
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     */
+    private void sendDataFrame(final int frameLen) throws IOException {
+
+        this.frameSent(null, frameLen + 2);
+        dataFrame.flip();
+        transport.write(dataFrame);
+    }
+
+    /**
+     * <p>
+     * Sets policy for retrying a failed block instead of failing whole read or
+     * write operation, or null to fail on first error (default).
+     * </p>
+     * 
+     * @param policy
+     *            retry policy or null
+     * @param uci
+     *            interface whose baudrate is lowered after repeated line errors
+     */
+    public void setRetryPolicy(RetryPolicy policy, UARTInterface uci) {
+        retryPolicy = policy;
+        uartIface = uci;
+        lineErrorFailures = 0;
+        trackLineErrors = (policy != null) && (policy.lowerBaudrate > 0);
+    }
+
+    /**
+     * <p>
+     * Internal use only. Called at block boundaries of read and erase operations,
+     * where bootloader is waiting for the next command.
+     * </p>
+     * 
+     * @throws CancellationException
+     *             if operation has been cancelled through cancel token or calling
+     *             thread has been interrupted
+     */
+    private void checkCancelled() {
+        if (this.isCancelRequested() == true) {
+            throw new CancellationException(rb.getString("op.cancel"));
+        }
+    }
+
+    /**
+     * <p>
+     * Internal use only. Called at the start of every read or write operation,
+     * retries are reported to given listener if it is interested in them.
+     * </p>
+     * 
+     * @param progressListener
+     *            progress listener given to the operation or null
+     */
+    private void startRetryCount(ICmdProgressListener progressListener) {
+        if (progressListener instanceof ICmdRetryListener) {
+            retryListener = (ICmdRetryListener) progressListener;
+        } else {
+            retryListener = null;
+        }
+        totalRetries = 0;
+        if (trackLineErrors == true) {
+            transport.getLineErrors();
+        }
+    }
+
+    /**
+     * <p>
+     * Internal use only. Reports speed, estimated time remaining and retries to
+     * progress listener of the operation going on, if it wants detailed progress.
+     * </p>
+     * 
+     * @param address
+     *            address just after the last byte done
+     * @param done
+     *            number of bytes done till now
+     */
+    private void reportProgress(final int address, final int done) {
+        if (meter != null) {
+            meter.update(address, done, totalRetries);
+        }
+    }
+
+    /**
+     * <p>
+     * Internal use only. Decides whether a failed block is tried again. If yes,
+     * reports the retry, waits for backoff time, lowers baudrate if line errors
+     * keep occurring and brings bootloader back to waiting for a command.
+     * </p>
+     * 
+     * @param startAddr
+     *            address of the failed block
+     * @param attempt
+     *            retry number for this block starting from 1
+     * @param error
+     *            error because of which block failed
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             given error if block is not to be retried, or when bootloader
+     *             can not be resynchronized
+     */
+    private void prepareRetry(final int startAddr, final int attempt, TimeoutException error)
+            throws IOException, TimeoutException {
+
+        byte[] resetCode;
+
+        if ((retryPolicy == null) || (attempt > retryPolicy.maxRetries) || (this.isCancelRequested() == true)) {
+            throw error;
+        }
+
+        if (trackLineErrors == true) {
+            if ((transport.getLineErrors() & (ITransport.LINE_ERR_FRAME | ITransport.LINE_ERR_PARITY)) != 0) {
+                lineErrorFailures++;
+            } else {
+                lineErrorFailures = 0;
+            }
+        }
+
+        totalRetries++;
+        if (dbg.state == true) {
+            System.out.println("Retry " + attempt + " at 0x" + SerialComUtil.intToHexString(startAddr) + " after: "
+                    + error.getMessage());
+        }
+        if (retryListener != null) {
+            retryListener.onBlockRetry(startAddr, attempt, totalRetries, error.getMessage());
+        }
+
+        if (retryPolicy.backoffMillis > 0) {
+            try {
+                Thread.sleep((long) retryPolicy.backoffMillis << Math.min(attempt - 1, 10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw error;
+            }
+        }
+
+        this.resync();
+
+        if ((retryPolicy.lowerBaudrate > 0) && (lineErrorFailures >= retryPolicy.lineErrorsBeforeDrop)
+                && (uartIface != null) && (uartIface.getBaudrate() > retryPolicy.lowerBaudrate)
+                && (curDev != null) && (curDev.resetCodeAddress != 0)) {
+            /* bootloader detects baudrate only after reset */
+            if (dbg.state == true) {
+                System.out.println("Lowering baudrate to " + retryPolicy.lowerBaudrate);
+            }
+            rst = new Reset();
+            resetCode = rst.getResetCode(curDev.resetCodeAddress);
+            this.writeMemoryOnce(resetCode, 0, resetCode.length, curDev.resetCodeAddress);
+            this.goJump(curDev.resetCodeAddress);
+            this.read(rspByte, 0, 1);
+            uartIface.setBaudrate(retryPolicy.lowerBaudrate);
+            this.initAndIdentifyDevice(transport);
+            lineErrorFailures = 0;
+        }
+    }
+
+    /**
+     * <p>
+     * Internal use only. Brings bootloader back to waiting for a command after a
+     * failed block. Whatever stm32 is still sending is discarded first. If
+     * bootloader is in the middle of a frame (some bytes were lost on the way),
+     * 0x7F bytes complete it and the frame is rejected because of its checksum;
+     * after that pairs of 0x7F are rejected as invalid command. A single 0x7F
+     * answered with NACK means nothing is left pending in bootloader.
+     * </p>
+     * 
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader does not answer at all
+     */
+    private void resync() throws IOException, TimeoutException {
+
+        int x;
+
+        this.drainInput();
+        for (x = 0; x < 3; x++) {
+            this.writeByte(INITSEQ);
+            if (this.drainInput() > 0) {
+                return;
+            }
+            if (x == 0) {
+                /* longer than any frame bootloader may be waiting to complete */
+                this.write(resyncBurst);
+                this.drainInput();
+            }
+        }
+
+        throw new TimeoutException(rb.getString("resync.fail"));
+    }
+
+    /**
+     * <p>
+     * Internal use only. Reads and discards bytes until the line stays idle for
+     * one read timeout.
+     * </p>
+     * 
+     * @return number of bytes discarded
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     */
+    private int drainInput() throws IOException {
+
+        int x;
+        int total = 0;
+
+        do {
+            x = this.read(retryReadBuf, 0, retryReadBuf.length);
+            if (x > 0) {
+                total = total + x;
+            }
+        } while (x > 0);
+
+        return total;
+    }
+
+    /**
+     * <p>
+     * Internal use only. Writes a failed block again as per retry policy. If
+     * stm32 has programmed the block but its ACK was lost, the block is not
+     * written again; it is read back first and written only if it differs.
+     * </p>
+     * 
+     * @param data
+     *            data bytes to be written
+     * @param offset
+     *            offset in data buffer from which 1st byte should be fetched
+     * @param length
+     *            number of data bytes (0 < length <= 256)
+     * @param startAddr
+     *            memory address in stm32 where this block should be written
+     * @param error
+     *            error because of which block failed
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             error of the last attempt when all retries fail
+     */
+    private void retryWrite(final byte[] data, final int offset, final int length, final int startAddr,
+            TimeoutException error) throws IOException, TimeoutException {
+
+        int x;
+        int attempt = 0;
+
+        while (true) {
+            attempt++;
+            this.prepareRetry(startAddr, attempt, error);
+            try {
+                this.readMemoryOnce(retryReadBuf, startAddr, length, 0);
+                for (x = 0; x < length; x++) {
+                    if (retryReadBuf[x] != data[offset + x]) {
+                        break;
+                    }
+                }
+                if (x < length) {
+                    this.writeMemoryOnce(data, offset, length, startAddr);
+                }
+                return;
+            } catch (TimeoutException e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Enables or disables pipelining of write memory commands. When enabled, ACK
+     * for data of a block is not waited for before returning to the caller. The
+     * caller prepares next block (for example parses it from hex file) and frames
+     * it while stm32 is still programming flash; the pending ACK is collected just
+     * before the next command is sent. Command, address and data frames are built
+     * in reused buffers and ACKs are read directly.
+     * </p>
+     * 
+     * <p>
+     * Bootloader protocol does not allow more than one command in flight, so
+     * error for the last block of a write operation is reported at the end of
+     * that operation and error for any other block is reported when next block is
+     * written.
+     * </p>
+     * 
+     * @param enable
+     *            true to enable pipelining, false to wait for every ACK (default)
+     */
+    public void setWritePipelining(boolean enable) {
+        pipelinedWrite = enable;
+    }
+
+    /**
+     * <p>
+     * Enables or disables use of flash loader stub for writing to main flash. When
+     * enabled, at the start of first write to main flash the stub is written into
+     * RAM and started using go command. Blocks are then collected into frames of
+     * up to 16 KiB which are sent with CRC32 and programmed by the stub without
+     * per 256 byte command round trips. Optionally the stub switches USART to a
+     * higher baudrate. At the end of write operation the stub resets stm32 and
+     * the bootloader is initialized again at the original baudrate, so BOOT0 must
+     * still be held high at that time.
+     * </p>
+     * 
+     * <p>
+     * If stub does not support the connected device, or bootloader is not using
+     * USART1, write memory command of bootloader is used as usual.
+     * </p>
+     * 
+     * @param enable
+     *            true to use flash loader, false to use bootloader only (default)
+     * @param baudRate
+     *            baudrate to be used while stub is running or 0 to keep current
+     *            one
+     * @param uci
+     *            interface whose serial port is to be reconfigured when baudrate
+     *            is changed, may be null if baudRate is 0
+     */
+    public void setFlashLoader(boolean enable, int baudRate, UARTInterface uci) {
+        useFlashLoader = enable;
+        flashLoaderRefusal = null;
+        flashLoaderBaudrate = baudRate;
+        uartIface = uci;
+    }
+
+    /**
+     * <p>
+     * Tells why flash loader stub enabled through setFlashLoader() has not been
+     * used, for example because connected device is not supported or bootloader
+     * is not talking over USART1. Main flash has then been written using write
+     * memory command of bootloader.
+     * </p>
+     * 
+     * @return localized reason or null if stub has not been refused
+     */
+    public String getFlashLoaderRefusal() {
+        return flashLoaderRefusal;
+    }
+
+    /**
+     * <p>
+     * Enables or disables verification of main flash while it is being written.
+     * Blocks written are collected in a window of given number of blocks; when
+     * the window is full, when next block is not contiguous with it or at the end
+     * of write operation, the window is read back and compared. A mismatch thus
+     * stops the write operation close to the failing page instead of after the
+     * whole firmware has been written, and only one window is held in memory.
+     * </p>
+     * 
+     * <p>
+     * Frames written through flash loader stub are always verified by the stub
+     * itself and are not read back again. Writes outside main flash (RAM, option
+     * bytes) are not verified.
+     * </p>
+     * 
+     * @param windowBlocks
+     *            number of 256 byte blocks in a window, for example 16, or 0 to
+     *            disable (default)
+     */
+    public void setWriteVerify(int windowBlocks) {
+        verifyWindowBlocks = windowBlocks;
+        vwLen = 0;
+        if (windowBlocks > 0) {
+            vwBuf = new byte[windowBlocks * 256];
+            vwReadBuf = new byte[windowBlocks * 256];
+        } else {
+            vwBuf = null;
+            vwReadBuf = null;
+        }
+    }
+
+    /**
+     * <p>
+     * Internal use only. Writes one block of at most 256 bytes. In pipelined mode
+     * the frame for this block is built first, then ACK of previous block is
+     * collected and this block is sent without waiting for its data ACK.
+     * </p>
+     * 
+     * @param data
+     *            data bytes to be written to given memory area
+     * @param offset
+     *            offset in data buffer from which 1st byte should be fetched
+     * @param length
+     *            number of data bytes to be written (0 < length <= 256)
+     * @param startAddr
+     *            memory address in stm32 where this block should be written
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    private void writeBlock(final byte[] data, final int offset, final int length, final int startAddr)
+            throws IOException, TimeoutException {
+
+        int frameLen;
+
+        if (this.isCancelRequested() == true) {
+            /* blocks already sent are completed so that bootloader waits for a command */
+            this.finishBlockWrites();
+            throw new CancellationException(rb.getString("op.cancel"));
+        }
+
+        if ((useFlashLoader == true) && (startAddr >= FLASH_AREA_START) && (startAddr < FLASH_AREA_END)) {
+            if (this.startFlashLoader() == true) {
+                this.loaderWriteBlock(data, offset, length, startAddr);
+                return;
+            }
+        } else if (flashLoaderRunning == true) {
+            this.stopFlashLoader();
+        } else {
+        }
+
+        if ((vwLen > 0) && ((startAddr != (vwAddr + vwLen)) || ((vwLen + length) > vwBuf.length))) {
+            this.verifyWindow();
+        }
+
+        if (pipelinedWrite == false) {
+            this.writeMemoryInBinFormat(data, offset, length, startAddr);
+            this.journalBlockWritten(startAddr + length);
+            this.addToWindow(data, offset, length, startAddr);
+            return;
+        }
+
+        frameLen = this.buildDataFrame(data, offset, length);
+        this.buildAddrFrame(startAddr);
+
+        /* frame is ready, now collect ACK of previous block */
+        if (this.waitForDataAck() == true) {
+            /* previous block was written again using the same frame buffers */
+            frameLen = this.buildDataFrame(data, offset, length);
+            this.buildAddrFrame(startAddr);
+        }
+
+        if (dbg.state == true) {
+            System.out.println("Write 0x" + SerialComUtil.intToHexString(startAddr) + " len " + length + " offset "
+                    + offset + " pipelined");
+        }
+
+        try {
+            this.sendPipelinedWriteCommand();
+        } catch (TimeoutException e) {
+            this.retryWrite(data, offset, length, startAddr, e);
+            this.journalBlockWritten(startAddr + length);
+            this.addToWindow(data, offset, length, startAddr);
+            return;
+        }
+
+        this.sendDataFrame(frameLen);
+        dataAckPending = true;
+        dataAckEndAddr = startAddr + length;
+        if (retryPolicy != null) {
+            System.arraycopy(data, offset, plBlock, 0, length);
+            plLen = length;
+        }
+
+        this.addToWindow(data, offset, length, startAddr);
+    }
+
+    /**
+     * <p>
+     * Internal use only. Writes one block of a direct or memory mapped buffer
+     * with its frame built straight from the buffer. Used only when block needs
+     * not be kept for anything else; no retry policy, verify window or flash
+     * loader (see canFrameFromBuffer()).
+     * </p>
+     * 
+     * @param data
+     *            buffer whose next length bytes are to be written, its position is
+     *            advanced by length
+     * @param length
+     *            number of data bytes to be written (0 < length <= 256)
+     * @param startAddr
+     *            memory address in stm32 where this block should be written
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     */
+    private void writeBlock(final ByteBuffer data, final int length, final int startAddr)
+            throws IOException, TimeoutException {
+
+        int frameLen;
+
+        if (this.isCancelRequested() == true) {
+            /* blocks already sent are completed so that bootloader waits for a command */
+            this.finishBlockWrites();
+            throw new CancellationException(rb.getString("op.cancel"));
+        }
+
+        /* blocks of an earlier write still in verify window */
+        if (vwLen > 0) {
+            this.verifyWindow();
+        }
+
+        if (dbg.state == true) {
+            System.out.println("Write 0x" + SerialComUtil.intToHexString(startAddr) + " len " + length + " buffer");
+        }
+
+        if (pipelinedWrite == false) {
+            this.sendWriteCommand(startAddr);
+            this.sendDataFrame(this.buildDataFrame(data, length));
+            this.waitForWriteAck();
+            this.journalBlockWritten(startAddr + length);
+            return;
+        }
+
+        /* frame is ready, now collect ACK of previous block, no retry policy so it is never rewritten */
+        frameLen = this.buildDataFrame(data, length);
+        this.buildAddrFrame(startAddr);
+        this.waitForDataAck();
+
+        this.sendPipelinedWriteCommand();
+        this.sendDataFrame(frameLen);
+        dataAckPending = true;
+        dataAckEndAddr = startAddr + length;
+    }
+
+    /**
+     * <p>
+     * Internal use only. Tells whether a block to be written at given address can
+     * be framed straight from caller's buffer. Retry policy, verify window and
+     * flash loader keep or resend block data after the frame has been sent, so
+     * they need it in an array.
+     * </p>
+     * 
+     * @param startAddr
+     *            memory address in stm32 where block is to be written
+     * @return true if no feature needs a copy of the block
+     */
+    private boolean canFrameFromBuffer(final int startAddr) {
+
+        boolean inFlash = (startAddr >= FLASH_AREA_START) && (startAddr < FLASH_AREA_END);
+
+        if ((retryPolicy != null) || (flashLoaderRunning == true)) {
+            return false;
+        }
+        if ((inFlash == true) && ((useFlashLoader == true) || (verifyWindowBlocks > 0))) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * <p>
+     * Internal use only. Sends write memory command and address frame built by
+     * buildAddrFrame() in pipelined mode, reading their ACKs directly.
+     * </p>
+     * 
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader declines command or address or sends no
+     *             response
+     */
+    private void sendPipelinedWriteCommand() throws IOException, TimeoutException {
+
+        int res;
+
+        this.frameSent(CMD_WRITE_MEMORY, CMD_WRITE_MEMORY.length);
+        this.write(CMD_WRITE_MEMORY);
+        res = waitForAck(0);
+        if (res == -1) {
+            handleReadProtectionQuirk();
+            throw new TimeoutException(rb.getString("nack.prot"));
+        } else if (res == -2) {
+            throw new TimeoutException(rb.getString("prot.cmd.to"));
+        } else {
+        }
+
+        this.frameSent(addrFrame, addrFrame.length);
+        this.write(addrFrame);
+        res = waitForAck(1000);
+        if (res == -1) {
+            throw new TimeoutException(rb.getString("nack.adr.sm"));
+        } else if (res == -2) {
+            throw new TimeoutException(rb.getString("adr.sm.to"));
+        } else {
+        }
+    }
+
+    /**
+     * <p>
+     * Internal use only. Collects ACK for data of the last block written in
+     * pipelined mode, if any, and verifies blocks still in verify window. If flash
+     * loader is running, last frame is written and bootloader is started again.
+     * Must be called at the end of every write operation.
+     * </p>
+     * 
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader fails to write last block or sends no response
+     */
+    private void finishBlockWrites() throws IOException, TimeoutException {
+
+        if (flashLoaderRunning == true) {
+            this.stopFlashLoader();
+            return;
+        }
+        this.waitForDataAck();
+        if (vwLen > 0) {
+            this.verifyWindow();
+        }
+    }
+
+    /**
+     * <p>
+     * Internal use only. Collects ACK for data of the last block written in
+     * pipelined mode, if any. If it fails and a retry policy is set, the block is
+     * written again from the copy kept when it was sent.
+     * </p>
+     * 
+     * @return true if block had to be written again
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader fails to write last block or sends no response
+     */
+    private boolean waitForDataAck() throws IOException, TimeoutException {
+
+        int res;
+        boolean rewritten = false;
+
+        if (dataAckPending == false) {
+            return false;
+        }
+        dataAckPending = false;
+
+        /* wait for 2 seconds for write operation to complete */
+        try {
+            res = waitForAck(2000);
+            if (res == -1) {
+                throw new TimeoutException(rb.getString("nack.w.data"));
+            } else if (res == -2) {
+                throw new TimeoutException(rb.getString("write.to"));
+            } else {
+            }
+        } catch (TimeoutException e) {
+            this.retryWrite(plBlock, 0, plLen, dataAckEndAddr - plLen, e);
+            rewritten = true;
+        }
+
+        this.journalBlockWritten(dataAckEndAddr);
+        return rewritten;
+    }
+
+    /**
+     * <p>
+     * Internal use only. Updates write journal, if one is set, after stm32 has
+     * acknowledged all data below given address.
+     * </p>
+     * 
+     * @param endAddr
+     *            address just after the last acknowledged byte
+     * @throws IOException
+     *             if journal file can not be written
+     */
+    private void journalBlockWritten(final int endAddr) throws IOException {
+        if (writeJournal == null) {
+            return;
+        }
+        try {
+            writeJournal.blockWritten(endAddr);
+        } catch (IOException e) {
+            throw new IOException(rb.getString("jrnl.w.fail") + " " + e.getMessage());
+        }
+    }
+
+    /**
+     * <p>
+     * Internal use only. Keeps copy of a block just written to main flash in
+     * verify window, if write verification is enabled. Window is verified once
+     * it is full.
+     * </p>
+     * 
+     * @param data
+     *            data bytes written
+     * @param offset
+     *            offset in data buffer of 1st byte
+     * @param length
+     *            number of data bytes written
+     * @param startAddr
+     *            memory address in stm32 where block was written
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader sends no response
+     * @throws IllegalStateException
+     *             when read back data differs
+     */
+    private void addToWindow(final byte[] data, final int offset, final int length, final int startAddr)
+            throws IOException, TimeoutException {
+
+        if ((verifyWindowBlocks == 0) || (startAddr < FLASH_AREA_START) || (startAddr >= FLASH_AREA_END)) {
+            return;
+        }
+        if (vwLen == 0) {
+            vwAddr = startAddr;
+        }
+        System.arraycopy(data, offset, vwBuf, vwLen, length);
+        vwLen = vwLen + length;
+        if (vwLen == vwBuf.length) {
+            this.verifyWindow();
+        }
+    }
+
+    /**
+     * <p>
+     * Internal use only. Reads back blocks in verify window and compares them with
+     * what was written, then empties the window.
+     * </p>
+     * 
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader sends no response
+     * @throws IllegalStateException
+     *             when read back data differs
+     */
+    private void verifyWindow() throws IOException, TimeoutException {
+
+        int x;
+        int len = vwLen;
+
+        this.waitForDataAck();
+        vwLen = 0;
+
+        if (dbg.state == true) {
+            System.out.println("Verify 0x" + SerialComUtil.intToHexString(vwAddr) + " len " + len);
+        }
+
+        for (x = 0; x < len; x = x + 256) {
+            this.readGivenMemory(vwReadBuf, vwAddr + x, Math.min(256, len - x), x);
+        }
+        for (x = 0; x < len; x++) {
+            if (vwBuf[x] != vwReadBuf[x]) {
+                /* not a line or bootloader error, so never retried as one */
+                throw new IllegalStateException(
+                        rb.getString("vrfy.w.mismch") + " 0x" + SerialComUtil.intToHexString(vwAddr + x));
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Internal use only. Writes flash loader stub into RAM, starts it and switches
+     * to the requested baudrate. Does nothing if it is already running.
+     * </p>
+     * 
+     * @return true if stub is running, false if it can not be used with this
+     *         device
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader or stub fails to respond
+     */
+    private boolean startFlashLoader() throws IOException, TimeoutException {
+
+        int x;
+        int len;
+        byte[] image;
+        byte[] cr1 = new byte[4];
+
+        if (flashLoaderRunning == true) {
+            return true;
+        }
+
+        flashLoader = FlashLoader.getLoader(curDev);
+        if (flashLoader == null) {
+            flashLoaderRefusal = rb.getString("ldr.nsprt");
+            if (dbg.state == true) {
+                System.out.println(flashLoaderRefusal);
+            }
+            useFlashLoader = false;
+            return false;
+        }
+        this.finishBlockWrites();
+
+        /* stub talks over USART1, check that bootloader has enabled it */
+        try {
+            this.readGivenMemory(cr1, flashLoader.usartBase + flashLoader.usartCR1Offset, 4, 0);
+        } catch (TimeoutException e) {
+            cr1[0] = 0;
+            cr1[1] = 0;
+        }
+        x = ((cr1[1] & 0xFF) << 8) | (cr1[0] & 0xFF);
+        if ((x & flashLoader.usartUEMask) == 0) {
+            flashLoaderRefusal = rb.getString("ldr.no.usart1");
+            if (dbg.state == true) {
+                System.out.println(flashLoaderRefusal);
+            }
+            useFlashLoader = false;
+            return false;
+        }
+
+        image = flashLoader.getLoaderImage();
+        for (x = 0; x < image.length; x = x + 256) {
+            len = Math.min(256, image.length - x);
+            this.writeMemoryInBinFormat(image, x, len, flashLoader.loadAddress + x);
+        }
+        this.goJump(flashLoader.loadAddress);
+        flashLoaderRunning = true;
+        if (uartIface != null) {
+            origBaudrate = uartIface.getBaudrate();
+        }
+
+        if (this.readLoaderResponse(1000) != FlashLoader.READY) {
+            this.leaveFlashLoader(true);
+            throw new TimeoutException(rb.getString("ldr.no.resp"));
+        }
+
+        if ((flashLoaderBaudrate > 0) && (uartIface != null) && (flashLoaderBaudrate != origBaudrate)) {
+            this.changeLoaderBaudrate(flashLoaderBaudrate);
+        }
+
+        if ((ldrFrame == null) || (ldrFrame.length != (flashLoader.frameSize + 13))) {
+            ldrFrame = new byte[flashLoader.frameSize + 13];
+        }
+        ldrFrameLen = 0;
+        return true;
+    }
+
+    /**
+     * <p>
+     * Internal use only. Asks stub to switch to given baudrate and then switches
+     * serial port. Stub computes nothing, new divider value is derived here from
+     * the current one. If given baudrate can not be generated within 2% by stm32,
+     * current baudrate is kept.
+     * </p>
+     * 
+     * @param baudRate
+     *            new baudrate
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when stub fails to respond
+     */
+    private void changeLoaderBaudrate(int baudRate) throws IOException, TimeoutException {
+
+        int x;
+        int res;
+        int brr = 0;
+        int newBrr;
+        long pclk;
+        byte[] buf = new byte[5];
+
+        this.writeByte(FlashLoader.CMD_QUERY_BRR);
+        for (x = 0; x < 4; x++) {
+            res = this.readLoaderResponse(1000);
+            if (res < 0) {
+                this.leaveFlashLoader(true);
+                throw new TimeoutException(rb.getString("ldr.no.resp"));
+            }
+            brr = brr | (res << (8 * x));
+        }
+
+        /* baudrate = peripheral clock / BRR */
+        pclk = (long) brr * uartIface.getBaudrate();
+        newBrr = (int) ((pclk + (baudRate / 2)) / baudRate);
+        if ((newBrr < 16) || (Math.abs((pclk / newBrr) - baudRate) > (baudRate / 50))) {
+            if (dbg.state == true) {
+                System.out.println("Flash loader can not use baudrate " + baudRate + ", clock " + pclk);
+            }
+            return;
+        }
+
+        buf[0] = FlashLoader.CMD_BAUD;
+        buf[1] = (byte) (newBrr & 0xFF);
+        buf[2] = (byte) ((newBrr >> 8) & 0xFF);
+        buf[3] = (byte) ((newBrr >> 16) & 0xFF);
+        buf[4] = (byte) ((newBrr >> 24) & 0xFF);
+        this.write(buf);
+
+        /* ACK comes at old baudrate, stub switches after sending it */
+        if (this.readLoaderResponse(1000) != ACK) {
+            this.leaveFlashLoader(true);
+            throw new TimeoutException(rb.getString("ldr.no.resp"));
+        }
+        uartIface.setBaudrate(baudRate);
+
+        for (x = 0; x < 3; x++) {
+            this.writeByte(FlashLoader.CMD_PING);
+            if (this.readLoaderResponse(500) == ACK) {
+                return;
+            }
+        }
+        this.leaveFlashLoader(true);
+        throw new TimeoutException(rb.getString("ldr.baud.fail"));
+    }
+
+    /**
+     * <p>
+     * Internal use only. Adds a block to the current frame. The frame is sent when
+     * it is full or when given block is not contiguous with it.
+     * </p>
+     * 
+     * @param data
+     *            data bytes to be written to given memory area
+     * @param offset
+     *            offset in data buffer from which 1st byte should be fetched
+     * @param length
+     *            number of data bytes to be written (0 < length <= 256)
+     * @param startAddr
+     *            memory address in stm32 where this block should be written
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when stub fails to program a frame or sends no response
+     */
+    private void loaderWriteBlock(final byte[] data, final int offset, final int length, final int startAddr)
+            throws IOException, TimeoutException {
+
+        int x;
+        int pad;
+
+        if ((ldrFrameLen > 0) && ((startAddr != (ldrFrameAddr + ldrFrameLen))
+                || ((ldrFrameLen + length) > flashLoader.frameSize))) {
+            this.flushLoaderFrame();
+        }
+
+        if (ldrFrameLen == 0) {
+            /* frame must start at programming unit boundary, erased value in front */
+            pad = startAddr & (flashLoader.programUnit - 1);
+            ldrFrameAddr = startAddr - pad;
+            for (x = 0; x < pad; x++) {
+                ldrFrame[9 + x] = (byte) 0xFF;
+            }
+            ldrFrameLen = pad;
+        }
+
+        System.arraycopy(data, offset, ldrFrame, 9 + ldrFrameLen, length);
+        ldrFrameLen = ldrFrameLen + length;
+    }
+
+    /**
+     * <p>
+     * Internal use only. Sends current frame to stub and waits until it has been
+     * programmed and verified. Frame damaged on the line (NACK) is sent again upto
+     * 3 times.
      * </p>
      * 
-     * @param data
-     *            data bytes to be written to given memory area
-     * @param offset
-     *            offset in data buffer from which 1st byte should be fetched
-     * @param length
-     *            number of data bytes to be written from given data buffer (0 <
-     *            length <= 256)
-     * @param startAddr
-     *            memory address in stm32 from which flashing should start
-     * @return 0 on success
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
-     *             when bootloader declines this command, fails to execute this
-     *             command or sends no response at all
+     *             when stub fails to program the frame or sends no response
      */
-    private int writeMemoryInBinFormat(final byte[] data, int offset, final int length, final int startAddr)
-            throws SerialComException, TimeoutException {
+    private void flushLoaderFrame() throws IOException, TimeoutException {
 
         int x;
         int res;
-        int checksum;
-        int numPaddingBytes;
-        byte[] addrBuf = new byte[5];
-        byte[] buf;
+        int len;
+        int crc;
+        int tries = 3;
+        long timeOutMillis;
+
+        if (ldrFrameLen == 0) {
+            return;
+        }
+
+        /* length must be multiple of programming unit, erased value at end */
+        len = (ldrFrameLen + flashLoader.programUnit - 1) & ~(flashLoader.programUnit - 1);
+        for (x = ldrFrameLen; x < len; x++) {
+            ldrFrame[9 + x] = (byte) 0xFF;
+        }
+        ldrFrameLen = 0;
+
+        ldrFrame[0] = FlashLoader.CMD_WRITE;
+        this.putLoaderInt(1, ldrFrameAddr);
+        this.putLoaderInt(5, len);
+        ldrCrc.reset();
+        ldrCrc.update(ldrFrame, 1, len + 8);
+        crc = (int) ldrCrc.getValue();
+        this.putLoaderInt(len + 9, crc);
 
         if (dbg.state == true) {
-            System.out.println(
-                    "Write 0x" + SerialComUtil.intToHexString(startAddr) + " len " + length + " offset " + offset);
+            System.out.println("Loader write 0x" + SerialComUtil.intToHexString(ldrFrameAddr) + " len " + len);
         }
 
-        /* send write memory command */
-        res = sendCmdOrCmdData(CMD_WRITE_MEMORY, TIMEOUT_ZERO);
-        if (res < 0) {
-            if (res == -1) {
-                /* some devices may send 2 NACK */
-                handleReadProtectionQuirk();
-                throw new TimeoutException(rb.getString("nack.prot"));
-            } else if (res == -2) {
-                throw new TimeoutException(rb.getString("prot.cmd.to"));
+        if (retryPolicy != null) {
+            tries = Math.max(tries, retryPolicy.maxRetries + 1);
+        }
+        for (x = 0; x < tries; x++) {
+            if (x > 0) {
+                this.prepareLoaderRetry(x);
+            }
+
+            /* serial driver may still be sending the frame when write returns */
+            timeOutMillis = 2000 + ((len * 10000L) / ((uartIface != null) ? uartIface.getBaudrate() : 9600));
+            if (len == flashLoader.frameSize) {
+                this.write(ldrFrame);
+            } else {
+                this.write(Arrays.copyOf(ldrFrame, len + 13));
+            }
+            res = this.readLoaderResponse(timeOutMillis);
+            if (res == ACK) {
+                lineErrorFailures = 0;
+                this.journalBlockWritten(ldrFrameAddr + len);
+                return;
+            } else if (res == FlashLoader.FAIL) {
+                this.leaveFlashLoader(true);
+                throw new TimeoutException(
+                        rb.getString("ldr.prog.fail") + " 0x" + SerialComUtil.intToHexString(ldrFrameAddr));
+            } else if (res != NACK) {
+                this.leaveFlashLoader(true);
+                throw new TimeoutException(rb.getString("ldr.no.resp"));
             } else {
             }
         }
 
-        addrBuf[0] = (byte) ((startAddr >> 24) & 0xFF);
-        addrBuf[1] = (byte) ((startAddr >> 16) & 0xFF);
-        addrBuf[2] = (byte) ((startAddr >> 8) & 0xFF);
-        addrBuf[3] = (byte) (startAddr & 0xFF);
-        addrBuf[4] = (byte) (addrBuf[0] ^ addrBuf[1] ^ addrBuf[2] ^ addrBuf[3]);
+        this.leaveFlashLoader(true);
+        throw new TimeoutException(rb.getString("ldr.crc.fail"));
+    }
 
-        /* send address and checksum of address */
-        res = sendCmdOrCmdData(addrBuf, TIMEOUT_ONE);
-        if (res < 0) {
-            if (res == -1) {
-                throw new TimeoutException(rb.getString("nack.adr.sm"));
-            } else if (res == -2) {
-                throw new TimeoutException(rb.getString("adr.sm.to"));
-            } else {
-            }
+    /**
+     * <p>
+     * Internal use only. Called before current frame is sent to stub again because
+     * stub received it with bad CRC. Corrupted frames are line errors, so after as
+     * many of them in a row as given in retry policy, stub is switched to the
+     * lower baudrate.
+     * </p>
+     * 
+     * @param attempt
+     *            retry number for this frame starting from 1
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when stub fails to respond while changing baudrate
+     */
+    private void prepareLoaderRetry(final int attempt) throws IOException, TimeoutException {
+
+        if (retryPolicy == null) {
+            return;
+        }
+
+        totalRetries++;
+        if (retryListener != null) {
+            retryListener.onBlockRetry(ldrFrameAddr, attempt, totalRetries, rb.getString("ldr.crc.bad"));
         }
 
-        /* N + 1 should be multiple of 4 */
-        numPaddingBytes = length % 4;
-        if (numPaddingBytes > 0) {
-            numPaddingBytes = 4 - numPaddingBytes;
+        lineErrorFailures++;
+        if ((retryPolicy.lowerBaudrate > 0) && (lineErrorFailures >= retryPolicy.lineErrorsBeforeDrop)
+                && (uartIface != null) && (uartIface.getBaudrate() > retryPolicy.lowerBaudrate)) {
+            if (dbg.state == true) {
+                System.out.println("Lowering flash loader baudrate to " + retryPolicy.lowerBaudrate);
+            }
+            this.changeLoaderBaudrate(retryPolicy.lowerBaudrate);
+            lineErrorFailures = 0;
         }
+    }
+
+    /**
+     * <p>
+     * Internal use only. Writes last frame and stops the stub.
+     * </p>
+     * 
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when stub fails to program last frame or bootloader does not
+     *             respond after reset
+     */
+    private void stopFlashLoader() throws IOException, TimeoutException {
+        this.flushLoaderFrame();
+        this.leaveFlashLoader(false);
+    }
+
+    /**
+     * <p>
+     * Internal use only. Makes stub reset stm32, restores original baudrate and
+     * initializes bootloader again. Also used when an error occurs while stub is
+     * running, in that case failure to initialize bootloader is not reported as
+     * the original error is more useful to caller.
+     * </p>
+     * 
+     * @param onError
+     *            true if called because of an error
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader does not respond after reset
+     */
+    private void leaveFlashLoader(boolean onError) throws IOException, TimeoutException {
 
-        /* total number of bytes + actual data bytes + padding + checksum */
-        buf = new byte[length + numPaddingBytes + 2];
+        flashLoaderRunning = false;
+        ldrFrameLen = 0;
 
-        /* number of bytes to be sent */
-        buf[0] = (byte) (length + numPaddingBytes - 1);
+        this.writeByte(FlashLoader.CMD_RESET);
 
-        /* actual firmware data */
-        res = length + 1;
-        for (x = 1; x < res; x++) {
-            buf[x] = data[offset];
-            offset++;
+        /* one read timeout lets reset byte go out and stm32 restart */
+        this.read(rspByte, 0, 1);
+        if ((uartIface != null) && (uartIface.getBaudrate() != origBaudrate)) {
+            uartIface.setBaudrate(origBaudrate);
         }
 
-        /* padding if data not multiple of 4 */
-        if (numPaddingBytes > 0) {
-            for (res = 0; res < numPaddingBytes; res++) {
-                buf[x] = (byte) 0xFF;
-                x++;
+        try {
+            this.initAndIdentifyDevice(transport);
+        } catch (TimeoutException e) {
+            if (onError == false) {
+                throw e;
             }
         }
+    }
 
-        /* checksum of 'total number of data byte' + actual data + padding */
-        checksum = 0;
-        x = length + numPaddingBytes + 1;
-        for (res = 0; res < x; res++) {
-            checksum = checksum ^ buf[res];
-        }
-        buf[x] = (byte) checksum;
+    /**
+     * <p>
+     * Internal use only. Waits for one byte from stub.
+     * </p>
+     * 
+     * @param timeOutMillis
+     *            maximum time to wait in milliseconds
+     * @return received byte (0 to 255) or -2 if nothing is received
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     */
+    private int readLoaderResponse(long timeOutMillis) throws IOException {
 
-        scm.writeBytes(comPortHandle, buf);
+        int x;
+        long responseWaitTime = System.nanoTime() + Math.max(timeOutMillis * 1000000L, READ_TIMEOUT);
 
-        /* wait for 2 seconds for write operation to complete */
-        for (x = 0; x < 4; x++) {
-            res = scm.readBytes(comPortHandle, addrBuf, 0, 1, -1, null);
-            if (res > 0) {
-                if (addrBuf[0] == ACK) {
-                    return 0;
-                }
-                if (addrBuf[0] == NACK) {
-                    throw new TimeoutException(rb.getString("nack.w.data"));
-                }
+        do {
+            x = transport.read(rspByte, 0, 1, responseWaitTime);
+            if (x > 0) {
+                return rspByte[0] & 0xFF;
             }
-        }
+        } while ((System.nanoTime() - responseWaitTime) < 0);
+
+        return -2;
+    }
 
-        throw new TimeoutException(rb.getString("write.to"));
+    private void putLoaderInt(int offset, int val) {
+        ldrFrame[offset] = (byte) (val & 0xFF);
+        ldrFrame[offset + 1] = (byte) ((val >> 8) & 0xFF);
+        ldrFrame[offset + 2] = (byte) ((val >> 16) & 0xFF);
+        ldrFrame[offset + 3] = (byte) ((val >> 24) & 0xFF);
     }
 
     /**
@@ -1188,14 +2997,17 @@ public final class UARTCommandExecutor extends CommandExecutor {
      *            instance of class which implements callback methods to know how
      *            many bytes have been sent till now or null if not required
      * @return 0 on success
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
+     * @throws IllegalStateException
+     *             if write verification is enabled and data read back from flash
+     *             differs from data written
      */
     public int writeMemory(final int fwType, final byte[] data, final int startAddr,
-            ICmdProgressListener progressListener) throws SerialComException, TimeoutException {
+            ICmdProgressListener progressListener) throws IOException, TimeoutException {
 
         int x;
         int y;
@@ -1206,6 +3018,8 @@ public final class UARTCommandExecutor extends CommandExecutor {
         int totalBytesWrittenTillNow = 0;
         byte[] fwBuf;
 
+        this.startRetryCount(progressListener);
+
         if (data == null) {
             throw new IllegalArgumentException(rb.getString("nul.buf"));
         }
@@ -1216,15 +3030,8 @@ public final class UARTCommandExecutor extends CommandExecutor {
         switch (fwType) {
 
         case FileType.HEX:
-            HexFirmware hf = flashUtils.hexToBinFwFormat(data);
-            beginAddr = hf.address;
-            fwBuf = hf.fwInBinFormat;
-            numBytesToWrite = fwBuf.length;
-
-            if (dbg.state == true) {
-                System.out.println("flashaddr: " + beginAddr);
-            }
-            break;
+            /* gaps between records are not sent at all */
+            return this.writeMemory(flashUtils.hexToSegmentedFwFormat(data), progressListener);
 
         case FileType.BIN:
             fwBuf = data;
@@ -1235,16 +3042,19 @@ public final class UARTCommandExecutor extends CommandExecutor {
             throw new IllegalArgumentException(rb.getString("inval.fl.tp"));
         }
 
+        meter = ProgressMeter.start(progressListener, ICmdDetailedProgressListener.PHASE_WRITE, numBytesToWrite);
+
         /* send data in chunk of 256 bytes */
         x = numBytesToWrite / 256;
         if (x > 0) {
             for (z = 0; z < x; z++) {
-                this.writeMemoryInBinFormat(fwBuf, offset, 256, beginAddr);
+                this.writeBlock(fwBuf, offset, 256, beginAddr);
                 offset = offset + 256;
                 beginAddr = beginAddr + 256;
                 if (progressListener != null) {
                     totalBytesWrittenTillNow = totalBytesWrittenTillNow + 256;
                     progressListener.onDataWriteProgressUpdate(totalBytesWrittenTillNow, numBytesToWrite);
+                    this.reportProgress(beginAddr, totalBytesWrittenTillNow);
                 }
             }
         }
@@ -1252,16 +3062,253 @@ public final class UARTCommandExecutor extends CommandExecutor {
         /* send last or chunk of size less than 256 */
         y = numBytesToWrite % 256;
         if (y > 0) {
-            this.writeMemoryInBinFormat(fwBuf, offset, y, beginAddr);
+            this.writeBlock(fwBuf, offset, y, beginAddr);
             if (progressListener != null) {
                 totalBytesWrittenTillNow = totalBytesWrittenTillNow + y;
                 progressListener.onDataWriteProgressUpdate(totalBytesWrittenTillNow, numBytesToWrite);
+                this.reportProgress(beginAddr + y, totalBytesWrittenTillNow);
+            }
+        }
+
+        this.finishBlockWrites();
+
+        return 0;
+    }
+
+    /**
+     * <p>
+     * Writes given segmented firmware to stm32. Every segment is written starting
+     * from its own address in chunks of 256 bytes. Address range between two
+     * segments is skipped entirely; nothing is sent for it.
+     * </p>
+     * 
+     * <p>
+     * Sends command 'Write Memory command' (0x31) to stm32 to write to memory.
+     * </p>
+     * 
+     * @param fw
+     *            firmware to be flashed
+     * @param progressListener
+     *            instance of class which implements callback methods to know how
+     *            many bytes have been sent till now or null if not required
+     * @return 0 on success
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     * @throws IllegalStateException
+     *             if write verification is enabled and data read back from flash
+     *             differs from data written
+     */
+    public int writeMemory(final SegmentedFirmware fw, ICmdProgressListener progressListener)
+            throws IOException, TimeoutException {
+
+        int x;
+        int offset;
+        int beginAddr;
+        int numBytesToWrite;
+        int totalBytesWrittenTillNow = 0;
+
+        this.startRetryCount(progressListener);
+
+        if (fw == null) {
+            throw new IllegalArgumentException(rb.getString("nul.buf"));
+        }
+
+        numBytesToWrite = fw.getTotalLength();
+        meter = ProgressMeter.start(progressListener, ICmdDetailedProgressListener.PHASE_WRITE, numBytesToWrite);
+
+        for (SegmentedFirmware.Segment seg : fw.getSegments()) {
+
+            if (dbg.state == true) {
+                System.out.println("segment: 0x" + SerialComUtil.intToHexString(seg.address) + " len " + seg.data.length);
+            }
+
+            offset = 0;
+            beginAddr = seg.address;
+            while (offset < seg.data.length) {
+                x = seg.data.length - offset;
+                if (x > 256) {
+                    x = 256;
+                }
+                this.writeBlock(seg.data, offset, x, beginAddr);
+                offset = offset + x;
+                beginAddr = beginAddr + x;
+                if (progressListener != null) {
+                    totalBytesWrittenTillNow = totalBytesWrittenTillNow + x;
+                    progressListener.onDataWriteProgressUpdate(totalBytesWrittenTillNow, numBytesToWrite);
+                    this.reportProgress(beginAddr, totalBytesWrittenTillNow);
+                }
+            }
+        }
+
+        this.finishBlockWrites();
+
+        return 0;
+    }
+
+    /**
+     * <p>
+     * Writes bytes remaining in the given buffer to memory starting at given
+     * address; buffer's position is advanced to its limit. Blocks are taken from
+     * backing array of heap buffers as is. Frames sent to stm32 are built in a
+     * direct buffer owned by this executor and blocks of direct or memory mapped
+     * buffers are copied straight into it, so every byte is copied once and
+     * nothing is allocated per block. Only when retry policy, write verification
+     * or flash loader is in use, such a block is first fetched into one array
+     * reused for every block, as these need block data after it has been sent.
+     * </p>
+     * 
+     * <p>
+     * Sends command 'Write Memory command' (0x31) to stm32 to write to memory.
+     * </p>
+     * 
+     * @param data
+     *            data bytes to be written
+     * @param startAddr
+     *            memory address in stm32 from where writing should start
+     * @param progressListener
+     *            instance of class which implements callback methods to know how
+     *            many bytes have been sent till now or null if not required
+     * @return 0 on success
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader declines this command, fails to execute this
+     *             command or sends no response at all
+     * @throws IllegalStateException
+     *             if write verification is enabled and data read back from flash
+     *             differs from data written
+     */
+    public int writeMemory(final ByteBuffer data, final int startAddr, ICmdProgressListener progressListener)
+            throws IOException, TimeoutException {
+
+        int len;
+        int index = 0;
+        int numBytesToWrite;
+
+        this.startRetryCount(progressListener);
+
+        if (data == null) {
+            throw new IllegalArgumentException(rb.getString("nul.buf"));
+        }
+
+        numBytesToWrite = data.remaining();
+        meter = ProgressMeter.start(progressListener, ICmdDetailedProgressListener.PHASE_WRITE, numBytesToWrite);
+        while (index < numBytesToWrite) {
+            len = Math.min(256, numBytesToWrite - index);
+            if (data.hasArray() == true) {
+                this.writeBlock(data.array(), data.arrayOffset() + data.position(), len, startAddr + index);
+                data.position(data.position() + len);
+            } else if (this.canFrameFromBuffer(startAddr + index) == true) {
+                this.writeBlock(data, len, startAddr + index);
+            } else {
+                /* block is needed again after it is sent, retried, verified or collected for loader */
+                data.get(blockBuf, 0, len);
+                this.writeBlock(blockBuf, 0, len, startAddr + index);
+            }
+            index = index + len;
+            if (progressListener != null) {
+                progressListener.onDataWriteProgressUpdate(index, numBytesToWrite);
+                this.reportProgress(startAddr + index, index);
             }
         }
 
+        this.finishBlockWrites();
+
         return 0;
     }
 
+    /**
+     * <p>
+     * Calculates CRC of given memory ranges on stm32 itself. Flash loader stub is
+     * written into RAM and started, it computes CRC of every range (using CRC unit
+     * of stm32 for word aligned ranges) and sends back 4 bytes. Then stm32 is reset
+     * and bootloader initialized again. Stub runs at current baudrate unless a
+     * baudrate has been given through setFlashLoader().
+     * </p>
+     * 
+     * @param startAddrs
+     *            start address of every range
+     * @param lengths
+     *            number of bytes in every range
+     * @return CRC of every range or null if flash loader stub can not be used
+     *         with this device
+     * @throws IOException
+     *             if an error happens when communicating through serial port
+     * @throws TimeoutException
+     *             when bootloader or stub declines a command or sends no response
+     */
+    public int[] calculateMemoryCRC(final int[] startAddrs, final int[] lengths)
+            throws IOException, TimeoutException {
+
+        int x;
+        int y;
+        int res;
+        int crc;
+        int[] crcs;
+        long timeOutMillis;
+        byte[] buf = new byte[13];
+
+        if ((startAddrs == null) || (lengths == null) || (startAddrs.length != lengths.length)) {
+            throw new IllegalArgumentException(rb.getString("nul.buf"));
+        }
+
+        this.finishBlockWrites();
+        if (this.startFlashLoader() == false) {
+            return null;
+        }
+
+        crcs = new int[startAddrs.length];
+        for (x = 0; x < startAddrs.length; x++) {
+
+            buf[0] = FlashLoader.CMD_CRC;
+            for (y = 0; y < 4; y++) {
+                buf[1 + y] = (byte) ((startAddrs[x] >> (8 * y)) & 0xFF);
+                buf[5 + y] = (byte) ((lengths[x] >> (8 * y)) & 0xFF);
+            }
+            ldrCrc.reset();
+            ldrCrc.update(buf, 1, 8);
+            crc = (int) ldrCrc.getValue();
+            for (y = 0; y < 4; y++) {
+                buf[9 + y] = (byte) ((crc >> (8 * y)) & 0xFF);
+            }
+
+            if (dbg.state == true) {
+                System.out.println("Loader crc 0x" + SerialComUtil.intToHexString(startAddrs[x]) + " len "
+                        + lengths[x]);
+            }
+
+            /* command damaged on the line is sent again upto 3 times */
+            res = NACK;
+            for (y = 0; (y < 3) && (res == NACK); y++) {
+                this.write(buf);
+                res = this.readLoaderResponse(1000);
+            }
+            if (res != ACK) {
+                this.leaveFlashLoader(true);
+                throw new TimeoutException(rb.getString(res == NACK ? "ldr.crc.fail" : "ldr.no.resp"));
+            }
+
+            /* about 60 cycles per byte if done without CRC unit at 8 MHz */
+            timeOutMillis = 2000 + (lengths[x] / 64);
+            crc = 0;
+            for (y = 0; y < 4; y++) {
+                res = this.readLoaderResponse(timeOutMillis);
+                if (res < 0) {
+                    this.leaveFlashLoader(true);
+                    throw new TimeoutException(rb.getString("ldr.no.resp"));
+                }
+                crc = crc | (res << (8 * y));
+            }
+            crcs[x] = crc;
+        }
+
+        this.leaveFlashLoader(false);
+        return crcs;
+    }
+
     /**
      * <p>
      * Writes given data to the memory region specified starting from the given
@@ -1287,45 +3334,56 @@ public final class UARTCommandExecutor extends CommandExecutor {
      *            instance of class which implements callback methods to know how
      *            many bytes have been sent till now or null if not required
      * @return 0 on success
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port.
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
+     * @throws IllegalStateException
+     *             if write verification is enabled and data read back from flash
+     *             differs from data written
      */
     public int writeMemory(final int fwType, final File fwFile, final int startAddr,
             ICmdProgressListener progressListener) throws IOException, TimeoutException {
 
-        int x = 0;
-        int offset = 0;
-        int numBytesToRead = 0;
-        int numBytesActuallyRead = 0;
-        int totalBytesReadTillNow = 0;
-        BufferedInputStream inStream = null;
-        byte[] data;
-
-        try {
-            int lengthOfFileContents = (int) fwFile.length();
+        int x;
+        int numBytesToWrite = 0;
+        int totalBytesWrittenTillNow = 0;
+        byte[] block = new byte[FirmwareBlockReader.BLOCK_SIZE];
+        FirmwareBlockReader fwReader;
 
-            data = new byte[lengthOfFileContents];
+        this.startRetryCount(progressListener);
 
-            inStream = new BufferedInputStream(new FileInputStream(fwFile));
+        /*
+         * file is parsed block by block while flashing goes on, so memory used does
+         * not depend upon size of firmware.
+         */
+        fwReader = flashUtils.openFirmwareFile(fwType, fwFile, startAddr);
+        try {
+            if (progressListener != null) {
+                numBytesToWrite = fwReader.getTotalLength();
+            }
+            meter = ProgressMeter.start(progressListener, ICmdDetailedProgressListener.PHASE_WRITE, numBytesToWrite);
 
-            numBytesToRead = lengthOfFileContents;
-            for (x = 0; x < lengthOfFileContents; x = totalBytesReadTillNow) {
-                numBytesActuallyRead = inStream.read(data, offset, numBytesToRead);
-                totalBytesReadTillNow = totalBytesReadTillNow + numBytesActuallyRead;
-                offset = totalBytesReadTillNow;
-                numBytesToRead = lengthOfFileContents - totalBytesReadTillNow;
+            while (true) {
+                x = fwReader.nextBlock(block);
+                if (x < 0) {
+                    break;
+                }
+                this.writeBlock(block, 0, x, fwReader.getBlockAddress());
+                if (progressListener != null) {
+                    totalBytesWrittenTillNow = totalBytesWrittenTillNow + x;
+                    progressListener.onDataWriteProgressUpdate(totalBytesWrittenTillNow, numBytesToWrite);
+                    this.reportProgress(fwReader.getBlockAddress() + x, totalBytesWrittenTillNow);
+                }
             }
 
-            inStream.close();
-        } catch (IOException e) {
-            inStream.close();
-            throw e;
+            this.finishBlockWrites();
+        } finally {
+            fwReader.close();
         }
 
-        return this.writeMemory(fwType, data, startAddr, progressListener);
+        return 0;
     }
 
     /**
@@ -1342,20 +3400,21 @@ public final class UARTCommandExecutor extends CommandExecutor {
      *            total number of pages which should be erased
      * @param timeout
      *            maximum time to wait for erase operation to complete
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
     private void eraseGivenMemReg(final int memReg, final int startPageNum, final int totalNumOfPages,
-            final int timeout) throws SerialComException, TimeoutException {
+            final int timeout) throws IOException, TimeoutException {
 
         int x;
         int i;
         int res;
         byte[] erasePagesInfo;
 
+        this.checkCancelled();
         res = sendCmdOrCmdData(CMD_ERASE, TIMEOUT_ZERO);
         if (res < 0) {
             if (res == -1) {
@@ -1374,7 +3433,7 @@ public final class UARTCommandExecutor extends CommandExecutor {
 
         /* set page codes */
         x = startPageNum;
-        for (res = 1; res < totalNumOfPages; res++) {
+        for (res = 1; res <= totalNumOfPages; res++) {
             erasePagesInfo[res] = (byte) x;
             x++;
         }
@@ -1421,20 +3480,27 @@ public final class UARTCommandExecutor extends CommandExecutor {
      * required data to it.
      * </p>
      * 
+     * <p>
+     * This command carries page numbers in one byte, so only pages 0 to 255 can
+     * be erased with it.
+     * </p>
+     * 
      * @param memReg
      *            bitmask REGTYPE.MAIN
      * @param startPageNum
      *            starting page number from where erasing should start
      * @param totalNumOfPages
      *            total number of pages which should be erased
-     * @throws SerialComException
+     * @throws IllegalArgumentException
+     *             if a page beyond 255 is given
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
     public void eraseMemoryRegion(final int memReg, final int startPageNum, int totalNumOfPages)
-            throws SerialComException, TimeoutException {
+            throws IOException, TimeoutException {
 
         int x;
         int y;
@@ -1454,8 +3520,14 @@ public final class UARTCommandExecutor extends CommandExecutor {
             if (totalNumOfPages < 0) {
                 throw new IllegalArgumentException(rb.getString("inval.num.pg"));
             }
+            /* page numbers are sent as one byte */
+            if ((startPageNum + totalNumOfPages) > 256) {
+                throw new IllegalArgumentException(rb.getString("inval.pg.erase"));
+            }
         }
 
+        this.checkCancelled();
+
         /* mass erase case */
         if ((startPageNum == -1) && (totalNumOfPages == -1)) {
 
@@ -1534,14 +3606,14 @@ public final class UARTCommandExecutor extends CommandExecutor {
      *            total number of pages which should be erased
      * @param timeout
      *            maximum time to wait for erase operation to complete
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
     private void extendedEraseGivenMemReg(final int memReg, final int startPageNum, final int totalNumOfPages,
-            final int timeout) throws SerialComException, TimeoutException {
+            final int timeout) throws IOException, TimeoutException {
 
         int x;
         int i;
@@ -1549,6 +3621,7 @@ public final class UARTCommandExecutor extends CommandExecutor {
         int totalPages;
         byte[] erasePagesInfo;
 
+        this.checkCancelled();
         res = sendCmdOrCmdData(CMD_EXTD_ERASE, TIMEOUT_ZERO);
         if (res < 0) {
             if (res == -1) {
@@ -1629,14 +3702,14 @@ public final class UARTCommandExecutor extends CommandExecutor {
      *            starting page number from where erasing should start
      * @param totalNumOfPages
      *            total number of pages which should be erased
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
     public void extendedEraseMemoryRegion(final int memReg, final int startPageNum, final int totalNumOfPages)
-            throws SerialComException, TimeoutException {
+            throws IOException, TimeoutException {
 
         int x;
         int y;
@@ -1661,6 +3734,8 @@ public final class UARTCommandExecutor extends CommandExecutor {
             }
         }
 
+        this.checkCancelled();
+
         /* global mass erase case */
         if ((startPageNum == -1) && (totalNumOfPages == -1)) {
 
@@ -1799,14 +3874,14 @@ public final class UARTCommandExecutor extends CommandExecutor {
      *            total number of pages to be protected (0 &lt; totalNumOfPages &lt;
      *            255)
      * 
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
     public void writeProtectMemoryRegion(final int startPageNum, final int totalNumOfPages)
-            throws SerialComException, TimeoutException {
+            throws IOException, TimeoutException {
 
         int x;
         int i;
@@ -1876,13 +3951,13 @@ public final class UARTCommandExecutor extends CommandExecutor {
      * of the option byte.
      * </p>
      * 
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
-    public void writeUnprotectMemoryRegion() throws SerialComException, TimeoutException {
+    public void writeUnprotectMemoryRegion() throws IOException, TimeoutException {
 
         int x;
         int res;
@@ -1900,7 +3975,7 @@ public final class UARTCommandExecutor extends CommandExecutor {
 
         /* one loop is 500 milliseconds, so 1.5 second timeout */
         for (x = 0; x < 3; x++) {
-            res = scm.readBytes(comPortHandle, buf, 0, 1, -1, null);
+            res = this.read(buf, 0, 1);
             if (res > 0) {
                 if (buf[0] == ACK) {
                     return;
@@ -1922,13 +3997,13 @@ public final class UARTCommandExecutor extends CommandExecutor {
      * commands may not be available to the host computer.
      * </p>
      * 
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
-    public void readoutprotectMemoryRegion() throws SerialComException, TimeoutException {
+    public void readoutprotectMemoryRegion() throws IOException, TimeoutException {
 
         int x;
         int res;
@@ -1945,7 +4020,7 @@ public final class UARTCommandExecutor extends CommandExecutor {
         }
 
         for (x = 0; x < 3; x++) {
-            res = scm.readBytes(comPortHandle, buf, 0, 1, -1, null);
+            res = this.read(buf, 0, 1);
             if (res > 0) {
                 if (buf[0] == ACK) {
                     return;
@@ -1968,13 +4043,13 @@ public final class UARTCommandExecutor extends CommandExecutor {
      * set from bootloader is available to the host computer.
      * </p>
      * 
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
-    public void readoutUnprotectMemoryRegion() throws SerialComException, TimeoutException {
+    public void readoutUnprotectMemoryRegion() throws IOException, TimeoutException {
 
         int x;
         int res;
@@ -1991,7 +4066,7 @@ public final class UARTCommandExecutor extends CommandExecutor {
         }
 
         for (x = 0; x < 3; x++) {
-            res = scm.readBytes(comPortHandle, buf, 0, 1, -1, null);
+            res = this.read(buf, 0, 1);
             if (res > 0) {
                 if (buf[0] == ACK) {
                     return;
@@ -2011,13 +4086,13 @@ public final class UARTCommandExecutor extends CommandExecutor {
      * </p>
      * 
      * @return bootloader ID
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
-    public int getBootloaderID() throws SerialComException, TimeoutException {
+    public int getBootloaderID() throws IOException, TimeoutException {
 
         byte[] bufWordData = new byte[4];
         byte[] bufBLID = new byte[2];
@@ -2039,13 +4114,13 @@ public final class UARTCommandExecutor extends CommandExecutor {
      * 
      * @param resetCodeAddress
      *            address in RAM where reset code will be put
-     * @throws SerialComException
+     * @throws IOException
      *             if an error happens when communicating through serial port
      * @throws TimeoutException
      *             when bootloader declines this command, fails to execute this
      *             command or sends no response at all
      */
-    public void triggerSystemReset(int resetCodeAddress) throws SerialComException, TimeoutException {
+    public void triggerSystemReset(int resetCodeAddress) throws IOException, TimeoutException {
 
         /*
          * If RAM is not applicable for device throw exception. If two or more devices
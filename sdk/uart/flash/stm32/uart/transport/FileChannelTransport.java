@@ -0,0 +1,246 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.uart.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import flash.stm32.core.ITransport;
+
+/**
+ * <p>
+ * Serial port (/dev/ttyXXX) opened as a plain file, without native serial port
+ * library. Line is configured by running stty; it is set to raw mode, 8 data
+ * bits, even parity, 1 stop bit and a read timeout of 100 milliseconds so that
+ * reads with a deadline are built by repeating them. Needs GNU stty, that is
+ * Linux.
+ * </p>
+ * 
+ * <p>
+ * Device is read and written through file streams rather than an interruptible
+ * FileChannel, so interrupting a thread (for example to cancel an operation)
+ * does not close the port.
+ * </p>
+ * 
+ * <p>
+ * DTR and RTS can not be controlled through a file, so stm32 must be put into
+ * bootloader mode by other means. Line errors are not reported.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class FileChannelTransport implements ITransport {
+
+    private final String device;
+    private final FileInputStream in;
+    private final FileOutputStream out;
+    private final boolean evenParity;
+    private final byte[] scratch = new byte[256];
+
+    /**
+     * <p>
+     * Opens given tty device for reading and writing with even parity.
+     * </p>
+     * 
+     * @param device
+     *            path of device, for example /dev/ttyUSB0
+     * @throws IOException
+     *             if device can not be opened
+     */
+    public FileChannelTransport(String device) throws IOException {
+        this(device, true);
+    }
+
+    /**
+     * <p>
+     * Opens given tty device for reading and writing.
+     * </p>
+     * 
+     * @param device
+     *            path of device, for example /dev/ttyUSB0
+     * @param evenParity
+     *            true for even parity (bootloader default), false for no parity
+     * @throws IOException
+     *             if device can not be opened
+     */
+    public FileChannelTransport(String device, boolean evenParity) throws IOException {
+
+        if (device == null) {
+            throw new IllegalArgumentException("Device can not be null");
+        }
+
+        this.device = device;
+        this.evenParity = evenParity;
+        in = new FileInputStream(device);
+        try {
+            out = new FileOutputStream(device);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(byte[] buf, int offset, int length) throws IOException {
+        out.write(buf, offset, length);
+    }
+
+    @Override
+    public void write(ByteBuffer buf) throws IOException {
+
+        int len;
+
+        if (buf.hasArray() == true) {
+            out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+            return;
+        }
+
+        /* direct buffer, goes through scratch array */
+        while (buf.hasRemaining() == true) {
+            len = Math.min(buf.remaining(), scratch.length);
+            buf.get(scratch, 0, len);
+            out.write(scratch, 0, len);
+        }
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int length, long deadline) throws IOException {
+
+        int x;
+
+        /*
+         * tty returns 0 bytes after its 100 milliseconds timeout, which file stream
+         * reports as end of file; removed device is reported as an error.
+         */
+        do {
+            x = in.read(buf, offset, length);
+            if (x > 0) {
+                return x;
+            }
+        } while ((System.nanoTime() - deadline) < 0);
+
+        return 0;
+    }
+
+    @Override
+    public int read(ByteBuffer buf, long deadline) throws IOException {
+
+        int x;
+
+        if (buf.hasArray() == true) {
+            x = this.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), deadline);
+            buf.position(buf.position() + x);
+            return x;
+        }
+
+        x = this.read(scratch, 0, Math.min(buf.remaining(), scratch.length), deadline);
+        buf.put(scratch, 0, x);
+        return x;
+    }
+
+    /*
+     * Write returns once bytes are in tty driver, there is no file level way to
+     * wait until they are on the wire.
+     */
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public void discardInput() throws IOException {
+
+        int x;
+        byte[] junk = new byte[256];
+
+        /* stty has no way to drop input, read until line is idle for one timeout */
+        do {
+            x = in.read(junk);
+        } while (x > 0);
+    }
+
+    @Override
+    public void setBaudrate(int baudRate) throws IOException {
+
+        int x;
+        int res;
+        String parity;
+        Process p;
+        InputStream err;
+        byte[] buf = new byte[256];
+        ByteArrayOutputStream msg = new ByteArrayOutputStream();
+
+        if (evenParity == true) {
+            parity = "parenb";
+        } else {
+            parity = "-parenb";
+        }
+
+        p = new ProcessBuilder("stty", "-F", device, Integer.toString(baudRate), "raw", "-echo", "cs8", parity,
+                "-parodd", "-cstopb", "-crtscts", "-ixon", "-ixoff", "clocal", "min", "0", "time", "1")
+                        .redirectErrorStream(true).start();
+        err = p.getInputStream();
+        while ((x = err.read(buf)) > 0) {
+            msg.write(buf, 0, x);
+        }
+        try {
+            res = p.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while configuring " + device);
+        }
+        if (res != 0) {
+            throw new IOException(
+                    "stty failed for " + device + ": " + new String(msg.toByteArray(), Charset.defaultCharset()).trim());
+        }
+
+        this.discardInput();
+    }
+
+    @Override
+    public void setDTR(boolean value) throws IOException {
+        throw new IOException("DTR can not be set through a file channel");
+    }
+
+    @Override
+    public void setRTS(boolean value) throws IOException {
+        throw new IOException("RTS can not be set through a file channel");
+    }
+
+    @Override
+    public int getLineErrors() {
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            out.close();
+        }
+    }
+}
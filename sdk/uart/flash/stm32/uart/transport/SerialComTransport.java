@@ -0,0 +1,244 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.uart.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.serialpundit.serial.SerialComLineErrors;
+import com.serialpundit.serial.SerialComManager;
+
+import flash.stm32.core.ITransport;
+
+/**
+ * <p>
+ * Serial port opened through serialpundit library. Port must be configured to
+ * return from a read after at most 100 milliseconds, reads with a deadline are
+ * built by repeating them.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class SerialComTransport implements ITransport {
+
+    private final SerialComManager scm;
+    private final long comPortHandle;
+    private final SerialComManager.DATABITS dataBits;
+    private final SerialComManager.STOPBITS stopBits;
+    private final SerialComManager.PARITY parity;
+    private final SerialComLineErrors lineErrors;
+    private int pendingErrors;
+    private byte[] bounceBuf;
+
+    /**
+     * <p>
+     * Allocates an instance of SerialComTransport class for an already opened
+     * port.
+     * </p>
+     * 
+     * @param scm
+     *            an instance of SerialComManager through which port was opened
+     * @param comPortHandle
+     *            handle of the opened port
+     * @param dataBits
+     *            number of data bits, used when baudrate is changed
+     * @param stopBits
+     *            number of stop bits, used when baudrate is changed
+     * @param parity
+     *            parity, used when baudrate is changed
+     */
+    public SerialComTransport(SerialComManager scm, long comPortHandle, SerialComManager.DATABITS dataBits,
+            SerialComManager.STOPBITS stopBits, SerialComManager.PARITY parity) {
+        this.scm = scm;
+        this.comPortHandle = comPortHandle;
+        this.dataBits = dataBits;
+        this.stopBits = stopBits;
+        this.parity = parity;
+        lineErrors = new SerialComLineErrors();
+        bounceBuf = new byte[0];
+    }
+
+    /**
+     * <p>
+     * Maps given baudrate to the constant expected by serialpundit. Constants are
+     * looked up by name so that baudrates beyond 115200 are used when the library
+     * provides them, falling back to custom baudrate if library supports that.
+     * </p>
+     * 
+     * @param baudRate
+     *            baudrate, for example 460800
+     * @return constant for baudrate or null if library does not support it
+     */
+    public static SerialComManager.BAUDRATE toBaudrate(int baudRate) {
+
+        try {
+            return SerialComManager.BAUDRATE.valueOf("B" + baudRate);
+        } catch (IllegalArgumentException e) {
+        }
+
+        try {
+            if (baudRate > 0) {
+                return SerialComManager.BAUDRATE.valueOf("BCUSTOM");
+            }
+        } catch (IllegalArgumentException e) {
+        }
+
+        return null;
+    }
+
+    @Override
+    public void write(byte[] buf, int offset, int length) throws IOException {
+
+        byte[] data = buf;
+
+        if ((offset != 0) || (length != buf.length)) {
+            data = new byte[length];
+            System.arraycopy(buf, offset, data, 0, length);
+        }
+        scm.writeBytes(comPortHandle, data);
+    }
+
+    @Override
+    public void write(ByteBuffer buf) throws IOException {
+
+        int x;
+        int length;
+
+        if (buf.isDirect() == false) {
+            length = buf.remaining();
+            if (bounceBuf.length < length) {
+                bounceBuf = new byte[length];
+            }
+            buf.get(bounceBuf, 0, length);
+            this.write(bounceBuf, 0, length);
+            return;
+        }
+
+        while (buf.hasRemaining() == true) {
+            x = scm.writeBytesDirect(comPortHandle, buf, buf.position(), buf.remaining());
+            if (x <= 0) {
+                throw new IOException("Write to serial port failed");
+            }
+            buf.position(buf.position() + x);
+        }
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int length, long deadline) throws IOException {
+
+        int x;
+
+        do {
+            x = scm.readBytes(comPortHandle, buf, offset, length, -1, lineErrors);
+            this.collectLineErrors();
+            if (x > 0) {
+                return x;
+            }
+        } while ((System.nanoTime() - deadline) < 0);
+
+        return 0;
+    }
+
+    @Override
+    public int read(ByteBuffer buf, long deadline) throws IOException {
+
+        int x;
+
+        if (buf.isDirect() == false) {
+            x = this.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), deadline);
+            buf.position(buf.position() + x);
+            return x;
+        }
+
+        do {
+            x = scm.readBytesDirect(comPortHandle, buf, buf.position(), buf.remaining());
+            if (x > 0) {
+                buf.position(buf.position() + x);
+                return x;
+            }
+        } while ((System.nanoTime() - deadline) < 0);
+
+        return 0;
+    }
+
+    /**
+     * <p>
+     * Bytes are handed to the driver by write, nothing is held back in this
+     * class, so there is nothing to flush.
+     * </p>
+     */
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public void discardInput() throws IOException {
+        scm.clearPortIOBuffers(comPortHandle, true, false);
+    }
+
+    @Override
+    public void setBaudrate(int baudRate) throws IOException {
+        scm.configureComPortData(comPortHandle, dataBits, stopBits, parity, toBaudrate(baudRate), baudRate);
+        scm.clearPortIOBuffers(comPortHandle, true, true);
+    }
+
+    @Override
+    public void setDTR(boolean value) throws IOException {
+        scm.setDTR(comPortHandle, value);
+    }
+
+    @Override
+    public void setRTS(boolean value) throws IOException {
+        scm.setRTS(comPortHandle, value);
+    }
+
+    @Override
+    public int getLineErrors() {
+
+        int errors = pendingErrors;
+
+        pendingErrors = 0;
+        return errors;
+    }
+
+    @Override
+    public void close() throws IOException {
+        scm.closeComPort(comPortHandle);
+    }
+
+    /* serialpundit accumulates line errors, move them to the bit mask reported */
+    private void collectLineErrors() {
+
+        if (lineErrors.hasAnyErrorOccurred() == false) {
+            return;
+        }
+        if (lineErrors.hasFramingErrorOccurred() == true) {
+            pendingErrors = pendingErrors | LINE_ERR_FRAME;
+        }
+        if (lineErrors.hasParityErrorOccurred() == true) {
+            pendingErrors = pendingErrors | LINE_ERR_PARITY;
+        }
+        if (lineErrors.hasOverrunErrorOccurred() == true) {
+            pendingErrors = pendingErrors | LINE_ERR_OVERRUN;
+        }
+        lineErrors.resetLineErrors();
+    }
+}
@@ -0,0 +1,266 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package flash.stm32.uart.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import flash.stm32.core.ITransport;
+
+/**
+ * <p>
+ * Raw TCP connection to a serial port server such as ser2net in raw mode, or
+ * to an EmulatorServer. Every byte written is sent to the serial line as it is
+ * and every byte received from the line comes back; line parameters including
+ * baudrate are configured on the server, so setBaudrate() only takes note of
+ * the value. DTR and RTS are not available and line errors are not reported.
+ * </p>
+ * 
+ * <p>
+ * Nagle's algorithm is turned off as bootloader protocol consists of small
+ * frames each waiting for an answer.
+ * </p>
+ * 
+ * @author Rishi Gupta
+ */
+public final class TcpTransport implements ITransport {
+
+    /* Connect timeout in milliseconds */
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private byte[] bounceBuf;
+    private int baudRate;
+
+    /**
+     * <p>
+     * Connects to given host and port.
+     * </p>
+     * 
+     * @param host
+     *            name or address of serial port server
+     * @param port
+     *            TCP port serial line is mapped to
+     * @throws IOException
+     *             if connection can not be established
+     */
+    public TcpTransport(String host, int port) throws IOException {
+
+        if (host == null) {
+            throw new IllegalArgumentException("Host can not be null");
+        }
+
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        bounceBuf = new byte[0];
+    }
+
+    /**
+     * <p>
+     * Connects to a server given as host:port, for example localhost:3001.
+     * </p>
+     * 
+     * @param address
+     *            host and TCP port separated by colon
+     * @return connected transport
+     * @throws IOException
+     *             if connection can not be established
+     * @throws IllegalArgumentException
+     *             if address is not in host:port form
+     */
+    public static TcpTransport connect(String address) throws IOException {
+
+        int x;
+        int port;
+
+        if (address == null) {
+            throw new IllegalArgumentException("Address can not be null");
+        }
+        x = address.lastIndexOf(':');
+        if (x <= 0) {
+            throw new IllegalArgumentException("Address must be host:port " + address);
+        }
+        try {
+            port = Integer.parseInt(address.substring(x + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Address must be host:port " + address);
+        }
+
+        return new TcpTransport(address.substring(0, x), port);
+    }
+
+    @Override
+    public void write(byte[] buf, int offset, int length) throws IOException {
+        out.write(buf, offset, length);
+    }
+
+    @Override
+    public void write(ByteBuffer buf) throws IOException {
+
+        int length = buf.remaining();
+
+        if (buf.hasArray() == true) {
+            out.write(buf.array(), buf.arrayOffset() + buf.position(), length);
+            buf.position(buf.position() + length);
+            return;
+        }
+
+        if (bounceBuf.length < length) {
+            bounceBuf = new byte[length];
+        }
+        buf.get(bounceBuf, 0, length);
+        out.write(bounceBuf, 0, length);
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int length, long deadline) throws IOException {
+
+        int x;
+        long remaining = deadline - System.nanoTime();
+
+        if (length == 0) {
+            return 0;
+        }
+
+        /* take what is already there without blocking */
+        if (in.available() > 0) {
+            x = in.read(buf, offset, Math.min(length, in.available()));
+            if (x > 0) {
+                return x;
+            }
+        }
+        if (remaining <= 0) {
+            return 0;
+        }
+
+        socket.setSoTimeout((int) Math.max(1, (remaining + 999999) / 1000000));
+        try {
+            x = in.read(buf, offset, length);
+        } catch (SocketTimeoutException e) {
+            return 0;
+        }
+        if (x < 0) {
+            throw new IOException("Connection closed by server");
+        }
+
+        return x;
+    }
+
+    @Override
+    public int read(ByteBuffer buf, long deadline) throws IOException {
+
+        int x;
+        int length = buf.remaining();
+
+        if (buf.hasArray() == true) {
+            x = this.read(buf.array(), buf.arrayOffset() + buf.position(), length, deadline);
+            buf.position(buf.position() + x);
+            return x;
+        }
+
+        if (bounceBuf.length < length) {
+            bounceBuf = new byte[length];
+        }
+        x = this.read(bounceBuf, 0, length, deadline);
+        buf.put(bounceBuf, 0, x);
+        return x;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void discardInput() throws IOException {
+
+        int x;
+
+        x = in.available();
+        while (x > 0) {
+            x = (int) in.skip(x);
+            if (x > 0) {
+                x = in.available();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Takes note of the baudrate and discards data received but not read yet.
+     * Baudrate of the serial line itself must be configured on the server.
+     * </p>
+     * 
+     * @param baudRate
+     *            baudrate line is configured at on server side
+     */
+    @Override
+    public void setBaudrate(int baudRate) throws IOException {
+        this.baudRate = baudRate;
+        this.discardInput();
+    }
+
+    /**
+     * <p>
+     * Gives baudrate set by last call to setBaudrate().
+     * </p>
+     * 
+     * @return baudrate
+     */
+    public int getBaudrate() {
+        return baudRate;
+    }
+
+    @Override
+    public void setDTR(boolean value) throws IOException {
+        throw new IOException("DTR can not be set through a raw TCP connection");
+    }
+
+    @Override
+    public void setRTS(boolean value) throws IOException {
+        throw new IOException("RTS can not be set through a raw TCP connection");
+    }
+
+    @Override
+    public int getLineErrors() {
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
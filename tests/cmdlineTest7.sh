@@ -0,0 +1,41 @@
+#!/bin/bash
+
+# This file is part of progstm32.
+# 
+# Copyright (C) 2018, Rishi Gupta. All rights reserved.
+# 
+# The progstm32 is free software; you can redistribute it and/or modify it 
+# under the terms of the GNU Lesser General Public License as published 
+# by the Free Software Foundation; either version 2.1 of the License, or 
+# (at your option) any later version.
+# 
+# The progstm32 is distributed in the hope that it will be useful, but 
+# WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+# or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+# License for more details.
+# 
+# You should have received a copy of the GNU Lesser General Public License 
+# along with this library; if not, write to the Free Software Foundation,Inc.,
+# 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+
+source jar_names.sh
+
+PORTS=/dev/ttyUSB0,/dev/ttyUSB1,/dev/ttyUSB2,/dev/ttyUSB3
+WRTBIN=$(dirname '$0')/../../../workspace/testhex/demo.bin
+WRTHEX=$(dirname '$0')/../../../workspace/testhex/demo.hex
+
+### Don't modify anything after this line, run this test from tests folder only ###
+cd "$(dirname '$0')"/../build
+
+jars_in_classpath=".:$spttyjar:$spcorejar:$progstm32uart:$progstm32app"
+
+# gang program hex file, erase only pages needed, verify
+echo -e "\n---> gang flash and verify hex file"
+java -cp $jars_in_classpath progstm32.ProgSTM32 -d $PORTS -e f -w $WRTHEX -ih -v
+
+# gang program bin file after mass erase with pipelined writes
+echo -e "\n---> gang flash bin file after mass erase"
+java -cp $jars_in_classpath progstm32.ProgSTM32 -d $PORTS -e m -w $WRTBIN -bn -s 08000000 -pw
+
+echo -e "\n---All Test Done---"
+exit 0
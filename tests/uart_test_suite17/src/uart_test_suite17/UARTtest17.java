@@ -0,0 +1,378 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package uart_test_suite17;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.ResourceBundle;
+
+import flash.stm32.core.FileType;
+import flash.stm32.core.FirmwareBlockReader;
+import flash.stm32.core.FlashUtils;
+import flash.stm32.core.HexFirmware;
+import flash.stm32.core.SegmentedFirmware;
+
+/*
+ * Hex parser benchmark, does not need stm32 hardware. Compares the parser in
+ * FlashUtils with the earlier string based parser (kept below as reference) on
+ * a 20 MiB hex file. If no file is given as argument, a hex file of the same size
+ * is generated in tmp directory.
+ */
+public final class UARTtest17 {
+
+	private static final int RUNS = 5;
+
+	protected void begin(String[] args) throws Exception {
+
+		File f;
+		if (args.length > 0) {
+			f = new File(args[0]);
+		} else {
+			f = generateHexFile(20 * 1024 * 1024);
+		}
+		byte[] hexBuf = Files.readAllBytes(f.toPath());
+
+		FlashUtils fu = new FlashUtils(
+				ResourceBundle.getBundle("flash.stm32.resources.MessagesBundle", new Locale("English", "EN")));
+		LegacyHexParser lp = new LegacyHexParser();
+
+		System.out.println("---- Test 171 HEX PARSER OUTPUT EQUALITY started " + hexBuf.length + " bytes -----------");
+		HexFirmware hfNew = fu.hexToBinFwFormat(hexBuf);
+		HexFirmware hfOld = lp.hexToBinFwFormat(hexBuf);
+		if ((hfNew.address != hfOld.address) || (Arrays.equals(hfNew.fwInBinFormat, hfOld.fwInBinFormat) == false)) {
+			System.out.println("MISMATCH between legacy and new parser output");
+		} else {
+			System.out.println("Output identical, address 0x" + Integer.toHexString(hfNew.address) + " length "
+					+ hfNew.fwInBinFormat.length);
+		}
+		System.out.println("---- Test 171 HEX PARSER OUTPUT EQUALITY ended-----------");
+
+		System.out.println("---- Test 172 HEX PARSER BENCHMARK started -----------");
+		long oldBest = Long.MAX_VALUE;
+		long newBest = Long.MAX_VALUE;
+		for (int x = 0; x < RUNS; x++) {
+			long t0 = System.nanoTime();
+			lp.hexToBinFwFormat(hexBuf);
+			long t1 = System.nanoTime();
+			fu.hexToBinFwFormat(hexBuf);
+			long t2 = System.nanoTime();
+			oldBest = Math.min(oldBest, t1 - t0);
+			newBest = Math.min(newBest, t2 - t1);
+		}
+		System.out.println("legacy parser best of " + RUNS + " : " + (oldBest / 1000000) + " ms");
+		System.out.println("new parser best of " + RUNS + "    : " + (newBest / 1000000) + " ms");
+		System.out.println("speedup                : " + String.format("%.1f", (double) oldBest / newBest) + "x");
+		System.out.println("---- Test 172 HEX PARSER BENCHMARK ended-----------");
+
+		System.out.println("---- Test 173 SEGMENTED FIRMWARE started -----------");
+		SegmentedFirmware sf = fu.hexToSegmentedFwFormat(hexBuf);
+		boolean same = true;
+		for (SegmentedFirmware.Segment seg : sf.getSegments()) {
+			int off = seg.address - hfNew.address;
+			for (int x = 0; x < seg.data.length; x++) {
+				if ((off + x >= 0) && (seg.data[x] != hfNew.fwInBinFormat[off + x])) {
+					same = false;
+				}
+			}
+		}
+		System.out.println("segments " + sf.getSegments().size() + ", bytes to send " + sf.getTotalLength()
+				+ " instead of " + hfNew.fwInBinFormat.length + (same ? ", contents match" : ", MISMATCH"));
+		System.out.println("---- Test 173 SEGMENTED FIRMWARE ended-----------");
+
+		System.out.println("---- Test 174 BLOCK READER started -----------");
+		FirmwareBlockReader fr = fu.openFirmwareFile(FileType.HEX, f, 0);
+		byte[] block = new byte[FirmwareBlockReader.BLOCK_SIZE];
+		int numBlocks = 0;
+		int numBytes = 0;
+		boolean blocksMatch = true;
+		for (SegmentedFirmware.Segment seg : sf.getSegments()) {
+			for (int off = 0; off < seg.data.length; off = off + FirmwareBlockReader.BLOCK_SIZE) {
+				int len = Math.min(FirmwareBlockReader.BLOCK_SIZE, seg.data.length - off);
+				int res = fr.nextBlock(block);
+				if ((res != len) || (fr.getBlockAddress() != seg.address + off)
+						|| (Arrays.equals(Arrays.copyOf(block, len), Arrays.copyOfRange(seg.data, off, off + len)) == false)) {
+					blocksMatch = false;
+				}
+				numBlocks++;
+				numBytes = numBytes + len;
+			}
+		}
+		if (fr.nextBlock(block) != -1) {
+			blocksMatch = false;
+		}
+		System.out.println("blocks " + numBlocks + ", bytes " + numBytes + ", total length " + fr.getTotalLength()
+				+ (blocksMatch ? ", blocks match segments" : ", MISMATCH"));
+		fr.close();
+		System.out.println("---- Test 174 BLOCK READER ended-----------");
+
+		System.out.println("---- Test 175 RECORDS OUT OF ADDRESS ORDER started -----------");
+		outOfOrderRecords(fu);
+		System.out.println("---- Test 175 RECORDS OUT OF ADDRESS ORDER ended-----------");
+
+		System.out.println("---- Test 176 ADDRESS RECORD LENGTH started -----------");
+		addressRecordLength(fu);
+		System.out.println("---- Test 176 ADDRESS RECORD LENGTH ended-----------");
+	}
+
+	/* Extended segment and linear address records with other than 2 data bytes
+	 * must be refused by every parser instead of setting some base address. */
+	private void addressRecordLength(FlashUtils fu) throws Exception {
+
+		int[] types = new int[] { 0x02, 0x04 };
+		for (int type : types) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writeRecord(out, 0, type, new byte[] { 0x08, 0x00, 0x00, 0x00 });
+			writeRecord(out, 0x0000, 0x00, new byte[] { 1, 2, 3, 4 });
+			writeRecord(out, 0, 0x01, new byte[0]);
+			byte[] hex = out.toByteArray();
+			File f = File.createTempFile("progstm32len", ".hex");
+			f.deleteOnExit();
+			Files.write(f.toPath(), hex);
+
+			int refused = 0;
+			try {
+				fu.hexToBinFwFormat(hex);
+			} catch (IllegalArgumentException e) {
+				refused++;
+			}
+			try {
+				fu.hexToSegmentedFwFormat(hex);
+			} catch (IllegalArgumentException e) {
+				refused++;
+			}
+			try {
+				FirmwareBlockReader fr = fu.openFirmwareFile(FileType.HEX, f, 0);
+				fr.nextBlock(new byte[FirmwareBlockReader.BLOCK_SIZE]);
+				fr.close();
+			} catch (IllegalArgumentException e) {
+				refused++;
+			}
+			System.out.println("type 0" + type + " with 4 bytes: " + ((refused == 3) ? "refused by all parsers"
+					: "MISMATCH, refused by " + refused + " of 3 parsers"));
+		}
+	}
+
+	/* Records going backwards into the same flash word used to give overlapping
+	 * segments once their start was aligned; the later record must also win where
+	 * two records overlap. */
+	private void outOfOrderRecords(FlashUtils fu) throws Exception {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeRecord(out, 0, 0x04, new byte[] { 0x08, 0x00 });
+		writeRecord(out, 0x1002, 0x00, new byte[] { (byte) 0xAA, (byte) 0xBB, (byte) 0xCC, (byte) 0xDD });
+		writeRecord(out, 0x1000, 0x00, new byte[] { 0x11 });
+		writeRecord(out, 0x0000, 0x00, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+		writeRecord(out, 0x1001, 0x00, new byte[] { 0x22 });
+		writeRecord(out, 0x1004, 0x00, new byte[] { (byte) 0xEE });
+		writeRecord(out, 0, 0x01, new byte[0]);
+		byte[] hex = out.toByteArray();
+		byte[] seg1 = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+		byte[] seg2 = new byte[] { 0x11, 0x22, (byte) 0xAA, (byte) 0xBB, (byte) 0xEE, (byte) 0xDD };
+
+		SegmentedFirmware sf = fu.hexToSegmentedFwFormat(hex);
+		List<SegmentedFirmware.Segment> segs = sf.getSegments();
+		boolean ok = (segs.size() == 2) && (segs.get(0).address == 0x08000000)
+				&& Arrays.equals(segs.get(0).data, seg1) && (segs.get(1).address == 0x08001000)
+				&& Arrays.equals(segs.get(1).data, seg2);
+		System.out.println("segmented: " + (ok ? "merged, later record wins" : "MISMATCH"));
+
+		File f = File.createTempFile("progstm32order", ".hex");
+		f.deleteOnExit();
+		Files.write(f.toPath(), hex);
+		FirmwareBlockReader fr = fu.openFirmwareFile(FileType.HEX, f, 0);
+		byte[] block = new byte[FirmwareBlockReader.BLOCK_SIZE];
+		int len = fr.nextBlock(block);
+		ok = (len == 8) && (fr.getBlockAddress() == 0x08000000) && Arrays.equals(Arrays.copyOf(block, 8), seg1);
+		len = fr.nextBlock(block);
+		ok = ok && (len == 6) && (fr.getBlockAddress() == 0x08001000) && Arrays.equals(Arrays.copyOf(block, 6), seg2);
+		ok = ok && (fr.nextBlock(block) == -1) && (fr.getTotalLength() == 14);
+		fr.close();
+		System.out.println("block reader: " + (ok ? "same as segmented" : "MISMATCH"));
+	}
+
+	/* Builds a hex file with 32 byte data records, an extended linear address record
+	 * every 64 KiB and a few gaps so that filler path is also exercised. */
+	private File generateHexFile(int approxSize) throws Exception {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(approxSize + 1024);
+		int addr = 0x08000000;
+		int upper = -1;
+		byte[] data = new byte[32];
+		int seed = 0x1234;
+
+		while (out.size() < approxSize) {
+			if ((addr >>> 16) != upper) {
+				upper = addr >>> 16;
+				writeRecord(out, 0, 0x04, new byte[] { (byte) (upper >> 8), (byte) upper });
+			}
+			for (int x = 0; x < data.length; x++) {
+				seed = (seed * 1103515245) + 12345;
+				data[x] = (byte) (seed >> 16);
+			}
+			writeRecord(out, addr & 0xFFFF, 0x00, data);
+			addr = addr + data.length;
+			if ((addr & 0x3FFFF) == 0) {
+				/* leave a large gap every 256 KiB which becomes a separate segment */
+				addr = addr + 0x4000;
+			} else if ((addr & 0x3FFF) == 0) {
+				/* and a small one every 16 KiB which is filled */
+				addr = addr + 64;
+			}
+		}
+		writeRecord(out, 0, 0x01, new byte[0]);
+
+		File f = File.createTempFile("progstm32bench", ".hex");
+		f.deleteOnExit();
+		Files.write(f.toPath(), out.toByteArray());
+		return f;
+	}
+
+	private void writeRecord(ByteArrayOutputStream out, int offset, int type, byte[] data) {
+		int sum = data.length + (offset >> 8) + (offset & 0xFF) + type;
+		StringBuilder sb = new StringBuilder(":");
+		sb.append(String.format("%02X%04X%02X", data.length, offset, type));
+		for (byte b : data) {
+			sb.append(String.format("%02X", b & 0xFF));
+			sum = sum + (b & 0xFF);
+		}
+		sb.append(String.format("%02X", (-sum) & 0xFF)).append("\r\n");
+		byte[] line = sb.toString().getBytes();
+		out.write(line, 0, line.length);
+	}
+
+	/* Parser as it was before lookup table based decoding, used as baseline. */
+	private static final class LegacyHexParser {
+
+		private int hexAsciiToIntValue(final byte[] data, int offset, int length) {
+			StringBuilder sBuilder = new StringBuilder();
+			for (int x = 0; x < length; x++) {
+				sBuilder.append((char) data[offset]);
+				offset++;
+			}
+			return Integer.parseInt(sBuilder.toString(), 16);
+		}
+
+		private int calCheckSum(final byte[] data, int offset, int length) {
+			int x = 0;
+			int val = 0;
+			StringBuilder sBuilder = new StringBuilder();
+			for (x = 0; x < length; x = x + 2) {
+				sBuilder.append((char) data[offset]);
+				offset++;
+				sBuilder.append((char) data[offset]);
+				offset++;
+				val = val + Integer.parseInt(sBuilder.toString(), 16);
+				sBuilder.setLength(0);
+			}
+			if (val > 0xFF) {
+				sBuilder.setLength(0);
+				String s1 = Integer.toBinaryString(val);
+				int strLen = s1.length();
+				for (x = 0; x < strLen; x++) {
+					if (s1.charAt(x) == '0') {
+						sBuilder.append('1');
+					} else {
+						sBuilder.append('0');
+					}
+				}
+				val = Integer.valueOf(sBuilder.toString(), 2) + 1;
+				val = 0x000000FF & val;
+			} else {
+				val = 256 - val;
+			}
+			return val;
+		}
+
+		private void hexAsciiToByteArray(final byte[] data, int offset, int length, ByteArrayOutputStream outbuf) {
+			StringBuilder sBuilder = new StringBuilder();
+			for (int x = 0; x < length; x = x + 2) {
+				sBuilder.append((char) data[offset]);
+				offset++;
+				sBuilder.append((char) data[offset]);
+				offset++;
+				outbuf.write((byte) Integer.parseInt(sBuilder.toString(), 16));
+				sBuilder.setLength(0);
+			}
+		}
+
+		HexFirmware hexToBinFwFormat(byte[] hexbuf) {
+			int x = 0;
+			int y = 0;
+			int startFWaddress = 0;
+			int curAbsAddr = 0;
+			int curBaseAddr = 0;
+			int curRecordLength = 0;
+			int curRecordType = 0;
+			int prevAbsAddr = 0;
+			int prevRecordLength = 0;
+			ByteArrayOutputStream binbuf = new ByteArrayOutputStream();
+
+			while (true) {
+				if (hexbuf[x] != 0x3A) {
+					x++;
+					continue;
+				}
+				curRecordLength = hexAsciiToIntValue(hexbuf, x + 1, 2);
+				curRecordType = hexAsciiToIntValue(hexbuf, x + 7, 2);
+				int curChkSum = hexAsciiToIntValue(hexbuf, x + (2 * curRecordLength) + 9, 2);
+				y = calCheckSum(hexbuf, x + 1, (2 * curRecordLength) + 8);
+				if (y != curChkSum) {
+					throw new IllegalArgumentException("checksum at record " + x);
+				}
+				switch (curRecordType) {
+				case 0x00:
+					curAbsAddr = curBaseAddr + hexAsciiToIntValue(hexbuf, x + 3, 4);
+					if ((prevAbsAddr != 0) && (prevRecordLength != 0)) {
+						int fillerData = curAbsAddr - prevAbsAddr - prevRecordLength;
+						for (y = 0; y < fillerData; y++) {
+							binbuf.write(0xFF);
+						}
+					} else {
+						startFWaddress = curAbsAddr;
+					}
+					hexAsciiToByteArray(hexbuf, x + 9, 2 * curRecordLength, binbuf);
+					prevAbsAddr = curAbsAddr;
+					prevRecordLength = curRecordLength;
+					x = x + 9 + (2 * curRecordLength);
+					break;
+				case 0x01:
+					return new HexFirmware(binbuf.toByteArray(), startFWaddress);
+				case 0x04:
+					curBaseAddr = hexAsciiToIntValue(hexbuf, (x + 9), 4) << 16;
+					x = x + 14;
+					break;
+				default:
+					x++;
+					break;
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		UARTtest17 app = new UARTtest17();
+		app.begin(args);
+	}
+}
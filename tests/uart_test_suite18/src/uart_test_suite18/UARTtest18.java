@@ -0,0 +1,302 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package uart_test_suite18;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.serialpundit.serial.SerialComManager.BAUDRATE;
+import com.serialpundit.serial.SerialComManager.DATABITS;
+import com.serialpundit.serial.SerialComManager.FLOWCONTROL;
+import com.serialpundit.serial.SerialComManager.PARITY;
+import com.serialpundit.serial.SerialComManager.STOPBITS;
+
+import flash.stm32.core.AsyncDevice;
+import flash.stm32.core.CommandMetrics;
+import flash.stm32.core.Device;
+import flash.stm32.core.ICmdDetailedProgressListener;
+import flash.stm32.core.REGTYPE;
+import flash.stm32.core.SegmentedFirmware;
+import flash.stm32.uart.UARTDeviceManager;
+import flash.stm32.uart.UARTDeviceManager.IFace;
+import flash.stm32.uart.UARTInterface;
+
+// Nucleo L476RG write and read paths on 8 pages of 2 KiB, every check prints PASS or FAIL
+public final class UARTtest18 {
+
+	private static final int PAGE_SIZE = 2048;
+
+	private UARTDeviceManager devMgr;
+	private UARTInterface uci;
+	private boolean opened = false;
+	private int failures = 0;
+
+	private void check(boolean ok, String what) {
+		if (ok == true) {
+			System.out.println("PASS " + what);
+		} else {
+			failures++;
+			System.out.println("FAIL " + what);
+		}
+	}
+
+	private void failed(Exception e) {
+		failures++;
+		System.out.println("FAIL " + e);
+		e.printStackTrace();
+	}
+
+	protected void begin() throws IOException {
+
+		try {
+			devMgr = new UARTDeviceManager(new Locale("English", "EN"));
+			uci = (UARTInterface) devMgr.getCommunicationIface(IFace.UART, "proguartx3971");
+			uci.open("/dev/ttyACM0", BAUDRATE.B115200, DATABITS.DB_8, STOPBITS.SB_1, PARITY.P_EVEN, FLOWCONTROL.NONE);
+			opened = true;
+
+			Device dev = uci.initAndIdentifyDevice();
+			int[] devInfo = dev.getMCUInformation();
+			System.out.println("PID = " + devInfo[0]);
+
+			byte[] fwData = new byte[8 * PAGE_SIZE];
+			for (int q = 0; q < fwData.length; q++) {
+				fwData[q] = (byte) (q * 7);
+			}
+			ArrayList<SegmentedFirmware.Segment> segs = new ArrayList<SegmentedFirmware.Segment>();
+			segs.add(new SegmentedFirmware.Segment(0x08000000, fwData));
+			SegmentedFirmware fw = new SegmentedFirmware(segs);
+			byte[] readBuf = new byte[fwData.length];
+
+			System.out.println("\n----------- Test 18.1 delta write on erased pages -----------");
+			try {
+				dev.extendedEraseMemoryRegion(REGTYPE.MAIN, 0, 8);
+				int n = dev.writeMemoryDelta(fw, 0x08000000, PAGE_SIZE, null);
+				check(n == 8, "pages changed " + n + ", expected 8");
+			} catch (Exception e) {
+				failed(e);
+			}
+
+			System.out.println("\n----------- Test 18.2 delta write with same firmware -----------");
+			try {
+				int n = dev.writeMemoryDelta(fw, 0x08000000, PAGE_SIZE, null);
+				check(n == 0, "pages changed " + n + ", expected 0");
+			} catch (Exception e) {
+				failed(e);
+			}
+
+			System.out.println("\n----------- Test 18.3 delta write with one byte changed in page 5 -----------");
+			try {
+				fwData[(5 * PAGE_SIZE) + 17] = (byte) 0x5A;
+				int n = dev.writeMemoryDelta(fw, 0x08000000, PAGE_SIZE, null);
+				check(n == 1, "pages changed " + n + ", expected 1");
+				dev.readMemory(readBuf, 0x08000000, readBuf.length, null);
+				check(Arrays.equals(readBuf, fwData), "read back matches firmware");
+			} catch (Exception e) {
+				failed(e);
+			}
+
+			System.out.println("\n----------- Test 18.4 erase planned from flash geometry -----------");
+			try {
+				int n = dev.eraseMemoryForFirmware(fw);
+				check(n == 8, "pages erased " + n + " of " + dev.flashGeometry.getNumPages() + ", expected 8");
+				n = dev.writeMemoryDelta(fw, null);
+				check(n == 8, "pages changed " + n + ", expected 8");
+			} catch (Exception e) {
+				failed(e);
+			}
+
+			System.out.println("\n----------- Test 18.5 write verified every 4 blocks -----------");
+			try {
+				dev.eraseMemoryForFirmware(fw);
+				uci.setWriteVerify(4);
+				dev.writeMemory(fw, null);
+				uci.setWriteVerify(0);
+				dev.readMemory(readBuf, 0x08000000, readBuf.length, null);
+				check(Arrays.equals(readBuf, fwData), "read back matches firmware");
+			} catch (Exception e) {
+				uci.setWriteVerify(0);
+				failed(e);
+			}
+
+			System.out.println("\n----------- Test 18.6 streaming read to channel and mapped file -----------");
+			try {
+				File f1 = File.createTempFile("progstm32ch", ".bin");
+				File f2 = File.createTempFile("progstm32mm", ".bin");
+				FileChannel fc = FileChannel.open(f1.toPath(), StandardOpenOption.WRITE);
+				int n = dev.readMemory(fc, 0x08000000, fwData.length, null);
+				fc.close();
+				check(n == fwData.length, "bytes read to channel " + n + ", expected " + fwData.length);
+				n = dev.readMemoryToMappedFile(f2.getPath(), 0x08000000, fwData.length, null);
+				check(n == fwData.length, "bytes read to mapped file " + n + ", expected " + fwData.length);
+				check(Arrays.equals(Files.readAllBytes(f1.toPath()), fwData), "channel dump matches firmware");
+				check(Arrays.equals(Files.readAllBytes(f2.toPath()), fwData), "mapped file dump matches firmware");
+				f1.delete();
+				f2.delete();
+			} catch (Exception e) {
+				failed(e);
+			}
+
+			System.out.println("\n----------- Test 18.7 write and read direct byte buffer -----------");
+			try {
+				dev.eraseMemoryForFirmware(fw);
+				ByteBuffer wb = ByteBuffer.allocateDirect(fwData.length);
+				wb.put(fwData).flip();
+				dev.writeMemory(wb, 0x08000000);
+				check(wb.hasRemaining() == false, "write buffer consumed");
+				ByteBuffer rb = ByteBuffer.allocateDirect(fwData.length);
+				dev.readMemory(rb, 0x08000000);
+				rb.flip();
+				rb.get(readBuf);
+				check(Arrays.equals(readBuf, fwData), "read back matches firmware");
+			} catch (Exception e) {
+				failed(e);
+			}
+
+			System.out.println("\n----------- Test 18.8 erase, write and read queued on async device -----------");
+			try {
+				ExecutorService executor = Executors.newSingleThreadExecutor();
+				AsyncDevice adev = new AsyncDevice(dev, executor);
+				Arrays.fill(readBuf, (byte) 0);
+				CompletableFuture<Integer> erase = adev.eraseMemoryForFirmware(fw);
+				CompletableFuture<Integer> write = adev.writeMemory(fw, null);
+				CompletableFuture<Integer> read = adev.readMemory(readBuf, 0x08000000, readBuf.length, null);
+				check(erase.get().intValue() == 8, "pages erased " + erase.get() + ", expected 8");
+				check(write.get().intValue() == 0, "write result " + write.get() + ", expected 0");
+				check(read.get().intValue() == readBuf.length, "bytes read " + read.get() + ", expected "
+						+ readBuf.length);
+				check(Arrays.equals(readBuf, fwData), "read back matches firmware");
+				CompletableFuture<Integer> pending = adev.readMemory(readBuf, 0x08000000, readBuf.length, null);
+				pending.cancel(true);
+				check(pending.isCancelled(), "queued read cancelled");
+				int n = adev.readMemory(readBuf, 0x08000000, 256, null).get().intValue();
+				check(n == 256, "bytes read after cancel " + n + ", expected 256");
+				executor.shutdown();
+			} catch (Exception e) {
+				failed(e);
+			}
+
+			System.out.println("\n----------- Test 18.9 command metrics of erase, write and read -----------");
+			try {
+				CommandMetrics metrics = new CommandMetrics();
+				uci.setCommandMetrics(metrics);
+				dev.eraseMemoryForFirmware(fw);
+				dev.writeMemory(fw, null);
+				dev.readMemory(readBuf, 0x08000000, readBuf.length, null);
+				uci.setCommandMetrics(null);
+				System.out.print(metrics.toString());
+				check(metrics.getCount(0x31) == (fwData.length / 256), "write commands " + metrics.getCount(0x31)
+						+ ", expected " + (fwData.length / 256));
+				check(metrics.getCount(0x11) == (fwData.length / 256), "read commands " + metrics.getCount(0x11)
+						+ ", expected " + (fwData.length / 256));
+				check(metrics.getBytesReceived(0x11) >= fwData.length, "read bytes " + metrics.getBytesReceived(0x11)
+						+ ", expected at least " + fwData.length);
+				check(metrics.getNacks(0x31) == 0, "write NACKs " + metrics.getNacks(0x31) + ", expected 0");
+			} catch (Exception e) {
+				uci.setCommandMetrics(null);
+				failed(e);
+			}
+
+			System.out.println("\n----------- Test 18.10 detailed progress of erase and write -----------");
+			try {
+				final ArrayList<Integer> phases = new ArrayList<Integer>();
+				final long[] lastWrite = new long[2];
+				final int[] lastErase = new int[2];
+				ICmdDetailedProgressListener listener = new ICmdDetailedProgressListener() {
+					@Override
+					public void onDataWriteProgressUpdate(int totalBytesSentTillNow, int totalBytesToWrite) {
+					}
+
+					@Override
+					public void onDataReadProgressUpdate(int totalBytesReadTillNow, int totalNumBytesToRead) {
+					}
+
+					@Override
+					public void onBlockRetry(int address, int attempt, int totalRetries, String reason) {
+					}
+
+					@Override
+					public void onPhaseStarted(int phase) {
+						phases.add(Integer.valueOf(phase));
+					}
+
+					@Override
+					public void onProgress(int phase, int address, long bytesDone, long bytesTotal,
+							long bytesPerSecond, long etaMillis, int retries) {
+						if (phase == PHASE_WRITE) {
+							lastWrite[0] = bytesDone;
+							lastWrite[1] = bytesTotal;
+						}
+						if ((bytesDone % 4096) == 0) {
+							System.out.println("0x" + Integer.toHexString(address) + " " + bytesDone + "/" + bytesTotal
+									+ " " + bytesPerSecond + " B/s eta " + etaMillis + " ms retries " + retries);
+						}
+					}
+
+					@Override
+					public void onEraseProgress(int firstPage, int numPages, int pagesErased, int totalPages,
+							long etaMillis) {
+						lastErase[0] = pagesErased;
+						lastErase[1] = totalPages;
+					}
+				};
+				dev.eraseMemoryForFirmware(fw, listener);
+				dev.writeMemory(fw, listener);
+				check(phases.contains(Integer.valueOf(ICmdDetailedProgressListener.PHASE_ERASE))
+						&& phases.contains(Integer.valueOf(ICmdDetailedProgressListener.PHASE_WRITE)),
+						"phases reported " + phases + ", expected erase and write");
+				check((lastErase[1] == 8) && (lastErase[0] == lastErase[1]), "pages erased " + lastErase[0] + "/"
+						+ lastErase[1] + ", expected 8/8");
+				check((lastWrite[1] == fwData.length) && (lastWrite[0] == lastWrite[1]), "bytes written "
+						+ lastWrite[0] + "/" + lastWrite[1] + ", expected " + fwData.length);
+			} catch (Exception e) {
+				failed(e);
+			}
+
+			uci.close();
+		} catch (Exception e) {
+			failed(e);
+			if (opened == true) {
+				uci.close();
+			}
+		}
+
+		System.out.println("\n" + ((failures == 0) ? "All checks passed" : (failures + " checks FAILED")));
+	}
+
+	public static void main(String[] args) throws IOException {
+		UARTtest18 app = new UARTtest18();
+		app.begin();
+		if (app.failures != 0) {
+			System.exit(1);
+		}
+	}
+
+}
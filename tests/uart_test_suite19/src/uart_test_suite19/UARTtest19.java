@@ -0,0 +1,118 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package uart_test_suite19;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.serialpundit.serial.SerialComManager.BAUDRATE;
+import com.serialpundit.serial.SerialComManager.DATABITS;
+import com.serialpundit.serial.SerialComManager.FLOWCONTROL;
+import com.serialpundit.serial.SerialComManager.PARITY;
+import com.serialpundit.serial.SerialComManager.STOPBITS;
+
+import flash.stm32.core.Device;
+import flash.stm32.core.REGTYPE;
+import flash.stm32.core.SegmentedFirmware;
+import flash.stm32.uart.UARTDeviceManager;
+import flash.stm32.uart.UARTDeviceManager.IFace;
+import flash.stm32.uart.UARTInterface;
+
+// Nucleo F401RE verify using CRC calculated on stm32 instead of reading flash back
+public final class UARTtest19 {
+
+	private UARTDeviceManager devMgr;
+	private UARTInterface uci;
+	private boolean opened = false;
+
+	protected void begin() throws IOException {
+
+		try {
+			devMgr = new UARTDeviceManager(new Locale("English", "EN"));
+			uci = (UARTInterface) devMgr.getCommunicationIface(IFace.UART, "proguartx3971");
+			uci.open("/dev/ttyACM0", BAUDRATE.B115200, DATABITS.DB_8, STOPBITS.SB_1, PARITY.P_EVEN, FLOWCONTROL.NONE);
+			opened = true;
+
+			Device dev = uci.initAndIdentifyDevice();
+			int[] devInfo = dev.getMCUInformation();
+			System.out.println("PID = " + devInfo[0]);
+
+			/* one large word aligned segment (CRC unit) and a small unaligned one (software) */
+			byte[] fwData = new byte[64 * 1024];
+			for (int q = 0; q < fwData.length; q++) {
+				fwData[q] = (byte) (q * 13);
+			}
+			byte[] tail = new byte[] { 0x11, 0x22, 0x33, 0x44, 0x55 };
+			ArrayList<SegmentedFirmware.Segment> segs = new ArrayList<SegmentedFirmware.Segment>();
+			segs.add(new SegmentedFirmware.Segment(0x08000000, fwData));
+			segs.add(new SegmentedFirmware.Segment(0x08010203, tail));
+			SegmentedFirmware fw = new SegmentedFirmware(segs);
+
+			System.out.println("\n----------- Test 19.1 write and verify using CRC -----------");
+			try {
+				dev.extendedEraseMemoryRegion(REGTYPE.MAIN, -1, -1);
+				dev.writeMemory(fw, null);
+				long t0 = System.currentTimeMillis();
+				List<SegmentedFirmware.Segment> res = dev.verifyMemoryCRC(fw);
+				long t1 = System.currentTimeMillis();
+				System.out.println("mismatched " + res.size() + " (expected 0) in " + (t1 - t0) + " ms");
+
+				byte[] readBuf = new byte[fwData.length];
+				dev.readMemory(readBuf, 0x08000000, readBuf.length, null);
+				System.out.println("read back took " + (System.currentTimeMillis() - t1) + " ms");
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+
+			System.out.println("\n----------- Test 19.2 one byte differs in each segment -----------");
+			try {
+				fwData[40000] = (byte) ~fwData[40000];
+				tail[4] = 0x00;
+				List<SegmentedFirmware.Segment> res = dev.verifyMemoryCRC(fw);
+				System.out.println("mismatched " + res.size() + " (expected 2)");
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+
+			System.out.println("\n----------- Test 19.3 bootloader is usable after verify -----------");
+			try {
+				System.out.println("PID = " + dev.getChipID());
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+
+			uci.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			if (opened == true) {
+				uci.close();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		UARTtest19 app = new UARTtest19();
+		app.begin();
+	}
+
+}
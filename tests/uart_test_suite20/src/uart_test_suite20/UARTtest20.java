@@ -0,0 +1,484 @@
+/* 
+ * This file is part of progstm32.
+ * 
+ * Copyright (C) 2018, Rishi Gupta. All rights reserved.
+ * 
+ * The progstm32 is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published 
+ * by the Free Software Foundation; either version 2.1 of the License, or 
+ * (at your option) any later version.
+ * 
+ * The progstm32 is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License 
+ * along with this library; if not, write to the Free Software Foundation,Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package uart_test_suite20;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+
+import flash.stm32.core.BootloaderSession;
+import flash.stm32.core.CancelToken;
+import flash.stm32.core.CommandMetrics;
+import flash.stm32.core.Device;
+import flash.stm32.core.FileType;
+import flash.stm32.core.ICmdProgressListener;
+import flash.stm32.core.ICmdRetryListener;
+import flash.stm32.core.REGTYPE;
+import flash.stm32.core.SegmentedFirmware;
+import flash.stm32.core.WriteJournal;
+import flash.stm32.uart.RetryPolicy;
+import flash.stm32.uart.UARTDeviceManager;
+import flash.stm32.uart.UARTDeviceManager.IFace;
+import flash.stm32.uart.UARTInterface;
+import flash.stm32.uart.emulator.BootloaderEmulator;
+import flash.stm32.uart.emulator.EmulatorServer;
+import flash.stm32.uart.emulator.EmulatorTransport;
+import flash.stm32.uart.transport.TcpTransport;
+
+/*
+ * Runs bootloader protocol against in-process emulator of L476 (pid 0x415)
+ * bootloader, does not need stm32 hardware. Functional tests run with line
+ * timing off, throughput is measured with 8E1 line and flash timing modelled.
+ * Test 20.8 goes through TcpTransport to a local emulator server. Resume,
+ * retry, cancel and verify while writing are tested here as well, faults can
+ * be injected in the middle of a block and partly programmed blocks planted
+ * only through the emulator.
+ */
+public final class UARTtest20 {
+
+	private static final int FLASH = 0x08000000;
+
+	protected void begin() throws Exception {
+
+		UARTDeviceManager devMgr = new UARTDeviceManager(new Locale("English", "EN"));
+		UARTInterface uci = (UARTInterface) devMgr.getCommunicationIface(IFace.UART);
+		BootloaderEmulator emu = new BootloaderEmulator(0x415);
+		EmulatorTransport port = new EmulatorTransport(emu);
+		port.setLineTiming(false);
+		uci.open(port, 115200);
+
+		byte[] fwData = new byte[32 * 1024];
+		for (int q = 0; q < fwData.length; q++) {
+			fwData[q] = (byte) ((q * 7) + (q >> 8));
+		}
+		ArrayList<SegmentedFirmware.Segment> segs = new ArrayList<SegmentedFirmware.Segment>();
+		segs.add(new SegmentedFirmware.Segment(FLASH, fwData));
+		SegmentedFirmware fw = new SegmentedFirmware(segs);
+		byte[] rdBuf = new byte[fwData.length];
+
+		Device dev = null;
+
+		System.out.println("\n----------- Test 20.1 init, get id, get -----------");
+		try {
+			dev = uci.initAndIdentifyDevice();
+			System.out.println("PID 0x" + Integer.toHexString(dev.getChipID()) + " " + dev.getuCSeries()
+					+ ", bootloader " + dev.getBootloaderProtocolVersion() + ", commands 0x"
+					+ Integer.toHexString(dev.getAllowedCommands()));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		System.out.println("\n----------- Test 20.2 erase, write, read back -----------");
+		try {
+			dev.eraseMemoryForFirmware(fw);
+			dev.writeMemory(fw, null);
+			dev.readMemory(rdBuf, FLASH, rdBuf.length, null);
+			boolean same = Arrays.equals(rdBuf, fwData) && Arrays.equals(emu.readMemory(FLASH, fwData.length), fwData);
+			System.out.println(same ? "read back matches" : "MISMATCH");
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		System.out.println("\n----------- Test 20.3 write to flash which is not erased is refused -----------");
+		try {
+			byte[] ones = new byte[16];
+			Arrays.fill(ones, (byte) 0xFF);
+			dev.writeMemory(FileType.BIN, ones, FLASH, null);
+			System.out.println("write FAILED to be refused");
+		} catch (Exception e) {
+			System.out.println("refused as expected: " + e.getMessage());
+		}
+
+		System.out.println("\n----------- Test 20.4 delta write -----------");
+		try {
+			fwData[5000] = (byte) ~fwData[5000];
+			fwData[20000] = (byte) ~fwData[20000];
+			int n = dev.writeMemoryDelta(fw, null);
+			boolean same = Arrays.equals(emu.readMemory(FLASH, fwData.length), fwData);
+			System.out.println("pages changed " + n + " (expected 2)" + (same ? ", contents match" : ", MISMATCH"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		System.out.println("\n----------- Test 20.5 write and readout protection -----------");
+		try {
+			dev.writeProtectMemoryRegion(0, 1);
+			dev = uci.initAndIdentifyDevice();
+			try {
+				dev.extendedEraseMemoryRegion(0, 0, 1);
+				System.out.println("erase of protected page FAILED to be refused");
+			} catch (Exception e) {
+				System.out.println("erase of protected page refused as expected");
+			}
+			dev.writeUnprotectMemoryRegion();
+			dev = uci.initAndIdentifyDevice();
+			dev.readoutprotectMemoryRegion();
+			dev = uci.initAndIdentifyDevice();
+			try {
+				dev.readMemory(rdBuf, FLASH, 256, null);
+				System.out.println("read of protected flash FAILED to be refused");
+			} catch (Exception e) {
+				System.out.println("read of protected flash refused as expected");
+			}
+			dev.readoutUnprotectMemoryRegion();
+			dev = uci.initAndIdentifyDevice();
+			dev.readMemory(rdBuf, FLASH, 256, null);
+			System.out.println("first byte after readout unprotect 0x" + Integer.toHexString(rdBuf[0] & 0xFF)
+					+ " (expected ff)");
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		System.out.println("\n----------- Test 20.6 write throughput with modelled timing -----------");
+		try {
+			CommandMetrics cm = new CommandMetrics();
+			port.setLineTiming(true);
+			int[] rates = new int[] { 115200, 460800, 921600 };
+			for (int rate : rates) {
+				for (int p = 0; p < 2; p++) {
+					emu.reset();
+					uci.setBaudrate(rate);
+					uci.setWritePipelining(p == 1);
+					dev = uci.initAndIdentifyDevice();
+					dev.eraseMemoryForFirmware(fw);
+					if ((rate == 921600) && (p == 1)) {
+						uci.setCommandMetrics(cm);
+					}
+					long t0 = System.nanoTime();
+					dev.writeMemory(fw, null);
+					long t1 = System.nanoTime();
+					uci.setCommandMetrics(null);
+					System.out.println(rate + (p == 1 ? " pipelined" : "          ") + " : "
+							+ ((fwData.length * 1000000L) / ((t1 - t0) / 1000L)) / 1024 + " KiB/s");
+				}
+			}
+			uci.setWritePipelining(false);
+			System.out.println(cm);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		System.out.println("\n----------- Test 20.7 one get and get id per session -----------");
+		try {
+			CommandMetrics cm = new CommandMetrics();
+			port.setLineTiming(false);
+			emu.reset();
+			uci.setBaudrate(115200);
+			uci.setCommandMetrics(cm);
+			dev = uci.initAndIdentifyDevice();
+			dev.getAllowedCommands();
+			dev.getBootloaderProtocolVersion();
+			dev.getChipID();
+			dev.writeProtectMemoryRegion(0, 1);
+			dev = uci.reconnect();
+			dev.writeUnprotectMemoryRegion();
+			dev = uci.reconnect();
+			dev.getAllowedCommands();
+			uci.setCommandMetrics(null);
+			BootloaderSession bs = uci.getSession();
+			System.out.println("PID 0x" + Integer.toHexString(bs.getPID()) + ", " + bs.getVersionName() + ", get sent "
+					+ cm.getCount(0x00) + " get id sent " + cm.getCount(0x02) + " (expected 1 and 1)");
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		System.out.println("\n----------- Test 20.8 tcp transport to emulator server -----------");
+		EmulatorServer server = new EmulatorServer(new BootloaderEmulator(0x415), 0);
+		server.getEmulator().setFlashTiming(0, 0);
+		server.start();
+		UARTInterface tci = (UARTInterface) devMgr.getCommunicationIface(IFace.UART);
+		try {
+			tci.open(new TcpTransport("localhost", server.getPort()), 115200);
+			dev = tci.initAndIdentifyDevice();
+			dev.eraseMemoryForFirmware(fw);
+			long t0 = System.nanoTime();
+			dev.writeMemory(fw, null);
+			dev.readMemory(rdBuf, FLASH, rdBuf.length, null);
+			long t1 = System.nanoTime();
+			boolean same = Arrays.equals(rdBuf, fwData);
+			System.out.println("PID 0x" + Integer.toHexString(dev.getChipID()) + ", write and read back "
+					+ ((t1 - t0) / 1000000) + " ms" + (same ? ", contents match" : ", MISMATCH"));
+			tci.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		server.close();
+
+		System.out.println("\n----------- Test 20.9 write interrupted at half and resumed from journal -----------");
+		try {
+			emu.reset();
+			dev = uci.initAndIdentifyDevice();
+			dev.eraseMemoryForFirmware(fw);
+			File jf = File.createTempFile("progstm32jrnl", ".bin");
+			WriteJournal journal = new WriteJournal(jf);
+			try {
+				dev.writeMemory(fw, journal, new ICmdProgressListener() {
+					@Override
+					public void onDataWriteProgressUpdate(int totalBytesSentTillNow, int totalBytesToWrite) {
+						if (totalBytesSentTillNow >= (totalBytesToWrite / 2)) {
+							throw new IllegalStateException("write interrupted");
+						}
+					}
+
+					@Override
+					public void onDataReadProgressUpdate(int totalBytesReadTillNow, int totalNumBytesToRead) {
+					}
+				});
+			} catch (IllegalStateException e) {
+				System.out.println(e.getMessage() + ", journal can resume : " + journal.canResume(fw));
+			}
+			int resumeAddr = dev.resumeWrite(fw, journal, null);
+			boolean same = Arrays.equals(emu.readMemory(FLASH, fwData.length), fwData);
+			System.out.println("resumed at 0x" + Integer.toHexString(resumeAddr) + ", journal deleted : "
+					+ (jf.exists() == false) + (same ? ", contents match" : ", MISMATCH"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		System.out.println("\n----------- Test 20.10 pipelined write retried after noise in a data frame -----------");
+		try {
+			final int[] retries = new int[1];
+			dev.eraseMemoryForFirmware(fw);
+			uci.setRetryPolicy(new RetryPolicy(3, 10));
+			uci.setWritePipelining(true);
+			/* every block is command (2), address (5) and data frame (258); hit middle of 11th block */
+			port.corruptByte((10 * 265) + 7 + 128);
+			dev.writeMemory(fw, new ICmdRetryListener() {
+				@Override
+				public void onDataWriteProgressUpdate(int totalBytesSentTillNow, int totalBytesToWrite) {
+				}
+
+				@Override
+				public void onDataReadProgressUpdate(int totalBytesReadTillNow, int totalNumBytesToRead) {
+				}
+
+				@Override
+				public void onBlockRetry(int address, int attempt, int totalRetries, String reason) {
+					System.out.println("retry 0x" + Integer.toHexString(address) + " " + attempt + " " + reason);
+					retries[0] = totalRetries;
+				}
+			});
+			uci.setWritePipelining(false);
+			uci.setRetryPolicy(null);
+			boolean same = Arrays.equals(emu.readMemory(FLASH, fwData.length), fwData);
+			System.out.println("retries " + retries[0] + " (expected 1)" + (same ? ", contents match" : ", MISMATCH"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		System.out.println("\n----------- Test 20.11 pipelined write cancelled at half through cancel token -----------");
+		try {
+			final CancelToken token = new CancelToken();
+			final int[] sent = new int[1];
+			dev.eraseMemoryForFirmware(fw);
+			dev.setCancelToken(token);
+			uci.setWritePipelining(true);
+			try {
+				dev.writeMemory(fw, new ICmdProgressListener() {
+					@Override
+					public void onDataWriteProgressUpdate(int totalBytesSentTillNow, int totalBytesToWrite) {
+						sent[0] = totalBytesSentTillNow;
+						if (totalBytesSentTillNow >= (totalBytesToWrite / 2)) {
+							token.cancel();
+						}
+					}
+
+					@Override
+					public void onDataReadProgressUpdate(int totalBytesReadTillNow, int totalNumBytesToRead) {
+					}
+				});
+				System.out.println("write was NOT cancelled");
+			} catch (CancellationException e) {
+				System.out.println("cancelled: " + e.getMessage());
+			}
+			uci.setWritePipelining(false);
+			dev.setCancelToken(null);
+			dev.readMemory(rdBuf, FLASH, sent[0], null);
+			boolean same = Arrays.equals(Arrays.copyOf(rdBuf, sent[0]), Arrays.copyOf(fwData, sent[0]));
+			System.out.println("bootloader answers after cancel, " + sent[0] + " bytes written"
+					+ (same ? ", contents match" : ", MISMATCH"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		System.out.println("\n----------- Test 20.12 resume after block in flight was programmed partly -----------");
+		try {
+			dev.eraseMemoryForFirmware(fw);
+			File jf = File.createTempFile("progstm32jrnl", ".bin");
+			WriteJournal journal = new WriteJournal(jf);
+			try {
+				dev.writeMemory(fw, journal, new ICmdProgressListener() {
+					@Override
+					public void onDataWriteProgressUpdate(int totalBytesSentTillNow, int totalBytesToWrite) {
+						if (totalBytesSentTillNow >= ((totalBytesToWrite / 2) + 0x300)) {
+							throw new IllegalStateException("write interrupted");
+						}
+					}
+
+					@Override
+					public void onDataReadProgressUpdate(int totalBytesReadTillNow, int totalNumBytesToRead) {
+					}
+				});
+			} catch (IllegalStateException e) {
+				System.out.println(e.getMessage() + ", journal can resume : " + journal.canResume(fw));
+			}
+			/* first 100 bytes of the next block reached flash before power was lost */
+			int inFlight = journal.getResumeAddress();
+			emu.loadMemory(inFlight, Arrays.copyOfRange(fwData, inFlight - FLASH, inFlight - FLASH + 100));
+			int resumeAddr = dev.resumeWrite(fw, journal, null);
+			boolean same = Arrays.equals(emu.readMemory(FLASH, fwData.length), fwData);
+			System.out.println("in flight 0x" + Integer.toHexString(inFlight) + ", resumed at 0x"
+					+ Integer.toHexString(resumeAddr) + " (expected 0x" + Integer.toHexString(inFlight & ~0x7FF)
+					+ ")" + (same ? ", contents match" : ", MISMATCH"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		uci.close();
+
+		System.out.println("\n----------- Test 20.13 legacy erase (0x43) of last pages -----------");
+		BootloaderEmulator lemu = new BootloaderEmulator(0x444, 0x22);
+		UARTInterface lci = (UARTInterface) devMgr.getCommunicationIface(IFace.UART);
+		try {
+			/* 32 pages of 1 KiB, all programmed */
+			byte[] zero = new byte[32 * 1024];
+			lemu.loadMemory(FLASH, zero);
+			lci.open(new EmulatorTransport(lemu), 115200);
+			dev = lci.initAndIdentifyDevice();
+			dev.eraseMemoryRegion(REGTYPE.MAIN, 29, 3);
+			byte[] flash = lemu.readMemory(FLASH, zero.length);
+			boolean first = (flash[0] == 0) && (flash[(29 * 1024) - 1] == 0);
+			boolean last = (flash[29 * 1024] == (byte) 0xFF) && (flash[(32 * 1024) - 1] == (byte) 0xFF);
+			System.out.println("pages 0 to 28 kept : " + first + ", pages 29 to 31 erased : " + last);
+			lci.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		System.out.println("\n----------- Test 20.14 legacy erase (0x43) refuses pages beyond 255 -----------");
+		lemu = new BootloaderEmulator(0x415, 0x22);
+		try {
+			/* 2 KiB pages, page 300 is at 600 KiB */
+			ArrayList<SegmentedFirmware.Segment> hsegs = new ArrayList<SegmentedFirmware.Segment>();
+			hsegs.add(new SegmentedFirmware.Segment(FLASH + (300 * 2048), new byte[] { 1, 2, 3, 4 }));
+			lci.open(new EmulatorTransport(lemu), 115200);
+			dev = lci.initAndIdentifyDevice();
+			try {
+				dev.eraseMemoryForFirmware(new SegmentedFirmware(hsegs));
+				System.out.println("page 300 was NOT refused");
+			} catch (IllegalArgumentException e) {
+				System.out.println("refused as expected: " + e.getMessage());
+			}
+			try {
+				dev.eraseMemoryRegion(REGTYPE.MAIN, 250, 10);
+				System.out.println("pages 250 to 259 were NOT refused");
+			} catch (IllegalArgumentException e) {
+				System.out.println("refused as expected: " + e.getMessage());
+			}
+			lci.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		System.out.println("\n----------- Test 20.15 mismatch found by verify while writing is not retried -----------");
+		final BootloaderEmulator vemu = new BootloaderEmulator(0x415);
+		final byte[] flipped = new byte[] { (byte) ~fwData[10] };
+		try {
+			final int[] retries = new int[1];
+			EmulatorTransport vport = new EmulatorTransport(vemu);
+			vport.setLineTiming(false);
+			lci.open(vport, 115200);
+			dev = lci.initAndIdentifyDevice();
+			dev.eraseMemoryForFirmware(fw);
+			lci.setWriteVerify(4);
+			lci.setRetryPolicy(new RetryPolicy(3, 10));
+			try {
+				dev.writeMemory(fw, new ICmdRetryListener() {
+					@Override
+					public void onDataWriteProgressUpdate(int totalBytesSentTillNow, int totalBytesToWrite) {
+						/* flash changes under first block before its window is read back */
+						if (totalBytesSentTillNow == 256) {
+							vemu.loadMemory(FLASH + 10, flipped);
+						}
+					}
+
+					@Override
+					public void onDataReadProgressUpdate(int totalBytesReadTillNow, int totalNumBytesToRead) {
+					}
+
+					@Override
+					public void onBlockRetry(int address, int attempt, int totalRetries, String reason) {
+						retries[0] = totalRetries;
+					}
+				});
+				System.out.println("mismatch NOT detected");
+			} catch (IllegalStateException e) {
+				System.out.println("detected as expected: " + e.getMessage() + ", retries " + retries[0]
+						+ " (expected 0)");
+			}
+			lci.setWriteVerify(0);
+			lci.setRetryPolicy(null);
+			lci.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		System.out.println("\n----------- Test 20.16 direct byte buffer, plain, pipelined and verified -----------");
+		try {
+			BootloaderEmulator bemu = new BootloaderEmulator(0x415);
+			EmulatorTransport bport = new EmulatorTransport(bemu);
+			bport.setLineTiming(false);
+			lci.open(bport, 115200);
+			dev = lci.initAndIdentifyDevice();
+			ByteBuffer wb = ByteBuffer.allocateDirect(fwData.length + 100);
+			wb.put(fwData, 0, 100).put(fwData).flip();
+			String[] modes = new String[] { "plain", "pipelined", "verified" };
+			for (int m = 0; m < modes.length; m++) {
+				lci.setWritePipelining(m == 1);
+				lci.setWriteVerify((m == 2) ? 4 : 0);
+				dev.eraseMemoryForFirmware(fw);
+				/* odd start and length, last block is padded */
+				wb.position(100);
+				wb.limit(100 + fwData.length - 3);
+				dev.writeMemory(wb, FLASH);
+				byte[] flash = bemu.readMemory(FLASH, fwData.length);
+				int n = fwData.length - 3;
+				boolean same = (wb.position() == wb.limit())
+						&& Arrays.equals(Arrays.copyOf(flash, n), Arrays.copyOf(fwData, n))
+						&& (flash[fwData.length - 1] == (byte) 0xFF);
+				System.out.println(modes[m] + (same ? ", contents match" : ", MISMATCH"));
+			}
+			lci.setWritePipelining(false);
+			lci.setWriteVerify(0);
+			lci.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		UARTtest20 app = new UARTtest20();
+		app.begin();
+	}
+}